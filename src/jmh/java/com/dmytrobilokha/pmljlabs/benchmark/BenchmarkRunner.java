@@ -0,0 +1,25 @@
+package com.dmytrobilokha.pmljlabs.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs JMH benchmarks with the GC profiler always on, because for these kernels the allocation rate matters
+ * as much as the throughput. All the usual JMH command line options are accepted, e.g. a benchmark name regexp
+ * or -p shape=128x785x100 to run only one shape.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] cliArgs) throws CommandLineOptionException, RunnerException {
+        var options = new OptionsBuilder()
+                .parent(new CommandLineOptions(cliArgs))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
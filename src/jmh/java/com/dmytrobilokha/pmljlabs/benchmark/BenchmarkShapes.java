@@ -0,0 +1,22 @@
+package com.dmytrobilokha.pmljlabs.benchmark;
+
+final class BenchmarkShapes {
+
+    private BenchmarkShapes() {
+        // Util class
+    }
+
+    static int[] parse(String shape, int expectedDimensions) {
+        String[] parts = shape.split("x");
+        if (parts.length != expectedDimensions) {
+            throw new IllegalArgumentException(
+                    "Expected " + expectedDimensions + " dimensions separated by 'x', but got '" + shape + "'");
+        }
+        int[] dimensions = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            dimensions[i] = Integer.parseInt(parts[i]);
+        }
+        return dimensions;
+    }
+
+}
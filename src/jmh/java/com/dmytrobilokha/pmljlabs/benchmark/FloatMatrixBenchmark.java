@@ -0,0 +1,131 @@
+package com.dmytrobilokha.pmljlabs.benchmark;
+
+import com.dmytrobilokha.pmljlabs.enhanced.FloatMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matrix kernels at the shapes the MNIST networks actually use: 128 rows batches, the 60000 rows training set,
+ * 784 (+1 bias) inputs, 100 hidden nodes and 10 labels.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FloatMatrixBenchmark {
+
+    @State(Scope.Thread)
+    public static class MultiplyState {
+        // rows x inner x columns: batch forward, full dataset forward, output layer, w2 and w1 gradients
+        @Param({"128x785x100", "60000x785x100", "128x101x10", "101x128x10", "785x128x100"})
+        public String shape;
+        FloatMatrix left;
+        FloatMatrix right;
+
+        @Setup
+        public void setUp() {
+            int[] dimensions = BenchmarkShapes.parse(shape, 3);
+            left = FloatMatrix.ofUniRandoms(dimensions[0], dimensions[1], 1L);
+            right = FloatMatrix.ofUniRandoms(dimensions[1], dimensions[2], 2L);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MatrixState {
+        // rows x columns: input batch, training set, hidden layer batch, outputs, w2
+        @Param({"128x784", "60000x784", "128x100", "60000x10", "101x10"})
+        public String shape;
+        FloatMatrix matrix;
+        FloatMatrix rowVector;
+        FloatMatrix columnVector;
+
+        @Setup
+        public void setUp() {
+            int[] dimensions = BenchmarkShapes.parse(shape, 2);
+            matrix = FloatMatrix.ofUniRandoms(dimensions[0], dimensions[1], 3L);
+            rowVector = FloatMatrix.ofUniRandoms(1, dimensions[1], 4L).scalarAdd(1f);
+            columnVector = FloatMatrix.ofUniRandoms(dimensions[0], 1, 5L).scalarAdd(1f);
+        }
+    }
+
+    @Benchmark
+    public FloatMatrix multiply(MultiplyState state) {
+        return state.left.multiply(state.right);
+    }
+
+    @Benchmark
+    public FloatMatrix transpose(MatrixState state) {
+        return state.matrix.transpose();
+    }
+
+    @Benchmark
+    public FloatMatrix prependColumn(MatrixState state) {
+        return state.matrix.prependColumn(1f);
+    }
+
+    @Benchmark
+    public FloatMatrix getSubMatrix(MatrixState state) {
+        var matrix = state.matrix;
+        return matrix.getSubMatrix(1, matrix.getRowDimension() - 1, 1, matrix.getColumnDimension() - 1);
+    }
+
+    @Benchmark
+    public List<FloatMatrix> splitRowsInBatches(MatrixState state) {
+        return state.matrix.splitRowsInBatches(128);
+    }
+
+    @Benchmark
+    public FloatMatrix apply(MatrixState state) {
+        return state.matrix.apply(z -> z <= 0f ? 0f : z);
+    }
+
+    @Benchmark
+    public FloatMatrix softmax(MatrixState state) {
+        var exponentials = state.matrix.subtractColumnVector(state.matrix.maxPerRow()).apply(v -> (float) Math.exp(v));
+        return exponentials.divideColumnVectorInPlace(exponentials.sumPerRow());
+    }
+
+    @Benchmark
+    public int[] indexOfHighestPerRow(MatrixState state) {
+        return state.matrix.indexOfHighestPerRow();
+    }
+
+    @Benchmark
+    public FloatMatrix addRowVector(MatrixState state) {
+        return state.matrix.addRowVector(state.rowVector);
+    }
+
+    @Benchmark
+    public FloatMatrix divideColumnVector(MatrixState state) {
+        return state.matrix.divideColumnVector(state.columnVector);
+    }
+
+    @Benchmark
+    public float sum(MatrixState state) {
+        return state.matrix.sum();
+    }
+
+    @Benchmark
+    public FloatMatrix sumPerRow(MatrixState state) {
+        return state.matrix.sumPerRow();
+    }
+
+    @Benchmark
+    public FloatMatrix sumPerColumn(MatrixState state) {
+        return state.matrix.sumPerColumn();
+    }
+
+}
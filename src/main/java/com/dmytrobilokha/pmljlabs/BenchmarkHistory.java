@@ -0,0 +1,318 @@
+package com.dmytrobilokha.pmljlabs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the results of benchmarks and training runs in an append-only history file and compares two runs.
+ * <p>
+ * The history file has one record per line: tab separated key=value pairs with the run label, the result name,
+ * the time it has been recorded at, the environment description and the metrics, each prefixed with "metric.".
+ * Records are never rewritten, if the same result is added to the same run twice, the latest one wins.
+ * <p>
+ * The results which could be added are:
+ * <ul>
+ *     <li>TrainingStepBenchmark output (.tsv), one record per implementation, batch size and hidden layer width;</li>
+ *     <li>training run reports, given by the base filename: [base].system and [base].lstat,
+ *     or [base].report for the oldest reports, which have no .system file.</li>
+ * </ul>
+ * The comparison treats the metrics ending with "PerSecond" and accuracies as the higher the better, durations,
+ * bytes and losses as the lower the better, and reports a change as improvement or regression only when
+ * it is bigger than the tolerance.
+ */
+public class BenchmarkHistory {
+
+    static final String UNKNOWN_ENVIRONMENT = "unknown";
+    private static final String METRIC_PREFIX = "metric.";
+    private static final String SYSTEM_START_PREFIX = "Starting all at ";
+    private static final String SYSTEM_END_TRAINING_PREFIX = "Finished training at ";
+    private static final String SYSTEM_END_REPORTING_PREFIX = "Finished reporting at ";
+    private static final String SYSTEM_ENVIRONMENT_PREFIX = "Environment: ";
+    private static final String SYSTEM_PEAK_HEAP_PREFIX = "Peak heap: ";
+    private static final String SYSTEM_THROUGHPUT_PREFIX = "Training throughput: ";
+    private static final String SYSTEM_FINAL_ACCURACY_PREFIX = "Final test accuracy: ";
+    private static final double[] ACCURACY_TARGETS = {90d, 95d};
+    private static final double DEFAULT_TOLERANCE_PERCENT = 5d;
+
+    public static void main(String[] cliArgs) {
+        if (cliArgs.length >= 3 && "add".equals(cliArgs[0])) {
+            add(cliArgs[1], cliArgs[2], List.of(cliArgs).subList(3, cliArgs.length));
+            return;
+        }
+        if ((cliArgs.length == 4 || cliArgs.length == 5) && "compare".equals(cliArgs[0])) {
+            double tolerancePercent = cliArgs.length == 5 ? Double.parseDouble(cliArgs[4]) : DEFAULT_TOLERANCE_PERCENT;
+            var records = readHistory(cliArgs[1]);
+            var comparison = compare(
+                    selectRun(records, cliArgs[2]), selectRun(records, cliArgs[3]), tolerancePercent);
+            comparison.lines().forEach(System.out::println);
+            if (comparison.regressed()) {
+                System.exit(2);
+            }
+            return;
+        }
+        System.err.println("Expected arguments, either:");
+        System.err.println("add [history file] [run label] [result files...]");
+        System.err.println("    result file is either a TrainingStepBenchmark .tsv file or a training report base filename");
+        System.err.println("or:");
+        System.err.println("compare [history file] [baseline run label] [candidate run label] [(optional) tolerance %, default 5]");
+        System.err.println("    exits with code 2 if the candidate has regressed");
+        System.exit(1);
+    }
+
+    private static void add(String historyFile, String run, List<String> resultFiles) {
+        var recordedAt = LocalDateTime.now().toString();
+        var lines = new ArrayList<String>();
+        for (var resultFile : resultFiles) {
+            var records = resultFile.endsWith(".tsv")
+                    ? readStepBenchmark(run, resultFile, recordedAt)
+                    : List.of(readTrainingRun(run, resultFile, recordedAt));
+            for (var record : records) {
+                lines.add(formatRecord(record));
+            }
+        }
+        try {
+            Files.write(Path.of(historyFile), lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append records to the history file: " + historyFile, e);
+        }
+        System.out.println("Added " + lines.size() + " records of the run '" + run + "' to " + historyFile);
+    }
+
+    static List<Record> readStepBenchmark(String run, String tsvFile, String recordedAt) {
+        var environment = readSystemFile(tsvFile + ".system").environment();
+        var records = new ArrayList<Record>();
+        var lines = readLines(tsvFile);
+        for (int i = 1; i < lines.size(); i++) {
+            String[] fields = lines.get(i).split("\t");
+            if (fields.length != 7) {
+                throw new IllegalArgumentException("Unexpected line " + (i + 1) + " in " + tsvFile + ": " + lines.get(i));
+            }
+            var metrics = new LinkedHashMap<String, Double>();
+            metrics.put("stepsPerSecond", Double.parseDouble(fields[4]));
+            metrics.put("samplesPerSecond", Double.parseDouble(fields[5]));
+            metrics.put("allocatedBytesPerStep", Double.parseDouble(fields[6]));
+            var name = fields[0] + "/batch=" + fields[1] + "/hidden=" + fields[2];
+            records.add(new Record(run, name, recordedAt, environment, metrics));
+        }
+        return records;
+    }
+
+    static Record readTrainingRun(String run, String reportBaseFilename, String recordedAt) {
+        var system = readSystemFile(reportBaseFilename + ".system");
+        var lstatPath = Path.of(reportBaseFilename + ".lstat");
+        var accuracies = readAccuracies(Files.exists(lstatPath) ? lstatPath.toString() : reportBaseFilename + ".report");
+        var metrics = new LinkedHashMap<String, Double>();
+        if (!accuracies.isEmpty()) {
+            metrics.put("bestAccuracy", accuracies.stream().mapToDouble(Double::doubleValue).max().orElseThrow());
+            metrics.put("finalAccuracy", accuracies.get(accuracies.size() - 1));
+        }
+        if (system.startedAt() != null && system.finishedTrainingAt() != null) {
+            double trainingSeconds = secondsBetween(system.startedAt(), system.finishedTrainingAt());
+            metrics.put("trainingSeconds", trainingSeconds);
+            // Reporting lines are evenly spread over the training, so the position of the first line reaching
+            // the target gives a good enough estimate of when it has been reached
+            for (double target : ACCURACY_TARGETS) {
+                for (int i = 0; i < accuracies.size(); i++) {
+                    if (accuracies.get(i) >= target) {
+                        metrics.put("secondsTo" + (int) target + "Accuracy",
+                                trainingSeconds * (i + 1) / accuracies.size());
+                        break;
+                    }
+                }
+            }
+            if (system.finishedReportingAt() != null) {
+                metrics.put("reportingSeconds", secondsBetween(system.finishedTrainingAt(), system.finishedReportingAt()));
+            }
+        }
+        metrics.putAll(system.metrics());
+        var name = Path.of(reportBaseFilename).getFileName().toString();
+        var runRecordedAt = system.startedAt() == null ? recordedAt : system.startedAt().toString();
+        return new Record(run, name, runRecordedAt, system.environment(), metrics);
+    }
+
+    private static SystemInfo readSystemFile(String systemFile) {
+        if (!Files.exists(Path.of(systemFile))) {
+            return new SystemInfo(null, null, null, UNKNOWN_ENVIRONMENT, Map.of());
+        }
+        LocalDateTime startedAt = null;
+        LocalDateTime finishedTrainingAt = null;
+        LocalDateTime finishedReportingAt = null;
+        String environment = UNKNOWN_ENVIRONMENT;
+        var metrics = new LinkedHashMap<String, Double>();
+        for (var line : readLines(systemFile)) {
+            if (line.startsWith(SYSTEM_START_PREFIX)) {
+                startedAt = LocalDateTime.parse(line.substring(SYSTEM_START_PREFIX.length()));
+            } else if (line.startsWith(SYSTEM_END_TRAINING_PREFIX)) {
+                finishedTrainingAt = LocalDateTime.parse(line.substring(SYSTEM_END_TRAINING_PREFIX.length()));
+            } else if (line.startsWith(SYSTEM_END_REPORTING_PREFIX)) {
+                finishedReportingAt = LocalDateTime.parse(line.substring(SYSTEM_END_REPORTING_PREFIX.length()));
+            } else if (line.startsWith(SYSTEM_ENVIRONMENT_PREFIX)) {
+                environment = line.substring(SYSTEM_ENVIRONMENT_PREFIX.length());
+            } else if (line.startsWith(SYSTEM_PEAK_HEAP_PREFIX)) {
+                metrics.put("peakHeapBytes", parseLeadingNumber(line.substring(SYSTEM_PEAK_HEAP_PREFIX.length())));
+            } else if (line.startsWith(SYSTEM_THROUGHPUT_PREFIX)) {
+                metrics.put("samplesPerSecond", parseLeadingNumber(line.substring(SYSTEM_THROUGHPUT_PREFIX.length())));
+            } else if (line.startsWith(SYSTEM_FINAL_ACCURACY_PREFIX)) {
+                metrics.put("finalTestAccuracy", parseLeadingNumber(line.substring(SYSTEM_FINAL_ACCURACY_PREFIX.length())));
+            }
+        }
+        return new SystemInfo(startedAt, finishedTrainingAt, finishedReportingAt, environment, metrics);
+    }
+
+    // "1234 bytes", "1500.5 samples/sec", "97.1%"
+    private static double parseLeadingNumber(String value) {
+        return Double.parseDouble(value.split("[ %]")[0]);
+    }
+
+    // The lstat line is "epoch batch trainingLoss accuracy", already ordered by epoch and batch
+    private static List<Double> readAccuracies(String lstatFile) {
+        return FileUtil.readTxtDataFile(lstatFile, 0).stream()
+                .map(fields -> Double.parseDouble(fields[3]))
+                .toList();
+    }
+
+    private static double secondsBetween(LocalDateTime start, LocalDateTime end) {
+        return Duration.between(start, end).toNanos() / 1e9d;
+    }
+
+    static List<Record> readHistory(String historyFile) {
+        return readLines(historyFile).stream()
+                .filter(line -> !line.isBlank())
+                .map(BenchmarkHistory::parseRecord)
+                .toList();
+    }
+
+    static String formatRecord(Record record) {
+        var line = new StringBuilder()
+                .append("run=").append(sanitize(record.run()))
+                .append("\tname=").append(sanitize(record.name()))
+                .append("\trecordedAt=").append(sanitize(record.recordedAt()))
+                .append("\tenvironment=").append(sanitize(record.environment()));
+        record.metrics().forEach((metric, value) -> line.append('\t').append(METRIC_PREFIX).append(metric)
+                .append('=').append(value));
+        return line.toString();
+    }
+
+    static Record parseRecord(String line) {
+        var fields = new LinkedHashMap<String, String>();
+        var metrics = new LinkedHashMap<String, Double>();
+        for (var pair : line.split("\t")) {
+            int separatorIndex = pair.indexOf('=');
+            if (separatorIndex < 0) {
+                throw new IllegalArgumentException("Expected key=value pair, but got '" + pair + "' in the record: " + line);
+            }
+            var key = pair.substring(0, separatorIndex);
+            var value = pair.substring(separatorIndex + 1);
+            if (key.startsWith(METRIC_PREFIX)) {
+                metrics.put(key.substring(METRIC_PREFIX.length()), Double.parseDouble(value));
+            } else {
+                fields.put(key, value);
+            }
+        }
+        if (!fields.containsKey("run") || !fields.containsKey("name")) {
+            throw new IllegalArgumentException("The record has no run or name: " + line);
+        }
+        return new Record(fields.get("run"), fields.get("name"), fields.getOrDefault("recordedAt", ""),
+                fields.getOrDefault("environment", UNKNOWN_ENVIRONMENT), metrics);
+    }
+
+    private static String sanitize(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    // The latest record for every name of the run
+    static Map<String, Record> selectRun(List<Record> records, String run) {
+        var selected = new LinkedHashMap<String, Record>();
+        for (var record : records) {
+            if (record.run().equals(run)) {
+                selected.put(record.name(), record);
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("There are no records of the run '" + run + "' in the history");
+        }
+        return selected;
+    }
+
+    static Comparison compare(Map<String, Record> baseline, Map<String, Record> candidate, double tolerancePercent) {
+        var lines = new ArrayList<String>();
+        int improvements = 0;
+        int regressions = 0;
+        for (var baselineRecord : baseline.values()) {
+            var candidateRecord = candidate.get(baselineRecord.name());
+            if (candidateRecord == null) {
+                lines.add("MISSING\t" + baselineRecord.name() + "\tnot in the candidate run");
+                continue;
+            }
+            if (!baselineRecord.environment().equals(candidateRecord.environment())) {
+                lines.add("WARNING\t" + baselineRecord.name() + "\tenvironments differ: '"
+                        + baselineRecord.environment() + "' vs '" + candidateRecord.environment() + "'");
+            }
+            for (var metricEntry : baselineRecord.metrics().entrySet()) {
+                var metric = metricEntry.getKey();
+                Double candidateValue = candidateRecord.metrics().get(metric);
+                if (candidateValue == null) {
+                    continue;
+                }
+                double baselineValue = metricEntry.getValue();
+                double changePercent = baselineValue == 0d
+                        ? (candidateValue == 0d ? 0d : Double.POSITIVE_INFINITY * Math.signum(candidateValue))
+                        : (candidateValue - baselineValue) * 100d / Math.abs(baselineValue);
+                double gainPercent = isHigherBetter(metric) ? changePercent : -changePercent;
+                String verdict;
+                if (gainPercent > tolerancePercent) {
+                    verdict = "IMPROVEMENT";
+                    improvements++;
+                } else if (gainPercent < -tolerancePercent) {
+                    verdict = "REGRESSION";
+                    regressions++;
+                } else {
+                    verdict = "UNCHANGED";
+                }
+                lines.add(verdict + "\t" + baselineRecord.name() + "\t" + metric + "\t" + baselineValue
+                        + " -> " + candidateValue + "\t" + String.format("%+.2f%%", changePercent));
+            }
+        }
+        for (var candidateName : candidate.keySet()) {
+            if (!baseline.containsKey(candidateName)) {
+                lines.add("NEW\t" + candidateName + "\tnot in the baseline run");
+            }
+        }
+        lines.add("Improvements: " + improvements + ", regressions: " + regressions
+                + ", tolerance: " + tolerancePercent + "%");
+        return new Comparison(lines, regressions > 0);
+    }
+
+    static boolean isHigherBetter(String metric) {
+        return !(metric.startsWith("secondsTo") || metric.endsWith("Seconds")
+                || metric.contains("Bytes") || metric.contains("Loss"));
+    }
+
+    private static List<String> readLines(String filePath) {
+        try {
+            return Files.readAllLines(Path.of(filePath));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read data from the file: " + filePath, e);
+        }
+    }
+
+    record Record(String run, String name, String recordedAt, String environment, Map<String, Double> metrics) {}
+
+    record Comparison(List<String> lines, boolean regressed) {}
+
+    private record SystemInfo(
+            LocalDateTime startedAt,
+            LocalDateTime finishedTrainingAt,
+            LocalDateTime finishedReportingAt,
+            String environment,
+            Map<String, Double> metrics) {}
+
+}
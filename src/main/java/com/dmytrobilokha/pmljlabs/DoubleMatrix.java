@@ -3,13 +3,16 @@ package com.dmytrobilokha.pmljlabs;
 import org.apache.commons.math3.exception.NumberIsTooSmallException;
 import org.apache.commons.math3.exception.OutOfRangeException;
 
-import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
 import java.util.function.DoubleSupplier;
 import java.util.function.DoubleUnaryOperator;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGenerator.SplittableGenerator;
+import java.util.random.RandomGeneratorFactory;
+import java.util.stream.IntStream;
 
 /**
  *  This implementation was copy-pasted from org.apache.commons.math3.linear.BlockRealMatrix with some changes:
@@ -18,24 +21,44 @@ import java.util.function.DoubleUnaryOperator;
  *  - added factory methods to create a matrix;
  *  - removed not needed checks;
  *  - added some missing, but useful methods (element-by-element multiply, sum, etc.);
- *  - made internal blocks array read-only
+ *  - made internal blocks array read-only, except for the explicit *InPlace methods, which should be called only on
+ *    matrices not shared with anybody else;
+ *  - matrices not wider than one block are kept in a single contiguous row-major array;
+ *  - added broadcast operations with row (1, n) and column (m, 1) vectors;
+ *  - random matrices are filled in parallel, each block from its own substream of a seedable splittable generator;
+ *  - operations report to MatrixProfiler when profiling is enabled;
+ *  - added gathering of rows by indices, e.g. to assemble shuffled batches without copying the whole dataset;
+ *  - added fused in-place optimizer updates (momentum, Adam), which also update the optimizer state matrices;
+ *  - addScaledInPlace is the only *InPlace method meant for shared matrices: lock-free (Hogwild) weight updates
+ *    from several threads, with copy() to take a snapshot of such a matrix;
+ *  - added *InPlace variants of copy, multiply, transpose, apply and sumPerColumn, plus combineInPlace and
+ *    softmaxPerRowInPlace, which write into a preallocated buffer, so a training step could run without allocations;
+ *  - added one-pass (Welford) column means and variances and in-place column standardization, both parallel
+ *    over the blocks;
+ *  - added copying and gathering of rows into the columns of a reused buffer from a given one on, so a chunk of rows
+ *    gets its bias column without prependColumn, copying of a column range, and indexOfHighestPerRow into
+ *    a reused array
  */
 public class DoubleMatrix {
 
     public static final DoubleMatrix NULL = new DoubleMatrix(0, 0, 0, 0, new double[0][0]);
     public static final int BLOCK_SIZE = 52;
-    private static final Random randomGenerator = new SecureRandom("Deterministic".getBytes(StandardCharsets.UTF_8));
+    public static final long DEFAULT_RANDOM_SEED = 42L;
+    private static final String RANDOM_ALGORITHM = "L64X128MixRandom";
+    private static final SplittableGenerator randomGenerator = createRandomGenerator(DEFAULT_RANDOM_SEED);
     private final double[][] blocks;
     private final int rows;
     private final int columns;
     private final int blockRows;
     private final int blockColumns;
+    private final boolean rowMajor;
 
     private DoubleMatrix(int rows, int columns, int blockRows, int blockColumns, double[][] blockData) {
         this.rows = rows;
         this.columns = columns;
         this.blockRows = blockRows;
         this.blockColumns = blockColumns;
+        this.rowMajor = isRowMajorLayout(columns);
         blocks = blockData;
     }
 
@@ -54,17 +77,44 @@ public class DoubleMatrix {
     }
 
     public static DoubleMatrix ofSndRandoms(int rows, int columns) {
+        return ofSndRandoms(rows, columns, splitDefaultRandomGenerator());
+    }
+
+    public static DoubleMatrix ofSndRandoms(int rows, int columns, long seed) {
+        return ofSndRandoms(rows, columns, createRandomGenerator(seed));
+    }
+
+    public static DoubleMatrix ofSndRandoms(int rows, int columns, SplittableGenerator generator) {
         ensureCreatableSize(rows, columns);
         int blockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, createFilledBlocksLayout(rows, columns, randomGenerator::nextGaussian));
+        return new DoubleMatrix(rows, columns, blockRows, blockColumns,
+                createRandomBlocksLayout(rows, columns, generator, RandomGenerator::nextGaussian));
     }
 
     public static DoubleMatrix ofUniRandoms(int rows, int columns) {
+        return ofUniRandoms(rows, columns, splitDefaultRandomGenerator());
+    }
+
+    public static DoubleMatrix ofUniRandoms(int rows, int columns, long seed) {
+        return ofUniRandoms(rows, columns, createRandomGenerator(seed));
+    }
+
+    public static DoubleMatrix ofUniRandoms(int rows, int columns, SplittableGenerator generator) {
         ensureCreatableSize(rows, columns);
         int blockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, createFilledBlocksLayout(rows, columns, randomGenerator::nextDouble));
+        return new DoubleMatrix(rows, columns, blockRows, blockColumns,
+                createRandomBlocksLayout(rows, columns, generator, RandomGenerator::nextDouble));
+    }
+
+    public static SplittableGenerator createRandomGenerator(long seed) {
+        return (SplittableGenerator) RandomGeneratorFactory.of(RANDOM_ALGORITHM).create(seed);
+    }
+
+    // The default generator is shared, so consecutive calls without a seed still get different, but reproducible data
+    private static synchronized SplittableGenerator splitDefaultRandomGenerator() {
+        return randomGenerator.split();
     }
 
     public static DoubleMatrix ofZerosSizedAs(DoubleMatrix m) {
@@ -98,11 +148,45 @@ public class DoubleMatrix {
         return new DoubleMatrix(rows, columns, blockRows, blockColumns, toBlocksLayout(array));
     }
 
+    private static double[][] createRandomBlocksLayout(
+            final int rows, final int columns, SplittableGenerator generator, RandomDistribution distribution) {
+        final double[][] blocks = createBlocksLayout(rows, columns);
+        final int numberOfBlocks = ((rows + BLOCK_SIZE - 1) / BLOCK_SIZE) * ((columns + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        // substreams are split sequentially in the block order, so the data depends only on the generator state,
+        // not on the number of threads filling the blocks
+        final SplittableGenerator[] blockGenerators = new SplittableGenerator[numberOfBlocks];
+        for (int blockIndex = 0; blockIndex < numberOfBlocks; ++blockIndex) {
+            blockGenerators[blockIndex] = generator.split();
+        }
+        IntStream.range(0, numberOfBlocks).parallel().forEach(blockIndex -> {
+            final double[] block = layoutBlock(blocks, columns, blockIndex);
+            final int start = layoutBlockOffset(columns, blockIndex);
+            final int end = isRowMajorLayout(columns) ? Math.min(start + BLOCK_SIZE * columns, block.length) : block.length;
+            final RandomGenerator blockGenerator = blockGenerators[blockIndex];
+            for (int k = start; k < end; ++k) {
+                block[k] = distribution.next(blockGenerator);
+            }
+        });
+        return blocks;
+    }
+
+    @FunctionalInterface
+    private interface RandomDistribution {
+        double next(RandomGenerator generator);
+    }
+
     private static double[][] toBlocksLayout(final double[][] rawData) {
         final int rows = rawData.length;
         final int columns = rawData[0].length;
         final int blockRows = (rows    + BLOCK_SIZE - 1) / BLOCK_SIZE;
         final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (isRowMajorLayout(columns)) {
+            final double[] data = new double[rows * columns];
+            for (int p = 0; p < rows; ++p) {
+                System.arraycopy(rawData[p], 0, data, p * columns, columns);
+            }
+            return new double[][]{data};
+        }
         // convert array
         final double[][] blocks = new double[blockRows * blockColumns][];
         int blockIndex = 0;
@@ -132,6 +216,9 @@ public class DoubleMatrix {
     }
 
     private static double[][] createBlocksLayout(final int rows, final int columns) {
+        if (isRowMajorLayout(columns)) {
+            return new double[][]{new double[rows * columns]};
+        }
         final int blockRows = (rows    + BLOCK_SIZE - 1) / BLOCK_SIZE;
         final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
@@ -153,6 +240,13 @@ public class DoubleMatrix {
     }
 
     private static double[][] createFilledBlocksLayout(final int rows, final int columns, DoubleSupplier fillValueSupplier) {
+        if (isRowMajorLayout(columns)) {
+            final double[] data = new double[rows * columns];
+            for (int k = 0; k < data.length; k++) {
+                data[k] = fillValueSupplier.getAsDouble();
+            }
+            return new double[][]{data};
+        }
         final int blockRows = (rows    + BLOCK_SIZE - 1) / BLOCK_SIZE;
         final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
@@ -178,6 +272,78 @@ public class DoubleMatrix {
     }
 
 
+    /*
+     * A matrix not wider than one block has only one block column, so the concatenation of its blocks is exactly
+     * its row-major representation. Such matrices (outputs, labels, per-row sums, narrow weights) are stored as one
+     * contiguous array, and the block (iBlock, 0) is addressed as a slice starting at iBlock * BLOCK_SIZE * columns.
+     * That lets block-wise kernels work with both layouts without any conversion.
+     */
+    private static boolean isRowMajorLayout(int columns) {
+        return columns <= BLOCK_SIZE;
+    }
+
+    private static double[] layoutBlock(double[][] blocks, int columns, int blockIndex) {
+        return isRowMajorLayout(columns) ? blocks[0] : blocks[blockIndex];
+    }
+
+    private static int layoutBlockOffset(int columns, int blockIndex) {
+        return isRowMajorLayout(columns) ? blockIndex * BLOCK_SIZE * columns : 0;
+    }
+
+    private double[] block(int blockIndex) {
+        return rowMajor ? blocks[0] : blocks[blockIndex];
+    }
+
+    private int blockOffset(int blockIndex) {
+        return rowMajor ? blockIndex * BLOCK_SIZE * columns : 0;
+    }
+
+    private static void copyRowFromLayout(double[][] blocks, int columns, int row, int startColumn,
+                                          double[] dst, int dstPos, int length) {
+        if (isRowMajorLayout(columns)) {
+            System.arraycopy(blocks[0], row * columns + startColumn, dst, dstPos, length);
+            return;
+        }
+        final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int iBlock = row / BLOCK_SIZE;
+        final int rowInBlock = row - iBlock * BLOCK_SIZE;
+        final int endColumn = startColumn + length;
+        int q = startColumn;
+        while (q < endColumn) {
+            final int jBlock = q / BLOCK_SIZE;
+            final int qStart = jBlock * BLOCK_SIZE;
+            final int jWidth = Math.min(qStart + BLOCK_SIZE, columns) - qStart;
+            final int segmentLength = Math.min(qStart + BLOCK_SIZE, endColumn) - q;
+            System.arraycopy(blocks[iBlock * blockColumns + jBlock], rowInBlock * jWidth + q - qStart,
+                    dst, dstPos, segmentLength);
+            dstPos += segmentLength;
+            q += segmentLength;
+        }
+    }
+
+    private static void copyRowToLayout(double[] src, int srcPos,
+                                        double[][] blocks, int columns, int row, int startColumn, int length) {
+        if (isRowMajorLayout(columns)) {
+            System.arraycopy(src, srcPos, blocks[0], row * columns + startColumn, length);
+            return;
+        }
+        final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int iBlock = row / BLOCK_SIZE;
+        final int rowInBlock = row - iBlock * BLOCK_SIZE;
+        final int endColumn = startColumn + length;
+        int q = startColumn;
+        while (q < endColumn) {
+            final int jBlock = q / BLOCK_SIZE;
+            final int qStart = jBlock * BLOCK_SIZE;
+            final int jWidth = Math.min(qStart + BLOCK_SIZE, columns) - qStart;
+            final int segmentLength = Math.min(qStart + BLOCK_SIZE, endColumn) - q;
+            System.arraycopy(src, srcPos,
+                    blocks[iBlock * blockColumns + jBlock], rowInBlock * jWidth + q - qStart, segmentLength);
+            srcPos += segmentLength;
+            q += segmentLength;
+        }
+    }
+
     public int getRowDimension() {
         return rows;
     }
@@ -187,6 +353,7 @@ public class DoubleMatrix {
     }
 
     public DoubleMatrix add(DoubleMatrix m) {
+        long startNanos = MatrixProfiler.start();
         ensureSameSize(m);
         double[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
@@ -197,10 +364,12 @@ public class DoubleMatrix {
                 outBlock[k] = tBlock[k] + mBlock[k];
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("add", m, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public DoubleMatrix subtract(DoubleMatrix m) {
+        long startNanos = MatrixProfiler.start();
         ensureSameSize(m);
         double[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
@@ -211,10 +380,12 @@ public class DoubleMatrix {
                 outBlock[k] = tBlock[k] - mBlock[k];
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("subtract", m, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public DoubleMatrix multiplyElements(DoubleMatrix m) {
+        long startNanos = MatrixProfiler.start();
         ensureSameSize(m);
         double[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
@@ -225,50 +396,333 @@ public class DoubleMatrix {
                 outBlock[k] = tBlock[k] * mBlock[k];
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("multiplyElements", m, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
-    record Coordinates(int row, int column) {}
+    // this += factor * m, with plain writes and no locking. Concurrent updates of the same matrix may overwrite
+    // each other's increments and readers may see a partially updated matrix, which is acceptable for Hogwild SGD
+    public DoubleMatrix addScaledInPlace(DoubleMatrix m, double factor) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(m);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final double[] tBlock = blocks[blockIndex];
+            final double[] mBlock = m.blocks[blockIndex];
+            for (int k = 0; k < tBlock.length; ++k) {
+                tBlock[k] += factor * mBlock[k];
+            }
+        }
+        recordProfile("addScaledInPlace", m, startNanos, 2L * rows * columns, NULL);
+        return this;
+    }
 
-    private Coordinates calculateInBlocksCoordinates(int row, int column, int columns, int blockColumns) {
-        final int iBlock = row / BLOCK_SIZE;
-        final int jBlock = column / BLOCK_SIZE;
-        final int k = (row - iBlock * BLOCK_SIZE) * calculateBlockWidth(jBlock, columns, blockColumns) +
-                (column - jBlock * BLOCK_SIZE);
-        return new Coordinates(iBlock * blockColumns + jBlock, k);
+    // velocity = momentum * velocity - lr * gradient, then this += velocity, or for Nesterov
+    // this += momentum * velocity - lr * gradient with the already updated velocity
+    public DoubleMatrix applyMomentumInPlace(
+            DoubleMatrix velocity, DoubleMatrix gradient, double lr, double momentum, boolean nesterov) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(velocity);
+        ensureSameSize(gradient);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final double[] tBlock = blocks[blockIndex];
+            final double[] vBlock = velocity.blocks[blockIndex];
+            final double[] gBlock = gradient.blocks[blockIndex];
+            for (int k = 0; k < tBlock.length; ++k) {
+                final double step = lr * gBlock[k];
+                final double v = momentum * vBlock[k] - step;
+                vBlock[k] = v;
+                tBlock[k] += nesterov ? momentum * v - step : v;
+            }
+        }
+        recordProfile("applyMomentumInPlace", gradient, startNanos, 5L * rows * columns, NULL);
+        return this;
     }
 
-    public DoubleMatrix divideRows(DoubleMatrix m) {
-        if (this.rows != m.rows || m.columns != 1) {
-            throw new IllegalArgumentException("("
-                    + this.rows + ", " + this.columns + ") cannot have rows divided by (" + m.rows + ", " + m.columns + ")");
+    // firstMoment and secondMoment get the exponential averages of the gradient and the squared gradient,
+    // correctedLr is the learning rate with the bias correction for the current step already applied
+    public DoubleMatrix applyAdamInPlace(DoubleMatrix firstMoment, DoubleMatrix secondMoment, DoubleMatrix gradient,
+                                         double correctedLr, double beta1, double beta2, double epsilon) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(firstMoment);
+        ensureSameSize(secondMoment);
+        ensureSameSize(gradient);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final double[] tBlock = blocks[blockIndex];
+            final double[] mBlock = firstMoment.blocks[blockIndex];
+            final double[] vBlock = secondMoment.blocks[blockIndex];
+            final double[] gBlock = gradient.blocks[blockIndex];
+            for (int k = 0; k < tBlock.length; ++k) {
+                final double g = gBlock[k];
+                final double m = beta1 * mBlock[k] + (1d - beta1) * g;
+                final double v = beta2 * vBlock[k] + (1d - beta2) * g * g;
+                mBlock[k] = m;
+                vBlock[k] = v;
+                tBlock[k] -= correctedLr * m / (Math.sqrt(v) + epsilon);
+            }
         }
+        recordProfile("applyAdamInPlace", gradient, startNanos, 12L * rows * columns, NULL);
+        return this;
+    }
+
+    public DoubleMatrix copy() {
+        long startNanos = MatrixProfiler.start();
         double[][] outBlocks = createBlocksLayout(rows, columns);
-        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
-            final int pStart = iBlock * BLOCK_SIZE;
-            final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
-            for (int p = pStart; p < pEnd; ++p) {
-                var divisorCoordinates = calculateInBlocksCoordinates(p, 0, 1, 1);
-                double divisor = m.blocks[divisorCoordinates.row()][divisorCoordinates.column()];
+        for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
+            System.arraycopy(blocks[blockIndex], 0, outBlocks[blockIndex], 0, outBlocks[blockIndex].length);
+        }
+        return recordProfile("copy", NULL, startNanos, 0L,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
+    }
+
+    // this = source, e.g. to take a snapshot of a matrix into a recycled buffer
+    public DoubleMatrix copyInPlace(DoubleMatrix source) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(source);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            System.arraycopy(source.blocks[blockIndex], 0, blocks[blockIndex], 0, blocks[blockIndex].length);
+        }
+        recordProfile("copyInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    public DoubleMatrix divideRows(DoubleMatrix m) {
+        return divideColumnVector(m);
+    }
+
+    public DoubleMatrix addRowVector(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.ADD, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix subtractRowVector(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.SUBTRACT, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix multiplyRowVector(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.MULTIPLY, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix divideRowVector(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.DIVIDE, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix addRowVectorInPlace(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.ADD, rowVector, blocks);
+    }
+
+    public DoubleMatrix subtractRowVectorInPlace(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.SUBTRACT, rowVector, blocks);
+    }
+
+    public DoubleMatrix multiplyRowVectorInPlace(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.MULTIPLY, rowVector, blocks);
+    }
+
+    public DoubleMatrix divideRowVectorInPlace(DoubleMatrix rowVector) {
+        return broadcastRowVector(Broadcast.DIVIDE, rowVector, blocks);
+    }
+
+    public DoubleMatrix addColumnVector(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.ADD, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix subtractColumnVector(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.SUBTRACT, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix multiplyColumnVector(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.MULTIPLY, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix divideColumnVector(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.DIVIDE, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public DoubleMatrix addColumnVectorInPlace(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.ADD, columnVector, blocks);
+    }
+
+    public DoubleMatrix subtractColumnVectorInPlace(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.SUBTRACT, columnVector, blocks);
+    }
+
+    public DoubleMatrix multiplyColumnVectorInPlace(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.MULTIPLY, columnVector, blocks);
+    }
+
+    public DoubleMatrix divideColumnVectorInPlace(DoubleMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.DIVIDE, columnVector, blocks);
+    }
+
+    private DoubleMatrix broadcastRowVector(Broadcast operation, DoubleMatrix rowVector, double[][] outBlocks) {
+        long startNanos = MatrixProfiler.start();
+        if (rowVector.rows != 1 || rowVector.columns != columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot be combined with row vector ("
+                    + rowVector.rows + ", " + rowVector.columns + ")");
+        }
+        if (rowMajor) {
+            // the vector is not wider than this matrix, so it is row-major as well
+            final double[] vector = rowVector.blocks[0];
+            final double[] data = blocks[0];
+            final double[] outData = outBlocks[0];
+            for (int k = 0; k < data.length; k += columns) {
+                operation.applyToRange(data, k, outData, k, columns, vector, 0);
+            }
+        } else {
+            for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+                final int iHeight = blockHeight(iBlock);
                 for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
                     final int jWidth = blockWidth(jBlock);
-                    final int qStart = jBlock * BLOCK_SIZE;
-                    final int qEnd = Math.min(qStart + BLOCK_SIZE, columns);
                     final double[] block = blocks[iBlock * blockColumns + jBlock];
                     final double[] outBlock = outBlocks[iBlock * blockColumns + jBlock];
-                    int k = (p - pStart) * jWidth;
-                    for (int q = qStart; q < qEnd; ++q) {
-                        outBlock[k] = block[k] / divisor;
-                        ++k;
+                    // a one row matrix in the block layout has exactly one block per column block
+                    final double[] vectorBlock = rowVector.blocks[jBlock];
+                    for (int k = 0, end = iHeight * jWidth; k < end; k += jWidth) {
+                        operation.applyToRange(block, k, outBlock, k, jWidth, vectorBlock, 0);
                     }
                 }
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        var result = outBlocks == blocks ? this : new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        if (MatrixProfiler.ENABLED) {
+            recordProfile(operation.getProfileName("RowVector", outBlocks == blocks), rowVector, startNanos,
+                    (long) rows * columns, outBlocks == blocks ? NULL : result);
+        }
+        return result;
+    }
+
+    private DoubleMatrix broadcastColumnVector(Broadcast operation, DoubleMatrix columnVector, double[][] outBlocks) {
+        long startNanos = MatrixProfiler.start();
+        if (columnVector.rows != rows || columnVector.columns != 1) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot be combined with column vector ("
+                    + columnVector.rows + ", " + columnVector.columns + ")");
+        }
+        // the (m, 1) vector is always row-major, so its data is one array indexed by row
+        final double[] vector = columnVector.blocks[0];
+        if (rowMajor) {
+            final double[] data = blocks[0];
+            final double[] outData = outBlocks[0];
+            for (int p = 0, k = 0; p < rows; ++p, k += columns) {
+                operation.applyScalarToRange(data, k, outData, k, columns, vector[p]);
+            }
+        } else {
+            for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+                final int pStart = iBlock * BLOCK_SIZE;
+                final int iHeight = blockHeight(iBlock);
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final double[] block = blocks[iBlock * blockColumns + jBlock];
+                    final double[] outBlock = outBlocks[iBlock * blockColumns + jBlock];
+                    for (int p = 0, k = 0; p < iHeight; ++p, k += jWidth) {
+                        operation.applyScalarToRange(block, k, outBlock, k, jWidth, vector[pStart + p]);
+                    }
+                }
+            }
+        }
+        var result = outBlocks == blocks ? this : new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        if (MatrixProfiler.ENABLED) {
+            recordProfile(operation.getProfileName("ColumnVector", outBlocks == blocks), columnVector, startNanos,
+                    (long) rows * columns, outBlocks == blocks ? NULL : result);
+        }
+        return result;
+    }
+
+    /*
+     * Each operation has its own loop over a contiguous range, so the per-element code stays monomorphic,
+     * only the call per row segment is dispatched.
+     */
+    private enum Broadcast {
+        ADD {
+            @Override
+            void applyToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] + vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] + value;
+                }
+            }
+        },
+        SUBTRACT {
+            @Override
+            void applyToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] - vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] - value;
+                }
+            }
+        },
+        MULTIPLY {
+            @Override
+            void applyToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] * vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] * value;
+                }
+            }
+        },
+        DIVIDE {
+            @Override
+            void applyToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] / vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] / value;
+                }
+            }
+        };
+
+        abstract void applyToRange(
+                double[] src, int srcPos, double[] dst, int dstPos, int length, double[] vector, int vectorPos);
+
+        abstract void applyScalarToRange(double[] src, int srcPos, double[] dst, int dstPos, int length, double value);
+
+        String getProfileName(String vectorKind, boolean inPlace) {
+            return name().toLowerCase() + vectorKind + (inPlace ? "InPlace" : "");
+        }
     }
 
     public DoubleMatrix sumPerRow() {
+        long startNanos = MatrixProfiler.start();
+        return recordProfile("sumPerRow", NULL, startNanos, (long) rows * columns, calculateSumPerRow());
+    }
+
+    private DoubleMatrix calculateSumPerRow() {
         double[][] outBlocks = createBlocksLayout(rows, 1);
+        final double[] sums = outBlocks[0];
+        if (rowMajor) {
+            final double[] data = blocks[0];
+            int k = 0;
+            for (int p = 0; p < rows; ++p) {
+                double rowSum = 0d;
+                for (int q = 0; q < columns; ++q) {
+                    rowSum += data[k];
+                    ++k;
+                }
+                sums[p] = rowSum;
+            }
+            return new DoubleMatrix(rows, 1, blockRows, 1, outBlocks);
+        }
         for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
             final int pStart = iBlock * BLOCK_SIZE;
             final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
@@ -285,13 +739,297 @@ public class DoubleMatrix {
                         ++k;
                     }
                 }
-                var resultCoordinates = calculateInBlocksCoordinates(p, 0, 1, 1);
-                outBlocks[resultCoordinates.row()][resultCoordinates.column()] = rowSum;
+                sums[p] = rowSum;
             }
         }
         return new DoubleMatrix(rows, 1, blockRows, 1, outBlocks);
     }
 
+    public DoubleMatrix maxPerRow() {
+        long startNanos = MatrixProfiler.start();
+        double[][] outBlocks = createBlocksLayout(rows, 1);
+        final double[] maximums = outBlocks[0];
+        for (int p = 0; p < rows; ++p) {
+            maximums[p] = Double.NEGATIVE_INFINITY;
+        }
+        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+            final int pStart = iBlock * BLOCK_SIZE;
+            final int iHeight = blockHeight(iBlock);
+            for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                final int jWidth = blockWidth(jBlock);
+                final int blockIndex = iBlock * blockColumns + jBlock;
+                final double[] block = block(blockIndex);
+                int k = blockOffset(blockIndex);
+                for (int p = pStart; p < pStart + iHeight; ++p) {
+                    double rowMax = maximums[p];
+                    for (int q = 0; q < jWidth; ++q) {
+                        rowMax = Math.max(rowMax, block[k]);
+                        ++k;
+                    }
+                    maximums[p] = rowMax;
+                }
+            }
+        }
+        return recordProfile("maxPerRow", NULL, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, 1, blockRows, 1, outBlocks));
+    }
+
+    public DoubleMatrix sumPerColumn() {
+        long startNanos = MatrixProfiler.start();
+        double[][] outBlocks = createBlocksLayout(1, columns);
+        sumPerColumnToLayout(outBlocks);
+        return recordProfile("sumPerColumn", NULL, startNanos, (long) rows * columns,
+                new DoubleMatrix(1, columns, 1, blockColumns, outBlocks));
+    }
+
+    // this (1, n) row vector = sums of the source columns
+    public DoubleMatrix sumPerColumnInPlace(DoubleMatrix source) {
+        long startNanos = MatrixProfiler.start();
+        if (rows != 1 || columns != source.columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold the column sums of ("
+                    + source.rows + ", " + source.columns + ")");
+        }
+        for (double[] block : blocks) {
+            Arrays.fill(block, 0d);
+        }
+        source.sumPerColumnToLayout(blocks);
+        source.recordProfile("sumPerColumnInPlace", NULL, startNanos, (long) source.rows * source.columns, NULL);
+        return this;
+    }
+
+    // A one row matrix has its column blocks one after another, so the sum of column q is at q - qStart of block jBlock.
+    // The output blocks get the sums added, so they have to be zeroed beforehand
+    private void sumPerColumnToLayout(double[][] outBlocks) {
+        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+            final int iHeight = blockHeight(iBlock);
+            for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                final int jWidth = blockWidth(jBlock);
+                final double[] sums = layoutBlock(outBlocks, columns, jBlock);
+                final int blockIndex = iBlock * blockColumns + jBlock;
+                final double[] block = block(blockIndex);
+                int k = blockOffset(blockIndex);
+                for (int p = 0; p < iHeight; ++p) {
+                    for (int q = 0; q < jWidth; ++q) {
+                        sums[q] += block[k];
+                        ++k;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Means and sums of squared deviations (M2) of all the columns in one pass: Welford's update within a block,
+     * the blocks run in parallel and are merged in the block order with Chan's formula, so the result doesn't depend
+     * on the number of threads. Returns {means, M2s}, a column variance is its M2 / rows.
+     */
+    public double[][] calculateColumnMoments() {
+        long startNanos = MatrixProfiler.start();
+        // Every block gets the means of its columns followed by their M2s
+        final double[][] blockMoments = new double[blockRows * blockColumns][];
+        IntStream.range(0, blockMoments.length).parallel().forEach(blockIndex -> {
+            final int iHeight = blockHeight(blockIndex / blockColumns);
+            final int jWidth = blockWidth(blockIndex % blockColumns);
+            final double[] block = block(blockIndex);
+            final double[] moments = new double[2 * jWidth];
+            int k = blockOffset(blockIndex);
+            for (int p = 0; p < iHeight; ++p) {
+                for (int q = 0; q < jWidth; ++q) {
+                    final double delta = block[k] - moments[q];
+                    moments[q] += delta / (p + 1);
+                    moments[jWidth + q] += delta * (block[k] - moments[q]);
+                    ++k;
+                }
+            }
+            blockMoments[blockIndex] = moments;
+        });
+        final double[] means = new double[columns];
+        final double[] m2s = new double[columns];
+        for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+            final int jWidth = blockWidth(jBlock);
+            final int qStart = jBlock * BLOCK_SIZE;
+            int count = 0;
+            for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+                final int iHeight = blockHeight(iBlock);
+                final double[] moments = blockMoments[iBlock * blockColumns + jBlock];
+                final int mergedCount = count + iHeight;
+                final double countsFactor = (double) count * iHeight / mergedCount;
+                for (int q = 0; q < jWidth; ++q) {
+                    final double delta = moments[q] - means[qStart + q];
+                    means[qStart + q] += delta * iHeight / mergedCount;
+                    m2s[qStart + q] += moments[jWidth + q] + delta * delta * countsFactor;
+                }
+                count = mergedCount;
+            }
+        }
+        MatrixProfiler.record("DoubleMatrix.calculateColumnMoments", rows, columns, startNanos, 5L * rows * columns, 0L);
+        return new double[][]{means, m2s};
+    }
+
+    // this = (this - means) / standardDeviations, column by column, the blocks run in parallel
+    public DoubleMatrix standardizeColumnsInPlace(double[] means, double[] standardDeviations) {
+        long startNanos = MatrixProfiler.start();
+        if (means.length != columns || standardDeviations.length != columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot be standardized with "
+                    + means.length + " means and " + standardDeviations.length + " standard deviations");
+        }
+        IntStream.range(0, blockRows * blockColumns).parallel().forEach(blockIndex -> {
+            final int iHeight = blockHeight(blockIndex / blockColumns);
+            final int jWidth = blockWidth(blockIndex % blockColumns);
+            final int qStart = (blockIndex % blockColumns) * BLOCK_SIZE;
+            final double[] block = block(blockIndex);
+            int k = blockOffset(blockIndex);
+            for (int p = 0; p < iHeight; ++p) {
+                for (int q = 0; q < jWidth; ++q) {
+                    block[k] = (block[k] - means[qStart + q]) / standardDeviations[qStart + q];
+                    ++k;
+                }
+            }
+        });
+        recordProfile("standardizeColumnsInPlace", NULL, startNanos, 2L * rows * columns, NULL);
+        return this;
+    }
+
+    public double[] getRow(int row) {
+        if (row < 0 || row >= rows) {
+            throw new IllegalArgumentException("Row " + row + " is out of (" + rows + ", " + columns + ")");
+        }
+        final double[] result = new double[columns];
+        copyRowFromLayout(blocks, columns, row, 0, result, 0, columns);
+        return result;
+    }
+
+    public DoubleMatrix gatherRows(int[] indices) {
+        long startNanos = MatrixProfiler.start();
+        if (indices.length == 0) {
+            throw new IllegalArgumentException("At least one row index is expected");
+        }
+        double[][] outBlocks = createBlocksLayout(indices.length, columns);
+        gatherRowsToLayout(indices, 0, indices.length, outBlocks);
+        return recordProfile("gatherRows", NULL, startNanos, 0L, new DoubleMatrix(indices.length, columns,
+                (indices.length + BLOCK_SIZE - 1) / BLOCK_SIZE, blockColumns, outBlocks));
+    }
+
+    // Fills all the rows of this matrix with the source rows indices[fromIndex], indices[fromIndex + 1], ...
+    public DoubleMatrix gatherRowsInPlace(DoubleMatrix source, int[] indices, int fromIndex) {
+        long startNanos = MatrixProfiler.start();
+        if (source.columns != columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot gather rows of ("
+                    + source.rows + ", " + source.columns + ")");
+        }
+        if (fromIndex < 0 || fromIndex + rows > indices.length) {
+            throw new IllegalArgumentException("Expected " + rows + " row indices starting from " + fromIndex
+                    + ", but got only " + indices.length + " indices");
+        }
+        source.gatherRowsToLayout(indices, fromIndex, rows, blocks);
+        recordProfile("gatherRowsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    // Fills every row p of this matrix from the column toColumn on with the source row indices[fromIndex + p],
+    // the other columns are kept, e.g. a column of ones filled once
+    public DoubleMatrix gatherRowsInPlace(DoubleMatrix source, int[] indices, int fromIndex, int toColumn) {
+        long startNanos = MatrixProfiler.start();
+        ensureRowsFit(source, toColumn);
+        if (fromIndex < 0 || fromIndex + rows > indices.length) {
+            throw new IllegalArgumentException("Expected " + rows + " row indices starting from " + fromIndex
+                    + ", but got only " + indices.length + " indices");
+        }
+        for (int p = 0; p < rows; ++p) {
+            final int row = indices[fromIndex + p];
+            if (row < 0 || row >= source.rows) {
+                throw new IllegalArgumentException("Row " + row + " is out of (" + source.rows + ", " + source.columns + ")");
+            }
+            source.copyRowTo(row, 0, source.columns, blocks, columns, p, toColumn);
+        }
+        recordProfile("gatherRowsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    // Fills every row p of this matrix from the column toColumn on with the source row fromRow + p,
+    // the other columns are kept
+    public DoubleMatrix copyRowsInPlace(DoubleMatrix source, int fromRow, int toColumn) {
+        long startNanos = MatrixProfiler.start();
+        ensureRowsFit(source, toColumn);
+        if (fromRow < 0 || fromRow + rows > source.rows) {
+            throw new IllegalArgumentException("(" + source.rows + ", " + source.columns + ") has no " + rows
+                    + " rows starting from " + fromRow);
+        }
+        for (int p = 0; p < rows; ++p) {
+            source.copyRowTo(fromRow + p, 0, source.columns, blocks, columns, p, toColumn);
+        }
+        recordProfile("copyRowsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    // Fills the columns of this matrix from toColumn on with as many source columns from fromColumn on,
+    // the columns before toColumn are kept, e.g. to take the part of a wide product belonging to one factor
+    public DoubleMatrix copyColumnsInPlace(DoubleMatrix source, int fromColumn, int toColumn) {
+        long startNanos = MatrixProfiler.start();
+        int length = columns - toColumn;
+        if (source.rows != rows || toColumn < 0 || length < 0 || fromColumn < 0 || fromColumn + length > source.columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") from the column " + toColumn
+                    + " cannot hold the columns of (" + source.rows + ", " + source.columns + ") from " + fromColumn);
+        }
+        for (int p = 0; p < rows; ++p) {
+            source.copyRowTo(p, fromColumn, length, blocks, columns, p, toColumn);
+        }
+        recordProfile("copyColumnsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    private void ensureRowsFit(DoubleMatrix source, int toColumn) {
+        if (toColumn < 0 || toColumn + source.columns > columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold rows of ("
+                    + source.rows + ", " + source.columns + ") from the column " + toColumn);
+        }
+    }
+
+    // Copies length elements of the row of this matrix from fromColumn on into the row of the output layout,
+    // starting from its column toColumn
+    private void copyRowTo(int row, int fromColumn, int length,
+                           double[][] outBlocks, int outColumns, int outRow, int toColumn) {
+        if (rowMajor) {
+            copyRowToLayout(blocks[0], row * columns + fromColumn, outBlocks, outColumns, outRow, toColumn, length);
+            return;
+        }
+        final int iBlock = row / BLOCK_SIZE;
+        final int rowInBlock = row - iBlock * BLOCK_SIZE;
+        final int endColumn = fromColumn + length;
+        int q = fromColumn;
+        while (q < endColumn) {
+            final int jBlock = q / BLOCK_SIZE;
+            final int qStart = jBlock * BLOCK_SIZE;
+            final int segmentLength = Math.min(qStart + BLOCK_SIZE, endColumn) - q;
+            copyRowToLayout(blocks[iBlock * blockColumns + jBlock], rowInBlock * blockWidth(jBlock) + q - qStart,
+                    outBlocks, outColumns, outRow, toColumn + q - fromColumn, segmentLength);
+            q += segmentLength;
+        }
+    }
+
+    // The output has the same number of columns, so its rows are split in the same column blocks as the source rows
+    private void gatherRowsToLayout(int[] indices, int fromIndex, int outRows, double[][] outBlocks) {
+        for (int p = 0; p < outRows; ++p) {
+            final int row = indices[fromIndex + p];
+            if (row < 0 || row >= rows) {
+                throw new IllegalArgumentException("Row " + row + " is out of (" + rows + ", " + columns + ")");
+            }
+            if (rowMajor) {
+                System.arraycopy(blocks[0], row * columns, outBlocks[0], p * columns, columns);
+                continue;
+            }
+            final int iBlock = row / BLOCK_SIZE;
+            final int rowInBlock = row - iBlock * BLOCK_SIZE;
+            final int outIBlock = p / BLOCK_SIZE;
+            final int outRowInBlock = p - outIBlock * BLOCK_SIZE;
+            for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                final int jWidth = Math.min((jBlock + 1) * BLOCK_SIZE, columns) - jBlock * BLOCK_SIZE;
+                System.arraycopy(blocks[iBlock * blockColumns + jBlock], rowInBlock * jWidth,
+                        outBlocks[outIBlock * blockColumns + jBlock], outRowInBlock * jWidth, jWidth);
+            }
+        }
+    }
+
     public String toString(String columnSeparator, String rowSeparator) {
         var outputBuilder = new StringBuilder();
         double[][] data = getData();
@@ -311,6 +1049,7 @@ public class DoubleMatrix {
     }
 
     public DoubleMatrix scalarMultiply(double s) {
+        long startNanos = MatrixProfiler.start();
         double[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final double[] outBlock = outBlocks[blockIndex];
@@ -319,10 +1058,12 @@ public class DoubleMatrix {
                 outBlock[k] = tBlock[k] * s;
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("scalarMultiply", NULL, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public DoubleMatrix scalarDivide(double s) {
+        long startNanos = MatrixProfiler.start();
         double[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final double[] outBlock = outBlocks[blockIndex];
@@ -331,10 +1072,12 @@ public class DoubleMatrix {
                 outBlock[k] = tBlock[k] / s;
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("scalarDivide", NULL, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public DoubleMatrix scalarAdd(double s) {
+        long startNanos = MatrixProfiler.start();
         double[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final double[] outBlock = outBlocks[blockIndex];
@@ -343,10 +1086,12 @@ public class DoubleMatrix {
                 outBlock[k] = tBlock[k] + s;
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("scalarAdd", NULL, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public double sum() {
+        long startNanos = MatrixProfiler.start();
         double sum = 0;
         for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
             final double[] tBlock = blocks[blockIndex];
@@ -354,47 +1099,80 @@ public class DoubleMatrix {
                 sum += tBlock[k];
             }
         }
+        MatrixProfiler.record("DoubleMatrix.sum", rows, columns, startNanos, (long) rows * columns, 0L);
         return sum;
     }
 
     public DoubleMatrix prependColumn(double fillValue) {
+        long startNanos = MatrixProfiler.start();
         int outRows = rows;
         int outColumns = columns + 1;
         int outBlockRows = blockRows;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         double[][] outBlocks = createBlocksLayout(outRows, outColumns);
-        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
-            final int pStart = iBlock * BLOCK_SIZE;
-            final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
-            for (int p = pStart; p < pEnd; ++p) {
-                var firstEntryInRowCoordinates = calculateInBlocksCoordinates(p, 0, outColumns, outBlockColumns);
-                outBlocks[firstEntryInRowCoordinates.row()][firstEntryInRowCoordinates.column()] = fillValue;
-                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
-                    final int jWidth = blockWidth(jBlock);
-                    final int qStart = jBlock * BLOCK_SIZE;
-                    final int qEnd = Math.min(qStart + BLOCK_SIZE, columns);
-                    final double[] block = blocks[iBlock * blockColumns + jBlock];
-                    int k = (p - pStart) * jWidth;
-                    for (int q = qStart; q < qEnd; ++q) {
-                        var resultCoordinates = calculateInBlocksCoordinates(p, q + 1, outColumns, outBlockColumns);
-                        outBlocks[resultCoordinates.row()][resultCoordinates.column()] = block[k];
-                        ++k;
-                    }
-                }
+        if (isRowMajorLayout(outColumns)) {
+            // both this and the result are row-major, so every row is one contiguous copy
+            final double[] data = blocks[0];
+            final double[] outData = outBlocks[0];
+            for (int p = 0; p < rows; ++p) {
+                outData[p * outColumns] = fillValue;
+                System.arraycopy(data, p * columns, outData, p * outColumns + 1, columns);
+            }
+        } else {
+            final double[] rowBuffer = new double[outColumns];
+            rowBuffer[0] = fillValue;
+            for (int p = 0; p < rows; ++p) {
+                copyRowFromLayout(blocks, columns, p, 0, rowBuffer, 1, columns);
+                copyRowToLayout(rowBuffer, 0, outBlocks, outColumns, p, 0, outColumns);
             }
         }
-        return new DoubleMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
+        return recordProfile("prependColumn", NULL, startNanos, 0L,
+                new DoubleMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks));
     }
 
     public DoubleMatrix multiply(DoubleMatrix m) {
-        if (columns != m.rows) {
-            throw new IllegalArgumentException("This matrix has " + columns + " columns, other has " + m.rows + " rows");
-        }
+        long startNanos = MatrixProfiler.start();
+        ensureMultipliable(m);
         int outRows = rows;
         int outColumns = m.columns;
         int outBlockRows = (outRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         double[][] outBlocks = createBlocksLayout(outRows, outColumns);
+        multiplyToLayout(m, outBlocks);
+        return recordProfile("multiply", m, startNanos, 2L * rows * columns * m.columns,
+                new DoubleMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks));
+    }
+
+    // this = a * b, where this is a buffer already sized as the product and not shared with anybody else
+    public DoubleMatrix multiplyInPlace(DoubleMatrix a, DoubleMatrix b) {
+        long startNanos = MatrixProfiler.start();
+        a.ensureMultipliable(b);
+        if (rows != a.rows || columns != b.columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold the product of ("
+                    + a.rows + ", " + a.columns + ") and (" + b.rows + ", " + b.columns + ")");
+        }
+        if (this == a || this == b) {
+            throw new IllegalArgumentException("The product cannot be written into one of its factors");
+        }
+        for (double[] block : blocks) {
+            Arrays.fill(block, 0d);
+        }
+        a.multiplyToLayout(b, blocks);
+        a.recordProfile("multiplyInPlace", b, startNanos, 2L * a.rows * a.columns * b.columns, NULL);
+        return this;
+    }
+
+    private void ensureMultipliable(DoubleMatrix m) {
+        if (columns != m.rows) {
+            throw new IllegalArgumentException("This matrix has " + columns + " columns, other has " + m.rows + " rows");
+        }
+    }
+
+    // The output blocks get the product added, so they have to be zeroed beforehand
+    private void multiplyToLayout(DoubleMatrix m, double[][] outBlocks) {
+        int outColumns = m.columns;
+        int outBlockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         // perform multiplication block-wise, to ensure good cache behavior
         int blockIndex = 0;
         for (int iBlock = 0; iBlock < outBlockRows; ++iBlock) {
@@ -409,21 +1187,26 @@ public class DoubleMatrix {
                 final int jWidth4 = jWidth3 + jWidth;
 
                 // select current block
-                final double[] outBlock = outBlocks[blockIndex];
+                final double[] outBlock = layoutBlock(outBlocks, outColumns, blockIndex);
+                final int outOffset = layoutBlockOffset(outColumns, blockIndex);
 
                 // perform multiplication on current block
                 for (int kBlock = 0; kBlock < blockColumns; ++kBlock) {
                     final int kWidth = blockWidth(kBlock);
-                    final double[] tBlock = blocks[iBlock * blockColumns + kBlock];
-                    final double[] mBlock = m.blocks[kBlock * m.blockColumns + jBlock];
-                    int k = 0;
+                    final int tIndex = iBlock * blockColumns + kBlock;
+                    final double[] tBlock = block(tIndex);
+                    final int tOffset = blockOffset(tIndex);
+                    final int mIndex = kBlock * m.blockColumns + jBlock;
+                    final double[] mBlock = m.block(mIndex);
+                    final int mOffset = m.blockOffset(mIndex);
+                    int k = outOffset;
                     for (int p = pStart; p < pEnd; ++p) {
-                        final int lStart = (p - pStart) * kWidth;
+                        final int lStart = tOffset + (p - pStart) * kWidth;
                         final int lEnd = lStart + kWidth;
                         for (int nStart = 0; nStart < jWidth; ++nStart) {
                             double sum = 0;
                             int l = lStart;
-                            int n = nStart;
+                            int n = mOffset + nStart;
                             while (l < lEnd - 3) {
                                 sum += tBlock[l] * mBlock[n] +
                                         tBlock[l + 1] * mBlock[n + jWidth] +
@@ -445,30 +1228,54 @@ public class DoubleMatrix {
                 ++blockIndex;
             }
         }
-        return new DoubleMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
     }
 
     public DoubleMatrix transpose() {
+        long startNanos = MatrixProfiler.start();
         int outRows = columns;
         int outColumns = rows;
         int outBlockRows = (outRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         double[][] outBlocks = createBlocksLayout(outRows, outColumns);
+        transposeToLayout(outBlocks);
+        return recordProfile("transpose", NULL, startNanos, 0L,
+                new DoubleMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks));
+    }
+
+    // this = source transposed, where this is a buffer already sized as the result and not shared with anybody else
+    public DoubleMatrix transposeInPlace(DoubleMatrix source) {
+        long startNanos = MatrixProfiler.start();
+        if (rows != source.columns || columns != source.rows) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold transposed ("
+                    + source.rows + ", " + source.columns + ")");
+        }
+        if (this == source) {
+            throw new IllegalArgumentException("A matrix cannot be transposed into itself");
+        }
+        source.transposeToLayout(blocks);
+        source.recordProfile("transposeInPlace", NULL, startNanos, 0L, NULL);
+        return this;
+    }
+
+    private void transposeToLayout(double[][] outBlocks) {
+        int outColumns = rows;
         // perform transpose block-wise, to ensure good cache behavior
         int blockIndex = 0;
         for (int iBlock = 0; iBlock < blockColumns; ++iBlock) {
             for (int jBlock = 0; jBlock < blockRows; ++jBlock) {
                 // transpose current block
-                final double[] outBlock = outBlocks[blockIndex];
-                final double[] tBlock = blocks[jBlock * blockColumns + iBlock];
+                final double[] outBlock = layoutBlock(outBlocks, outColumns, blockIndex);
+                final int tIndex = jBlock * blockColumns + iBlock;
+                final double[] tBlock = block(tIndex);
+                final int tOffset = blockOffset(tIndex);
                 final int pStart = iBlock * BLOCK_SIZE;
                 final int pEnd = Math.min(pStart + BLOCK_SIZE, columns);
                 final int qStart = jBlock * BLOCK_SIZE;
                 final int qEnd = Math.min(qStart + BLOCK_SIZE, rows);
-                int k = 0;
+                int k = layoutBlockOffset(outColumns, blockIndex);
                 for (int p = pStart; p < pEnd; ++p) {
                     final int lInc = pEnd - pStart;
-                    int l = p - pStart;
+                    int l = tOffset + p - pStart;
                     for (int q = qStart; q < qEnd; ++q) {
                         outBlock[k] = tBlock[l];
                         ++k;
@@ -479,10 +1286,10 @@ public class DoubleMatrix {
                 ++blockIndex;
             }
         }
-        return new DoubleMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
     }
 
     public DoubleMatrix apply(DoubleUnaryOperator operator) {
+        long startNanos = MatrixProfiler.start();
         double[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final double[] outBlock = outBlocks[blockIndex];
@@ -491,11 +1298,124 @@ public class DoubleMatrix {
                 outBlock[k] = operator.applyAsDouble(tBlock[k]);
             }
         }
-        return new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("apply", NULL, startNanos, (long) rows * columns,
+                new DoubleMatrix(rows, columns, blockRows, blockColumns, outBlocks));
+    }
+
+    // this = operator(source) element by element, source could be this matrix itself
+    public DoubleMatrix applyInPlace(DoubleMatrix source, DoubleUnaryOperator operator) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(source);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final double[] outBlock = blocks[blockIndex];
+            final double[] sBlock = source.blocks[blockIndex];
+            for (int k = 0; k < outBlock.length; ++k) {
+                outBlock[k] = operator.applyAsDouble(sBlock[k]);
+            }
+        }
+        recordProfile("applyInPlace", source, startNanos, (long) rows * columns, NULL);
+        return this;
+    }
+
+    // this = operator(a, b) element by element, a or b could be this matrix itself
+    public DoubleMatrix combineInPlace(DoubleMatrix a, DoubleMatrix b, DoubleBinaryOperator operator) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(a);
+        ensureSameSize(b);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final double[] outBlock = blocks[blockIndex];
+            final double[] aBlock = a.blocks[blockIndex];
+            final double[] bBlock = b.blocks[blockIndex];
+            for (int k = 0; k < outBlock.length; ++k) {
+                outBlock[k] = operator.applyAsDouble(aBlock[k], bBlock[k]);
+            }
+        }
+        recordProfile("combineInPlace", b, startNanos, (long) rows * columns, NULL);
+        return this;
+    }
+
+    // this = softmax of every logits row, with the row maximum subtracted first, so exp never overflows
+    public DoubleMatrix softmaxPerRowInPlace(DoubleMatrix logits) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(logits);
+        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+            final int iHeight = blockHeight(iBlock);
+            for (int p = 0; p < iHeight; ++p) {
+                double rowMax = Double.NEGATIVE_INFINITY;
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final int blockIndex = iBlock * blockColumns + jBlock;
+                    final double[] lBlock = logits.block(blockIndex);
+                    final int start = logits.blockOffset(blockIndex) + p * jWidth;
+                    for (int k = start; k < start + jWidth; ++k) {
+                        rowMax = Math.max(rowMax, lBlock[k]);
+                    }
+                }
+                double rowSum = 0d;
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final int blockIndex = iBlock * blockColumns + jBlock;
+                    final double[] lBlock = logits.block(blockIndex);
+                    final double[] outBlock = block(blockIndex);
+                    final int start = blockOffset(blockIndex) + p * jWidth;
+                    for (int k = start; k < start + jWidth; ++k) {
+                        final double exponential = Math.exp(lBlock[k] - rowMax);
+                        outBlock[k] = exponential;
+                        rowSum += exponential;
+                    }
+                }
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final int blockIndex = iBlock * blockColumns + jBlock;
+                    final double[] outBlock = block(blockIndex);
+                    final int start = blockOffset(blockIndex) + p * jWidth;
+                    for (int k = start; k < start + jWidth; ++k) {
+                        outBlock[k] /= rowSum;
+                    }
+                }
+            }
+        }
+        recordProfile("softmaxPerRowInPlace", logits, startNanos, 4L * rows * columns, NULL);
+        return this;
     }
 
     public int[] indexOfHighestPerRow() {
-        int[] result = new int[rows];
+        long startNanos = MatrixProfiler.start();
+        int[] result = findIndexOfHighestPerRow(new int[rows]);
+        MatrixProfiler.record("DoubleMatrix.indexOfHighestPerRow", rows, columns, startNanos,
+                (long) rows * columns, (long) rows * Integer.BYTES);
+        return result;
+    }
+
+    // Writes the indices into the first rows elements of the result and returns it
+    public int[] indexOfHighestPerRow(int[] result) {
+        long startNanos = MatrixProfiler.start();
+        if (result.length < rows) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") needs " + rows
+                    + " elements for the indices, but got " + result.length);
+        }
+        findIndexOfHighestPerRow(result);
+        MatrixProfiler.record("DoubleMatrix.indexOfHighestPerRow", rows, columns, startNanos, (long) rows * columns, 0L);
+        return result;
+    }
+
+    private int[] findIndexOfHighestPerRow(int[] result) {
+        if (rowMajor) {
+            final double[] data = blocks[0];
+            for (int p = 0, rowStart = 0; p < rows; ++p, rowStart += columns) {
+                int indexOfHighest = 0;
+                double highest = data[rowStart];
+                for (int q = 1; q < columns; ++q) {
+                    double value = data[rowStart + q];
+                    if (value > highest) {
+                        highest = value;
+                        indexOfHighest = q;
+                    }
+                }
+                result[p] = indexOfHighest;
+            }
+            return result;
+        }
         for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
             final int pStart = iBlock * BLOCK_SIZE;
             final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
@@ -524,7 +1444,20 @@ public class DoubleMatrix {
     }
 
     public double[][] getData() {
+        long startNanos = MatrixProfiler.start();
+        double[][] data = copyData();
+        MatrixProfiler.record("DoubleMatrix.getData", rows, columns, startNanos, 0L, (long) rows * columns * Double.BYTES);
+        return data;
+    }
+
+    private double[][] copyData() {
         final double[][] data = new double[rows][columns];
+        if (rowMajor) {
+            for (int p = 0; p < rows; ++p) {
+                System.arraycopy(blocks[0], p * columns, data[p], 0, columns);
+            }
+            return data;
+        }
         final int lastColumns = columns - (blockColumns - 1) * BLOCK_SIZE;
         for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
             final int pStart = iBlock * BLOCK_SIZE;
@@ -570,6 +1503,14 @@ public class DoubleMatrix {
                                         final int startColumn,
                                         final int endColumn)
             throws OutOfRangeException, NumberIsTooSmallException {
+        long startNanos = MatrixProfiler.start();
+        return recordProfile("getSubMatrix", NULL, startNanos, 0L,
+                extractSubMatrix(startRow, endRow, startColumn, endColumn));
+    }
+
+    private DoubleMatrix extractSubMatrix(final int startRow, final int endRow,
+                                          final int startColumn,
+                                          final int endColumn) {
         // safety checks
         if (startRow < 0 || startColumn < 0) {
             throw new IllegalArgumentException("Both start row and start column can not be negative");
@@ -585,6 +1526,17 @@ public class DoubleMatrix {
         int outBlockRows = (outRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         double[][] outBlocks = createBlocksLayout(outRows, outColumns);
+        if (isRowMajorLayout(outColumns)) {
+            if (rowMajor && outColumns == columns) {
+                // full rows of a row-major matrix are one contiguous range
+                System.arraycopy(blocks[0], startRow * columns, outBlocks[0], 0, outRows * outColumns);
+            } else {
+                for (int p = 0; p < outRows; ++p) {
+                    copyRowFromLayout(blocks, columns, startRow + p, startColumn, outBlocks[0], p * outColumns, outColumns);
+                }
+            }
+            return new DoubleMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
+        }
         // compute blocks shifts
         final int blockStartRow = startRow / BLOCK_SIZE;
         final int rowsShift = startRow % BLOCK_SIZE;
@@ -682,6 +1634,15 @@ public class DoubleMatrix {
         }
     }
 
+    private DoubleMatrix recordProfile(
+            String operation, DoubleMatrix other, long startNanos, long flops, DoubleMatrix result) {
+        if (MatrixProfiler.ENABLED) {
+            MatrixProfiler.record("DoubleMatrix." + operation, rows, columns, other.rows, other.columns, startNanos, flops,
+                    (long) result.rows * result.columns * Double.BYTES);
+        }
+        return result;
+    }
+
     private void ensureSameSize(DoubleMatrix other) {
         if (this.rows != other.rows || this.columns != other.columns) {
             throw new IllegalArgumentException("Matrix sizes are not the same: ("
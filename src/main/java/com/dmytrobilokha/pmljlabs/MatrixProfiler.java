@@ -0,0 +1,212 @@
+package com.dmytrobilokha.pmljlabs;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Opt-in per-operation statistics of the matrix classes: call counts, elapsed time, estimated FLOPs and bytes
+ * allocated for the result, grouped by operation and operand shapes. Profiling is enabled with the
+ * -Dpmljlabs.profile=true JVM option, otherwise ENABLED is a constant false and the calls are optimized away by JIT.
+ * Every thread aggregates into its own map, so recording never contends with other threads. Once a thread has ended,
+ * its statistics are merged into the ones of all the ended threads, so short-lived pool threads don't pile up.
+ */
+public final class MatrixProfiler {
+
+    public static final boolean ENABLED = Boolean.getBoolean("pmljlabs.profile");
+    private static final List<ThreadStatistics> allThreadStatistics = new CopyOnWriteArrayList<>();
+    private static final ThreadStatistics endedThreadStatistics = new ThreadStatistics("Ended threads", null);
+    private static final ThreadLocal<ThreadStatistics> threadStatistics = ThreadLocal.withInitial(() -> {
+        mergeEndedThreads();
+        var thread = Thread.currentThread();
+        var statistics = new ThreadStatistics("Thread " + thread.getName(), thread);
+        allThreadStatistics.add(statistics);
+        return statistics;
+    });
+
+    private MatrixProfiler() {
+        // Util class
+    }
+
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    public static void record(String operation, int rows, int columns, long startNanos, long flops, long allocatedBytes) {
+        record(operation, rows, columns, 0, 0, startNanos, flops, allocatedBytes);
+    }
+
+    public static void record(
+            String operation,
+            int rows,
+            int columns,
+            int otherRows,
+            int otherColumns,
+            long startNanos,
+            long flops,
+            long allocatedBytes
+    ) {
+        if (!ENABLED) {
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        recordElapsed(operation, rows, columns, otherRows, otherColumns, elapsedNanos, flops, allocatedBytes);
+    }
+
+    // Records regardless of ENABLED, so tests can check the statistics with a known elapsed time
+    static void recordElapsed(String operation, int rows, int columns, int otherRows, int otherColumns,
+                              long elapsedNanos, long flops, long allocatedBytes) {
+        threadStatistics.get().add(
+                new OperationKey(operation, rows, columns, otherRows, otherColumns), elapsedNanos, flops, allocatedBytes);
+    }
+
+    public static synchronized void reset() {
+        allThreadStatistics.forEach(ThreadStatistics::clear);
+        endedThreadStatistics.clear();
+    }
+
+    // An ended thread records nothing anymore, so its statistics are final
+    private static synchronized void mergeEndedThreads() {
+        for (var statistics : allThreadStatistics) {
+            if (statistics.hasEnded()) {
+                endedThreadStatistics.addAll(statistics.snapshot());
+                allThreadStatistics.remove(statistics);
+            }
+        }
+    }
+
+    public static void dumpToFile(String filePath) {
+        if (!ENABLED) {
+            return;
+        }
+        FileUtil.writeLinesToFile(filePath, formatTable());
+    }
+
+    public static List<String> formatTable() {
+        mergeEndedThreads();
+        var allStatistics = new ArrayList<>(allThreadStatistics);
+        allStatistics.add(endedThreadStatistics);
+        var totals = new HashMap<OperationKey, OperationStatistics>();
+        var lines = new ArrayList<String>();
+        lines.add("# All threads");
+        lines.add(formatHeader());
+        var perThreadLines = new ArrayList<String>();
+        for (var statistics : allStatistics) {
+            var snapshot = statistics.snapshot();
+            if (snapshot.isEmpty()) {
+                continue;
+            }
+            perThreadLines.add("");
+            perThreadLines.add("# " + statistics.title);
+            perThreadLines.add(formatHeader());
+            sortedByTime(snapshot).forEach(entry -> perThreadLines.add(formatLine(entry.getKey(), entry.getValue())));
+            snapshot.forEach((key, value) -> totals.computeIfAbsent(key, k -> new OperationStatistics()).add(value));
+        }
+        sortedByTime(totals).forEach(entry -> lines.add(formatLine(entry.getKey(), entry.getValue())));
+        lines.addAll(perThreadLines);
+        return lines;
+    }
+
+    private static List<Map.Entry<OperationKey, OperationStatistics>> sortedByTime(
+            Map<OperationKey, OperationStatistics> statistics) {
+        return statistics.entrySet().stream()
+                .sorted(Comparator.comparingLong(
+                        (Map.Entry<OperationKey, OperationStatistics> entry) -> entry.getValue().nanos).reversed())
+                .toList();
+    }
+
+    private static String formatHeader() {
+        return String.format("%-36s %-24s %10s %12s %12s %12s %10s %12s",
+                "operation", "shapes", "calls", "total ms", "avg us", "MFLOP", "GFLOP/s", "MB allocated");
+    }
+
+    private static String formatLine(OperationKey key, OperationStatistics statistics) {
+        double totalMillis = statistics.nanos / 1e6d;
+        double averageMicros = statistics.nanos / 1e3d / statistics.calls;
+        double gflopsPerSecond = statistics.nanos == 0L ? 0d : (double) statistics.flops / statistics.nanos;
+        return String.format("%-36s %-24s %10d %12.3f %12.3f %12.3f %10.3f %12.3f",
+                key.operation(), key.formatShapes(), statistics.calls, totalMillis, averageMicros,
+                statistics.flops / 1e6d, gflopsPerSecond, statistics.allocatedBytes / (1024d * 1024d));
+    }
+
+    record OperationKey(String operation, int rows, int columns, int otherRows, int otherColumns) {
+
+        String formatShapes() {
+            var shapes = "(" + rows + "," + columns + ")";
+            if (otherRows == 0 && otherColumns == 0) {
+                return shapes;
+            }
+            return shapes + "x(" + otherRows + "," + otherColumns + ")";
+        }
+
+    }
+
+    private static final class OperationStatistics {
+        private long calls;
+        private long nanos;
+        private long flops;
+        private long allocatedBytes;
+
+        void add(OperationStatistics other) {
+            calls += other.calls;
+            nanos += other.nanos;
+            flops += other.flops;
+            allocatedBytes += other.allocatedBytes;
+        }
+
+        OperationStatistics copy() {
+            var copy = new OperationStatistics();
+            copy.add(this);
+            return copy;
+        }
+    }
+
+    private static final class ThreadStatistics {
+        private final String title;
+        // Weak, so the statistics don't keep an ended thread reachable, null for the ended threads
+        private final WeakReference<Thread> thread;
+        // Written only by the owning thread, or by the merge for the ended threads, so the lock is uncontended
+        // unless somebody is dumping the statistics
+        private final Map<OperationKey, OperationStatistics> statistics = new HashMap<>();
+
+        ThreadStatistics(String title, Thread thread) {
+            this.title = title;
+            this.thread = thread == null ? null : new WeakReference<>(thread);
+        }
+
+        boolean hasEnded() {
+            if (thread == null) {
+                return false;
+            }
+            var owner = thread.get();
+            return owner == null || !owner.isAlive();
+        }
+
+        synchronized void add(OperationKey key, long elapsedNanos, long flops, long allocatedBytes) {
+            var operationStatistics = statistics.computeIfAbsent(key, k -> new OperationStatistics());
+            operationStatistics.calls++;
+            operationStatistics.nanos += elapsedNanos;
+            operationStatistics.flops += flops;
+            operationStatistics.allocatedBytes += allocatedBytes;
+        }
+
+        synchronized void addAll(Map<OperationKey, OperationStatistics> other) {
+            other.forEach((key, value) -> statistics.computeIfAbsent(key, k -> new OperationStatistics()).add(value));
+        }
+
+        synchronized Map<OperationKey, OperationStatistics> snapshot() {
+            var copy = new HashMap<OperationKey, OperationStatistics>();
+            statistics.forEach((key, value) -> copy.put(key, value.copy()));
+            return copy;
+        }
+
+        synchronized void clear() {
+            statistics.clear();
+        }
+    }
+
+}
@@ -123,18 +123,32 @@ public class NeuralNetworkBatchedStandardized {
             for (int batch = 0; batch < xBatches.size(); batch++) {
                 var xBatch = xBatches.get(batch);
                 var yBatch = yBatches.get(batch);
-                MatrixPair yHatH = calculateForward(xBatch, w1, w2);
-                var yHat = yHatH.first();
-                var h = yHatH.second();
-                MatrixPair gradients = calculateBack(xBatch, yBatch, yHat, w2, h);
-                w1 = w1.subtract(gradients.first().scalarMultiply(lr));
-                w2 = w2.subtract(gradients.second().scalarMultiply(lr));
+                var weights = trainStep(xBatch, yBatch, w1, w2, lr);
+                w1 = weights.first();
+                w2 = weights.second();
                 reportingQueue.add(new ReportingTask(epoch, batch, w1, w2));
             }
         }
         return new MatrixPair(w1, w2);
     }
 
+    private static MatrixPair trainStep(DoubleMatrix x, DoubleMatrix y, DoubleMatrix w1, DoubleMatrix w2, double lr) {
+        MatrixPair yHatH = calculateForward(x, w1, w2);
+        var yHat = yHatH.first();
+        var h = yHatH.second();
+        MatrixPair gradients = calculateBack(x, y, yHat, w2, h);
+        return new MatrixPair(
+                w1.subtract(gradients.first().scalarMultiply(lr)),
+                w2.subtract(gradients.second().scalarMultiply(lr)));
+    }
+
+    public static TrainingStep createTrainingStep(double[][] xBatch, int[] labels, int hiddenNodes, double lr) {
+        var x = DoubleMatrix.with2dArray(xBatch);
+        var y = encodeMnistLabels(labels);
+        var weights = new MatrixPair[]{initWeights(x.getColumnDimension(), hiddenNodes, y.getColumnDimension())};
+        return () -> weights[0] = trainStep(x, y, weights[0].first(), weights[0].second(), lr);
+    }
+
     private static DoubleMatrix readMnistImageFile(String fileName) {
         byte[] rawFile = FileUtil.readGzippedBinaryFile(fileName);
         int pointer = 0;
@@ -0,0 +1,57 @@
+package com.dmytrobilokha.pmljlabs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Describes the JVM and the hardware a run happens on, so results from different machines are not mixed up.
+ */
+public final class RunEnvironment {
+
+    private static final Path CPU_INFO_PATH = Path.of("/proc/cpuinfo");
+
+    private RunEnvironment() {
+        // Util class
+    }
+
+    public static String describe() {
+        return "java=" + System.getProperty("java.version")
+                + ", vm=" + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version")
+                + ", os=" + System.getProperty("os.name") + " " + System.getProperty("os.arch")
+                + ", cpus=" + Runtime.getRuntime().availableProcessors()
+                + ", cpu=" + readCpuModel()
+                + ", maxHeap=" + Runtime.getRuntime().maxMemory();
+    }
+
+    // Sum of the heap pools peaks, which is what the JVM has needed at most since it has started
+    public static long peakHeapBytes() {
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String readCpuModel() {
+        if (!Files.isReadable(CPU_INFO_PATH)) {
+            return "unknown";
+        }
+        try (Stream<String> lines = Files.lines(CPU_INFO_PATH)) {
+            return lines
+                    .filter(line -> line.startsWith("model name"))
+                    .map(line -> line.substring(line.indexOf(':') + 1).trim())
+                    .findFirst()
+                    .orElse("unknown");
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.dmytrobilokha.pmljlabs;
+
+/**
+ * One forward + backward + weights update pass of a network over the batch it has been created with.
+ * Every network implementation provides a createTrainingStep factory, so they can be benchmarked on the same data.
+ */
+@FunctionalInterface
+public interface TrainingStep {
+
+    void run();
+
+}
@@ -0,0 +1,137 @@
+package com.dmytrobilokha.pmljlabs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Runs a fixed number of training steps of every network implementation on the same synthetic MNIST-shaped data
+ * (784 inputs, 10 labels) for each combination of batch size and hidden layer width, and writes steps/sec,
+ * samples/sec and bytes allocated per step by all the threads as a tab separated file. The JVM and CPU
+ * description goes to the [output file].system file.
+ */
+public class TrainingStepBenchmark {
+
+    private static final int MNIST_INPUTS = 28 * 28;
+    private static final int NUMBER_OF_LABELS = 10;
+    private static final double LEARNING_RATE = 0.01d;
+    private static final long DATA_SEED = 42L;
+    private static final int SHARDS = Runtime.getRuntime().availableProcessors();
+    private static final String HEADER =
+            "implementation\tbatchSize\thiddenNodes\tsteps\tstepsPerSecond\tsamplesPerSecond\tallocatedBytesPerStep";
+
+    public static void main(String[] cliArgs) {
+        if (cliArgs.length < 1 || cliArgs.length > 4) {
+            System.err.println("Expected arguments:");
+            System.err.println("1 - output file");
+            System.err.println("2 - (optional) number of measured steps, default 50");
+            System.err.println("3 - (optional) comma separated batch sizes, default 32,128,512");
+            System.err.println("4 - (optional) comma separated hidden layer widths, default 50,100,300");
+            System.exit(1);
+        }
+        var outputFile = cliArgs[0];
+        int steps = cliArgs.length > 1 ? Integer.parseInt(cliArgs[1]) : 50;
+        int[] batchSizes = parseIntList(cliArgs.length > 2 ? cliArgs[2] : "32,128,512");
+        int[] hiddenWidths = parseIntList(cliArgs.length > 3 ? cliArgs[3] : "50,100,300");
+        var implementations = List.of(
+                new Implementation("NeuralNetwork", NeuralNetwork::createTrainingStep),
+                new Implementation("NeuralNetworkBatched", NeuralNetworkBatched::createTrainingStep),
+                new Implementation("NeuralNetworkBatchedStandardized", NeuralNetworkBatchedStandardized::createTrainingStep),
+                new Implementation("enhanced.NeuralNetwork",
+                        com.dmytrobilokha.pmljlabs.enhanced.NeuralNetwork::createTrainingStep),
+                new Implementation("enhanced.NeuralNetwork/shards=" + SHARDS,
+                        (xBatch, labels, hiddenNodes, lr) -> com.dmytrobilokha.pmljlabs.enhanced.NeuralNetwork
+                                .createShardedTrainingStep(xBatch, labels, hiddenNodes, lr, SHARDS)),
+                new Implementation("enhanced.NeuralNetworkFloat",
+                        com.dmytrobilokha.pmljlabs.enhanced.NeuralNetworkFloat::createTrainingStep),
+                new Implementation("enhanced.LayeredNetwork",
+                        com.dmytrobilokha.pmljlabs.enhanced.LayeredNetwork::createTrainingStep)
+        );
+        var lines = new ArrayList<String>();
+        lines.add(HEADER);
+        System.out.println(HEADER);
+        for (int batchSize : batchSizes) {
+            var random = new SplittableRandom(DATA_SEED);
+            double[][] xBatch = createSyntheticImages(random, batchSize);
+            int[] labels = createSyntheticLabels(random, batchSize);
+            for (int hiddenNodes : hiddenWidths) {
+                for (var implementation : implementations) {
+                    var result = measure(implementation, xBatch, labels, hiddenNodes, steps);
+                    System.out.println(result);
+                    lines.add(result);
+                }
+            }
+        }
+        FileUtil.writeLinesToFile(outputFile, lines);
+        // Next to the results, the same way the training runs keep it, so BenchmarkHistory can tell the machines apart
+        FileUtil.writeLinesToFile(outputFile + ".system", List.of("Environment: " + RunEnvironment.describe()));
+    }
+
+    private static String measure(Implementation implementation, double[][] xBatch, int[] labels, int hiddenNodes, int steps) {
+        var threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var trainingStep = implementation.factory().create(xBatch, labels, hiddenNodes, LEARNING_RATE);
+        // The same number of warm up steps as measured ones, to let JIT compile the kernels first
+        for (int i = 0; i < steps; i++) {
+            trainingStep.run();
+        }
+        long allocatedBefore = getAllocatedBytesOfAllThreads(threadMXBean);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            trainingStep.run();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long allocatedBytes = getAllocatedBytesOfAllThreads(threadMXBean) - allocatedBefore;
+        double stepsPerSecond = steps * 1e9d / elapsedNanos;
+        return implementation.name() + "\t" + xBatch.length + "\t" + hiddenNodes + "\t" + steps
+                + "\t" + stepsPerSecond + "\t" + stepsPerSecond * xBatch.length + "\t" + allocatedBytes / steps;
+    }
+
+    // Summed over all the live threads, so the work of the worker threads, e.g. the shard workers, counts as well.
+    // The workers are started by the factory and warmed up before the measurement, so none of them is missed
+    private static long getAllocatedBytesOfAllThreads(com.sun.management.ThreadMXBean threadMXBean) {
+        long allocatedBytes = 0L;
+        for (long threadBytes : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+            // -1 for a thread which has ended in between
+            if (threadBytes > 0L) {
+                allocatedBytes += threadBytes;
+            }
+        }
+        return allocatedBytes;
+    }
+
+    // Standardized-like pixel values, so that all the networks work in their usual numeric range
+    private static double[][] createSyntheticImages(SplittableRandom random, int rows) {
+        double[][] images = new double[rows][MNIST_INPUTS];
+        for (double[] image : images) {
+            for (int i = 0; i < image.length; i++) {
+                image[i] = random.nextDouble(-0.5d, 2.5d);
+            }
+        }
+        return images;
+    }
+
+    private static int[] createSyntheticLabels(SplittableRandom random, int rows) {
+        int[] labels = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            labels[i] = random.nextInt(NUMBER_OF_LABELS);
+        }
+        return labels;
+    }
+
+    private static int[] parseIntList(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .toArray();
+    }
+
+    @FunctionalInterface
+    interface TrainingStepFactory {
+        TrainingStep create(double[][] xBatch, int[] labels, int hiddenNodes, double lr);
+    }
+
+    record Implementation(String name, TrainingStepFactory factory) {}
+
+}
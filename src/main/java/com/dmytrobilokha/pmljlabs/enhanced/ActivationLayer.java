@@ -0,0 +1,93 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Applies the activation function element by element. The derivatives are expressed through the output,
+ * so the backward pass needs only the output buffer of the forward one.
+ */
+public final class ActivationLayer implements Layer {
+
+    private final int width;
+    private final Activation activation;
+    private final BatchBuffers<Buffers> batchBuffers;
+    private Buffers buffers;
+
+    public ActivationLayer(int width, Activation activation) {
+        this.width = width;
+        this.activation = activation;
+        this.batchBuffers = new BatchBuffers<>(rows -> new Buffers(DoubleMatrix.ofZeros(rows, width)));
+    }
+
+    @Override
+    public int getInputWidth() {
+        return width;
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return width;
+    }
+
+    public Activation getActivation() {
+        return activation;
+    }
+
+    @Override
+    public DoubleMatrix forward(DoubleMatrix input) {
+        buffers = batchBuffers.get(input.getRowDimension());
+        return buffers.output.applyInPlace(input, activation.function);
+    }
+
+    @Override
+    public DoubleMatrix backward(DoubleMatrix outputGradient, boolean inputGradientNeeded) {
+        if (!inputGradientNeeded) {
+            return null;
+        }
+        return buffers.getInputGradient().combineInPlace(outputGradient, buffers.output, activation.backward);
+    }
+
+    public enum Activation {
+        RELU(z -> z <= 0d ? 0d : z, (gradient, output) -> output <= 0d ? 0d : gradient),
+        SIGMOID(z -> 1d / (1d + Math.exp(-z)), (gradient, output) -> gradient * output * (1d - output)),
+        TANH(Math::tanh, (gradient, output) -> gradient * (1d - output * output));
+
+        private final DoubleUnaryOperator function;
+        // (output gradient, output) -> input gradient
+        private final DoubleBinaryOperator backward;
+
+        Activation(DoubleUnaryOperator function, DoubleBinaryOperator backward) {
+            this.function = function;
+            this.backward = backward;
+        }
+
+        public static Activation parse(String value) {
+            for (var activation : values()) {
+                if (activation.name().equalsIgnoreCase(value)) {
+                    return activation;
+                }
+            }
+            throw new IllegalArgumentException("Unknown activation: " + value);
+        }
+    }
+
+    private static final class Buffers {
+        private final DoubleMatrix output;
+        private DoubleMatrix inputGradient;
+
+        private Buffers(DoubleMatrix output) {
+            this.output = output;
+        }
+
+        private DoubleMatrix getInputGradient() {
+            if (inputGradient == null) {
+                inputGradient = DoubleMatrix.ofZerosSizedAs(output);
+            }
+            return inputGradient;
+        }
+    }
+
+}
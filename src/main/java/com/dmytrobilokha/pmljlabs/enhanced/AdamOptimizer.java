@@ -0,0 +1,73 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class AdamOptimizer<M> implements Optimizer<M> {
+
+    private final Kernels<M> kernels;
+    private double learningRate;
+    private final List<M> firstMoments = new ArrayList<>();
+    private final List<M> secondMoments = new ArrayList<>();
+    private double beta1Power = 1d;
+    private double beta2Power = 1d;
+
+    AdamOptimizer(Kernels<M> kernels, double learningRate) {
+        this.kernels = kernels;
+        this.learningRate = learningRate;
+    }
+
+    @Override
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    @Override
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    // All the first moments, then all the second ones
+    @Override
+    public List<M> getState() {
+        var state = new ArrayList<M>(firstMoments);
+        state.addAll(secondMoments);
+        return state;
+    }
+
+    @Override
+    public double[] getStateScalars() {
+        return new double[]{beta1Power, beta2Power};
+    }
+
+    @Override
+    public void restoreState(List<M> state, double[] scalars) {
+        if (state.size() % 2 != 0 || scalars.length != 2) {
+            throw new IllegalArgumentException("Adam state must have the same number of first and second moments"
+                    + " and 2 scalars, but got " + state.size() + " matrices and " + scalars.length + " scalars");
+        }
+        firstMoments.clear();
+        firstMoments.addAll(state.subList(0, state.size() / 2));
+        secondMoments.clear();
+        secondMoments.addAll(state.subList(state.size() / 2, state.size()));
+        beta1Power = scalars[0];
+        beta2Power = scalars[1];
+    }
+
+    @Override
+    public void update(List<M> weights, List<M> gradients) {
+        beta1Power *= ADAM_BETA1;
+        beta2Power *= ADAM_BETA2;
+        // Both moments start from zeros, the bias correction scales them up for the first steps
+        double correctedLearningRate = learningRate * Math.sqrt(1d - beta2Power) / (1d - beta1Power);
+        for (int i = 0; i < weights.size(); i++) {
+            if (i == firstMoments.size()) {
+                firstMoments.add(kernels.createState(weights.get(i)));
+                secondMoments.add(kernels.createState(weights.get(i)));
+            }
+            kernels.adam(weights.get(i), firstMoments.get(i), secondMoments.get(i), gradients.get(i),
+                    correctedLearningRate);
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Buffers of a layer for every batch size it has seen. Training has two sizes at most (the full batch and
+ * the leftover one), evaluation adds one or two more, so a linear search is faster than boxing the size for a map.
+ */
+final class BatchBuffers<B> {
+
+    private final IntFunction<B> factory;
+    private final List<Entry<B>> entries = new ArrayList<>();
+
+    BatchBuffers(IntFunction<B> factory) {
+        this.factory = factory;
+    }
+
+    B get(int rows) {
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            if (entry.rows() == rows) {
+                return entry.buffers();
+            }
+        }
+        var buffers = factory.apply(rows);
+        entries.add(new Entry<>(rows, buffers));
+        return buffers;
+    }
+
+    private record Entry<B>(int rows, B buffers) {}
+
+}
@@ -0,0 +1,247 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.random.RandomGenerator;
+
+/**
+ * Assembles training batches on a background thread, so the training thread never waits for them.
+ * <p>
+ * Every epoch walks the dataset in a new random order: only the row indices are shuffled, the batch rows are
+ * gathered straight from the dataset into a bounded ring of reusable batch buffers. A batch taken with next()
+ * must be given back with release() once the training step doesn't need it anymore, then its buffers get refilled.
+ * The last batch of an epoch has the leftover rows, as with splitRowsInBatches.
+ * <p>
+ * next() and release() could be called from several training threads.
+ */
+public final class DataLoader<M> implements AutoCloseable {
+
+    private final M x;
+    private final M y;
+    private final int rows;
+    private final int batchSize;
+    private final int epochs;
+    private final int batchesPerEpoch;
+    private final long startStep;
+    private final Gatherer<M> gatherer;
+    private final RandomGenerator random;
+    private final BlockingQueue<Batch<M>> freeBatches;
+    private final BlockingQueue<Batch<M>> filledBatches;
+    private final Batch<M> endOfData = new Batch<>();
+    private final Thread producer;
+    private volatile Throwable producerFailure;
+
+    private DataLoader(M x, M y, int rows, int batchSize, int epochs, int prefetchBatches, long seed, long startStep,
+                       Gatherer<M> gatherer) {
+        if (batchSize < 1 || epochs < 1 || prefetchBatches < 1) {
+            throw new IllegalArgumentException("Batch size, epochs and prefetch batches must be positive, but got "
+                    + batchSize + ", " + epochs + ", " + prefetchBatches);
+        }
+        if (startStep < 0) {
+            throw new IllegalArgumentException("Start step can't be negative, but got " + startStep);
+        }
+        this.x = x;
+        this.y = y;
+        this.rows = rows;
+        this.batchSize = Math.min(batchSize, rows);
+        this.epochs = epochs;
+        this.batchesPerEpoch = (rows + this.batchSize - 1) / this.batchSize;
+        this.startStep = startStep;
+        this.gatherer = gatherer;
+        this.random = DoubleMatrix.createRandomGenerator(seed);
+        // One more slot than prefetched, so the producer can fill the next batch while the consumer holds one
+        this.freeBatches = new ArrayBlockingQueue<>(prefetchBatches + 1);
+        this.filledBatches = new ArrayBlockingQueue<>(prefetchBatches + 2);
+        for (int i = 0; i <= prefetchBatches; i++) {
+            freeBatches.add(new Batch<>());
+        }
+        this.producer = new Thread(this::produce, "data-loader");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    public static DataLoader<DoubleMatrix> ofDoubleMatrices(
+            DoubleMatrix x, DoubleMatrix y, int batchSize, int epochs, int prefetchBatches, long seed) {
+        return ofDoubleMatrices(x, y, batchSize, epochs, prefetchBatches, seed, 0L);
+    }
+
+    /**
+     * Continues a run which has already taken startStep batches (epoch * batchesPerEpoch + batch index):
+     * the shuffles of the done epochs are replayed, so the batches are the same as if the run hasn't stopped.
+     */
+    public static DataLoader<DoubleMatrix> ofDoubleMatrices(DoubleMatrix x, DoubleMatrix y, int batchSize, int epochs,
+                                                            int prefetchBatches, long seed, long startStep) {
+        ensureSameRows(x.getRowDimension(), y.getRowDimension());
+        return new DataLoader<>(x, y, x.getRowDimension(), batchSize, epochs, prefetchBatches, seed, startStep,
+                new Gatherer<>() {
+                    @Override
+                    public DoubleMatrix createBuffer(DoubleMatrix source, int bufferRows) {
+                        return DoubleMatrix.ofZeros(bufferRows, source.getColumnDimension());
+                    }
+
+                    @Override
+                    public void gather(DoubleMatrix buffer, DoubleMatrix source, int[] indices, int fromIndex) {
+                        buffer.gatherRowsInPlace(source, indices, fromIndex);
+                    }
+                });
+    }
+
+    public static DataLoader<FloatMatrix> ofFloatMatrices(
+            FloatMatrix x, FloatMatrix y, int batchSize, int epochs, int prefetchBatches, long seed) {
+        ensureSameRows(x.getRowDimension(), y.getRowDimension());
+        return new DataLoader<>(x, y, x.getRowDimension(), batchSize, epochs, prefetchBatches, seed, 0L,
+                new Gatherer<>() {
+                    @Override
+                    public FloatMatrix createBuffer(FloatMatrix source, int bufferRows) {
+                        return FloatMatrix.ofZeros(bufferRows, source.getColumnDimension());
+                    }
+
+                    @Override
+                    public void gather(FloatMatrix buffer, FloatMatrix source, int[] indices, int fromIndex) {
+                        buffer.gatherRowsInPlace(source, indices, fromIndex);
+                    }
+                });
+    }
+
+    private static void ensureSameRows(int xRows, int yRows) {
+        if (xRows != yRows) {
+            throw new IllegalArgumentException("Inputs have " + xRows + " rows, but labels have " + yRows);
+        }
+    }
+
+    public int getBatchesPerEpoch() {
+        return batchesPerEpoch;
+    }
+
+    /**
+     * Blocks until the next batch is ready. Returns null when all the epochs are done.
+     */
+    public Batch<M> next() {
+        try {
+            var batch = filledBatches.take();
+            if (batch == endOfData) {
+                // Put it back for the other training threads
+                filledBatches.put(endOfData);
+                if (producerFailure != null) {
+                    throw new RuntimeException("Failed to prepare a batch", producerFailure);
+                }
+                return null;
+            }
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Got interrupted while waiting for the next batch", e);
+        }
+    }
+
+    public void release(Batch<M> batch) {
+        freeBatches.add(batch);
+    }
+
+    @Override
+    public void close() {
+        producer.interrupt();
+    }
+
+    private void produce() {
+        int[] indices = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            indices[i] = i;
+        }
+        long startEpoch = startStep / batchesPerEpoch;
+        try {
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                shuffle(indices);
+                if (epoch < startEpoch) {
+                    continue;
+                }
+                int startBatch = epoch == startEpoch ? (int) (startStep % batchesPerEpoch) : 0;
+                for (int batchIndex = startBatch; batchIndex < batchesPerEpoch; batchIndex++) {
+                    var batch = freeBatches.take();
+                    int fromIndex = batchIndex * batchSize;
+                    fill(batch, epoch, batchIndex, Math.min(batchSize, rows - fromIndex), indices, fromIndex);
+                    filledBatches.put(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed before all the epochs are done
+        } catch (Throwable e) {
+            // An error too, e.g. out of memory for a buffer, else the training threads would wait in next() forever
+            producerFailure = e;
+        }
+        filledBatches.add(endOfData);
+    }
+
+    // Fisher-Yates, the same permutation for the same seed
+    private void shuffle(int[] indices) {
+        for (int i = indices.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = indices[i];
+            indices[i] = indices[j];
+            indices[j] = swap;
+        }
+    }
+
+    // Buffers are created on the first use, the leftover ones only if the dataset doesn't split evenly
+    private void fill(Batch<M> batch, int epoch, int index, int batchRows, int[] indices, int fromIndex) {
+        batch.epoch = epoch;
+        batch.index = index;
+        batch.leftover = batchRows < batchSize;
+        if (batch.leftover) {
+            if (batch.leftoverX == null) {
+                batch.leftoverX = gatherer.createBuffer(x, batchRows);
+                batch.leftoverY = gatherer.createBuffer(y, batchRows);
+            }
+            gatherer.gather(batch.leftoverX, x, indices, fromIndex);
+            gatherer.gather(batch.leftoverY, y, indices, fromIndex);
+        } else {
+            if (batch.fullX == null) {
+                batch.fullX = gatherer.createBuffer(x, batchRows);
+                batch.fullY = gatherer.createBuffer(y, batchRows);
+            }
+            gatherer.gather(batch.fullX, x, indices, fromIndex);
+            gatherer.gather(batch.fullY, y, indices, fromIndex);
+        }
+    }
+
+    /**
+     * A slot of the ring, its matrices are overwritten once the batch is released.
+     */
+    public static final class Batch<M> {
+        private int epoch;
+        private int index;
+        private M fullX;
+        private M fullY;
+        private M leftoverX;
+        private M leftoverY;
+        private boolean leftover;
+
+        private Batch() {
+        }
+
+        public int epoch() {
+            return epoch;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public M x() {
+            return leftover ? leftoverX : fullX;
+        }
+
+        public M y() {
+            return leftover ? leftoverY : fullY;
+        }
+    }
+
+    private interface Gatherer<M> {
+        M createBuffer(M source, int bufferRows);
+
+        void gather(M buffer, M source, int[] indices, int fromIndex);
+    }
+
+}
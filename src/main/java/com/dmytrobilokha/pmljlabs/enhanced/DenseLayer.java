@@ -0,0 +1,113 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.util.List;
+import java.util.random.RandomGenerator.SplittableGenerator;
+
+/**
+ * output = input * weights + bias, where weights is (inputs, outputs) and bias is a (1, outputs) row vector.
+ * The input of the last forward call is kept for the backward pass, so it must not change in between.
+ */
+public final class DenseLayer implements Layer {
+
+    private final DoubleMatrix weights;
+    private final DoubleMatrix bias;
+    private final DoubleMatrix weightsGradient;
+    private final DoubleMatrix biasGradient;
+    private final DoubleMatrix weightsTransposed;
+    private final List<DoubleMatrix> parameters;
+    private final List<DoubleMatrix> gradients;
+    private final BatchBuffers<Buffers> batchBuffers;
+    private DoubleMatrix input;
+    private Buffers buffers;
+
+    public DenseLayer(DoubleMatrix weights, DoubleMatrix bias) {
+        if (bias.getRowDimension() != 1 || bias.getColumnDimension() != weights.getColumnDimension()) {
+            throw new IllegalArgumentException("Bias must be (1, " + weights.getColumnDimension() + "), but got ("
+                    + bias.getRowDimension() + ", " + bias.getColumnDimension() + ")");
+        }
+        this.weights = weights;
+        this.bias = bias;
+        this.weightsGradient = DoubleMatrix.ofZerosSizedAs(weights);
+        this.biasGradient = DoubleMatrix.ofZerosSizedAs(bias);
+        this.weightsTransposed = DoubleMatrix.ofZeros(weights.getColumnDimension(), weights.getRowDimension());
+        this.parameters = List.of(weights, bias);
+        this.gradients = List.of(weightsGradient, biasGradient);
+        this.batchBuffers = new BatchBuffers<>(Buffers::new);
+    }
+
+    // He uniform initialization, which keeps the scale of the activations through a stack of ReLU layers
+    public static DenseLayer ofRandomWeights(int inputs, int outputs, SplittableGenerator generator) {
+        double maxWeightModule = Math.sqrt(6d / inputs);
+        var weights = DoubleMatrix.ofUniRandoms(inputs, outputs, generator)
+                .scalarMultiply(2d * maxWeightModule)
+                .scalarAdd(-maxWeightModule);
+        return new DenseLayer(weights, DoubleMatrix.ofZeros(1, outputs));
+    }
+
+    @Override
+    public int getInputWidth() {
+        return weights.getRowDimension();
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return weights.getColumnDimension();
+    }
+
+    @Override
+    public DoubleMatrix forward(DoubleMatrix input) {
+        this.input = input;
+        this.buffers = batchBuffers.get(input.getRowDimension());
+        return buffers.output.multiplyInPlace(input, weights).addRowVectorInPlace(bias);
+    }
+
+    @Override
+    public DoubleMatrix backward(DoubleMatrix outputGradient, boolean inputGradientNeeded) {
+        weightsGradient.multiplyInPlace(buffers.getInputTransposed().transposeInPlace(input), outputGradient);
+        biasGradient.sumPerColumnInPlace(outputGradient);
+        if (!inputGradientNeeded) {
+            return null;
+        }
+        return buffers.getInputGradient().multiplyInPlace(outputGradient, weightsTransposed.transposeInPlace(weights));
+    }
+
+    @Override
+    public List<DoubleMatrix> getParameters() {
+        return parameters;
+    }
+
+    @Override
+    public List<DoubleMatrix> getGradients() {
+        return gradients;
+    }
+
+    // The backward buffers are created on the first backward pass, so evaluation batch sizes don't get them
+    private final class Buffers {
+        private final int rows;
+        private final DoubleMatrix output;
+        private DoubleMatrix inputTransposed;
+        private DoubleMatrix inputGradient;
+
+        private Buffers(int rows) {
+            this.rows = rows;
+            this.output = DoubleMatrix.ofZeros(rows, getOutputWidth());
+        }
+
+        private DoubleMatrix getInputTransposed() {
+            if (inputTransposed == null) {
+                inputTransposed = DoubleMatrix.ofZeros(getInputWidth(), rows);
+            }
+            return inputTransposed;
+        }
+
+        private DoubleMatrix getInputGradient() {
+            if (inputGradient == null) {
+                inputGradient = DoubleMatrix.ofZeros(rows, getInputWidth());
+            }
+            return inputGradient;
+        }
+    }
+
+}
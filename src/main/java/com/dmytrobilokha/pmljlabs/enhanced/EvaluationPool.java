@@ -0,0 +1,122 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work-stealing pool shared by all the evaluation work: the reports and the row chunks of their forward passes.
+ * By default it has only as many workers as the cores the training threads leave free, and the workers are daemon
+ * threads of the minimal priority, so the evaluation takes the spare capacity and the training keeps its throughput.
+ * <p>
+ * An evaluation splits its rows in chunks and forks them, so the idle workers steal the chunks of a big evaluation,
+ * e.g. the exact training loss, instead of waiting for the next report.
+ */
+public final class EvaluationPool implements AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_ROWS = 1000;
+    // Minimum configured chunk, the balanced chunks get at least half of it, i.e. 2 rows, whatever the number of rows
+    private static final int MIN_CHUNK_ROWS = 4;
+
+    private final ForkJoinPool pool;
+    private final int chunkRows;
+
+    public EvaluationPool(int parallelism, int chunkRows) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Minimum evaluation parallelism is 1, but got " + parallelism);
+        }
+        if (chunkRows < MIN_CHUNK_ROWS) {
+            throw new IllegalArgumentException("Minimum evaluation chunk is " + MIN_CHUNK_ROWS + " rows, but got "
+                    + chunkRows);
+        }
+        this.chunkRows = chunkRows;
+        this.pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("evaluation-worker-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, false);
+    }
+
+    // The cores left after the training threads, at least one
+    public static int defaultParallelism(int trainingThreads) {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - trainingThreads);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * Sums the function over consecutive row chunks of sizes differing by one at most, toRow is exclusive.
+     * The chunks run on the pool, but are summed up in the row order, so the result doesn't depend on the scheduling.
+     */
+    public double sumOverRowChunks(int rows, ChunkFunction function) {
+        return sumOverRowChunks(rows, 1, (fromRow, toRow, sums) -> sums[0] = function.apply(fromRow, toRow))[0];
+    }
+
+    // The same for several sums at once, e.g. of values and of their squares, every chunk gets its own array of zeros
+    public double[] sumOverRowChunks(int rows, int values, ChunkSumsFunction function) {
+        double[] sums = new double[values];
+        int chunks = (rows + chunkRows - 1) / chunkRows;
+        if (chunks <= 1) {
+            function.apply(0, rows, sums);
+            return sums;
+        }
+        var tasks = new ArrayList<ForkJoinTask<double[]>>(chunks);
+        int fromRow = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int from = fromRow;
+            int to = from + rows / chunks + (chunk < rows % chunks ? 1 : 0);
+            tasks.add(ForkJoinTask.adapt(() -> {
+                double[] chunkSums = new double[values];
+                function.apply(from, to, chunkSums);
+                return chunkSums;
+            }));
+            fromRow = to;
+        }
+        // A report already running on the pool forks the chunks itself, anyone else hands them over to the pool
+        if (ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            pool.invoke(ForkJoinTask.adapt((Runnable) () -> ForkJoinTask.invokeAll(tasks)));
+        }
+        for (var task : tasks) {
+            double[] chunkSums = task.join();
+            for (int i = 0; i < values; i++) {
+                sums[i] += chunkSums[i];
+            }
+        }
+        return sums;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.MINUTES)) {
+                throw new RuntimeException("Timed out waiting for the evaluation pool to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Got interrupted while waiting for the evaluation pool to finish", e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ChunkFunction {
+        double apply(int fromRow, int toRow);
+    }
+
+    @FunctionalInterface
+    public interface ChunkSumsFunction {
+        void apply(int fromRow, int toRow, double[] sums);
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import com.dmytrobilokha.pmljlabs.FileUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Means and standard deviations of the training inputs: one pair for all the features (GLOBAL) or one per feature,
+ * i.e. column (FEATURE). A GLOBAL statistics has arrays of length 1.
+ * <p>
+ * Calculated in one pass over the training set and applied in place, so the standardization doesn't copy
+ * the dataset. The statistics are saved next to the model, so the test set and the inference reuse the training ones.
+ * A feature constant over the training set, e.g. an MNIST corner pixel, gets the standard deviation 1,
+ * so it becomes 0 instead of NaN.
+ */
+public record FeatureStatistics(Mode mode, double[] means, double[] standardDeviations) {
+
+    public static FeatureStatistics calculate(DoubleMatrix x, Mode mode) {
+        double[][] moments = x.calculateColumnMoments();
+        return fromColumnMoments(moments[0], moments[1], x.getRowDimension(), mode);
+    }
+
+    public static FeatureStatistics calculate(FloatMatrix x, Mode mode) {
+        float[][] moments = x.calculateColumnMoments();
+        return fromColumnMoments(toDoubles(moments[0]), toDoubles(moments[1]), x.getRowDimension(), mode);
+    }
+
+    // Merges the columns for the GLOBAL mode the same way the blocks are merged: M2 gets the spread of the means
+    private static FeatureStatistics fromColumnMoments(double[] columnMeans, double[] columnM2s, int rows, Mode mode) {
+        if (mode == Mode.FEATURE) {
+            double[] standardDeviations = new double[columnMeans.length];
+            for (int j = 0; j < columnMeans.length; j++) {
+                standardDeviations[j] = toStandardDeviation(columnM2s[j], rows);
+            }
+            return new FeatureStatistics(mode, columnMeans, standardDeviations);
+        }
+        double mean = Arrays.stream(columnMeans).sum() / columnMeans.length;
+        double m2 = 0d;
+        for (int j = 0; j < columnMeans.length; j++) {
+            double delta = columnMeans[j] - mean;
+            m2 += columnM2s[j] + rows * delta * delta;
+        }
+        return new FeatureStatistics(mode, new double[]{mean},
+                new double[]{toStandardDeviation(m2, (long) rows * columnMeans.length)});
+    }
+
+    private static double toStandardDeviation(double m2, long count) {
+        double standardDeviation = Math.sqrt(m2 / count);
+        return standardDeviation == 0d ? 1d : standardDeviation;
+    }
+
+    public DoubleMatrix standardizeInPlace(DoubleMatrix x) {
+        int columns = x.getColumnDimension();
+        return x.standardizeColumnsInPlace(perColumn(means, columns), perColumn(standardDeviations, columns));
+    }
+
+    public FloatMatrix standardizeInPlace(FloatMatrix x) {
+        int columns = x.getColumnDimension();
+        return x.standardizeColumnsInPlace(
+                toFloats(perColumn(means, columns)), toFloats(perColumn(standardDeviations, columns)));
+    }
+
+    private double[] perColumn(double[] values, int columns) {
+        if (mode == Mode.FEATURE) {
+            return values;
+        }
+        double[] result = new double[columns];
+        Arrays.fill(result, values[0]);
+        return result;
+    }
+
+    // Three lines: the mode, the means and the standard deviations
+    public void writeToFile(String filePath) {
+        FileUtil.writeLinesToFile(filePath, List.of(mode.name(), join(means), join(standardDeviations)));
+    }
+
+    public static FeatureStatistics readFromFile(String filePath) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Path.of(filePath));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read data from the file: " + filePath, e);
+        }
+        if (lines.size() != 3) {
+            throw new RuntimeException("Expected 3 lines in the statistics file " + filePath + ", but got " + lines.size());
+        }
+        return new FeatureStatistics(Mode.valueOf(lines.get(0)), split(lines.get(1)), split(lines.get(2)));
+    }
+
+    private static String join(double[] values) {
+        return Arrays.stream(values).mapToObj(Double::toString).collect(Collectors.joining(" "));
+    }
+
+    private static double[] split(String line) {
+        return Arrays.stream(line.split(" ")).mapToDouble(Double::parseDouble).toArray();
+    }
+
+    private static double[] toDoubles(float[] values) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    private static float[] toFloats(double[] values) {
+        float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+
+    public enum Mode {
+        GLOBAL, FEATURE;
+
+        public static Mode parse(String value) {
+            for (var mode : values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown standardization mode: " + value);
+        }
+    }
+
+}
@@ -1,13 +1,16 @@
 package com.dmytrobilokha.pmljlabs.enhanced;
 
+import com.dmytrobilokha.pmljlabs.MatrixProfiler;
 import org.apache.commons.math3.exception.NumberIsTooSmallException;
 import org.apache.commons.math3.exception.OutOfRangeException;
 
-import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGenerator.SplittableGenerator;
+import java.util.random.RandomGeneratorFactory;
+import java.util.stream.IntStream;
 
 /**
  *  This implementation was copy-pasted from org.apache.commons.math3.linear.BlockRealMatrix with some changes:
@@ -16,25 +19,45 @@ import java.util.Random;
  *  - added factory methods to create a matrix;
  *  - removed not needed checks;
  *  - added some missing, but useful methods (element-by-element multiply, sum, etc.);
- *  - made internal blocks array read-only
+ *  - made internal blocks array read-only, except for the explicit *InPlace methods, which should be called only on
+ *    matrices not shared with anybody else;
+ *  - matrices not wider than one block are kept in a single contiguous row-major array;
+ *  - added broadcast operations with row (1, n) and column (m, 1) vectors;
+ *  - random matrices are filled in parallel, each block from its own substream of a seedable splittable generator;
+ *  - operations report to MatrixProfiler when profiling is enabled;
+ *  - added gathering of rows by indices, e.g. to assemble shuffled batches without copying the whole dataset;
+ *  - added fused in-place optimizer updates (momentum, Adam), which also update the optimizer state matrices;
+ *  - addScaledInPlace is the only *InPlace method meant for shared matrices: lock-free (Hogwild) weight updates
+ *    from several threads, with copy() to take a snapshot of such a matrix;
+ *  - added *InPlace variants of copy, multiply, transpose, apply and sumPerColumn, plus combineInPlace and
+ *    softmaxPerRowInPlace, which write into a preallocated buffer, so a training step could run without allocations;
+ *  - added one-pass (Welford) column means and variances and in-place column standardization, both parallel
+ *    over the blocks;
+ *  - added copying and gathering of rows into the columns of a reused buffer from a given one on, so a chunk of rows
+ *    gets its bias column without prependColumn, copying of a column range, and indexOfHighestPerRow into
+ *    a reused array
  *  - data type changed to float
  */
 public class FloatMatrix {
 
     public static final FloatMatrix NULL = new FloatMatrix(0, 0, 0, 0, new float[0][0]);
     public static final int BLOCK_SIZE = 52 * 2;
-    private static final Random randomGenerator = new SecureRandom("Deterministic".getBytes(StandardCharsets.UTF_8));
+    public static final long DEFAULT_RANDOM_SEED = 42L;
+    private static final String RANDOM_ALGORITHM = "L64X128MixRandom";
+    private static final SplittableGenerator randomGenerator = createRandomGenerator(DEFAULT_RANDOM_SEED);
     private final float[][] blocks;
     private final int rows;
     private final int columns;
     private final int blockRows;
     private final int blockColumns;
+    private final boolean rowMajor;
 
     private FloatMatrix(int rows, int columns, int blockRows, int blockColumns, float[][] blockData) {
         this.rows = rows;
         this.columns = columns;
         this.blockRows = blockRows;
         this.blockColumns = blockColumns;
+        this.rowMajor = isRowMajorLayout(columns);
         blocks = blockData;
     }
 
@@ -53,18 +76,44 @@ public class FloatMatrix {
     }
 
     public static FloatMatrix ofSndRandoms(int rows, int columns) {
+        return ofSndRandoms(rows, columns, splitDefaultRandomGenerator());
+    }
+
+    public static FloatMatrix ofSndRandoms(int rows, int columns, long seed) {
+        return ofSndRandoms(rows, columns, createRandomGenerator(seed));
+    }
+
+    public static FloatMatrix ofSndRandoms(int rows, int columns, SplittableGenerator generator) {
         ensureCreatableSize(rows, columns);
         int blockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
-        return new FloatMatrix(
-                rows, columns, blockRows, blockColumns, createFilledBlocksLayout(rows, columns, () -> (float) randomGenerator.nextGaussian()));
+        return new FloatMatrix(rows, columns, blockRows, blockColumns,
+                createRandomBlocksLayout(rows, columns, generator, blockGenerator -> (float) blockGenerator.nextGaussian()));
     }
 
     public static FloatMatrix ofUniRandoms(int rows, int columns) {
+        return ofUniRandoms(rows, columns, splitDefaultRandomGenerator());
+    }
+
+    public static FloatMatrix ofUniRandoms(int rows, int columns, long seed) {
+        return ofUniRandoms(rows, columns, createRandomGenerator(seed));
+    }
+
+    public static FloatMatrix ofUniRandoms(int rows, int columns, SplittableGenerator generator) {
         ensureCreatableSize(rows, columns);
         int blockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, createFilledBlocksLayout(rows, columns, randomGenerator::nextFloat));
+        return new FloatMatrix(rows, columns, blockRows, blockColumns,
+                createRandomBlocksLayout(rows, columns, generator, RandomGenerator::nextFloat));
+    }
+
+    public static SplittableGenerator createRandomGenerator(long seed) {
+        return (SplittableGenerator) RandomGeneratorFactory.of(RANDOM_ALGORITHM).create(seed);
+    }
+
+    // The default generator is shared, so consecutive calls without a seed still get different, but reproducible data
+    private static synchronized SplittableGenerator splitDefaultRandomGenerator() {
+        return randomGenerator.split();
     }
 
     public static FloatMatrix ofZerosSizedAs(FloatMatrix m) {
@@ -98,11 +147,45 @@ public class FloatMatrix {
         return new FloatMatrix(rows, columns, blockRows, blockColumns, toBlocksLayout(array));
     }
 
+    private static float[][] createRandomBlocksLayout(
+            final int rows, final int columns, SplittableGenerator generator, RandomDistribution distribution) {
+        final float[][] blocks = createBlocksLayout(rows, columns);
+        final int numberOfBlocks = ((rows + BLOCK_SIZE - 1) / BLOCK_SIZE) * ((columns + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        // substreams are split sequentially in the block order, so the data depends only on the generator state,
+        // not on the number of threads filling the blocks
+        final SplittableGenerator[] blockGenerators = new SplittableGenerator[numberOfBlocks];
+        for (int blockIndex = 0; blockIndex < numberOfBlocks; ++blockIndex) {
+            blockGenerators[blockIndex] = generator.split();
+        }
+        IntStream.range(0, numberOfBlocks).parallel().forEach(blockIndex -> {
+            final float[] block = layoutBlock(blocks, columns, blockIndex);
+            final int start = layoutBlockOffset(columns, blockIndex);
+            final int end = isRowMajorLayout(columns) ? Math.min(start + BLOCK_SIZE * columns, block.length) : block.length;
+            final RandomGenerator blockGenerator = blockGenerators[blockIndex];
+            for (int k = start; k < end; ++k) {
+                block[k] = distribution.next(blockGenerator);
+            }
+        });
+        return blocks;
+    }
+
+    @FunctionalInterface
+    private interface RandomDistribution {
+        float next(RandomGenerator generator);
+    }
+
     private static float[][] toBlocksLayout(final float[][] rawData) {
         final int rows = rawData.length;
         final int columns = rawData[0].length;
         final int blockRows = (rows    + BLOCK_SIZE - 1) / BLOCK_SIZE;
         final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (isRowMajorLayout(columns)) {
+            final float[] data = new float[rows * columns];
+            for (int p = 0; p < rows; ++p) {
+                System.arraycopy(rawData[p], 0, data, p * columns, columns);
+            }
+            return new float[][]{data};
+        }
         // convert array
         final float[][] blocks = new float[blockRows * blockColumns][];
         int blockIndex = 0;
@@ -132,6 +215,9 @@ public class FloatMatrix {
     }
 
     private static float[][] createBlocksLayout(final int rows, final int columns) {
+        if (isRowMajorLayout(columns)) {
+            return new float[][]{new float[rows * columns]};
+        }
         final int blockRows = (rows    + BLOCK_SIZE - 1) / BLOCK_SIZE;
         final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
@@ -153,6 +239,13 @@ public class FloatMatrix {
     }
 
     private static float[][] createFilledBlocksLayout(final int rows, final int columns, FloatSupplier fillValueSupplier) {
+        if (isRowMajorLayout(columns)) {
+            final float[] data = new float[rows * columns];
+            for (int k = 0; k < data.length; k++) {
+                data[k] = fillValueSupplier.getAsFloat();
+            }
+            return new float[][]{data};
+        }
         final int blockRows = (rows    + BLOCK_SIZE - 1) / BLOCK_SIZE;
         final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
@@ -178,6 +271,78 @@ public class FloatMatrix {
     }
 
 
+    /*
+     * A matrix not wider than one block has only one block column, so the concatenation of its blocks is exactly
+     * its row-major representation. Such matrices (outputs, labels, per-row sums, narrow weights) are stored as one
+     * contiguous array, and the block (iBlock, 0) is addressed as a slice starting at iBlock * BLOCK_SIZE * columns.
+     * That lets block-wise kernels work with both layouts without any conversion.
+     */
+    private static boolean isRowMajorLayout(int columns) {
+        return columns <= BLOCK_SIZE;
+    }
+
+    private static float[] layoutBlock(float[][] blocks, int columns, int blockIndex) {
+        return isRowMajorLayout(columns) ? blocks[0] : blocks[blockIndex];
+    }
+
+    private static int layoutBlockOffset(int columns, int blockIndex) {
+        return isRowMajorLayout(columns) ? blockIndex * BLOCK_SIZE * columns : 0;
+    }
+
+    private float[] block(int blockIndex) {
+        return rowMajor ? blocks[0] : blocks[blockIndex];
+    }
+
+    private int blockOffset(int blockIndex) {
+        return rowMajor ? blockIndex * BLOCK_SIZE * columns : 0;
+    }
+
+    private static void copyRowFromLayout(float[][] blocks, int columns, int row, int startColumn,
+                                          float[] dst, int dstPos, int length) {
+        if (isRowMajorLayout(columns)) {
+            System.arraycopy(blocks[0], row * columns + startColumn, dst, dstPos, length);
+            return;
+        }
+        final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int iBlock = row / BLOCK_SIZE;
+        final int rowInBlock = row - iBlock * BLOCK_SIZE;
+        final int endColumn = startColumn + length;
+        int q = startColumn;
+        while (q < endColumn) {
+            final int jBlock = q / BLOCK_SIZE;
+            final int qStart = jBlock * BLOCK_SIZE;
+            final int jWidth = Math.min(qStart + BLOCK_SIZE, columns) - qStart;
+            final int segmentLength = Math.min(qStart + BLOCK_SIZE, endColumn) - q;
+            System.arraycopy(blocks[iBlock * blockColumns + jBlock], rowInBlock * jWidth + q - qStart,
+                    dst, dstPos, segmentLength);
+            dstPos += segmentLength;
+            q += segmentLength;
+        }
+    }
+
+    private static void copyRowToLayout(float[] src, int srcPos,
+                                        float[][] blocks, int columns, int row, int startColumn, int length) {
+        if (isRowMajorLayout(columns)) {
+            System.arraycopy(src, srcPos, blocks[0], row * columns + startColumn, length);
+            return;
+        }
+        final int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int iBlock = row / BLOCK_SIZE;
+        final int rowInBlock = row - iBlock * BLOCK_SIZE;
+        final int endColumn = startColumn + length;
+        int q = startColumn;
+        while (q < endColumn) {
+            final int jBlock = q / BLOCK_SIZE;
+            final int qStart = jBlock * BLOCK_SIZE;
+            final int jWidth = Math.min(qStart + BLOCK_SIZE, columns) - qStart;
+            final int segmentLength = Math.min(qStart + BLOCK_SIZE, endColumn) - q;
+            System.arraycopy(src, srcPos,
+                    blocks[iBlock * blockColumns + jBlock], rowInBlock * jWidth + q - qStart, segmentLength);
+            srcPos += segmentLength;
+            q += segmentLength;
+        }
+    }
+
     public int getRowDimension() {
         return rows;
     }
@@ -187,6 +352,7 @@ public class FloatMatrix {
     }
 
     public FloatMatrix add(FloatMatrix m) {
+        long startNanos = MatrixProfiler.start();
         ensureSameSize(m);
         float[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
@@ -197,10 +363,12 @@ public class FloatMatrix {
                 outBlock[k] = tBlock[k] + mBlock[k];
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("add", m, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public FloatMatrix subtract(FloatMatrix m) {
+        long startNanos = MatrixProfiler.start();
         ensureSameSize(m);
         float[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
@@ -211,10 +379,12 @@ public class FloatMatrix {
                 outBlock[k] = tBlock[k] - mBlock[k];
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("subtract", m, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public FloatMatrix multiplyElements(FloatMatrix m) {
+        long startNanos = MatrixProfiler.start();
         ensureSameSize(m);
         float[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
@@ -225,55 +395,338 @@ public class FloatMatrix {
                 outBlock[k] = tBlock[k] * mBlock[k];
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("multiplyElements", m, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
-    record Coordinates(int row, int column) {}
+    // this += factor * m, with plain writes and no locking. Concurrent updates of the same matrix may overwrite
+    // each other's increments and readers may see a partially updated matrix, which is acceptable for Hogwild SGD
+    public FloatMatrix addScaledInPlace(FloatMatrix m, float factor) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(m);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final float[] tBlock = blocks[blockIndex];
+            final float[] mBlock = m.blocks[blockIndex];
+            for (int k = 0; k < tBlock.length; ++k) {
+                tBlock[k] += factor * mBlock[k];
+            }
+        }
+        recordProfile("addScaledInPlace", m, startNanos, 2L * rows * columns, NULL);
+        return this;
+    }
 
-    private Coordinates calculateInBlocksCoordinates(int row, int column, int columns, int blockColumns) {
-        final int iBlock = row / BLOCK_SIZE;
-        final int jBlock = column / BLOCK_SIZE;
-        final int k = (row - iBlock * BLOCK_SIZE) * calculateBlockWidth(jBlock, columns, blockColumns) +
-                (column - jBlock * BLOCK_SIZE);
-        return new Coordinates(iBlock * blockColumns + jBlock, k);
+    // velocity = momentum * velocity - lr * gradient, then this += velocity, or for Nesterov
+    // this += momentum * velocity - lr * gradient with the already updated velocity
+    public FloatMatrix applyMomentumInPlace(
+            FloatMatrix velocity, FloatMatrix gradient, float lr, float momentum, boolean nesterov) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(velocity);
+        ensureSameSize(gradient);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final float[] tBlock = blocks[blockIndex];
+            final float[] vBlock = velocity.blocks[blockIndex];
+            final float[] gBlock = gradient.blocks[blockIndex];
+            for (int k = 0; k < tBlock.length; ++k) {
+                final float step = lr * gBlock[k];
+                final float v = momentum * vBlock[k] - step;
+                vBlock[k] = v;
+                tBlock[k] += nesterov ? momentum * v - step : v;
+            }
+        }
+        recordProfile("applyMomentumInPlace", gradient, startNanos, 5L * rows * columns, NULL);
+        return this;
     }
 
-    public FloatMatrix divideRows(FloatMatrix m) {
-        if (this.rows != m.rows || m.columns != 1) {
-            throw new IllegalArgumentException("("
-                    + this.rows + ", " + this.columns + ") cannot have rows divided by (" + m.rows + ", " + m.columns + ")");
+    // firstMoment and secondMoment get the exponential averages of the gradient and the squared gradient,
+    // correctedLr is the learning rate with the bias correction for the current step already applied
+    public FloatMatrix applyAdamInPlace(FloatMatrix firstMoment, FloatMatrix secondMoment, FloatMatrix gradient,
+                                         float correctedLr, float beta1, float beta2, float epsilon) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(firstMoment);
+        ensureSameSize(secondMoment);
+        ensureSameSize(gradient);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final float[] tBlock = blocks[blockIndex];
+            final float[] mBlock = firstMoment.blocks[blockIndex];
+            final float[] vBlock = secondMoment.blocks[blockIndex];
+            final float[] gBlock = gradient.blocks[blockIndex];
+            for (int k = 0; k < tBlock.length; ++k) {
+                final float g = gBlock[k];
+                final float m = beta1 * mBlock[k] + (1f - beta1) * g;
+                final float v = beta2 * vBlock[k] + (1f - beta2) * g * g;
+                mBlock[k] = m;
+                vBlock[k] = v;
+                tBlock[k] -= correctedLr * m / (Math.sqrt(v) + epsilon);
+            }
         }
+        recordProfile("applyAdamInPlace", gradient, startNanos, 12L * rows * columns, NULL);
+        return this;
+    }
+
+    public FloatMatrix copy() {
+        long startNanos = MatrixProfiler.start();
         float[][] outBlocks = createBlocksLayout(rows, columns);
-        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
-            final int pStart = iBlock * BLOCK_SIZE;
-            final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
-            for (int p = pStart; p < pEnd; ++p) {
-                var divisorCoordinates = calculateInBlocksCoordinates(p, 0, 1, 1);
-                float divisor = m.blocks[divisorCoordinates.row()][divisorCoordinates.column()];
+        for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
+            System.arraycopy(blocks[blockIndex], 0, outBlocks[blockIndex], 0, outBlocks[blockIndex].length);
+        }
+        return recordProfile("copy", NULL, startNanos, 0L,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
+    }
+
+    // this = source, e.g. to take a snapshot of a matrix into a recycled buffer
+    public FloatMatrix copyInPlace(FloatMatrix source) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(source);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            System.arraycopy(source.blocks[blockIndex], 0, blocks[blockIndex], 0, blocks[blockIndex].length);
+        }
+        recordProfile("copyInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    public FloatMatrix divideRows(FloatMatrix m) {
+        return divideColumnVector(m);
+    }
+
+    public FloatMatrix addRowVector(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.ADD, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix subtractRowVector(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.SUBTRACT, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix multiplyRowVector(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.MULTIPLY, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix divideRowVector(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.DIVIDE, rowVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix addRowVectorInPlace(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.ADD, rowVector, blocks);
+    }
+
+    public FloatMatrix subtractRowVectorInPlace(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.SUBTRACT, rowVector, blocks);
+    }
+
+    public FloatMatrix multiplyRowVectorInPlace(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.MULTIPLY, rowVector, blocks);
+    }
+
+    public FloatMatrix divideRowVectorInPlace(FloatMatrix rowVector) {
+        return broadcastRowVector(Broadcast.DIVIDE, rowVector, blocks);
+    }
+
+    public FloatMatrix addColumnVector(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.ADD, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix subtractColumnVector(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.SUBTRACT, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix multiplyColumnVector(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.MULTIPLY, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix divideColumnVector(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.DIVIDE, columnVector, createBlocksLayout(rows, columns));
+    }
+
+    public FloatMatrix addColumnVectorInPlace(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.ADD, columnVector, blocks);
+    }
+
+    public FloatMatrix subtractColumnVectorInPlace(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.SUBTRACT, columnVector, blocks);
+    }
+
+    public FloatMatrix multiplyColumnVectorInPlace(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.MULTIPLY, columnVector, blocks);
+    }
+
+    public FloatMatrix divideColumnVectorInPlace(FloatMatrix columnVector) {
+        return broadcastColumnVector(Broadcast.DIVIDE, columnVector, blocks);
+    }
+
+    private FloatMatrix broadcastRowVector(Broadcast operation, FloatMatrix rowVector, float[][] outBlocks) {
+        long startNanos = MatrixProfiler.start();
+        if (rowVector.rows != 1 || rowVector.columns != columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot be combined with row vector ("
+                    + rowVector.rows + ", " + rowVector.columns + ")");
+        }
+        if (rowMajor) {
+            // the vector is not wider than this matrix, so it is row-major as well
+            final float[] vector = rowVector.blocks[0];
+            final float[] data = blocks[0];
+            final float[] outData = outBlocks[0];
+            for (int k = 0; k < data.length; k += columns) {
+                operation.applyToRange(data, k, outData, k, columns, vector, 0);
+            }
+        } else {
+            for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+                final int iHeight = blockHeight(iBlock);
                 for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
                     final int jWidth = blockWidth(jBlock);
-                    final int qStart = jBlock * BLOCK_SIZE;
-                    final int qEnd = Math.min(qStart + BLOCK_SIZE, columns);
                     final float[] block = blocks[iBlock * blockColumns + jBlock];
                     final float[] outBlock = outBlocks[iBlock * blockColumns + jBlock];
-                    int k = (p - pStart) * jWidth;
-                    for (int q = qStart; q < qEnd; ++q) {
-                        outBlock[k] = block[k] / divisor;
-                        ++k;
+                    // a one row matrix in the block layout has exactly one block per column block
+                    final float[] vectorBlock = rowVector.blocks[jBlock];
+                    for (int k = 0, end = iHeight * jWidth; k < end; k += jWidth) {
+                        operation.applyToRange(block, k, outBlock, k, jWidth, vectorBlock, 0);
                     }
                 }
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        var result = outBlocks == blocks ? this : new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        if (MatrixProfiler.ENABLED) {
+            recordProfile(operation.getProfileName("RowVector", outBlocks == blocks), rowVector, startNanos,
+                    (long) rows * columns, outBlocks == blocks ? NULL : result);
+        }
+        return result;
+    }
+
+    private FloatMatrix broadcastColumnVector(Broadcast operation, FloatMatrix columnVector, float[][] outBlocks) {
+        long startNanos = MatrixProfiler.start();
+        if (columnVector.rows != rows || columnVector.columns != 1) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot be combined with column vector ("
+                    + columnVector.rows + ", " + columnVector.columns + ")");
+        }
+        // the (m, 1) vector is always row-major, so its data is one array indexed by row
+        final float[] vector = columnVector.blocks[0];
+        if (rowMajor) {
+            final float[] data = blocks[0];
+            final float[] outData = outBlocks[0];
+            for (int p = 0, k = 0; p < rows; ++p, k += columns) {
+                operation.applyScalarToRange(data, k, outData, k, columns, vector[p]);
+            }
+        } else {
+            for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+                final int pStart = iBlock * BLOCK_SIZE;
+                final int iHeight = blockHeight(iBlock);
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final float[] block = blocks[iBlock * blockColumns + jBlock];
+                    final float[] outBlock = outBlocks[iBlock * blockColumns + jBlock];
+                    for (int p = 0, k = 0; p < iHeight; ++p, k += jWidth) {
+                        operation.applyScalarToRange(block, k, outBlock, k, jWidth, vector[pStart + p]);
+                    }
+                }
+            }
+        }
+        var result = outBlocks == blocks ? this : new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        if (MatrixProfiler.ENABLED) {
+            recordProfile(operation.getProfileName("ColumnVector", outBlocks == blocks), columnVector, startNanos,
+                    (long) rows * columns, outBlocks == blocks ? NULL : result);
+        }
+        return result;
+    }
+
+    /*
+     * Each operation has its own loop over a contiguous range, so the per-element code stays monomorphic,
+     * only the call per row segment is dispatched.
+     */
+    private enum Broadcast {
+        ADD {
+            @Override
+            void applyToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] + vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] + value;
+                }
+            }
+        },
+        SUBTRACT {
+            @Override
+            void applyToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] - vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] - value;
+                }
+            }
+        },
+        MULTIPLY {
+            @Override
+            void applyToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] * vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] * value;
+                }
+            }
+        },
+        DIVIDE {
+            @Override
+            void applyToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float[] vector, int vectorPos) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] / vector[vectorPos + i];
+                }
+            }
+
+            @Override
+            void applyScalarToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float value) {
+                for (int i = 0; i < length; ++i) {
+                    dst[dstPos + i] = src[srcPos + i] / value;
+                }
+            }
+        };
+
+        abstract void applyToRange(
+                float[] src, int srcPos, float[] dst, int dstPos, int length, float[] vector, int vectorPos);
+
+        abstract void applyScalarToRange(float[] src, int srcPos, float[] dst, int dstPos, int length, float value);
+
+        String getProfileName(String vectorKind, boolean inPlace) {
+            return name().toLowerCase() + vectorKind + (inPlace ? "InPlace" : "");
+        }
     }
 
     public FloatMatrix sumPerRow() {
+        long startNanos = MatrixProfiler.start();
+        return recordProfile("sumPerRow", NULL, startNanos, (long) rows * columns, calculateSumPerRow());
+    }
+
+    private FloatMatrix calculateSumPerRow() {
         float[][] outBlocks = createBlocksLayout(rows, 1);
+        final float[] sums = outBlocks[0];
+        if (rowMajor) {
+            final float[] data = blocks[0];
+            int k = 0;
+            for (int p = 0; p < rows; ++p) {
+                float rowSum = 0f;
+                for (int q = 0; q < columns; ++q) {
+                    rowSum += data[k];
+                    ++k;
+                }
+                sums[p] = rowSum;
+            }
+            return new FloatMatrix(rows, 1, blockRows, 1, outBlocks);
+        }
         for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
             final int pStart = iBlock * BLOCK_SIZE;
             final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
             for (int p = pStart; p < pEnd; ++p) {
-                float rowSum = 0;
+                float rowSum = 0f;
                 for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
                     final int jWidth = blockWidth(jBlock);
                     final int qStart = jBlock * BLOCK_SIZE;
@@ -285,13 +738,297 @@ public class FloatMatrix {
                         ++k;
                     }
                 }
-                var resultCoordinates = calculateInBlocksCoordinates(p, 0, 1, 1);
-                outBlocks[resultCoordinates.row()][resultCoordinates.column()] = rowSum;
+                sums[p] = rowSum;
             }
         }
         return new FloatMatrix(rows, 1, blockRows, 1, outBlocks);
     }
 
+    public FloatMatrix maxPerRow() {
+        long startNanos = MatrixProfiler.start();
+        float[][] outBlocks = createBlocksLayout(rows, 1);
+        final float[] maximums = outBlocks[0];
+        for (int p = 0; p < rows; ++p) {
+            maximums[p] = Float.NEGATIVE_INFINITY;
+        }
+        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+            final int pStart = iBlock * BLOCK_SIZE;
+            final int iHeight = blockHeight(iBlock);
+            for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                final int jWidth = blockWidth(jBlock);
+                final int blockIndex = iBlock * blockColumns + jBlock;
+                final float[] block = block(blockIndex);
+                int k = blockOffset(blockIndex);
+                for (int p = pStart; p < pStart + iHeight; ++p) {
+                    float rowMax = maximums[p];
+                    for (int q = 0; q < jWidth; ++q) {
+                        rowMax = Math.max(rowMax, block[k]);
+                        ++k;
+                    }
+                    maximums[p] = rowMax;
+                }
+            }
+        }
+        return recordProfile("maxPerRow", NULL, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, 1, blockRows, 1, outBlocks));
+    }
+
+    public FloatMatrix sumPerColumn() {
+        long startNanos = MatrixProfiler.start();
+        float[][] outBlocks = createBlocksLayout(1, columns);
+        sumPerColumnToLayout(outBlocks);
+        return recordProfile("sumPerColumn", NULL, startNanos, (long) rows * columns,
+                new FloatMatrix(1, columns, 1, blockColumns, outBlocks));
+    }
+
+    // this (1, n) row vector = sums of the source columns
+    public FloatMatrix sumPerColumnInPlace(FloatMatrix source) {
+        long startNanos = MatrixProfiler.start();
+        if (rows != 1 || columns != source.columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold the column sums of ("
+                    + source.rows + ", " + source.columns + ")");
+        }
+        for (float[] block : blocks) {
+            Arrays.fill(block, 0f);
+        }
+        source.sumPerColumnToLayout(blocks);
+        source.recordProfile("sumPerColumnInPlace", NULL, startNanos, (long) source.rows * source.columns, NULL);
+        return this;
+    }
+
+    // A one row matrix has its column blocks one after another, so the sum of column q is at q - qStart of block jBlock.
+    // The output blocks get the sums added, so they have to be zeroed beforehand
+    private void sumPerColumnToLayout(float[][] outBlocks) {
+        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+            final int iHeight = blockHeight(iBlock);
+            for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                final int jWidth = blockWidth(jBlock);
+                final float[] sums = layoutBlock(outBlocks, columns, jBlock);
+                final int blockIndex = iBlock * blockColumns + jBlock;
+                final float[] block = block(blockIndex);
+                int k = blockOffset(blockIndex);
+                for (int p = 0; p < iHeight; ++p) {
+                    for (int q = 0; q < jWidth; ++q) {
+                        sums[q] += block[k];
+                        ++k;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Means and sums of squared deviations (M2) of all the columns in one pass: Welford's update within a block,
+     * the blocks run in parallel and are merged in the block order with Chan's formula, so the result doesn't depend
+     * on the number of threads. Returns {means, M2s}, a column variance is its M2 / rows.
+     */
+    public float[][] calculateColumnMoments() {
+        long startNanos = MatrixProfiler.start();
+        // Every block gets the means of its columns followed by their M2s
+        final float[][] blockMoments = new float[blockRows * blockColumns][];
+        IntStream.range(0, blockMoments.length).parallel().forEach(blockIndex -> {
+            final int iHeight = blockHeight(blockIndex / blockColumns);
+            final int jWidth = blockWidth(blockIndex % blockColumns);
+            final float[] block = block(blockIndex);
+            final float[] moments = new float[2 * jWidth];
+            int k = blockOffset(blockIndex);
+            for (int p = 0; p < iHeight; ++p) {
+                for (int q = 0; q < jWidth; ++q) {
+                    final float delta = block[k] - moments[q];
+                    moments[q] += delta / (p + 1);
+                    moments[jWidth + q] += delta * (block[k] - moments[q]);
+                    ++k;
+                }
+            }
+            blockMoments[blockIndex] = moments;
+        });
+        final float[] means = new float[columns];
+        final float[] m2s = new float[columns];
+        for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+            final int jWidth = blockWidth(jBlock);
+            final int qStart = jBlock * BLOCK_SIZE;
+            int count = 0;
+            for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+                final int iHeight = blockHeight(iBlock);
+                final float[] moments = blockMoments[iBlock * blockColumns + jBlock];
+                final int mergedCount = count + iHeight;
+                final float countsFactor = (float) count * iHeight / mergedCount;
+                for (int q = 0; q < jWidth; ++q) {
+                    final float delta = moments[q] - means[qStart + q];
+                    means[qStart + q] += delta * iHeight / mergedCount;
+                    m2s[qStart + q] += moments[jWidth + q] + delta * delta * countsFactor;
+                }
+                count = mergedCount;
+            }
+        }
+        MatrixProfiler.record("FloatMatrix.calculateColumnMoments", rows, columns, startNanos, 5L * rows * columns, 0L);
+        return new float[][]{means, m2s};
+    }
+
+    // this = (this - means) / standardDeviations, column by column, the blocks run in parallel
+    public FloatMatrix standardizeColumnsInPlace(float[] means, float[] standardDeviations) {
+        long startNanos = MatrixProfiler.start();
+        if (means.length != columns || standardDeviations.length != columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot be standardized with "
+                    + means.length + " means and " + standardDeviations.length + " standard deviations");
+        }
+        IntStream.range(0, blockRows * blockColumns).parallel().forEach(blockIndex -> {
+            final int iHeight = blockHeight(blockIndex / blockColumns);
+            final int jWidth = blockWidth(blockIndex % blockColumns);
+            final int qStart = (blockIndex % blockColumns) * BLOCK_SIZE;
+            final float[] block = block(blockIndex);
+            int k = blockOffset(blockIndex);
+            for (int p = 0; p < iHeight; ++p) {
+                for (int q = 0; q < jWidth; ++q) {
+                    block[k] = (block[k] - means[qStart + q]) / standardDeviations[qStart + q];
+                    ++k;
+                }
+            }
+        });
+        recordProfile("standardizeColumnsInPlace", NULL, startNanos, 2L * rows * columns, NULL);
+        return this;
+    }
+
+    public float[] getRow(int row) {
+        if (row < 0 || row >= rows) {
+            throw new IllegalArgumentException("Row " + row + " is out of (" + rows + ", " + columns + ")");
+        }
+        final float[] result = new float[columns];
+        copyRowFromLayout(blocks, columns, row, 0, result, 0, columns);
+        return result;
+    }
+
+    public FloatMatrix gatherRows(int[] indices) {
+        long startNanos = MatrixProfiler.start();
+        if (indices.length == 0) {
+            throw new IllegalArgumentException("At least one row index is expected");
+        }
+        float[][] outBlocks = createBlocksLayout(indices.length, columns);
+        gatherRowsToLayout(indices, 0, indices.length, outBlocks);
+        return recordProfile("gatherRows", NULL, startNanos, 0L, new FloatMatrix(indices.length, columns,
+                (indices.length + BLOCK_SIZE - 1) / BLOCK_SIZE, blockColumns, outBlocks));
+    }
+
+    // Fills all the rows of this matrix with the source rows indices[fromIndex], indices[fromIndex + 1], ...
+    public FloatMatrix gatherRowsInPlace(FloatMatrix source, int[] indices, int fromIndex) {
+        long startNanos = MatrixProfiler.start();
+        if (source.columns != columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot gather rows of ("
+                    + source.rows + ", " + source.columns + ")");
+        }
+        if (fromIndex < 0 || fromIndex + rows > indices.length) {
+            throw new IllegalArgumentException("Expected " + rows + " row indices starting from " + fromIndex
+                    + ", but got only " + indices.length + " indices");
+        }
+        source.gatherRowsToLayout(indices, fromIndex, rows, blocks);
+        recordProfile("gatherRowsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    // Fills every row p of this matrix from the column toColumn on with the source row indices[fromIndex + p],
+    // the other columns are kept, e.g. a column of ones filled once
+    public FloatMatrix gatherRowsInPlace(FloatMatrix source, int[] indices, int fromIndex, int toColumn) {
+        long startNanos = MatrixProfiler.start();
+        ensureRowsFit(source, toColumn);
+        if (fromIndex < 0 || fromIndex + rows > indices.length) {
+            throw new IllegalArgumentException("Expected " + rows + " row indices starting from " + fromIndex
+                    + ", but got only " + indices.length + " indices");
+        }
+        for (int p = 0; p < rows; ++p) {
+            final int row = indices[fromIndex + p];
+            if (row < 0 || row >= source.rows) {
+                throw new IllegalArgumentException("Row " + row + " is out of (" + source.rows + ", " + source.columns + ")");
+            }
+            source.copyRowTo(row, 0, source.columns, blocks, columns, p, toColumn);
+        }
+        recordProfile("gatherRowsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    // Fills every row p of this matrix from the column toColumn on with the source row fromRow + p,
+    // the other columns are kept
+    public FloatMatrix copyRowsInPlace(FloatMatrix source, int fromRow, int toColumn) {
+        long startNanos = MatrixProfiler.start();
+        ensureRowsFit(source, toColumn);
+        if (fromRow < 0 || fromRow + rows > source.rows) {
+            throw new IllegalArgumentException("(" + source.rows + ", " + source.columns + ") has no " + rows
+                    + " rows starting from " + fromRow);
+        }
+        for (int p = 0; p < rows; ++p) {
+            source.copyRowTo(fromRow + p, 0, source.columns, blocks, columns, p, toColumn);
+        }
+        recordProfile("copyRowsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    // Fills the columns of this matrix from toColumn on with as many source columns from fromColumn on,
+    // the columns before toColumn are kept, e.g. to take the part of a wide product belonging to one factor
+    public FloatMatrix copyColumnsInPlace(FloatMatrix source, int fromColumn, int toColumn) {
+        long startNanos = MatrixProfiler.start();
+        int length = columns - toColumn;
+        if (source.rows != rows || toColumn < 0 || length < 0 || fromColumn < 0 || fromColumn + length > source.columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") from the column " + toColumn
+                    + " cannot hold the columns of (" + source.rows + ", " + source.columns + ") from " + fromColumn);
+        }
+        for (int p = 0; p < rows; ++p) {
+            source.copyRowTo(p, fromColumn, length, blocks, columns, p, toColumn);
+        }
+        recordProfile("copyColumnsInPlace", source, startNanos, 0L, NULL);
+        return this;
+    }
+
+    private void ensureRowsFit(FloatMatrix source, int toColumn) {
+        if (toColumn < 0 || toColumn + source.columns > columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold rows of ("
+                    + source.rows + ", " + source.columns + ") from the column " + toColumn);
+        }
+    }
+
+    // Copies length elements of the row of this matrix from fromColumn on into the row of the output layout,
+    // starting from its column toColumn
+    private void copyRowTo(int row, int fromColumn, int length,
+                           float[][] outBlocks, int outColumns, int outRow, int toColumn) {
+        if (rowMajor) {
+            copyRowToLayout(blocks[0], row * columns + fromColumn, outBlocks, outColumns, outRow, toColumn, length);
+            return;
+        }
+        final int iBlock = row / BLOCK_SIZE;
+        final int rowInBlock = row - iBlock * BLOCK_SIZE;
+        final int endColumn = fromColumn + length;
+        int q = fromColumn;
+        while (q < endColumn) {
+            final int jBlock = q / BLOCK_SIZE;
+            final int qStart = jBlock * BLOCK_SIZE;
+            final int segmentLength = Math.min(qStart + BLOCK_SIZE, endColumn) - q;
+            copyRowToLayout(blocks[iBlock * blockColumns + jBlock], rowInBlock * blockWidth(jBlock) + q - qStart,
+                    outBlocks, outColumns, outRow, toColumn + q - fromColumn, segmentLength);
+            q += segmentLength;
+        }
+    }
+
+    // The output has the same number of columns, so its rows are split in the same column blocks as the source rows
+    private void gatherRowsToLayout(int[] indices, int fromIndex, int outRows, float[][] outBlocks) {
+        for (int p = 0; p < outRows; ++p) {
+            final int row = indices[fromIndex + p];
+            if (row < 0 || row >= rows) {
+                throw new IllegalArgumentException("Row " + row + " is out of (" + rows + ", " + columns + ")");
+            }
+            if (rowMajor) {
+                System.arraycopy(blocks[0], row * columns, outBlocks[0], p * columns, columns);
+                continue;
+            }
+            final int iBlock = row / BLOCK_SIZE;
+            final int rowInBlock = row - iBlock * BLOCK_SIZE;
+            final int outIBlock = p / BLOCK_SIZE;
+            final int outRowInBlock = p - outIBlock * BLOCK_SIZE;
+            for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                final int jWidth = Math.min((jBlock + 1) * BLOCK_SIZE, columns) - jBlock * BLOCK_SIZE;
+                System.arraycopy(blocks[iBlock * blockColumns + jBlock], rowInBlock * jWidth,
+                        outBlocks[outIBlock * blockColumns + jBlock], outRowInBlock * jWidth, jWidth);
+            }
+        }
+    }
+
     public String toString(String columnSeparator, String rowSeparator) {
         var outputBuilder = new StringBuilder();
         float[][] data = getData();
@@ -311,6 +1048,7 @@ public class FloatMatrix {
     }
 
     public FloatMatrix scalarMultiply(float s) {
+        long startNanos = MatrixProfiler.start();
         float[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final float[] outBlock = outBlocks[blockIndex];
@@ -319,10 +1057,12 @@ public class FloatMatrix {
                 outBlock[k] = tBlock[k] * s;
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("scalarMultiply", NULL, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public FloatMatrix scalarDivide(float s) {
+        long startNanos = MatrixProfiler.start();
         float[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final float[] outBlock = outBlocks[blockIndex];
@@ -331,10 +1071,12 @@ public class FloatMatrix {
                 outBlock[k] = tBlock[k] / s;
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("scalarDivide", NULL, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public FloatMatrix scalarAdd(float s) {
+        long startNanos = MatrixProfiler.start();
         float[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final float[] outBlock = outBlocks[blockIndex];
@@ -343,10 +1085,12 @@ public class FloatMatrix {
                 outBlock[k] = tBlock[k] + s;
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("scalarAdd", NULL, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
     }
 
     public float sum() {
+        long startNanos = MatrixProfiler.start();
         float sum = 0;
         for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
             final float[] tBlock = blocks[blockIndex];
@@ -354,47 +1098,80 @@ public class FloatMatrix {
                 sum += tBlock[k];
             }
         }
+        MatrixProfiler.record("FloatMatrix.sum", rows, columns, startNanos, (long) rows * columns, 0L);
         return sum;
     }
 
     public FloatMatrix prependColumn(float fillValue) {
+        long startNanos = MatrixProfiler.start();
         int outRows = rows;
         int outColumns = columns + 1;
         int outBlockRows = blockRows;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         float[][] outBlocks = createBlocksLayout(outRows, outColumns);
-        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
-            final int pStart = iBlock * BLOCK_SIZE;
-            final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
-            for (int p = pStart; p < pEnd; ++p) {
-                var firstEntryInRowCoordinates = calculateInBlocksCoordinates(p, 0, outColumns, outBlockColumns);
-                outBlocks[firstEntryInRowCoordinates.row()][firstEntryInRowCoordinates.column()] = fillValue;
-                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
-                    final int jWidth = blockWidth(jBlock);
-                    final int qStart = jBlock * BLOCK_SIZE;
-                    final int qEnd = Math.min(qStart + BLOCK_SIZE, columns);
-                    final float[] block = blocks[iBlock * blockColumns + jBlock];
-                    int k = (p - pStart) * jWidth;
-                    for (int q = qStart; q < qEnd; ++q) {
-                        var resultCoordinates = calculateInBlocksCoordinates(p, q + 1, outColumns, outBlockColumns);
-                        outBlocks[resultCoordinates.row()][resultCoordinates.column()] = block[k];
-                        ++k;
-                    }
-                }
+        if (isRowMajorLayout(outColumns)) {
+            // both this and the result are row-major, so every row is one contiguous copy
+            final float[] data = blocks[0];
+            final float[] outData = outBlocks[0];
+            for (int p = 0; p < rows; ++p) {
+                outData[p * outColumns] = fillValue;
+                System.arraycopy(data, p * columns, outData, p * outColumns + 1, columns);
+            }
+        } else {
+            final float[] rowBuffer = new float[outColumns];
+            rowBuffer[0] = fillValue;
+            for (int p = 0; p < rows; ++p) {
+                copyRowFromLayout(blocks, columns, p, 0, rowBuffer, 1, columns);
+                copyRowToLayout(rowBuffer, 0, outBlocks, outColumns, p, 0, outColumns);
             }
         }
-        return new FloatMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
+        return recordProfile("prependColumn", NULL, startNanos, 0L,
+                new FloatMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks));
     }
 
     public FloatMatrix multiply(FloatMatrix m) {
-        if (columns != m.rows) {
-            throw new IllegalArgumentException("This matrix has " + columns + " columns, other has " + m.rows + " rows");
-        }
+        long startNanos = MatrixProfiler.start();
+        ensureMultipliable(m);
         int outRows = rows;
         int outColumns = m.columns;
         int outBlockRows = (outRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         float[][] outBlocks = createBlocksLayout(outRows, outColumns);
+        multiplyToLayout(m, outBlocks);
+        return recordProfile("multiply", m, startNanos, 2L * rows * columns * m.columns,
+                new FloatMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks));
+    }
+
+    // this = a * b, where this is a buffer already sized as the product and not shared with anybody else
+    public FloatMatrix multiplyInPlace(FloatMatrix a, FloatMatrix b) {
+        long startNanos = MatrixProfiler.start();
+        a.ensureMultipliable(b);
+        if (rows != a.rows || columns != b.columns) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold the product of ("
+                    + a.rows + ", " + a.columns + ") and (" + b.rows + ", " + b.columns + ")");
+        }
+        if (this == a || this == b) {
+            throw new IllegalArgumentException("The product cannot be written into one of its factors");
+        }
+        for (float[] block : blocks) {
+            Arrays.fill(block, 0f);
+        }
+        a.multiplyToLayout(b, blocks);
+        a.recordProfile("multiplyInPlace", b, startNanos, 2L * a.rows * a.columns * b.columns, NULL);
+        return this;
+    }
+
+    private void ensureMultipliable(FloatMatrix m) {
+        if (columns != m.rows) {
+            throw new IllegalArgumentException("This matrix has " + columns + " columns, other has " + m.rows + " rows");
+        }
+    }
+
+    // The output blocks get the product added, so they have to be zeroed beforehand
+    private void multiplyToLayout(FloatMatrix m, float[][] outBlocks) {
+        int outColumns = m.columns;
+        int outBlockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         // perform multiplication block-wise, to ensure good cache behavior
         int blockIndex = 0;
         for (int iBlock = 0; iBlock < outBlockRows; ++iBlock) {
@@ -409,21 +1186,26 @@ public class FloatMatrix {
                 final int jWidth4 = jWidth3 + jWidth;
 
                 // select current block
-                final float[] outBlock = outBlocks[blockIndex];
+                final float[] outBlock = layoutBlock(outBlocks, outColumns, blockIndex);
+                final int outOffset = layoutBlockOffset(outColumns, blockIndex);
 
                 // perform multiplication on current block
                 for (int kBlock = 0; kBlock < blockColumns; ++kBlock) {
                     final int kWidth = blockWidth(kBlock);
-                    final float[] tBlock = blocks[iBlock * blockColumns + kBlock];
-                    final float[] mBlock = m.blocks[kBlock * m.blockColumns + jBlock];
-                    int k = 0;
+                    final int tIndex = iBlock * blockColumns + kBlock;
+                    final float[] tBlock = block(tIndex);
+                    final int tOffset = blockOffset(tIndex);
+                    final int mIndex = kBlock * m.blockColumns + jBlock;
+                    final float[] mBlock = m.block(mIndex);
+                    final int mOffset = m.blockOffset(mIndex);
+                    int k = outOffset;
                     for (int p = pStart; p < pEnd; ++p) {
-                        final int lStart = (p - pStart) * kWidth;
+                        final int lStart = tOffset + (p - pStart) * kWidth;
                         final int lEnd = lStart + kWidth;
                         for (int nStart = 0; nStart < jWidth; ++nStart) {
                             float sum = 0;
                             int l = lStart;
-                            int n = nStart;
+                            int n = mOffset + nStart;
                             while (l < lEnd - 3) {
                                 sum += tBlock[l] * mBlock[n] +
                                         tBlock[l + 1] * mBlock[n + jWidth] +
@@ -445,30 +1227,54 @@ public class FloatMatrix {
                 ++blockIndex;
             }
         }
-        return new FloatMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
     }
 
     public FloatMatrix transpose() {
+        long startNanos = MatrixProfiler.start();
         int outRows = columns;
         int outColumns = rows;
         int outBlockRows = (outRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         float[][] outBlocks = createBlocksLayout(outRows, outColumns);
+        transposeToLayout(outBlocks);
+        return recordProfile("transpose", NULL, startNanos, 0L,
+                new FloatMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks));
+    }
+
+    // this = source transposed, where this is a buffer already sized as the result and not shared with anybody else
+    public FloatMatrix transposeInPlace(FloatMatrix source) {
+        long startNanos = MatrixProfiler.start();
+        if (rows != source.columns || columns != source.rows) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") cannot hold transposed ("
+                    + source.rows + ", " + source.columns + ")");
+        }
+        if (this == source) {
+            throw new IllegalArgumentException("A matrix cannot be transposed into itself");
+        }
+        source.transposeToLayout(blocks);
+        source.recordProfile("transposeInPlace", NULL, startNanos, 0L, NULL);
+        return this;
+    }
+
+    private void transposeToLayout(float[][] outBlocks) {
+        int outColumns = rows;
         // perform transpose block-wise, to ensure good cache behavior
         int blockIndex = 0;
         for (int iBlock = 0; iBlock < blockColumns; ++iBlock) {
             for (int jBlock = 0; jBlock < blockRows; ++jBlock) {
                 // transpose current block
-                final float[] outBlock = outBlocks[blockIndex];
-                final float[] tBlock = blocks[jBlock * blockColumns + iBlock];
+                final float[] outBlock = layoutBlock(outBlocks, outColumns, blockIndex);
+                final int tIndex = jBlock * blockColumns + iBlock;
+                final float[] tBlock = block(tIndex);
+                final int tOffset = blockOffset(tIndex);
                 final int pStart = iBlock * BLOCK_SIZE;
                 final int pEnd = Math.min(pStart + BLOCK_SIZE, columns);
                 final int qStart = jBlock * BLOCK_SIZE;
                 final int qEnd = Math.min(qStart + BLOCK_SIZE, rows);
-                int k = 0;
+                int k = layoutBlockOffset(outColumns, blockIndex);
                 for (int p = pStart; p < pEnd; ++p) {
                     final int lInc = pEnd - pStart;
-                    int l = p - pStart;
+                    int l = tOffset + p - pStart;
                     for (int q = qStart; q < qEnd; ++q) {
                         outBlock[k] = tBlock[l];
                         ++k;
@@ -479,10 +1285,10 @@ public class FloatMatrix {
                 ++blockIndex;
             }
         }
-        return new FloatMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
     }
 
     public FloatMatrix apply(FloatUnaryOperator operator) {
+        long startNanos = MatrixProfiler.start();
         float[][] outBlocks = createBlocksLayout(rows, columns);
         for (int blockIndex = 0; blockIndex < outBlocks.length; ++blockIndex) {
             final float[] outBlock = outBlocks[blockIndex];
@@ -491,11 +1297,124 @@ public class FloatMatrix {
                 outBlock[k] = operator.applyAsFloat(tBlock[k]);
             }
         }
-        return new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks);
+        return recordProfile("apply", NULL, startNanos, (long) rows * columns,
+                new FloatMatrix(rows, columns, blockRows, blockColumns, outBlocks));
+    }
+
+    // this = operator(source) element by element, source could be this matrix itself
+    public FloatMatrix applyInPlace(FloatMatrix source, FloatUnaryOperator operator) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(source);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final float[] outBlock = blocks[blockIndex];
+            final float[] sBlock = source.blocks[blockIndex];
+            for (int k = 0; k < outBlock.length; ++k) {
+                outBlock[k] = operator.applyAsFloat(sBlock[k]);
+            }
+        }
+        recordProfile("applyInPlace", source, startNanos, (long) rows * columns, NULL);
+        return this;
+    }
+
+    // this = operator(a, b) element by element, a or b could be this matrix itself
+    public FloatMatrix combineInPlace(FloatMatrix a, FloatMatrix b, FloatBinaryOperator operator) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(a);
+        ensureSameSize(b);
+        for (int blockIndex = 0; blockIndex < blocks.length; ++blockIndex) {
+            final float[] outBlock = blocks[blockIndex];
+            final float[] aBlock = a.blocks[blockIndex];
+            final float[] bBlock = b.blocks[blockIndex];
+            for (int k = 0; k < outBlock.length; ++k) {
+                outBlock[k] = operator.applyAsFloat(aBlock[k], bBlock[k]);
+            }
+        }
+        recordProfile("combineInPlace", b, startNanos, (long) rows * columns, NULL);
+        return this;
+    }
+
+    // this = softmax of every logits row, with the row maximum subtracted first, so exp never overflows
+    public FloatMatrix softmaxPerRowInPlace(FloatMatrix logits) {
+        long startNanos = MatrixProfiler.start();
+        ensureSameSize(logits);
+        for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
+            final int iHeight = blockHeight(iBlock);
+            for (int p = 0; p < iHeight; ++p) {
+                float rowMax = Float.NEGATIVE_INFINITY;
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final int blockIndex = iBlock * blockColumns + jBlock;
+                    final float[] lBlock = logits.block(blockIndex);
+                    final int start = logits.blockOffset(blockIndex) + p * jWidth;
+                    for (int k = start; k < start + jWidth; ++k) {
+                        rowMax = Math.max(rowMax, lBlock[k]);
+                    }
+                }
+                float rowSum = 0f;
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final int blockIndex = iBlock * blockColumns + jBlock;
+                    final float[] lBlock = logits.block(blockIndex);
+                    final float[] outBlock = block(blockIndex);
+                    final int start = blockOffset(blockIndex) + p * jWidth;
+                    for (int k = start; k < start + jWidth; ++k) {
+                        final float exponential = (float) Math.exp(lBlock[k] - rowMax);
+                        outBlock[k] = exponential;
+                        rowSum += exponential;
+                    }
+                }
+                for (int jBlock = 0; jBlock < blockColumns; ++jBlock) {
+                    final int jWidth = blockWidth(jBlock);
+                    final int blockIndex = iBlock * blockColumns + jBlock;
+                    final float[] outBlock = block(blockIndex);
+                    final int start = blockOffset(blockIndex) + p * jWidth;
+                    for (int k = start; k < start + jWidth; ++k) {
+                        outBlock[k] /= rowSum;
+                    }
+                }
+            }
+        }
+        recordProfile("softmaxPerRowInPlace", logits, startNanos, 4L * rows * columns, NULL);
+        return this;
     }
 
     public int[] indexOfHighestPerRow() {
-        int[] result = new int[rows];
+        long startNanos = MatrixProfiler.start();
+        int[] result = findIndexOfHighestPerRow(new int[rows]);
+        MatrixProfiler.record("FloatMatrix.indexOfHighestPerRow", rows, columns, startNanos,
+                (long) rows * columns, (long) rows * Integer.BYTES);
+        return result;
+    }
+
+    // Writes the indices into the first rows elements of the result and returns it
+    public int[] indexOfHighestPerRow(int[] result) {
+        long startNanos = MatrixProfiler.start();
+        if (result.length < rows) {
+            throw new IllegalArgumentException("(" + rows + ", " + columns + ") needs " + rows
+                    + " elements for the indices, but got " + result.length);
+        }
+        findIndexOfHighestPerRow(result);
+        MatrixProfiler.record("FloatMatrix.indexOfHighestPerRow", rows, columns, startNanos, (long) rows * columns, 0L);
+        return result;
+    }
+
+    private int[] findIndexOfHighestPerRow(int[] result) {
+        if (rowMajor) {
+            final float[] data = blocks[0];
+            for (int p = 0, rowStart = 0; p < rows; ++p, rowStart += columns) {
+                int indexOfHighest = 0;
+                float highest = data[rowStart];
+                for (int q = 1; q < columns; ++q) {
+                    float value = data[rowStart + q];
+                    if (value > highest) {
+                        highest = value;
+                        indexOfHighest = q;
+                    }
+                }
+                result[p] = indexOfHighest;
+            }
+            return result;
+        }
         for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
             final int pStart = iBlock * BLOCK_SIZE;
             final int pEnd = Math.min(pStart + BLOCK_SIZE, rows);
@@ -524,7 +1443,20 @@ public class FloatMatrix {
     }
 
     public float[][] getData() {
+        long startNanos = MatrixProfiler.start();
+        float[][] data = copyData();
+        MatrixProfiler.record("FloatMatrix.getData", rows, columns, startNanos, 0L, (long) rows * columns * Float.BYTES);
+        return data;
+    }
+
+    private float[][] copyData() {
         final float[][] data = new float[rows][columns];
+        if (rowMajor) {
+            for (int p = 0; p < rows; ++p) {
+                System.arraycopy(blocks[0], p * columns, data[p], 0, columns);
+            }
+            return data;
+        }
         final int lastColumns = columns - (blockColumns - 1) * BLOCK_SIZE;
         for (int iBlock = 0; iBlock < blockRows; ++iBlock) {
             final int pStart = iBlock * BLOCK_SIZE;
@@ -570,6 +1502,14 @@ public class FloatMatrix {
                                     final int startColumn,
                                     final int endColumn)
             throws OutOfRangeException, NumberIsTooSmallException {
+        long startNanos = MatrixProfiler.start();
+        return recordProfile("getSubMatrix", NULL, startNanos, 0L,
+                extractSubMatrix(startRow, endRow, startColumn, endColumn));
+    }
+
+    private FloatMatrix extractSubMatrix(final int startRow, final int endRow,
+                                          final int startColumn,
+                                          final int endColumn) {
         // safety checks
         if (startRow < 0 || startColumn < 0) {
             throw new IllegalArgumentException("Both start row and start column can not be negative");
@@ -585,6 +1525,17 @@ public class FloatMatrix {
         int outBlockRows = (outRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
         int outBlockColumns = (outColumns + BLOCK_SIZE - 1) / BLOCK_SIZE;
         float[][] outBlocks = createBlocksLayout(outRows, outColumns);
+        if (isRowMajorLayout(outColumns)) {
+            if (rowMajor && outColumns == columns) {
+                // full rows of a row-major matrix are one contiguous range
+                System.arraycopy(blocks[0], startRow * columns, outBlocks[0], 0, outRows * outColumns);
+            } else {
+                for (int p = 0; p < outRows; ++p) {
+                    copyRowFromLayout(blocks, columns, startRow + p, startColumn, outBlocks[0], p * outColumns, outColumns);
+                }
+            }
+            return new FloatMatrix(outRows, outColumns, outBlockRows, outBlockColumns, outBlocks);
+        }
         // compute blocks shifts
         final int blockStartRow = startRow / BLOCK_SIZE;
         final int rowsShift = startRow % BLOCK_SIZE;
@@ -682,6 +1633,15 @@ public class FloatMatrix {
         }
     }
 
+    private FloatMatrix recordProfile(
+            String operation, FloatMatrix other, long startNanos, long flops, FloatMatrix result) {
+        if (MatrixProfiler.ENABLED) {
+            MatrixProfiler.record("FloatMatrix." + operation, rows, columns, other.rows, other.columns, startNanos, flops,
+                    (long) result.rows * result.columns * Float.BYTES);
+        }
+        return result;
+    }
+
     private void ensureSameSize(FloatMatrix other) {
         if (this.rows != other.rows || this.columns != other.columns) {
             throw new IllegalArgumentException("Matrix sizes are not the same: ("
@@ -721,4 +1681,9 @@ public class FloatMatrix {
         float applyAsFloat(float input);
     }
 
+    @FunctionalInterface
+    public interface FloatBinaryOperator {
+        float applyAsFloat(float left, float right);
+    }
+
 }
@@ -0,0 +1,165 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.FileUtil;
+import com.dmytrobilokha.pmljlabs.MatrixProfiler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many LayeredNetwork trainings on MNIST loaded and standardized only once, several trials at a time.
+ * <p>
+ * Every non-empty line of the sweep file not starting with # has space separated key=value settings:
+ * hiddenLayers, optimizer, batchSize and epochs, the missing ones get the LayeredNetwork defaults.
+ * A value could list alternatives separated by |, then the line gives a trial for every combination, e.g.
+ * "hiddenLayers=100|300,100 optimizer=sgd:0.25|adam" is a grid of 4 trials.
+ * <p>
+ * A trial trains on a single thread (plus the mostly idle data loader thread), so the CPU budget is the number
+ * of trials running at the same time. Every trial writes the usual [name].system, [name].lstat and weight files
+ * to the report directory, the whole sweep gets sweep.summary with the trials sorted by the test accuracy.
+ */
+public class HyperparameterSweep {
+
+    private static final String SUMMARY_FILE = "sweep.summary";
+    private static final String ALTERNATIVES_SEPARATOR = "\\|";
+    private static final List<String> KEYS = List.of("hiddenLayers", "optimizer", "batchSize", "epochs");
+
+    public static void main(String[] cliArgs) throws IOException {
+        if (cliArgs.length < 6 || cliArgs.length > 7) {
+            System.err.println("Expected arguments:");
+            System.err.println("1 - train image file");
+            System.err.println("2 - train label file");
+            System.err.println("3 - test image file");
+            System.err.println("4 - test label file");
+            System.err.println("5 - report directory");
+            System.err.println("6 - sweep file, one or more trials per line as key=value settings, e.g."
+                    + " hiddenLayers=100|300,100 optimizer=sgd:0.25|adam batchSize=128 epochs=10");
+            System.err.println("7 - (optional) CPU budget: number of trials running at the same time,"
+                    + " default the number of available processors");
+            System.exit(1);
+        }
+        var reportDirectory = Path.of(cliArgs[4]);
+        var trials = parseSweep(Files.readAllLines(Path.of(cliArgs[5])));
+        int cpuBudget = cliArgs.length > 6 ? Integer.parseInt(cliArgs[6]) : Runtime.getRuntime().availableProcessors();
+        if (cpuBudget < 1) {
+            throw new IllegalArgumentException("Minimum CPU budget is 1, but got " + cpuBudget);
+        }
+        Files.createDirectories(reportDirectory);
+        System.out.println("Starting sweep of " + trials.size() + " trials, " + cpuBudget + " at a time, at "
+                + LocalDateTime.now());
+        var dataset = LayeredNetwork.Dataset.load(cliArgs[0], cliArgs[1], cliArgs[2], cliArgs[3]);
+        var summaryLines = run(dataset, trials, reportDirectory, cpuBudget);
+        FileUtil.writeLinesToFile(reportDirectory.resolve(SUMMARY_FILE).toString(), summaryLines);
+        summaryLines.forEach(System.out::println);
+        MatrixProfiler.dumpToFile(reportDirectory.resolve("sweep.profile").toString());
+    }
+
+    // Returns the summary lines, a failed trial doesn't stop the others and is reported as failed
+    static List<String> run(LayeredNetwork.Dataset dataset, List<Trial> trials, Path reportDirectory, int cpuBudget) {
+        var executor = Executors.newFixedThreadPool(cpuBudget);
+        var results = new ArrayList<TrialResult>(trials.size());
+        try {
+            var futures = new ArrayList<Future<LayeredNetwork.TrainingSummary>>(trials.size());
+            for (var trial : trials) {
+                var reportBaseFilename = reportDirectory.resolve(trial.name()).toString();
+                futures.add(executor.submit(() -> LayeredNetwork.train(dataset, trial.settings(), reportBaseFilename,
+                        line -> System.out.println("[" + trial.name() + "] " + line))));
+            }
+            for (int i = 0; i < trials.size(); i++) {
+                var trial = trials.get(i);
+                try {
+                    results.add(new TrialResult(trial, futures.get(i).get(), null));
+                } catch (ExecutionException e) {
+                    System.err.println("[" + trial.name() + "] failed: " + e.getCause());
+                    results.add(new TrialResult(trial, null, e.getCause().toString()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Got interrupted while waiting for the trials", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        results.sort(Comparator.comparingDouble(TrialResult::sortKey).reversed());
+        var lines = new ArrayList<String>(results.size() + 1);
+        lines.add("trial\tfinalTestAccuracy\tbestValidationAccuracy\ttrainingSeconds\tsettings");
+        for (var result : results) {
+            var summary = result.summary();
+            lines.add(result.trial().name() + "\t"
+                    + (summary == null ? "FAILED: " + result.failure() + "\t\t"
+                            : summary.finalTestAccuracy() + "\t" + summary.bestValidationAccuracy()
+                                    + "\t" + summary.trainingSeconds())
+                    + "\t" + result.trial().settings());
+        }
+        return lines;
+    }
+
+    static List<Trial> parseSweep(List<String> lines) {
+        var trials = new ArrayList<Trial>();
+        for (var line : lines) {
+            var trimmedLine = line.trim();
+            if (trimmedLine.isEmpty() || trimmedLine.startsWith("#")) {
+                continue;
+            }
+            var alternatives = new LinkedHashMap<String, String[]>();
+            for (var setting : trimmedLine.split("\\s+")) {
+                int separatorIndex = setting.indexOf('=');
+                var key = separatorIndex < 0 ? setting : setting.substring(0, separatorIndex);
+                if (separatorIndex < 0 || !KEYS.contains(key)) {
+                    throw new IllegalArgumentException("Expected one of " + KEYS + " as key=value, but got '"
+                            + setting + "' in line '" + trimmedLine + "'");
+                }
+                alternatives.put(key, setting.substring(separatorIndex + 1).split(ALTERNATIVES_SEPARATOR));
+            }
+            addCombinations(alternatives, new ArrayList<>(alternatives.keySet()), 0, new LinkedHashMap<>(), trials);
+        }
+        return trials;
+    }
+
+    private static void addCombinations(Map<String, String[]> alternatives, List<String> keys, int keyIndex,
+                                        Map<String, String> chosen, List<Trial> trials) {
+        if (keyIndex == keys.size()) {
+            trials.add(createTrial(trials.size(), chosen));
+            return;
+        }
+        var key = keys.get(keyIndex);
+        for (var value : alternatives.get(key)) {
+            chosen.put(key, value);
+            addCombinations(alternatives, keys, keyIndex + 1, chosen, trials);
+        }
+        chosen.remove(key);
+    }
+
+    private static Trial createTrial(int index, Map<String, String> values) {
+        var settings = new LayeredNetwork.TrainingSettings(
+                values.getOrDefault("hiddenLayers", LayeredNetwork.DEFAULT_HIDDEN_LAYERS),
+                OptimizerSettings.parse(values.getOrDefault("optimizer", LayeredNetwork.DEFAULT_OPTIMIZER)),
+                Integer.parseInt(values.getOrDefault("batchSize", String.valueOf(LayeredNetwork.DEFAULT_BATCH_SIZE))),
+                Integer.parseInt(values.getOrDefault("epochs", String.valueOf(LayeredNetwork.DEFAULT_EPOCHS))));
+        // The same naming as the hand-run reports: number first, then what differs, an empty value reads as none
+        var name = new StringBuilder(String.format("%02d", index + 1));
+        values.forEach((key, value) -> name.append('_').append(key).append('-')
+                .append(value.isEmpty() ? "none" : value));
+        return new Trial(name.toString().replaceAll("[^A-Za-z0-9_.-]", "-"), settings);
+    }
+
+    record Trial(String name, LayeredNetwork.TrainingSettings settings) {}
+
+    private record TrialResult(Trial trial, LayeredNetwork.TrainingSummary summary, String failure) {
+        // Failed trials go last
+        private double sortKey() {
+            return summary == null ? Double.NEGATIVE_INFINITY : summary.finalTestAccuracy();
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.util.List;
+
+/**
+ * One step of a LayeredNetwork. The matrices a layer returns are its own buffers, kept per batch size and
+ * overwritten by the next call with the same number of rows, so the caller must not keep or modify them.
+ */
+public interface Layer {
+
+    int getInputWidth();
+
+    int getOutputWidth();
+
+    DoubleMatrix forward(DoubleMatrix input);
+
+    /**
+     * Takes the loss gradient by the output of the last forward call and returns the one by its input,
+     * or null if inputGradientNeeded is false, which saves the most expensive product for the first layer.
+     */
+    DoubleMatrix backward(DoubleMatrix outputGradient, boolean inputGradientNeeded);
+
+    // The trainable matrices, in the same order as their gradients. Both lists never change
+    default List<DoubleMatrix> getParameters() {
+        return List.of();
+    }
+
+    default List<DoubleMatrix> getGradients() {
+        return List.of();
+    }
+
+}
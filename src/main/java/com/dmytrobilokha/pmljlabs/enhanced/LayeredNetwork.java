@@ -0,0 +1,314 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import com.dmytrobilokha.pmljlabs.FileUtil;
+import com.dmytrobilokha.pmljlabs.MatrixProfiler;
+import com.dmytrobilokha.pmljlabs.RunEnvironment;
+import com.dmytrobilokha.pmljlabs.TrainingStep;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Feed-forward network of any depth: dense layers with activations in between, configured by a string like
+ * "300:relu,100:tanh", topped with the softmax cross entropy head. Unlike in NeuralNetwork, the bias is a row vector
+ * of its own in every dense layer, so the input doesn't need a column of ones prepended.
+ * <p>
+ * Every layer keeps its activation and gradient buffers per batch size, so once a batch size has been seen,
+ * a training step allocates nothing. Not thread safe.
+ */
+public final class LayeredNetwork {
+
+    private static final int PREFETCH_BATCHES = 4;
+    private static final int EVALUATION_CHUNK_ROWS = 1000;
+    static final String DEFAULT_HIDDEN_LAYERS = "100:relu";
+    private static final String DEFAULT_ACTIVATION = "relu";
+    static final String DEFAULT_OPTIMIZER = "sgd";
+    static final int DEFAULT_EPOCHS = 10;
+    static final int DEFAULT_BATCH_SIZE = 128;
+
+    private final List<Layer> layers;
+    private final SoftmaxCrossEntropyHead head = new SoftmaxCrossEntropyHead();
+    private final List<DoubleMatrix> parameters;
+    private final List<DoubleMatrix> gradients;
+
+    public LayeredNetwork(List<Layer> layers) {
+        if (layers.isEmpty()) {
+            throw new IllegalArgumentException("Network must have at least one layer");
+        }
+        for (int i = 1; i < layers.size(); i++) {
+            if (layers.get(i).getInputWidth() != layers.get(i - 1).getOutputWidth()) {
+                throw new IllegalArgumentException("Layer " + i + " takes " + layers.get(i).getInputWidth()
+                        + " inputs, but the previous one gives " + layers.get(i - 1).getOutputWidth());
+            }
+        }
+        this.layers = List.copyOf(layers);
+        var allParameters = new ArrayList<DoubleMatrix>();
+        var allGradients = new ArrayList<DoubleMatrix>();
+        for (var layer : layers) {
+            allParameters.addAll(layer.getParameters());
+            allGradients.addAll(layer.getGradients());
+        }
+        this.parameters = List.copyOf(allParameters);
+        this.gradients = List.copyOf(allGradients);
+    }
+
+    /**
+     * hiddenLayers is a comma separated list of [width]:[activation], the activation is relu if omitted,
+     * an empty string gives softmax regression. The last dense layer has the classes as outputs.
+     */
+    public static LayeredNetwork create(int inputs, String hiddenLayers, int classes, long seed) {
+        var generator = DoubleMatrix.createRandomGenerator(seed);
+        var layers = new ArrayList<Layer>();
+        int width = inputs;
+        for (var hiddenLayer : hiddenLayers.isBlank() ? new String[0] : hiddenLayers.split(",")) {
+            String[] parts = hiddenLayer.trim().split(":");
+            if (parts.length > 2) {
+                throw new IllegalArgumentException("Expected [width]:[activation] for a hidden layer, but got '"
+                        + hiddenLayer + "'");
+            }
+            int hiddenWidth = Integer.parseInt(parts[0]);
+            if (hiddenWidth < 1) {
+                throw new IllegalArgumentException("Minimum hidden layer width is 1, but got " + hiddenWidth);
+            }
+            var activation = ActivationLayer.Activation.parse(parts.length > 1 ? parts[1] : DEFAULT_ACTIVATION);
+            layers.add(DenseLayer.ofRandomWeights(width, hiddenWidth, generator));
+            layers.add(new ActivationLayer(hiddenWidth, activation));
+            width = hiddenWidth;
+        }
+        layers.add(DenseLayer.ofRandomWeights(width, classes, generator));
+        return new LayeredNetwork(layers);
+    }
+
+    // The class probabilities, valid until the next call with the same number of rows
+    public DoubleMatrix predict(DoubleMatrix x) {
+        var output = x;
+        for (int i = 0; i < layers.size(); i++) {
+            output = layers.get(i).forward(output);
+        }
+        return head.forward(output);
+    }
+
+    // Fills the gradients of all the parameters for the batch
+    public void calculateGradients(DoubleMatrix x, DoubleMatrix y) {
+        predict(x);
+        var gradient = head.backward(y);
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            gradient = layers.get(i).backward(gradient, i > 0);
+        }
+    }
+
+    public void trainStep(DoubleMatrix x, DoubleMatrix y, Optimizer<DoubleMatrix> optimizer) {
+        calculateGradients(x, y);
+        optimizer.update(parameters, gradients);
+    }
+
+    public List<DoubleMatrix> getParameters() {
+        return parameters;
+    }
+
+    public List<DoubleMatrix> getGradients() {
+        return gradients;
+    }
+
+    public double calculateLoss(DoubleMatrix x, DoubleMatrix y) {
+        predict(x);
+        return head.calculateLoss(y);
+    }
+
+    // Number of the x rows classified as labels[fromIndex + row]
+    public int countMatches(DoubleMatrix x, int[] labels, int fromIndex) {
+        int[] classification = predict(x).indexOfHighestPerRow();
+        int matchesCount = 0;
+        for (int i = 0; i < classification.length; i++) {
+            if (classification[i] == labels[fromIndex + i]) {
+                matchesCount++;
+            }
+        }
+        return matchesCount;
+    }
+
+    public static void main(String[] cliArgs) {
+        if (cliArgs.length < 5 || cliArgs.length > 9) {
+            System.err.println("Expected arguments:");
+            System.err.println("1 - train image file");
+            System.err.println("2 - train label file");
+            System.err.println("3 - test image file");
+            System.err.println("4 - test label file");
+            System.err.println("5 - report base filename");
+            System.err.println("6 - (optional) hidden layers as comma separated [width]:[activation], activation is"
+                    + " relu, sigmoid or tanh, default " + DEFAULT_HIDDEN_LAYERS);
+            System.err.println("7 - (optional) optimizer: sgd (default), momentum, nesterov or adam, optionally with"
+                    + " the learning rate, e.g. adam:0.002");
+            System.err.println("8 - (optional) number of epochs, default " + DEFAULT_EPOCHS);
+            System.err.println("9 - (optional) batch size, default " + DEFAULT_BATCH_SIZE);
+            System.exit(1);
+        }
+        var settings = new TrainingSettings(
+                cliArgs.length > 5 ? cliArgs[5] : DEFAULT_HIDDEN_LAYERS,
+                OptimizerSettings.parse(cliArgs.length > 6 ? cliArgs[6] : DEFAULT_OPTIMIZER),
+                cliArgs.length > 8 ? Integer.parseInt(cliArgs[8]) : DEFAULT_BATCH_SIZE,
+                cliArgs.length > 7 ? Integer.parseInt(cliArgs[7]) : DEFAULT_EPOCHS);
+        var dataset = Dataset.load(cliArgs[0], cliArgs[1], cliArgs[2], cliArgs[3]);
+        train(dataset, settings, cliArgs[4], System.out::println);
+        MatrixProfiler.dumpToFile(cliArgs[4] + ".profile");
+    }
+
+    /**
+     * Trains a new network on the dataset, writes the [base].system and [base].lstat reports and the weights
+     * of every dense layer as [base].w[layer] and [base].b[layer]. The dataset is only read, so several trainings
+     * could share it.
+     */
+    public static TrainingSummary train(
+            Dataset dataset, TrainingSettings settings, String reportBaseFilename, Consumer<String> log) {
+        var xTrain = dataset.xTrain();
+        var network = create(xTrain.getColumnDimension(), settings.hiddenLayers(), dataset.yTrain().getColumnDimension(),
+                DoubleMatrix.DEFAULT_RANDOM_SEED);
+        var optimizer = Optimizer.forDoubleMatrices(settings.optimizer());
+        var startMessage = "Starting all at " + LocalDateTime.now();
+        log.accept(startMessage);
+        var paramsMessage = "Hyperparameters: " + settings;
+        log.accept(paramsMessage);
+        var reportLines = new ArrayList<String>();
+        double bestValidationAccuracy = Double.NEGATIVE_INFINITY;
+        long evaluationNanos = 0L;
+        long trainingStartNanos = System.nanoTime();
+        try (var dataLoader = DataLoader.ofDoubleMatrices(xTrain, dataset.yTrain(), settings.batchSize(),
+                settings.epochs(), PREFETCH_BATCHES, DoubleMatrix.DEFAULT_RANDOM_SEED)) {
+            for (var batch = dataLoader.next(); batch != null; batch = dataLoader.next()) {
+                int epoch = batch.epoch();
+                int batchIndex = batch.index();
+                network.trainStep(batch.x(), batch.y(), optimizer);
+                dataLoader.release(batch);
+                if (batchIndex == dataLoader.getBatchesPerEpoch() - 1) {
+                    long evaluationStartNanos = System.nanoTime();
+                    double validationAccuracy = network.calculateAccuracyPercentage(
+                            dataset.xValidationChunks(), dataset.yValidation());
+                    bestValidationAccuracy = Math.max(bestValidationAccuracy, validationAccuracy);
+                    var reportLine = epoch + " " + batchIndex + " "
+                            + network.calculateLoss(dataset.xTrainChunks(), dataset.yTrainChunks())
+                            + " " + validationAccuracy;
+                    evaluationNanos += System.nanoTime() - evaluationStartNanos;
+                    log.accept(reportLine);
+                    reportLines.add(reportLine);
+                }
+            }
+        }
+        long trainingNanos = System.nanoTime() - trainingStartNanos - evaluationNanos;
+        var endTrainingMessage = "Finished training at " + LocalDateTime.now();
+        log.accept(endTrainingMessage);
+        var throughputMessage = "Training throughput: "
+                + (double) xTrain.getRowDimension() * settings.epochs() * 1e9d / trainingNanos + " samples/sec";
+        log.accept(throughputMessage);
+        double finalAccuracy = network.calculateAccuracyPercentage(dataset.xTestChunks(), dataset.yTest());
+        var finalAccuracyMessage = "Final test accuracy: " + finalAccuracy + "%";
+        log.accept(finalAccuracyMessage);
+        var environmentMessage = "Environment: " + RunEnvironment.describe();
+        var peakHeapMessage = "Peak heap: " + RunEnvironment.peakHeapBytes() + " bytes";
+        FileUtil.writeLinesToFile(reportBaseFilename + ".system", List.of(startMessage, paramsMessage,
+                endTrainingMessage, throughputMessage, finalAccuracyMessage, environmentMessage, peakHeapMessage));
+        FileUtil.writeLinesToFile(reportBaseFilename + ".lstat", reportLines);
+        var parameters = network.getParameters();
+        for (int i = 0; i < parameters.size(); i += 2) {
+            int layerNumber = i / 2 + 1;
+            dumpMatrixToFile(reportBaseFilename + ".w" + layerNumber, parameters.get(i));
+            dumpMatrixToFile(reportBaseFilename + ".b" + layerNumber, parameters.get(i + 1));
+        }
+        dataset.statistics().writeToFile(reportBaseFilename + ".stats");
+        return new TrainingSummary(finalAccuracy, bestValidationAccuracy, trainingNanos / 1e9d);
+    }
+
+    private static void dumpMatrixToFile(String filePath, DoubleMatrix matrix) {
+        FileUtil.writeStringToFile(filePath, matrix.toString(" ", System.lineSeparator()));
+    }
+
+    private double calculateLoss(List<DoubleMatrix> xChunks, List<DoubleMatrix> yChunks) {
+        double lossSum = 0d;
+        int rows = 0;
+        for (int i = 0; i < xChunks.size(); i++) {
+            int chunkRows = xChunks.get(i).getRowDimension();
+            lossSum += calculateLoss(xChunks.get(i), yChunks.get(i)) * chunkRows;
+            rows += chunkRows;
+        }
+        return lossSum / rows;
+    }
+
+    private double calculateAccuracyPercentage(List<DoubleMatrix> xChunks, int[] labels) {
+        int matchesCount = 0;
+        int fromIndex = 0;
+        for (var x : xChunks) {
+            matchesCount += countMatches(x, labels, fromIndex);
+            fromIndex += x.getRowDimension();
+        }
+        return matchesCount * 100d / labels.length;
+    }
+
+    public static TrainingStep createTrainingStep(double[][] xBatch, int[] labels, int hiddenNodes, double lr) {
+        var x = DoubleMatrix.with2dArray(xBatch);
+        var y = NeuralNetwork.encodeMnistLabels(labels);
+        var network = create(x.getColumnDimension(), String.valueOf(hiddenNodes), y.getColumnDimension(),
+                DoubleMatrix.DEFAULT_RANDOM_SEED);
+        var optimizer = Optimizer.forDoubleMatrices(new OptimizerSettings(OptimizerSettings.Type.SGD, lr));
+        return () -> network.trainStep(x, y, optimizer);
+    }
+
+    /**
+     * MNIST standardized with the training set statistics, the test set split in halves for the validation and
+     * the final test. The evaluation sets are cut in chunks once, so the layers keep buffers for the chunk size only.
+     */
+    public record Dataset(
+            FeatureStatistics statistics,
+            DoubleMatrix xTrain,
+            DoubleMatrix yTrain,
+            List<DoubleMatrix> xTrainChunks,
+            List<DoubleMatrix> yTrainChunks,
+            List<DoubleMatrix> xValidationChunks,
+            int[] yValidation,
+            List<DoubleMatrix> xTestChunks,
+            int[] yTest) {
+
+        public static Dataset load(
+                String trainImageFile, String trainLabelFile, String testImageFile, String testLabelFile) {
+            var xTrainRaw = NeuralNetwork.readMnistImageFile(trainImageFile);
+            var yTrain = NeuralNetwork.encodeMnistLabels(NeuralNetwork.readMnistLabelFile(trainLabelFile));
+            var xTestRaw = NeuralNetwork.readMnistImageFile(testImageFile);
+            int[] yTestAll = NeuralNetwork.readMnistLabelFile(testLabelFile);
+            var statistics = FeatureStatistics.calculate(xTrainRaw, FeatureStatistics.Mode.GLOBAL);
+            var xTrain = statistics.standardizeInPlace(xTrainRaw);
+            var xTestPair = NeuralNetwork.splitMatrix(statistics.standardizeInPlace(xTestRaw));
+            int validationRows = xTestPair.first().getRowDimension();
+            return new Dataset(
+                    statistics,
+                    xTrain,
+                    yTrain,
+                    xTrain.splitRowsInBatches(EVALUATION_CHUNK_ROWS),
+                    yTrain.splitRowsInBatches(EVALUATION_CHUNK_ROWS),
+                    xTestPair.first().splitRowsInBatches(EVALUATION_CHUNK_ROWS),
+                    Arrays.copyOfRange(yTestAll, 0, validationRows),
+                    xTestPair.second().splitRowsInBatches(EVALUATION_CHUNK_ROWS),
+                    Arrays.copyOfRange(yTestAll, validationRows, yTestAll.length));
+        }
+    }
+
+    public record TrainingSettings(String hiddenLayers, OptimizerSettings optimizer, int batchSize, int epochs) {
+
+        public TrainingSettings {
+            if (batchSize < 1 || epochs < 1) {
+                throw new IllegalArgumentException("Batch size and epochs must be positive, but got "
+                        + batchSize + ", " + epochs);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "hiddenLayers=" + hiddenLayers + ", epochs=" + epochs + ", batchSize=" + batchSize
+                    + ", lr=" + optimizer.learningRate() + ", optimizer=" + optimizer.type().name().toLowerCase();
+        }
+    }
+
+    public record TrainingSummary(double finalTestAccuracy, double bestValidationAccuracy, double trainingSeconds) {}
+
+}
@@ -0,0 +1,114 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+/**
+ * Gives the learning rate for every epoch. Parsed from one of:
+ * <ul>
+ *     <li>constant - the base learning rate all the time;</li>
+ *     <li>step:[epochs]:[factor] - multiplied by the factor every given number of epochs;</li>
+ *     <li>cosine - cosine annealing from the base learning rate down to zero after the last epoch;</li>
+ *     <li>plateau:[epochs]:[factor] - multiplied by the factor whenever the best validation accuracy hasn't improved
+ *     for the given number of epochs.</li>
+ * </ul>
+ */
+@FunctionalInterface
+public interface LearningRateSchedule {
+
+    // Called at the start of every epoch, with the best validation accuracy reported so far
+    double learningRate(int epoch, double bestValidationAccuracy);
+
+    // Only a schedule adapting to the validation accuracy has a state to keep in a checkpoint
+    default double[] getState() {
+        return new double[0];
+    }
+
+    default void restoreState(double[] state) {
+        if (state.length != 0) {
+            throw new IllegalArgumentException("The learning rate schedule has no state, but got " + state.length
+                    + " values");
+        }
+    }
+
+    static LearningRateSchedule parse(String value, double baseLearningRate, int epochs) {
+        String[] parts = value.split(":");
+        return switch (parts[0]) {
+            case "constant" -> {
+                ensureParameters(value, parts, 0);
+                yield (epoch, bestValidationAccuracy) -> baseLearningRate;
+            }
+            case "step" -> {
+                ensureParameters(value, parts, 2);
+                int stepEpochs = Integer.parseInt(parts[1]);
+                double stepFactor = Double.parseDouble(parts[2]);
+                if (stepEpochs < 1) {
+                    throw new IllegalArgumentException("Step schedule needs at least 1 epoch per step, but got " + stepEpochs);
+                }
+                yield (epoch, bestValidationAccuracy) -> baseLearningRate * Math.pow(stepFactor, epoch / stepEpochs);
+            }
+            case "cosine" -> {
+                ensureParameters(value, parts, 0);
+                yield (epoch, bestValidationAccuracy) -> baseLearningRate * 0.5d * (1d + Math.cos(Math.PI * epoch / epochs));
+            }
+            case "plateau" -> {
+                ensureParameters(value, parts, 2);
+                yield new PlateauSchedule(baseLearningRate, Integer.parseInt(parts[1]), Double.parseDouble(parts[2]));
+            }
+            default -> throw new IllegalArgumentException("Unknown learning rate schedule: " + value);
+        };
+    }
+
+    private static void ensureParameters(String value, String[] parts, int expectedParameters) {
+        if (parts.length != expectedParameters + 1) {
+            throw new IllegalArgumentException("Expected " + expectedParameters
+                    + " parameters separated by ':' for the learning rate schedule, but got '" + value + "'");
+        }
+    }
+
+    final class PlateauSchedule implements LearningRateSchedule {
+        private final int patienceEpochs;
+        private final double factor;
+        private double learningRate;
+        private double bestValidationAccuracy = Double.NEGATIVE_INFINITY;
+        private int epochsWithoutImprovement;
+
+        PlateauSchedule(double baseLearningRate, int patienceEpochs, double factor) {
+            if (patienceEpochs < 1) {
+                throw new IllegalArgumentException("Plateau schedule needs at least 1 epoch of patience, but got "
+                        + patienceEpochs);
+            }
+            this.learningRate = baseLearningRate;
+            this.patienceEpochs = patienceEpochs;
+            this.factor = factor;
+        }
+
+        @Override
+        public double learningRate(int epoch, double bestValidationAccuracy) {
+            if (epoch == 0) {
+                return learningRate;
+            }
+            if (bestValidationAccuracy > this.bestValidationAccuracy) {
+                this.bestValidationAccuracy = bestValidationAccuracy;
+                epochsWithoutImprovement = 0;
+            } else if (++epochsWithoutImprovement >= patienceEpochs) {
+                learningRate *= factor;
+                epochsWithoutImprovement = 0;
+            }
+            return learningRate;
+        }
+
+        @Override
+        public double[] getState() {
+            return new double[]{learningRate, bestValidationAccuracy, epochsWithoutImprovement};
+        }
+
+        @Override
+        public void restoreState(double[] state) {
+            if (state.length != 3) {
+                throw new IllegalArgumentException("Plateau schedule state has 3 values, but got " + state.length);
+            }
+            learningRate = state[0];
+            bestValidationAccuracy = state[1];
+            epochsWithoutImprovement = (int) state[2];
+        }
+    }
+
+}
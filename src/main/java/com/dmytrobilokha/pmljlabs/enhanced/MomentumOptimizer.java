@@ -0,0 +1,53 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class MomentumOptimizer<M> implements Optimizer<M> {
+
+    private final Kernels<M> kernels;
+    private double learningRate;
+    private final boolean nesterov;
+    private final List<M> velocities = new ArrayList<>();
+
+    MomentumOptimizer(Kernels<M> kernels, double learningRate, boolean nesterov) {
+        this.kernels = kernels;
+        this.learningRate = learningRate;
+        this.nesterov = nesterov;
+    }
+
+    @Override
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    @Override
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    @Override
+    public List<M> getState() {
+        return List.copyOf(velocities);
+    }
+
+    @Override
+    public void restoreState(List<M> state, double[] scalars) {
+        if (scalars.length != 0) {
+            throw new IllegalArgumentException("Momentum has no scalar state, but got " + scalars.length + " scalars");
+        }
+        velocities.clear();
+        velocities.addAll(state);
+    }
+
+    @Override
+    public void update(List<M> weights, List<M> gradients) {
+        for (int i = 0; i < weights.size(); i++) {
+            if (i == velocities.size()) {
+                velocities.add(kernels.createState(weights.get(i)));
+            }
+            kernels.momentum(weights.get(i), velocities.get(i), gradients.get(i), learningRate, nesterov);
+        }
+    }
+
+}
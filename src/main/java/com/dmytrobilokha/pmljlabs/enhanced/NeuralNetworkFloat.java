@@ -1,96 +1,276 @@
 package com.dmytrobilokha.pmljlabs.enhanced;
 
 import com.dmytrobilokha.pmljlabs.FileUtil;
+import com.dmytrobilokha.pmljlabs.MatrixProfiler;
+import com.dmytrobilokha.pmljlabs.RunEnvironment;
+import com.dmytrobilokha.pmljlabs.TrainingStep;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class NeuralNetworkFloat {
 
     // For MNIST we have one label per digit (0-9)
     private static final int NUMBER_OF_LABELS = 10;
-    private static final int NUMBER_OF_REPORTERS = 10;
-    public static void main(String[] cliArgs) {
-        if (cliArgs.length != 5) {
+    private static final int PREFETCH_BATCHES = 4;
+    private static final String SERIAL_MODE = "serial";
+    private static final String DEFAULT_OPTIMIZER = "sgd";
+    private static final String DEFAULT_SCHEDULE = "constant";
+    private static final int DEFAULT_EPOCHS = 10;
+    private static final String HOGWILD_MODE_PREFIX = "hogwild:";
+    private static final String DEFAULT_REPORTING = "block";
+    // Every queued snapshot holds a copy of the weights, so this is the memory bound of the reporting
+    private static final int DEFAULT_REPORTING_CAPACITY = 20;
+    private static final String OPTION_PREFIX = "--";
+    private static final String OPTIMIZER_OPTION_PREFIX = "--optimizer=";
+    private static final String SCHEDULE_OPTION_PREFIX = "--schedule=";
+    private static final String EPOCHS_OPTION_PREFIX = "--epochs=";
+    private static final String EARLY_STOPPING_OPTION_PREFIX = "--early-stopping=";
+    private static final String REPORTING_OPTION_PREFIX = "--reporting=";
+    private static final String TRAINING_LOSS_OPTION_PREFIX = "--training-loss=";
+    private static final String EVALUATION_THREADS_OPTION_PREFIX = "--evaluation-threads=";
+    private static final String EVALUATION_BATCH_OPTION_PREFIX = "--evaluation-batch=";
+    private static final int DEFAULT_EVALUATION_BATCH = 4;
+    private static final String METRICS_LOG_OPTION = "--metrics-log";
+    private static final String METRICS_PORT_OPTION_PREFIX = "--metrics-port=";
+    public static void main(String[] allArgs) {
+        var options = Arrays.stream(allArgs).filter(arg -> arg.startsWith(OPTION_PREFIX)).toList();
+        var cliArgs = Arrays.stream(allArgs).filter(arg -> !arg.startsWith(OPTION_PREFIX)).toArray(String[]::new);
+        if (cliArgs.length < 5 || cliArgs.length > 6) {
             System.err.println("Expected arguments:");
             System.err.println("1 - train image file");
             System.err.println("2 - train label file");
             System.err.println("3 - test image file");
             System.err.println("4 - test label file");
             System.err.println("5 - report base filename");
+            System.err.println("6 - (optional) training mode: serial (default) or hogwild:[workers] for lock-free"
+                    + " asynchronous SGD");
+            System.err.println("Options, anywhere among the arguments:");
+            System.err.println(OPTIMIZER_OPTION_PREFIX + "[sgd|momentum|nesterov|adam][:learning rate] - the optimizer,"
+                    + " default " + DEFAULT_OPTIMIZER + ", e.g. adam:0.002");
+            System.err.println(SCHEDULE_OPTION_PREFIX + "[constant|step:[epochs]:[factor]|cosine"
+                    + "|plateau:[epochs]:[factor]] - learning rate schedule, default " + DEFAULT_SCHEDULE);
+            System.err.println(EPOCHS_OPTION_PREFIX + "[epochs] - number of epochs, default " + DEFAULT_EPOCHS);
+            System.err.println(EARLY_STOPPING_OPTION_PREFIX + "[epochs] - stop after that many epochs without validation"
+                    + " accuracy improvement and keep the best weights, default 0 (disabled)");
+            System.err.println(REPORTING_OPTION_PREFIX + "[block|drop|coalesce][:capacity] - what the trainer does when"
+                    + " the reporting queue is full: wait (default), drop the new snapshot or drop the oldest queued one,"
+                    + " default capacity " + DEFAULT_REPORTING_CAPACITY);
+            System.err.println(TRAINING_LOSS_OPTION_PREFIX + "[window|sampled[:rows]|exact] - training loss of the"
+                    + " reports: mean of the batches since the previous report (default), estimate over that many random"
+                    + " training rows, default " + TrainingLoss.DEFAULT_SAMPLE_ROWS + ", or the whole training set;"
+                    + " the first report of an epoch is always over the whole training set");
+            System.err.println(EVALUATION_THREADS_OPTION_PREFIX + "[threads] - workers of the evaluation pool running"
+                    + " the reports, default the number of processors minus the training threads, at least 1");
+            System.err.println(EVALUATION_BATCH_OPTION_PREFIX + "[snapshots] - at most that many queued snapshots are"
+                    + " evaluated together, sharing the validation forward passes, default " + DEFAULT_EVALUATION_BATCH);
+            System.err.println(METRICS_LOG_OPTION + " - also append every report line as a binary record to"
+                    + " [report base filename].metrics, see writeReportRecord()");
+            System.err.println(METRICS_PORT_OPTION_PREFIX + "[port] - serve the live training metrics in the Prometheus"
+                    + " text format at http://localhost:[port]" + MetricsEndpoint.PATH + ", 0 for any free port;"
+                    + " the metrics are always available as the " + TrainingMetrics.OBJECT_NAME + " JMX MBean");
             System.exit(1);
         }
+        var optimizerValue = DEFAULT_OPTIMIZER;
+        var scheduleValue = DEFAULT_SCHEDULE;
+        int epochs = DEFAULT_EPOCHS;
+        int earlyStoppingEpochs = 0;
+        var reportingSettings = ReportingQueue.Settings.parse(DEFAULT_REPORTING, DEFAULT_REPORTING_CAPACITY);
+        var trainingLossSettings = TrainingLoss.Settings.parse(TrainingLoss.DEFAULT);
+        Integer evaluationThreadsOption = null;
+        int evaluationBatch = DEFAULT_EVALUATION_BATCH;
+        boolean metricsLog = false;
+        Integer metricsPort = null;
+        for (var option : options) {
+            if (option.startsWith(OPTIMIZER_OPTION_PREFIX)) {
+                optimizerValue = option.substring(OPTIMIZER_OPTION_PREFIX.length());
+            } else if (option.startsWith(SCHEDULE_OPTION_PREFIX)) {
+                scheduleValue = option.substring(SCHEDULE_OPTION_PREFIX.length());
+            } else if (option.startsWith(EPOCHS_OPTION_PREFIX)) {
+                epochs = Integer.parseInt(option.substring(EPOCHS_OPTION_PREFIX.length()));
+            } else if (option.startsWith(EARLY_STOPPING_OPTION_PREFIX)) {
+                earlyStoppingEpochs = Integer.parseInt(option.substring(EARLY_STOPPING_OPTION_PREFIX.length()));
+            } else if (option.startsWith(REPORTING_OPTION_PREFIX)) {
+                reportingSettings = ReportingQueue.Settings.parse(
+                        option.substring(REPORTING_OPTION_PREFIX.length()), DEFAULT_REPORTING_CAPACITY);
+            } else if (option.startsWith(TRAINING_LOSS_OPTION_PREFIX)) {
+                trainingLossSettings = TrainingLoss.Settings.parse(option.substring(TRAINING_LOSS_OPTION_PREFIX.length()));
+            } else if (option.startsWith(EVALUATION_THREADS_OPTION_PREFIX)) {
+                evaluationThreadsOption = Integer.parseInt(option.substring(EVALUATION_THREADS_OPTION_PREFIX.length()));
+            } else if (option.startsWith(EVALUATION_BATCH_OPTION_PREFIX)) {
+                evaluationBatch = Integer.parseInt(option.substring(EVALUATION_BATCH_OPTION_PREFIX.length()));
+            } else if (METRICS_LOG_OPTION.equals(option)) {
+                metricsLog = true;
+            } else if (option.startsWith(METRICS_PORT_OPTION_PREFIX)) {
+                metricsPort = Integer.parseInt(option.substring(METRICS_PORT_OPTION_PREFIX.length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
         var xTrainRaw = readMnistImageFile(cliArgs[0]);
         var yTrain = encodeMnistLabels(readMnistLabelFile(cliArgs[1]));
         var xTestRaw = readMnistImageFile(cliArgs[2]);
         int[] yTestAll = readMnistLabelFile(cliArgs[3]);
         var reportBaseFilename = cliArgs[4];
+        var trainingMode = cliArgs.length > 5 ? cliArgs[5] : SERIAL_MODE;
+        boolean hogwild = trainingMode.startsWith(HOGWILD_MODE_PREFIX);
+        if (!SERIAL_MODE.equals(trainingMode) && !hogwild) {
+            throw new IllegalArgumentException("Unknown training mode: " + trainingMode);
+        }
+        int hogwildWorkers = hogwild ? Integer.parseInt(trainingMode.substring(HOGWILD_MODE_PREFIX.length())) : 0;
+        if (hogwild && hogwildWorkers < 1) {
+            throw new IllegalArgumentException("Minimum number of hogwild workers is 1, but got " + hogwildWorkers);
+        }
+        // The training gets its cores first, the evaluation takes what is left
+        int evaluationThreads = evaluationThreadsOption != null ? evaluationThreadsOption
+                : EvaluationPool.defaultParallelism(Math.max(1, hogwildWorkers));
+        var optimizerSettings = OptimizerSettings.parse(optimizerValue);
+        if (hogwildWorkers > 0 && optimizerSettings.type() != OptimizerSettings.Type.SGD) {
+            throw new IllegalArgumentException("Hogwild training supports only the sgd optimizer");
+        }
+        if (earlyStoppingEpochs < 0) {
+            throw new IllegalArgumentException("Early stopping epochs can't be negative, but got " + earlyStoppingEpochs);
+        }
+        if (hogwildWorkers > 0 && (!DEFAULT_SCHEDULE.equals(scheduleValue) || earlyStoppingEpochs > 0)) {
+            throw new IllegalArgumentException("Hogwild training supports neither learning rate schedules nor early stopping");
+        }
+        var schedule = LearningRateSchedule.parse(scheduleValue, optimizerSettings.learningRate(), epochs);
         int[] yValidation = Arrays.copyOfRange(yTestAll, 0, yTestAll.length / 2 - 1);
         int[] yTest = Arrays.copyOfRange(yTestAll, yTestAll.length / 2, yTestAll.length - 1);
-        var xStandardized = standardizeInput(xTrainRaw, xTestRaw);
-        var xTrain = xStandardized.first();
-        var xTestPair = splitMatrix(xStandardized.second());
+        var statistics = FeatureStatistics.calculate(xTrainRaw, FeatureStatistics.Mode.GLOBAL);
+        statistics.writeToFile(reportBaseFilename + ".stats");
+        var xTrain = statistics.standardizeInPlace(xTrainRaw);
+        var xTestPair = splitMatrix(statistics.standardizeInPlace(xTestRaw));
         var xValidation = xTestPair.first();
         var xTest = xTestPair.second();
-        var reportingQueue = new LinkedBlockingQueue<ReportingTask>();
-        var reportOutputLines = new ConcurrentSkipListSet<ReportingLine>();
-        var reporters = new ArrayList<Reporter>();
-        for (int i = 0; i < NUMBER_OF_REPORTERS; i++) {
-            var reporter = new Reporter(xTrain, yTrain, xValidation, yValidation, reportingQueue, reportOutputLines);
-            reporter.start();
-            reporters.add(reporter);
-        }
-        var startMessage = "Starting all at " + LocalDateTime.now();
-        System.out.println(startMessage);
         int hiddenNodes = 100;
-        int epochs = 10;
         int batchSize = 128;
-        float lr = 0.25f;
         int reportPeriod = 5;
+        int batchesPerEpoch = (xTrain.getRowDimension() + batchSize - 1) / batchSize;
+        // The snapshots are recycled, so the tracker keeps a copy of the best one
+        var validationTracker = new ValidationTracker<MatrixPair>(batchesPerEpoch, MatrixPair::copy);
+        // Every snapshot waiting in the queue, being evaluated or being submitted by a trainer holds a buffer
+        int snapshotBuffers = reportingSettings.capacity() + evaluationThreads * evaluationBatch
+                + Math.max(1, hogwildWorkers);
+        var snapshotPool = createSnapshotPool(snapshotBuffers, xTrain.getColumnDimension(), hiddenNodes);
+        var reportWriter = new ReportLineWriter<>(Path.of(reportBaseFilename + ".lstat"), NeuralNetworkFloat::formatReportLine,
+                metricsLog ? Path.of(reportBaseFilename + ".metrics") : null,
+                metricsLog ? NeuralNetworkFloat::writeReportRecord : null, batchesPerEpoch, reportPeriod, null);
+        // A dropped task will never be reported, so the line writer must not wait for it
+        var reportingQueue = new ReportingQueue<ReportingTask>(reportingSettings, task -> {
+            reportWriter.skip(reportWriter.sequenceOf(task.epoch(), task.batch()));
+            snapshotPool.release(task.weights());
+        });
+        var evaluationPool = new EvaluationPool(evaluationThreads, EvaluationPool.DEFAULT_CHUNK_ROWS);
+        var reporter = new Reporter(xTrain, yTrain, xValidation, yValidation, evaluationPool, reportWriter,
+                validationTracker, trainingLossSettings);
+        var reportDispatcher = new ReportDispatcher<ReportingTask>(reportingQueue, evaluationPool, evaluationBatch,
+                tasks -> {
+                    try {
+                        reporter.report(tasks);
+                    } catch (RuntimeException e) {
+                        // As with a dropped task, the later lines must not wait for the failed ones.
+                        // The lines already written are kept, the skip ignores them
+                        tasks.forEach(task -> reportWriter.skip(reportWriter.sequenceOf(task.epoch(), task.batch())));
+                        throw e;
+                    } finally {
+                        tasks.forEach(task -> snapshotPool.release(task.weights()));
+                    }
+                });
+        var startMessage = "Starting all at " + LocalDateTime.now();
+        System.out.println(startMessage);
+        float lr = (float) optimizerSettings.learningRate();
         var paramsMessage = "Hyperparameters: hiddenNodes=" + hiddenNodes +
-                ", epochs=" + epochs + ", batchSize=" + batchSize + ", lr=" + lr + ", reportPeriod=" + reportPeriod;
+                ", epochs=" + epochs + ", batchSize=" + batchSize + ", lr=" + lr
+                + ", optimizer=" + optimizerSettings.type().name().toLowerCase() + ", reportPeriod=" + reportPeriod
+                + ", schedule=" + scheduleValue + ", earlyStopping=" + earlyStoppingEpochs
+                + ", trainingMode=" + trainingMode + ", reporting=" + reportingSettings
+                + ", trainingLoss=" + trainingLossSettings + ", evaluationThreads=" + evaluationThreads
+                + ", evaluationBatch=" + evaluationBatch
+                + ", metricsLog=" + metricsLog + ", metricsPort=" + (metricsPort == null ? "none" : metricsPort);
         System.out.println(paramsMessage);
-        var wPair = train(xTrain, yTrain, reportingQueue, hiddenNodes, epochs, batchSize, lr, reportPeriod);
+        var trainingMetrics = new TrainingMetrics(batchesPerEpoch, reportingQueue, validationTracker).register();
+        var metricsEndpoint = metricsPort == null ? null : new MetricsEndpoint(trainingMetrics, metricsPort);
+        if (metricsEndpoint != null) {
+            System.out.println("Serving metrics at " + metricsEndpoint.getUrl());
+        }
+        long trainingStartNanos = System.nanoTime();
+        var trainingResult = hogwildWorkers > 0
+                ? trainHogwild(xTrain, yTrain, reportingQueue, snapshotPool, hiddenNodes, epochs, batchSize, lr, reportPeriod,
+                        hogwildWorkers, trainingMetrics)
+                : train(xTrain, yTrain, reportingQueue, snapshotPool, hiddenNodes, epochs, batchSize,
+                        Optimizer.forFloatMatrices(optimizerSettings), schedule, validationTracker, earlyStoppingEpochs,
+                        reportPeriod, trainingMetrics);
+        int trainedEpochs = trainingResult.trainedEpochs();
+        double samplesPerSecond = (double) xTrain.getRowDimension() * trainedEpochs * 1e9d / (System.nanoTime() - trainingStartNanos);
         var endTrainingMessage = "Finished training at " + LocalDateTime.now();
         System.out.println(endTrainingMessage);
-        dumpMatrixToFile(reportBaseFilename + ".w1", wPair.first());
-        dumpMatrixToFlatFile(reportBaseFilename + ".w1.flat", wPair.first());
-        dumpMatrixToFile(reportBaseFilename + ".w2", wPair.second());
-        dumpMatrixToFlatFile(reportBaseFilename + ".w2.flat", wPair.second());
-        // Wait until reporters process all the tasks
+        var throughputMessage = "Training throughput: " + samplesPerSecond + " samples/sec";
+        System.out.println(throughputMessage);
+        // Waits until all the tasks are reported, the lines written so far reach the files even if a report has failed
         try {
-            while (!reportingQueue.isEmpty()) {
-                Thread.sleep(10000);
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Got interrupted while waiting for reporters to empty the queue", e);
+            reportDispatcher.close();
+        } finally {
+            evaluationPool.close();
+            reportWriter.close();
         }
-        reporters.forEach(Reporter::requestStop);
-        try {
-            for (var reporter : reporters) {
-                reporter.join();
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Got interrupted while waiting for reporters to stop", e);
+        // Only now, so the metrics show the evaluator catching up after the training
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
         }
+        trainingMetrics.close();
         var endReportingMessage = "Finished reporting at " + LocalDateTime.now();
         System.out.println(endReportingMessage);
+        var reportingQueueMessage = "Reporting queue: " + reportingQueue.describeMetrics();
+        System.out.println(reportingQueueMessage);
+        var snapshotPoolMessage = "Snapshot pool: " + snapshotPool.describeMetrics();
+        System.out.println(snapshotPoolMessage);
+        // All the reports are in, so the tracker knows the best weights of the whole run
+        var wPair = trainingResult.weights();
+        if (earlyStoppingEpochs > 0 && validationTracker.getBestWeights() != null) {
+            wPair = validationTracker.getBestWeights();
+        }
+        var trainedEpochsMessage = "Trained epochs: " + trainedEpochs
+                + ", best validation accuracy: " + validationTracker.getBestAccuracy() + "%";
+        System.out.println(trainedEpochsMessage);
+        var finalAccuracyMessage = "Final test accuracy: "
+                + calculateAccuracyPercentage(xTest, yTest, wPair.first(), wPair.second()) + "%";
+        System.out.println(finalAccuracyMessage);
+        dumpMatrixToFile(reportBaseFilename + ".w1", wPair.first());
+        dumpMatrixToFlatFile(reportBaseFilename + ".w1.flat", wPair.first());
+        dumpMatrixToFile(reportBaseFilename + ".w2", wPair.second());
+        dumpMatrixToFlatFile(reportBaseFilename + ".w2.flat", wPair.second());
+        var environmentMessage = "Environment: " + RunEnvironment.describe();
+        var peakHeapMessage = "Peak heap: " + RunEnvironment.peakHeapBytes() + " bytes";
         FileUtil.writeLinesToFile(reportBaseFilename + ".system",
-            List.of(startMessage, paramsMessage, endTrainingMessage, endReportingMessage));
-        FileUtil.writeLinesToFile(reportBaseFilename + ".lstat",
-                reportOutputLines.stream()
-                        .map(line -> line.epoch() + " " + line.batch() + " " + line.trainingLoss() + " " + line.matchesPercentage())
-                        .toList()
-        );
+            List.of(startMessage, paramsMessage, endTrainingMessage, throughputMessage, endReportingMessage,
+                    reportingQueueMessage, snapshotPoolMessage, trainedEpochsMessage, finalAccuracyMessage, environmentMessage,
+                    peakHeapMessage));
+        MatrixProfiler.dumpToFile(reportBaseFilename + ".profile");
+    }
+
+    private static String formatReportLine(ReportingLine line) {
+        return line.epoch() + " " + line.batch() + " " + line.trainingLoss() + " "
+                + line.matchesPercentage() + " " + line.trainingLossHalfWidth();
+    }
+
+    // Big-endian record of 20 bytes: epoch and batch ints, training loss, accuracy and loss half width floats
+    private static void writeReportRecord(DataOutputStream output, ReportingLine line) throws IOException {
+        output.writeInt(line.epoch());
+        output.writeInt(line.batch());
+        output.writeFloat(line.trainingLoss());
+        output.writeFloat(line.matchesPercentage());
+        output.writeFloat(line.trainingLossHalfWidth());
     }
 
     private static void dumpMatrixToFlatFile(String filePath, FloatMatrix matrix) {
@@ -113,16 +293,6 @@ public class NeuralNetworkFloat {
         return s.apply(z -> z <= 0f ? 0f : 1f);
     }
 
-    private static MatrixPair standardizeInput(FloatMatrix xTrain, FloatMatrix xTest) {
-        float numberOfElements = xTrain.getRowDimension() * xTrain.getColumnDimension();
-        float average = xTrain.sum() / numberOfElements;
-        var deviationsMatrix = xTrain.scalarAdd(-average);
-        float standardDeviation = (float) Math.sqrt(deviationsMatrix.multiplyElements(deviationsMatrix).sum() / numberOfElements);
-        var xTrainStandardized = deviationsMatrix.scalarDivide(standardDeviation);
-        var xTestStandardized = xTest.scalarAdd(-average).scalarDivide(standardDeviation);
-        return new MatrixPair(xTrainStandardized, xTestStandardized);
-    }
-
     private static MatrixPair splitMatrix(FloatMatrix matrix) {
         int resultingRows = matrix.getRowDimension() / 2;
         var firstMatrix = matrix.getSubMatrix(
@@ -161,14 +331,25 @@ public class NeuralNetworkFloat {
         return new MatrixPair(w1, w2);
     }
 
+    static float calculateAccuracyPercentage(FloatMatrix x, int[] labels, FloatMatrix w1, FloatMatrix w2) {
+        int[] classification = classify(x, w1, w2);
+        int matchesCount = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (classification[i] == labels[i]) {
+                matchesCount++;
+            }
+        }
+        return matchesCount * 100f / labels.length;
+    }
+
     private static int[] classify(FloatMatrix x, FloatMatrix w1, FloatMatrix w2) {
         var yHat = calculateForward(x, w1, w2).first();
         return yHat.indexOfHighestPerRow();
     }
 
-    private static float calculateLoss(FloatMatrix y, FloatMatrix yHat) {
+    private static float calculateLossSum(FloatMatrix y, FloatMatrix yHat) {
         var logYHat = yHat.apply((input) -> (float) Math.log(input));
-        return -y.multiplyElements(logYHat).sum() / (float) y.getRowDimension();
+        return -y.multiplyElements(logYHat).sum();
     }
 
     private static MatrixPair calculateBack(FloatMatrix x, FloatMatrix y, FloatMatrix yHat, FloatMatrix w2, FloatMatrix h) {
@@ -187,41 +368,182 @@ public class NeuralNetworkFloat {
         return new MatrixPair(w1Gradient, w2Gradient);
     }
 
-    private static MatrixPair train(
+    /**
+     * Sets the learning rate from the schedule at the start of every epoch and, if earlyStoppingEpochs is positive,
+     * stops once the validation accuracy reported to the tracker hasn't improved for that many epochs.
+     * The reporters lag behind the training, so the stop could happen an epoch or so later than it ideally would.
+     * The metrics could be null, then no steps are recorded.
+     */
+    private static TrainingResult train(
             FloatMatrix xTrain,
             FloatMatrix yTrain,
-            Queue<ReportingTask> reportingQueue,
+            ReportingQueue<ReportingTask> reportingQueue,
+            SnapshotPool<MatrixPair> snapshotPool,
+            int hiddenNodes,
+            int epochs,
+            int batchSize,
+            Optimizer<FloatMatrix> optimizer,
+            LearningRateSchedule schedule,
+            ValidationTracker<MatrixPair> validationTracker,
+            int earlyStoppingEpochs,
+            int reportPeriod,
+            TrainingMetrics metrics) {
+        int inputVariables = xTrain.getColumnDimension();
+        int classes = yTrain.getColumnDimension();
+        var weights = initWeights(inputVariables, hiddenNodes, classes);
+        FloatMatrix w1 = weights.first();
+        FloatMatrix w2 = weights.second();
+        int currentEpoch = -1;
+        // The batch losses come from the forward passes of the training, the reports take their mean
+        var lossWindow = new TrainingLoss.Window();
+        try (var dataLoader = DataLoader.ofFloatMatrices(
+                xTrain, yTrain, batchSize, epochs, PREFETCH_BATCHES, FloatMatrix.DEFAULT_RANDOM_SEED)) {
+            for (var batch = dataLoader.next(); batch != null; batch = dataLoader.next()) {
+                int epoch = batch.epoch();
+                int batchIndex = batch.index();
+                if (epoch != currentEpoch) {
+                    if (earlyStoppingEpochs > 0 && validationTracker.hasNotImprovedFor(earlyStoppingEpochs)) {
+                        dataLoader.release(batch);
+                        break;
+                    }
+                    currentEpoch = epoch;
+                    optimizer.setLearningRate(schedule.learningRate(epoch, validationTracker.getBestAccuracy()));
+                }
+                int rows = batch.x().getRowDimension();
+                long stepStartNanos = System.nanoTime();
+                var gradients = calculateGradients(batch.x(), batch.y(), w1, w2, lossWindow);
+                dataLoader.release(batch);
+                optimizer.update(List.of(w1, w2), List.of(gradients.first(), gradients.second()));
+                if (metrics != null) {
+                    metrics.recordStep(epoch, batchIndex, rows, System.nanoTime() - stepStartNanos);
+                }
+                // The weights are updated in place, so the reporters get snapshots
+                if (batchIndex % reportPeriod == 0) {
+                    reportingQueue.submit(ReportingTask.ofSnapshot(
+                            epoch, batchIndex, takeSnapshot(snapshotPool, w1, w2), lossWindow.takeMean()));
+                }
+            }
+        }
+        return new TrainingResult(new MatrixPair(w1, w2), currentEpoch + 1);
+    }
+
+    /**
+     * Hogwild SGD: every worker takes the next batch from the shared data loader, calculates the gradients with whatever
+     * the shared weights are at the moment and subtracts them from the weights in place, without any locking.
+     * The reporters get copies of the weights, which may mix a few concurrent updates, that is good enough
+     * for the accuracy and loss estimations. The metrics could be null, then no steps are recorded.
+     */
+    static TrainingResult trainHogwild(
+            FloatMatrix xTrain,
+            FloatMatrix yTrain,
+            ReportingQueue<ReportingTask> reportingQueue,
+            SnapshotPool<MatrixPair> snapshotPool,
             int hiddenNodes,
             int epochs,
             int batchSize,
             float lr,
-            int reportPeriod) {
+            int reportPeriod,
+            int workers,
+            TrainingMetrics metrics) {
         int inputVariables = xTrain.getColumnDimension();
         int classes = yTrain.getColumnDimension();
-        var initialWeights = initWeights(inputVariables, hiddenNodes, classes);
-        FloatMatrix w1 = initialWeights.first();
-        FloatMatrix w2 = initialWeights.second();
-        var xBatches = xTrain.splitRowsInBatches(batchSize);
-        var yBatches = yTrain.splitRowsInBatches(batchSize);
-        for (int epoch = 0; epoch < epochs; epoch++) {
-            for (int batch = 0; batch < xBatches.size(); batch++) {
-                var xBatch = xBatches.get(batch);
-                var yBatch = yBatches.get(batch);
-                MatrixPair yHatH = calculateForward(xBatch, w1, w2);
-                var yHat = yHatH.first();
-                var h = yHatH.second();
-                MatrixPair gradients = calculateBack(xBatch, yBatch, yHat, w2, h);
-                w1 = w1.subtract(gradients.first().scalarMultiply(lr));
-                w2 = w2.subtract(gradients.second().scalarMultiply(lr));
-                if (batch % reportPeriod == 0) {
-                    reportingQueue.add(new ReportingTask(epoch, batch, w1, w2));
+        var weights = initWeights(inputVariables, hiddenNodes, classes);
+        FloatMatrix w1 = weights.first();
+        FloatMatrix w2 = weights.second();
+        // Every worker holds one batch, so the ring has to be at least that big for them not to wait for each other
+        var dataLoader = DataLoader.ofFloatMatrices(xTrain, yTrain, batchSize, epochs,
+                Math.max(PREFETCH_BATCHES, workers), FloatMatrix.DEFAULT_RANDOM_SEED);
+        var lossWindow = new TrainingLoss.Window();
+        Runnable worker = () -> {
+            for (var batch = dataLoader.next(); batch != null; batch = dataLoader.next()) {
+                int epoch = batch.epoch();
+                int batchIndex = batch.index();
+                var x = batch.x();
+                var y = batch.y();
+                int rows = x.getRowDimension();
+                long stepStartNanos = System.nanoTime();
+                MatrixPair yHatH = calculateForward(x, w1, w2);
+                lossWindow.add(calculateLossSum(y, yHatH.first()), x.getRowDimension());
+                MatrixPair gradients = calculateBack(x, y, yHatH.first(), w2, yHatH.second());
+                dataLoader.release(batch);
+                w1.addScaledInPlace(gradients.first(), -lr);
+                w2.addScaledInPlace(gradients.second(), -lr);
+                if (metrics != null) {
+                    metrics.recordStep(epoch, batchIndex, rows, System.nanoTime() - stepStartNanos);
+                }
+                if (batchIndex % reportPeriod == 0) {
+                    reportingQueue.submit(ReportingTask.ofSnapshot(
+                            epoch, batchIndex, takeSnapshot(snapshotPool, w1, w2), lossWindow.takeMean()));
                 }
             }
+        };
+        var executor = Executors.newFixedThreadPool(workers);
+        try (dataLoader) {
+            var futures = new ArrayList<Future<?>>(workers);
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(worker));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Got interrupted while waiting for the Hogwild workers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Hogwild worker has failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
-        return new MatrixPair(w1, w2);
+        return new TrainingResult(new MatrixPair(w1, w2), epochs);
+    }
+
+    // Buffers for the snapshots of the weights trained by train() and trainHogwild()
+    static SnapshotPool<MatrixPair> createSnapshotPool(int capacity, int inputVariables, int hiddenNodes) {
+        return new SnapshotPool<>(capacity, () -> new MatrixPair(
+                FloatMatrix.ofZeros(inputVariables + 1, hiddenNodes), FloatMatrix.ofZeros(hiddenNodes + 1, NUMBER_OF_LABELS)));
     }
 
-    private static FloatMatrix readMnistImageFile(String fileName) {
+    private static MatrixPair takeSnapshot(SnapshotPool<MatrixPair> snapshotPool, FloatMatrix w1, FloatMatrix w2) {
+        var snapshot = snapshotPool.acquire();
+        snapshot.first().copyInPlace(w1);
+        snapshot.second().copyInPlace(w2);
+        return snapshot;
+    }
+
+    static MatrixPair calculateGradients(FloatMatrix x, FloatMatrix y, FloatMatrix w1, FloatMatrix w2) {
+        return calculateGradients(x, y, w1, w2, null);
+    }
+
+    // Adds the batch loss to the window, unless it is null
+    static MatrixPair calculateGradients(
+            FloatMatrix x, FloatMatrix y, FloatMatrix w1, FloatMatrix w2, TrainingLoss.Window lossWindow) {
+        MatrixPair yHatH = calculateForward(x, w1, w2);
+        if (lossWindow != null) {
+            lossWindow.add(calculateLossSum(y, yHatH.first()), x.getRowDimension());
+        }
+        return calculateBack(x, y, yHatH.first(), w2, yHatH.second());
+    }
+
+    // The step of train() with the sgd optimizer: the batch gradients, then the in-place update of the weights
+    public static TrainingStep createTrainingStep(double[][] xBatch, int[] labels, int hiddenNodes, double lr) {
+        float[][] xData = new float[xBatch.length][];
+        for (int row = 0; row < xBatch.length; row++) {
+            xData[row] = new float[xBatch[row].length];
+            for (int column = 0; column < xData[row].length; column++) {
+                xData[row][column] = (float) xBatch[row][column];
+            }
+        }
+        var x = FloatMatrix.with2dArray(xData);
+        var y = encodeMnistLabels(labels);
+        var weights = initWeights(x.getColumnDimension(), hiddenNodes, y.getColumnDimension());
+        var optimizer = Optimizer.forFloatMatrices(new OptimizerSettings(OptimizerSettings.Type.SGD, lr));
+        return () -> {
+            var gradients = calculateGradients(x, y, weights.first(), weights.second());
+            optimizer.update(List.of(weights.first(), weights.second()), List.of(gradients.first(), gradients.second()));
+        };
+    }
+
+    static FloatMatrix readMnistImageFile(String fileName) {
         byte[] rawFile = FileUtil.readGzippedBinaryFile(fileName);
         int pointer = 0;
         int magicNumber = bytesToInt(rawFile[pointer++], rawFile[pointer++], rawFile[pointer++], rawFile[pointer++]);
@@ -242,7 +564,7 @@ public class NeuralNetworkFloat {
         return FloatMatrix.with2dArray(result);
     }
 
-    private static int[] readMnistLabelFile(String fileName) {
+    static int[] readMnistLabelFile(String fileName) {
         byte[] rawFile = FileUtil.readGzippedBinaryFile(fileName);
         int pointer = 0;
         int magicNumber = bytesToInt(rawFile[pointer++], rawFile[pointer++], rawFile[pointer++], rawFile[pointer++]);
@@ -258,7 +580,7 @@ public class NeuralNetworkFloat {
         return output;
     }
 
-    private static FloatMatrix encodeMnistLabels(int[] labelsArray) {
+    static FloatMatrix encodeMnistLabels(int[] labelsArray) {
         float[][] labelsData = new float[labelsArray.length][NUMBER_OF_LABELS];
         for (int rowIndex = 0; rowIndex < labelsArray.length; rowIndex++) {
             labelsData[rowIndex][labelsArray[rowIndex]] = 1f;
@@ -271,79 +593,247 @@ public class NeuralNetworkFloat {
                 ((third & 0xff) << 8) | (fourth & 0xff));
     }
 
-    static class Reporter extends Thread {
+    /**
+     * Evaluates the reporting tasks, the forward passes are split in row chunks running on the evaluation pool.
+     * A chunk goes through the buffers its thread reuses, so the evaluation memory depends on the chunk size
+     * and the number of threads, but not on the size of the data sets.
+     * Thread safe, the same reporter is used for all the tasks.
+     */
+    static class Reporter {
         private final FloatMatrix xTrain;
         private final FloatMatrix yTrain;
         private final FloatMatrix xTest;
         private final int[] yTest;
-        private final BlockingQueue<ReportingTask> reportingQueue;
-        private final Collection<ReportingLine> outputCollection;
-        private final AtomicBoolean stopRequested;
+        private final EvaluationPool evaluationPool;
+        private final ReportLineWriter<ReportingLine> reportWriter;
+        private final ValidationTracker<MatrixPair> validationTracker;
+        private final TrainingLoss.Settings trainingLossSettings;
+        // The chunk sizes of a run are few, two per data set at most, see EvaluationPool.sumOverRowChunks(),
+        // times the hidden layer widths, one per snapshot batch size
+        private final ThreadLocal<List<ChunkBuffers>> chunkBuffers = ThreadLocal.withInitial(ArrayList::new);
+        // Shared, not per thread: a thread waiting for the chunks of its batch may run the chunks of another one
+        private final Map<Integer, SnapshotPool<FloatMatrix>> sideBySideW1Pools = new ConcurrentHashMap<>();
 
         Reporter(
                 FloatMatrix xTrain,
                 FloatMatrix yTrain,
                 FloatMatrix xTest,
                 int[] yTest,
-                BlockingQueue<ReportingTask> reportingQueue,
-                Collection<ReportingLine> outputCollection
+                EvaluationPool evaluationPool,
+                ReportLineWriter<ReportingLine> reportWriter,
+                ValidationTracker<MatrixPair> validationTracker,
+                TrainingLoss.Settings trainingLossSettings
         ) {
             this.xTrain = xTrain;
             this.yTrain = yTrain;
             this.xTest = xTest;
             this.yTest = yTest;
-            this.reportingQueue = reportingQueue;
-            this.outputCollection = outputCollection;
-            this.stopRequested = new AtomicBoolean();
+            this.evaluationPool = evaluationPool;
+            this.reportWriter = reportWriter;
+            this.validationTracker = validationTracker;
+            this.trainingLossSettings = trainingLossSettings;
         }
 
-        public void requestStop() {
-            stopRequested.set(true);
+        void report(ReportingTask task) {
+            report(List.of(task));
         }
 
-        @Override
-        public void run() {
+        /**
+         * The tasks are evaluated in batches of a power of 2 snapshots, the validation forward passes of a batch
+         * share the reading of the rows and the first layer product, see calculateMatchesCounts().
+         * The training loss is still estimated per snapshot.
+         */
+        void report(List<ReportingTask> tasks) {
+            int fromTask = 0;
+            while (fromTask < tasks.size()) {
+                var batchTasks = tasks.subList(fromTask, fromTask + Integer.highestOneBit(tasks.size() - fromTask));
+                var snapshots = new ArrayList<MatrixPair>(batchTasks.size());
+                for (var task : batchTasks) {
+                    snapshots.add(task.weights());
+                }
+                double[] matchesCounts = calculateMatchesCounts(snapshots);
+                for (int i = 0; i < batchTasks.size(); i++) {
+                    var task = batchTasks.get(i);
+                    var line = createLine(
+                            task.epoch(), task.batch(), task.w1(), task.w2(), task.windowLoss(), matchesCounts[i]);
+                    reportWriter.write(reportWriter.sequenceOf(task.epoch(), task.batch()), line);
+                }
+                fromTask += batchTasks.size();
+            }
+        }
+
+        // Records the accuracy in the validation tracker, but leaves the line to the caller
+        ReportingLine report(int epoch, int batch, FloatMatrix w1, FloatMatrix w2, double windowLoss) {
+            double matchesCount = calculateMatchesCounts(List.of(new MatrixPair(w1, w2)))[0];
+            return createLine(epoch, batch, w1, w2, windowLoss, matchesCount);
+        }
+
+        /**
+         * The validation matches of every snapshot. The first layer weights of the snapshots are put side by side,
+         * so one product per chunk of rows gives the hidden layers of all of them, then every snapshot gets its own
+         * output layer product. A single snapshot takes its first layer weights as they are.
+         */
+        private double[] calculateMatchesCounts(List<MatrixPair> snapshots) {
+            int size = snapshots.size();
+            var firstW1 = snapshots.get(0).first();
+            int hiddenNodes = firstW1.getColumnDimension();
+            var pool = size == 1 ? null : sideBySideW1Pools.computeIfAbsent(size, key -> new SnapshotPool<>(
+                    evaluationPool.getParallelism(),
+                    () -> FloatMatrix.ofZeros(firstW1.getRowDimension(), key * hiddenNodes)));
+            var w1 = pool == null ? firstW1 : pool.acquire();
             try {
-                while (!stopRequested.get()) {
-                    ReportingTask task = reportingQueue.poll(1000, TimeUnit.MILLISECONDS);
-                    if (task != null) {
-                        report(task.epoch(), task.batch(), task.w1(), task.w2());
+                for (int i = 0; pool != null && i < size; i++) {
+                    w1.copyRowsInPlace(snapshots.get(i).first(), 0, i * hiddenNodes);
+                }
+                var sideBySideW1 = w1;
+                return evaluationPool.sumOverRowChunks(xTest.getRowDimension(), size, (fromRow, toRow, matchesCounts) -> {
+                    var buffers = findChunkBuffers(toRow - fromRow, sideBySideW1, snapshots.get(0).second());
+                    buffers.forwardHidden(xTest, null, fromRow, sideBySideW1);
+                    for (int snapshot = 0; snapshot < size; snapshot++) {
+                        buffers.forwardOutput(snapshot, snapshots.get(snapshot).second());
+                        int[] classification = buffers.output.indexOfHighestPerRow(buffers.classification);
+                        for (int i = 0; i < classification.length; i++) {
+                            if (classification[i] == yTest[fromRow + i]) {
+                                matchesCounts[snapshot]++;
+                            }
+                        }
                     }
+                });
+            } finally {
+                if (pool != null) {
+                    pool.release(w1);
                 }
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted while waiting for queue", e);
             }
         }
 
-        private void report(int epoch, int batch, FloatMatrix w1, FloatMatrix w2) {
-            int[] classification = classify(xTest, w1, w2);
-            int matchesCount = 0;
-            for (int i = 0; i < yTest.length; i++) {
-                if (classification[i] == yTest[i]) {
-                    matchesCount++;
+        private ReportingLine createLine(
+                int epoch, int batch, FloatMatrix w1, FloatMatrix w2, double windowLoss, double matchesCount) {
+            float matchesPercentage = (float) (matchesCount * 100d / yTest.length);
+            var trainingLoss = estimateTrainingLoss(epoch, batch, w1, w2, windowLoss);
+            validationTracker.record(epoch, batch, matchesPercentage, new MatrixPair(w1, w2));
+            return new ReportingLine(
+                    epoch, batch, (float) trainingLoss.loss(), matchesPercentage, (float) trainingLoss.halfWidth());
+        }
+
+        private TrainingLoss.Estimate estimateTrainingLoss(
+                int epoch, int batch, FloatMatrix w1, FloatMatrix w2, double windowLoss) {
+            if (trainingLossSettings.isExact(batch)) {
+                double lossSum = evaluationPool.sumOverRowChunks(xTrain.getRowDimension(), (fromRow, toRow) ->
+                        -forwardChunk(xTrain, null, fromRow, toRow, w1, w2)
+                                .calculateRowLogLikelihoods(yTrain, null, fromRow).sum());
+                return TrainingLoss.Estimate.exact(lossSum / xTrain.getRowDimension());
+            }
+            if (trainingLossSettings.mode() == TrainingLoss.Mode.WINDOW) {
+                return TrainingLoss.Estimate.ofWindow(windowLoss);
+            }
+            int[] indices = trainingLossSettings.sampleIndices(
+                    epoch, batch, xTrain.getRowDimension(), FloatMatrix.DEFAULT_RANDOM_SEED);
+            double[] sums = evaluationPool.sumOverRowChunks(indices.length, 2, (fromRow, toRow, chunkSums) -> {
+                var rowLogLikelihoods = forwardChunk(xTrain, indices, fromRow, toRow, w1, w2)
+                        .calculateRowLogLikelihoods(yTrain, indices, fromRow);
+                chunkSums[0] = -rowLogLikelihoods.sum();
+                chunkSums[1] = rowLogLikelihoods.combineInPlace(rowLogLikelihoods, rowLogLikelihoods, (a, b) -> a * b).sum();
+            });
+            return TrainingLoss.Estimate.ofSample(sums[0], sums[1], indices.length);
+        }
+
+        // The rows fromRow until toRow of x, or the rows indices[fromRow] until indices[toRow] if indices isn't null
+        private ChunkBuffers forwardChunk(
+                FloatMatrix x, int[] indices, int fromRow, int toRow, FloatMatrix w1, FloatMatrix w2) {
+            var buffers = findChunkBuffers(toRow - fromRow, w1, w2);
+            buffers.forwardHidden(x, indices, fromRow, w1);
+            buffers.forwardOutput(0, w2);
+            return buffers;
+        }
+
+        private ChunkBuffers findChunkBuffers(int rows, FloatMatrix w1, FloatMatrix w2) {
+            var threadBuffers = chunkBuffers.get();
+            for (var buffers : threadBuffers) {
+                if (buffers.classification.length == rows
+                        && buffers.hidden.getColumnDimension() == w1.getColumnDimension()) {
+                    return buffers;
                 }
             }
-            float matchesPercentage = matchesCount * 100f / yTest.length;
-            var yHatH = calculateForward(xTrain, w1, w2);
-            var yHat = yHatH.first();
-            float trainingLoss = calculateLoss(yTrain, yHat);
-            outputCollection.add(new ReportingLine(epoch,batch, trainingLoss, matchesPercentage));
+            var buffers = new ChunkBuffers(rows, w1, w2);
+            threadBuffers.add(buffers);
+            return buffers;
         }
     }
 
-    record MatrixPair(FloatMatrix first, FloatMatrix second) {}
-    record ReportingTask(int epoch, int batch, FloatMatrix w1, FloatMatrix w2) {}
-    record ReportingLine(int epoch, int batch, float trainingLoss, float matchesPercentage) implements Comparable<ReportingLine>{
+    /**
+     * The buffers of the forward pass of one chunk size, the bias columns of ones are filled once. The rows are
+     * copied into them next to the bias column, so no prependColumn copies and no intermediate matrices are made.
+     */
+    private static final class ChunkBuffers {
+        private static final FloatMatrix.FloatBinaryOperator LOG_LIKELIHOOD =
+                (label, probability) -> label * (float) Math.log(probability);
+
+        private final FloatMatrix input;
+        private final FloatMatrix hidden;
+        private final FloatMatrix hiddenWithBias;
+        private final FloatMatrix output;
+        private final FloatMatrix labels;
+        private final FloatMatrix rowLogLikelihoods;
+        private final FloatMatrix classOnes;
+        private final int[] classification;
+
+        private ChunkBuffers(int rows, FloatMatrix w1, FloatMatrix w2) {
+            input = FloatMatrix.ofOnes(rows, w1.getRowDimension());
+            hidden = FloatMatrix.ofZeros(rows, w1.getColumnDimension());
+            hiddenWithBias = FloatMatrix.ofOnes(rows, w2.getRowDimension());
+            output = FloatMatrix.ofZeros(rows, w2.getColumnDimension());
+            labels = FloatMatrix.ofZeros(rows, w2.getColumnDimension());
+            rowLogLikelihoods = FloatMatrix.ofZeros(rows, 1);
+            classOnes = FloatMatrix.ofOnes(w2.getColumnDimension(), 1);
+            classification = new int[rows];
+        }
+
+        // The hidden layers of all the snapshots with their first layer weights side by side in w1
+        private void forwardHidden(FloatMatrix x, int[] indices, int fromRow, FloatMatrix w1) {
+            if (indices == null) {
+                input.copyRowsInPlace(x, fromRow, 1);
+            } else {
+                input.gatherRowsInPlace(x, indices, fromRow, 1);
+            }
+            hidden.multiplyInPlace(input, w1).applyInPlace(hidden, NeuralNetworkFloat::calculateReLu);
+        }
+
+        // Leaves the logits of the given snapshot in the output
+        private void forwardOutput(int snapshot, FloatMatrix w2) {
+            hiddenWithBias.copyColumnsInPlace(hidden, snapshot * (w2.getRowDimension() - 1), 1);
+            output.multiplyInPlace(hiddenWithBias, w2);
+        }
 
-        @Override
-        public int compareTo(ReportingLine o) {
-            int result = this.epoch - o.epoch;
-            if (result != 0) {
-                return result;
+        // After forwardOutput(), the sum of y * log(yHat) per row, so the loss is their negated sum. Overwrites the logits
+        private FloatMatrix calculateRowLogLikelihoods(FloatMatrix y, int[] indices, int fromRow) {
+            if (indices == null) {
+                labels.copyRowsInPlace(y, fromRow, 0);
+            } else {
+                labels.gatherRowsInPlace(y, indices, fromRow, 0);
             }
-            return this.batch - o.batch;
+            output.softmaxPerRowInPlace(output);
+            labels.combineInPlace(labels, output, LOG_LIKELIHOOD);
+            return rowLogLikelihoods.multiplyInPlace(labels, classOnes);
+        }
+    }
+
+    record MatrixPair(FloatMatrix first, FloatMatrix second) {
+        MatrixPair copy() {
+            return new MatrixPair(first.copy(), second.copy());
+        }
+    }
+    record TrainingResult(MatrixPair weights, int trainedEpochs) {}
+    // windowLoss is the mean loss of the batches trained since the previous task
+    record ReportingTask(int epoch, int batch, FloatMatrix w1, FloatMatrix w2, double windowLoss) {
+        static ReportingTask ofSnapshot(int epoch, int batch, MatrixPair snapshot, double windowLoss) {
+            return new ReportingTask(epoch, batch, snapshot.first(), snapshot.second(), windowLoss);
         }
 
+        MatrixPair weights() {
+            return new MatrixPair(w1, w2);
+        }
     }
+    // trainingLossHalfWidth is the half width of the training loss 95% confidence interval, see TrainingLoss.Estimate
+    record ReportingLine(int epoch, int batch, float trainingLoss, float matchesPercentage, float trainingLossHalfWidth) {}
 
 }
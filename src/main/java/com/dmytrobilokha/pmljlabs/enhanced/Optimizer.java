@@ -0,0 +1,111 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.util.List;
+
+/**
+ * Updates weights in place with their gradients. The optimizer state (velocities, moments) is allocated once,
+ * on the first update, and then updated in place by the fused matrix kernels, so a step allocates nothing.
+ * The weights must come in the same order on every call, because the state is matched to them by the position.
+ * An optimizer is not thread safe.
+ */
+public interface Optimizer<M> {
+
+    double MOMENTUM = 0.9d;
+    double ADAM_BETA1 = 0.9d;
+    double ADAM_BETA2 = 0.999d;
+    double ADAM_EPSILON = 1e-8d;
+
+    void update(List<M> weights, List<M> gradients);
+
+    double getLearningRate();
+
+    // Could be changed between the updates, e.g. by a learning rate schedule
+    void setLearningRate(double learningRate);
+
+    // The state matrices in a fixed order, empty before the first update. These are live, a checkpoint has to copy them
+    List<M> getState();
+
+    // The scalar part of the state, e.g. the Adam bias correction powers
+    default double[] getStateScalars() {
+        return new double[0];
+    }
+
+    // Continues from the state got with getState and getStateScalars, the matrices are used as they are
+    void restoreState(List<M> state, double[] scalars);
+
+    static Optimizer<DoubleMatrix> forDoubleMatrices(OptimizerSettings settings) {
+        return create(settings, new Kernels<>() {
+            @Override
+            public DoubleMatrix createState(DoubleMatrix weights) {
+                return DoubleMatrix.ofZerosSizedAs(weights);
+            }
+
+            @Override
+            public void sgd(DoubleMatrix weights, DoubleMatrix gradient, double lr) {
+                weights.addScaledInPlace(gradient, -lr);
+            }
+
+            @Override
+            public void momentum(DoubleMatrix weights, DoubleMatrix velocity, DoubleMatrix gradient,
+                                 double lr, boolean nesterov) {
+                weights.applyMomentumInPlace(velocity, gradient, lr, MOMENTUM, nesterov);
+            }
+
+            @Override
+            public void adam(DoubleMatrix weights, DoubleMatrix firstMoment, DoubleMatrix secondMoment,
+                             DoubleMatrix gradient, double correctedLr) {
+                weights.applyAdamInPlace(
+                        firstMoment, secondMoment, gradient, correctedLr, ADAM_BETA1, ADAM_BETA2, ADAM_EPSILON);
+            }
+        });
+    }
+
+    static Optimizer<FloatMatrix> forFloatMatrices(OptimizerSettings settings) {
+        return create(settings, new Kernels<>() {
+            @Override
+            public FloatMatrix createState(FloatMatrix weights) {
+                return FloatMatrix.ofZerosSizedAs(weights);
+            }
+
+            @Override
+            public void sgd(FloatMatrix weights, FloatMatrix gradient, double lr) {
+                weights.addScaledInPlace(gradient, (float) -lr);
+            }
+
+            @Override
+            public void momentum(FloatMatrix weights, FloatMatrix velocity, FloatMatrix gradient,
+                                 double lr, boolean nesterov) {
+                weights.applyMomentumInPlace(velocity, gradient, (float) lr, (float) MOMENTUM, nesterov);
+            }
+
+            @Override
+            public void adam(FloatMatrix weights, FloatMatrix firstMoment, FloatMatrix secondMoment,
+                             FloatMatrix gradient, double correctedLr) {
+                weights.applyAdamInPlace(firstMoment, secondMoment, gradient, (float) correctedLr,
+                        (float) ADAM_BETA1, (float) ADAM_BETA2, (float) ADAM_EPSILON);
+            }
+        });
+    }
+
+    private static <M> Optimizer<M> create(OptimizerSettings settings, Kernels<M> kernels) {
+        return switch (settings.type()) {
+            case SGD -> new SgdOptimizer<>(kernels, settings.learningRate());
+            case MOMENTUM -> new MomentumOptimizer<>(kernels, settings.learningRate(), false);
+            case NESTEROV -> new MomentumOptimizer<>(kernels, settings.learningRate(), true);
+            case ADAM -> new AdamOptimizer<>(kernels, settings.learningRate());
+        };
+    }
+
+    interface Kernels<M> {
+        M createState(M weights);
+
+        void sgd(M weights, M gradient, double lr);
+
+        void momentum(M weights, M velocity, M gradient, double lr, boolean nesterov);
+
+        void adam(M weights, M firstMoment, M secondMoment, M gradient, double correctedLr);
+    }
+
+}
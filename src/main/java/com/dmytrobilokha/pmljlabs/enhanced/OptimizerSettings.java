@@ -0,0 +1,46 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+/**
+ * Optimizer type with its learning rate, parsed from "type" or "type:learningRate", e.g. "adam" or "nesterov:0.02".
+ * Without the learning rate the default one of the type is taken.
+ */
+public record OptimizerSettings(Type type, double learningRate) {
+
+    public static OptimizerSettings parse(String value) {
+        String[] parts = value.split(":");
+        if (parts.length > 2) {
+            throw new IllegalArgumentException("Expected optimizer as type or type:learningRate, but got '" + value + "'");
+        }
+        Type type;
+        try {
+            type = Type.valueOf(parts[0].trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown optimizer type: " + parts[0], e);
+        }
+        double learningRate = parts.length == 2 ? Double.parseDouble(parts[1]) : type.defaultLearningRate;
+        if (learningRate <= 0d) {
+            throw new IllegalArgumentException("Learning rate must be positive, but got " + learningRate);
+        }
+        return new OptimizerSettings(type, learningRate);
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + ":" + learningRate;
+    }
+
+    public enum Type {
+        SGD(0.25d),
+        // The same effective step as SGD, because the velocity sums up to 1 / (1 - momentum) steps
+        MOMENTUM(0.025d),
+        NESTEROV(0.025d),
+        ADAM(0.001d);
+
+        private final double defaultLearningRate;
+
+        Type(double defaultLearningRate) {
+            this.defaultLearningRate = defaultLearningRate;
+        }
+    }
+
+}
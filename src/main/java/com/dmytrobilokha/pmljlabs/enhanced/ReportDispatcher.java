@@ -0,0 +1,102 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Takes the snapshots from the reporting queue and runs their reports on the evaluation pool, no more at a time
+ * than the pool has workers. So the snapshots not being evaluated yet stay in the bounded queue,
+ * where its policy applies, instead of piling up in the pool.
+ * <p>
+ * A report gets the snapshot taken from the queue together with the ones already waiting behind it,
+ * up to the maximum batch, so the evaluator could share the work between them.
+ */
+final class ReportDispatcher<T> implements AutoCloseable {
+
+    private final ReportingQueue<T> queue;
+    private final EvaluationPool pool;
+    private final int maxBatch;
+    private final Consumer<List<T>> report;
+    private final int slotCount;
+    private final Semaphore slots;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private final Thread thread;
+    private volatile boolean draining;
+
+    ReportDispatcher(ReportingQueue<T> queue, EvaluationPool pool, Consumer<T> report) {
+        this(queue, pool, 1, batch -> report.accept(batch.get(0)));
+    }
+
+    ReportDispatcher(ReportingQueue<T> queue, EvaluationPool pool, int maxBatch, Consumer<List<T>> report) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Minimum report batch is 1 snapshot, but got " + maxBatch);
+        }
+        this.queue = queue;
+        this.pool = pool;
+        this.maxBatch = maxBatch;
+        this.report = report;
+        this.slotCount = pool.getParallelism();
+        this.slots = new Semaphore(slotCount);
+        this.thread = new Thread(this::dispatch, "report-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                slots.acquire();
+                T snapshot = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (snapshot == null) {
+                    slots.release();
+                    if (draining && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                var batch = new ArrayList<T>(maxBatch);
+                batch.add(snapshot);
+                while (batch.size() < maxBatch) {
+                    T next = queue.poll(0L, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                pool.execute(() -> {
+                    try {
+                        report.accept(batch);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called once nothing is submitted anymore, waits until every queued snapshot is reported
+    @Override
+    public void close() {
+        draining = true;
+        try {
+            thread.join();
+            slots.acquire(slotCount);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Got interrupted while waiting for the reports", e);
+        }
+        slots.release(slotCount);
+        if (failure.get() != null) {
+            throw new RuntimeException("Report has failed", failure.get());
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Appends the report lines to the text file, and optionally their records to a binary log, as the reports come in,
+ * so the run could be followed while it goes and a crash loses only the lines not flushed yet.
+ * <p>
+ * The reports finish in any order, so every report point of the run gets a sequence number, see sequenceOf().
+ * A line waits in a small reordering buffer until the lines of all the previous report points are written
+ * or skipped, a report point is skipped when its task is dropped by the reporting queue. The files are flushed
+ * once a second at most, when a line comes, and on close. Thread safe.
+ */
+public final class ReportLineWriter<T> implements AutoCloseable {
+
+    private static final long FLUSH_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final Path textPath;
+    private final Function<T, String> textFormat;
+    private final BinaryFormat<T> binaryFormat;
+    private final int reportPeriod;
+    private final int reportsPerEpoch;
+    private final FileChannel textChannel;
+    private final BufferedWriter textWriter;
+    private final FileChannel binaryChannel;
+    private final DataOutputStream binaryOutput;
+    // The lines which came before their turn, null for a skipped report point
+    private final TreeMap<Long, T> pending = new TreeMap<>();
+    private long nextSequence;
+    private long lastFlushNanos = System.nanoTime();
+
+    /**
+     * The binary path and format could be null, then there is no binary log. If resumeFrom isn't null, the files
+     * are cut to the sizes they had when its state was taken and the writer continues from there.
+     */
+    public ReportLineWriter(Path textPath, Function<T, String> textFormat, Path binaryPath, BinaryFormat<T> binaryFormat,
+                            int batchesPerEpoch, int reportPeriod, State<T> resumeFrom) {
+        if (reportPeriod < 1) {
+            throw new IllegalArgumentException("Minimum report period is 1 batch, but got " + reportPeriod);
+        }
+        if (resumeFrom != null && binaryPath != null && resumeFrom.binaryBytes() < 0L) {
+            throw new IllegalArgumentException("The stopped run has no binary log to continue");
+        }
+        this.textPath = textPath;
+        this.textFormat = textFormat;
+        this.binaryFormat = binaryFormat;
+        this.reportPeriod = reportPeriod;
+        this.reportsPerEpoch = (batchesPerEpoch + reportPeriod - 1) / reportPeriod;
+        this.textChannel = open(textPath, resumeFrom == null ? -1L : resumeFrom.textBytes());
+        this.textWriter = new BufferedWriter(
+                new OutputStreamWriter(Channels.newOutputStream(textChannel), StandardCharsets.UTF_8));
+        if (binaryPath != null) {
+            this.binaryChannel = open(binaryPath, resumeFrom == null ? -1L : resumeFrom.binaryBytes());
+            this.binaryOutput = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(binaryChannel)));
+        } else {
+            this.binaryChannel = null;
+            this.binaryOutput = null;
+        }
+        if (resumeFrom != null) {
+            nextSequence = resumeFrom.nextSequence();
+            pending.putAll(resumeFrom.pending());
+        }
+    }
+
+    // Truncates the file, or cuts it to the given size if that isn't negative
+    private static FileChannel open(Path path, long bytes) {
+        try {
+            if (bytes < 0L) {
+                return FileChannel.open(path,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            var channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            long size = channel.size();
+            if (size < bytes) {
+                channel.close();
+                throw new RuntimeException("The file " + path + " has only " + size
+                        + " bytes, but the stopped run has written " + bytes);
+            }
+            channel.truncate(bytes);
+            channel.position(bytes);
+            return channel;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open the report file: " + path, e);
+        }
+    }
+
+    // Report points are the batches with the index divisible by the report period, numbered from 0 across the epochs
+    public long sequenceOf(int epoch, int batch) {
+        return (long) epoch * reportsPerEpoch + batch / reportPeriod;
+    }
+
+    // A line for a report point already written or waiting, e.g. reported again after a resume, is ignored
+    public synchronized void write(long sequence, T line) {
+        accept(sequence, line);
+    }
+
+    public synchronized void skip(long sequence) {
+        accept(sequence, null);
+    }
+
+    private void accept(long sequence, T line) {
+        if (sequence < nextSequence || pending.containsKey(sequence)) {
+            return;
+        }
+        pending.put(sequence, line);
+        try {
+            while (!pending.isEmpty() && pending.firstKey() == nextSequence) {
+                append(pending.pollFirstEntry().getValue());
+                nextSequence++;
+            }
+            if (System.nanoTime() - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+                flushFiles();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the report line to " + textPath, e);
+        }
+    }
+
+    private void append(T line) throws IOException {
+        if (line == null) {
+            return;
+        }
+        textWriter.write(textFormat.apply(line));
+        textWriter.newLine();
+        if (binaryOutput != null) {
+            binaryFormat.write(binaryOutput, line);
+        }
+    }
+
+    private void flushFiles() throws IOException {
+        textWriter.flush();
+        if (binaryOutput != null) {
+            binaryOutput.flush();
+        }
+        lastFlushNanos = System.nanoTime();
+    }
+
+    // Flushes the files first, so a checkpoint with the state never refers to the bytes still in the buffers
+    public synchronized State<T> getState() {
+        try {
+            flushFiles();
+            return new State<>(nextSequence, textChannel.position(),
+                    binaryChannel == null ? -1L : binaryChannel.position(), new TreeMap<>(pending));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to flush the report lines to " + textPath, e);
+        }
+    }
+
+    // Lines still waiting for the previous report points, which could only happen if the run has failed, go in order
+    @Override
+    public synchronized void close() {
+        try (textChannel; binaryChannel) {
+            for (var line : pending.values()) {
+                append(line);
+            }
+            pending.clear();
+            flushFiles();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close the report file " + textPath, e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface BinaryFormat<T> {
+        void write(DataOutputStream output, T line) throws IOException;
+    }
+
+    /**
+     * What a resumed run needs to continue the files: the next sequence number to write, the file sizes, -1 for
+     * no binary log, and the reordering buffer, where a null line stands for a skipped report point.
+     */
+    public record State<T>(long nextSequence, long textBytes, long binaryBytes, SortedMap<Long, T> pending) {
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of the weight snapshots from the trainer to the reporters. Every snapshot holds copies of all
+ * the weights, so however slow the evaluation is, the queue never holds more than its capacity of them.
+ * When the queue is full, the policy decides:
+ * <ul>
+ *     <li>BLOCK - the trainer waits for a free slot, every snapshot gets reported;</li>
+ *     <li>DROP - the new snapshot is dropped, the queued ones are reported;</li>
+ *     <li>COALESCE - the oldest queued snapshot is dropped, so the reporters always move towards the latest one.</li>
+ * </ul>
+ * The dropped snapshots are given to the drop listener. submit() could be called from several training threads.
+ */
+public final class ReportingQueue<T> {
+
+    private final Settings settings;
+    private final BlockingQueue<T> queue;
+    private final Consumer<T> dropListener;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    public ReportingQueue(Settings settings, Consumer<T> dropListener) {
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<>(settings.capacity());
+        this.dropListener = dropListener;
+    }
+
+    public ReportingQueue(Settings settings) {
+        this(settings, snapshot -> { });
+    }
+
+    public void submit(T snapshot) {
+        submitted.incrementAndGet();
+        if (!queue.offer(snapshot)) {
+            switch (settings.policy()) {
+                case BLOCK -> putWaiting(snapshot);
+                case DROP -> drop(snapshot);
+                case COALESCE -> {
+                    while (!queue.offer(snapshot)) {
+                        var oldest = queue.poll();
+                        if (oldest != null) {
+                            drop(oldest);
+                        }
+                    }
+                }
+            }
+        }
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    private void putWaiting(T snapshot) {
+        long startNanos = System.nanoTime();
+        try {
+            queue.put(snapshot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Got interrupted while waiting for a free reporting slot", e);
+        } finally {
+            blockedNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void drop(T snapshot) {
+        dropped.incrementAndGet();
+        dropListener.accept(snapshot);
+    }
+
+    // Null if nothing has come within the timeout
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Time the trainers have spent waiting with the BLOCK policy
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    public String describeMetrics() {
+        return "policy=" + settings + ", submitted=" + submitted.get() + ", dropped=" + dropped.get()
+                + ", maxDepth=" + maxDepth.get() + ", blockedSeconds=" + blockedNanos.get() / 1e9d;
+    }
+
+    /**
+     * Parsed from "policy" or "policy:capacity", e.g. "coalesce" or "block:40".
+     */
+    public record Settings(Policy policy, int capacity) {
+
+        public Settings {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Minimum reporting queue capacity is 1, but got " + capacity);
+            }
+        }
+
+        public static Settings parse(String value, int defaultCapacity) {
+            String[] parts = value.split(":");
+            if (parts.length > 2) {
+                throw new IllegalArgumentException("Expected reporting as policy or policy:capacity, but got '"
+                        + value + "'");
+            }
+            Policy policy;
+            try {
+                policy = Policy.valueOf(parts[0].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown reporting policy: " + parts[0], e);
+            }
+            return new Settings(policy, parts.length == 2 ? Integer.parseInt(parts[1]) : defaultCapacity);
+        }
+
+        @Override
+        public String toString() {
+            return policy.name().toLowerCase() + ":" + capacity;
+        }
+    }
+
+    public enum Policy {
+        BLOCK, DROP, COALESCE
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.List;
+
+final class SgdOptimizer<M> implements Optimizer<M> {
+
+    private final Kernels<M> kernels;
+    private double learningRate;
+
+    SgdOptimizer(Kernels<M> kernels, double learningRate) {
+        this.kernels = kernels;
+        this.learningRate = learningRate;
+    }
+
+    @Override
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    @Override
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    @Override
+    public List<M> getState() {
+        return List.of();
+    }
+
+    @Override
+    public void restoreState(List<M> state, double[] scalars) {
+        if (!state.isEmpty() || scalars.length != 0) {
+            throw new IllegalArgumentException("SGD has no state, but got " + state.size() + " matrices and "
+                    + scalars.length + " scalars");
+        }
+    }
+
+    @Override
+    public void update(List<M> weights, List<M> gradients) {
+        for (int i = 0; i < weights.size(); i++) {
+            kernels.sgd(weights.get(i), gradients.get(i), learningRate);
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Recycled buffers for the weight snapshots. The trainer updates its weights in place and, at a report point only,
+ * copies them into a buffer acquired here; the snapshot is versioned by the step of its reporting task.
+ * Whoever finishes with the snapshot, the reporter or the drop listener of the reporting queue, releases it back.
+ * <p>
+ * The pool keeps up to its capacity of released buffers. If none is free, acquire() creates a new one rather than
+ * waits, so a pool sized below the snapshots in flight costs allocations, but never stalls the training.
+ * Thread safe.
+ */
+public final class SnapshotPool<W> {
+
+    private final BlockingQueue<W> free;
+    private final Supplier<W> factory;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    public SnapshotPool(int capacity, Supplier<W> factory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Minimum snapshot pool capacity is 1, but got " + capacity);
+        }
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.factory = factory;
+    }
+
+    public W acquire() {
+        acquired.incrementAndGet();
+        var buffer = free.poll();
+        if (buffer == null) {
+            created.incrementAndGet();
+            buffer = factory.get();
+        }
+        return buffer;
+    }
+
+    // The buffer must not be used after that. A buffer over the capacity, e.g. not from this pool, is left to the GC
+    public void release(W buffer) {
+        free.offer(buffer);
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public String describeMetrics() {
+        return "acquired=" + acquired.get() + ", created=" + created.get() + ", free=" + free.size();
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Softmax over the logits of every row with the mean cross entropy loss. Together they have the simple gradient
+ * (probabilities - labels) / rows by the logits, so the head starts the backward pass right from the labels.
+ */
+public final class SoftmaxCrossEntropyHead {
+
+    private final BatchBuffers<Buffers> batchBuffers = new BatchBuffers<>(Buffers::new);
+    private Buffers buffers;
+
+    // The class probabilities, valid until the next call with the same number of rows
+    public DoubleMatrix forward(DoubleMatrix logits) {
+        buffers = batchBuffers.get(logits.getRowDimension());
+        if (buffers.probabilities == null) {
+            buffers.probabilities = DoubleMatrix.ofZerosSizedAs(logits);
+        }
+        return buffers.probabilities.softmaxPerRowInPlace(logits);
+    }
+
+    // The loss gradient by the logits of the last forward call, for the one-hot encoded labels
+    public DoubleMatrix backward(DoubleMatrix labels) {
+        if (buffers.logitsGradient == null) {
+            buffers.logitsGradient = DoubleMatrix.ofZerosSizedAs(buffers.probabilities);
+        }
+        return buffers.logitsGradient.combineInPlace(buffers.probabilities, labels, buffers.scaledDifference);
+    }
+
+    // Mean cross entropy of the last forward call, allocates, so meant for the reporting only
+    public double calculateLoss(DoubleMatrix labels) {
+        var logProbabilities = buffers.probabilities.apply(Math::log);
+        return -labels.multiplyElements(logProbabilities).sum() / labels.getRowDimension();
+    }
+
+    private static final class Buffers {
+        // Created once per batch size, so the per-step call doesn't allocate a capturing lambda
+        private final DoubleBinaryOperator scaledDifference;
+        private DoubleMatrix probabilities;
+        private DoubleMatrix logitsGradient;
+
+        private Buffers(int rows) {
+            double scale = 1d / rows;
+            this.scaledDifference = (probability, label) -> (probability - label) * scale;
+        }
+    }
+
+}
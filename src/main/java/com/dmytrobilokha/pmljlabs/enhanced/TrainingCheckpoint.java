@@ -0,0 +1,265 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything NeuralNetwork needs to continue a run exactly where it has stopped: the weights, the optimizer and
+ * learning rate schedule state, the number of batches done, the validation tracker state, the report line writer
+ * state and the reporting tasks not reported yet. The random batch order isn't stored, DataLoader replays it from the seed.
+ * <p>
+ * The binary format is the magic number and the version followed by the fields in order, a matrix is its dimensions
+ * followed by the values row by row. The file is replaced atomically, so a run killed in the middle of a write
+ * leaves the previous checkpoint intact.
+ */
+record TrainingCheckpoint(
+        long nextStep,
+        int batchesPerEpoch,
+        OptimizerSettings.Type optimizerType,
+        double learningRate,
+        NeuralNetwork.MatrixPair weights,
+        List<DoubleMatrix> optimizerState,
+        double[] optimizerScalars,
+        double[] scheduleState,
+        ValidationTracker.State<NeuralNetwork.MatrixPair> validationState,
+        ReportLineWriter.State<NeuralNetwork.ReportingLine> reportWriterState,
+        List<NeuralNetwork.ReportingTask> unreportedTasks) {
+
+    private static final int MAGIC_NUMBER = 0x504d4c43;
+    private static final int VERSION = 3;
+
+    static TrainingCheckpoint read(Path path) {
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            int magicNumber = input.readInt();
+            if (magicNumber != MAGIC_NUMBER) {
+                throw new RuntimeException("Magic number of a checkpoint file is wrong: "
+                        + Integer.toHexString(magicNumber));
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new RuntimeException("Expected checkpoint version " + VERSION + ", but got " + version);
+            }
+            long nextStep = input.readLong();
+            int batchesPerEpoch = input.readInt();
+            var optimizerType = OptimizerSettings.Type.valueOf(input.readUTF());
+            double learningRate = input.readDouble();
+            var weights = readMatrixPair(input);
+            var optimizerState = new ArrayList<DoubleMatrix>();
+            for (int i = input.readInt(); i > 0; i--) {
+                optimizerState.add(readMatrix(input));
+            }
+            var optimizerScalars = readDoubles(input);
+            var scheduleState = readDoubles(input);
+            var validationState = new ValidationTracker.State<>(input.readLong(), input.readLong(), input.readDouble(),
+                    input.readBoolean() ? readMatrixPair(input) : null);
+            long nextSequence = input.readLong();
+            long textBytes = input.readLong();
+            long binaryBytes = input.readLong();
+            var pendingLines = new TreeMap<Long, NeuralNetwork.ReportingLine>();
+            for (int i = input.readInt(); i > 0; i--) {
+                pendingLines.put(input.readLong(), input.readBoolean() ? new NeuralNetwork.ReportingLine(
+                        input.readInt(), input.readInt(), input.readDouble(), input.readDouble(), input.readDouble()) : null);
+            }
+            var reportWriterState = new ReportLineWriter.State<>(nextSequence, textBytes, binaryBytes, pendingLines);
+            var unreportedTasks = new ArrayList<NeuralNetwork.ReportingTask>();
+            for (int i = input.readInt(); i > 0; i--) {
+                int epoch = input.readInt();
+                int batch = input.readInt();
+                double windowLoss = input.readDouble();
+                unreportedTasks.add(new NeuralNetwork.ReportingTask(
+                        epoch, batch, readMatrix(input), readMatrix(input), windowLoss));
+            }
+            return new TrainingCheckpoint(nextStep, batchesPerEpoch, optimizerType, learningRate, weights,
+                    optimizerState, optimizerScalars, scheduleState, validationState, reportWriterState, unreportedTasks);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the checkpoint file: " + path, e);
+        }
+    }
+
+    // Writes to a temporary file next to the target, forces it to the disk and only then moves it over the target
+    void write(Path path) {
+        var temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(temporaryPath,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            writeTo(output);
+            output.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the checkpoint file: " + temporaryPath, e);
+        }
+        try {
+            Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replace the checkpoint file: " + path, e);
+        }
+    }
+
+    private void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC_NUMBER);
+        output.writeInt(VERSION);
+        output.writeLong(nextStep);
+        output.writeInt(batchesPerEpoch);
+        output.writeUTF(optimizerType.name());
+        output.writeDouble(learningRate);
+        writeMatrixPair(output, weights);
+        output.writeInt(optimizerState.size());
+        for (var matrix : optimizerState) {
+            writeMatrix(output, matrix);
+        }
+        writeDoubles(output, optimizerScalars);
+        writeDoubles(output, scheduleState);
+        output.writeLong(validationState.bestStep());
+        output.writeLong(validationState.latestStep());
+        output.writeDouble(validationState.bestAccuracy());
+        output.writeBoolean(validationState.bestWeights() != null);
+        if (validationState.bestWeights() != null) {
+            writeMatrixPair(output, validationState.bestWeights());
+        }
+        output.writeLong(reportWriterState.nextSequence());
+        output.writeLong(reportWriterState.textBytes());
+        output.writeLong(reportWriterState.binaryBytes());
+        output.writeInt(reportWriterState.pending().size());
+        for (var entry : reportWriterState.pending().entrySet()) {
+            output.writeLong(entry.getKey());
+            var line = entry.getValue();
+            // A skipped report point has no line
+            output.writeBoolean(line != null);
+            if (line == null) {
+                continue;
+            }
+            output.writeInt(line.epoch());
+            output.writeInt(line.batch());
+            output.writeDouble(line.trainingLoss());
+            output.writeDouble(line.matchesPercentage());
+            output.writeDouble(line.trainingLossHalfWidth());
+        }
+        output.writeInt(unreportedTasks.size());
+        for (var task : unreportedTasks) {
+            output.writeInt(task.epoch());
+            output.writeInt(task.batch());
+            output.writeDouble(task.windowLoss());
+            writeMatrix(output, task.w1());
+            writeMatrix(output, task.w2());
+        }
+    }
+
+    private static void writeMatrixPair(DataOutputStream output, NeuralNetwork.MatrixPair pair) throws IOException {
+        writeMatrix(output, pair.first());
+        writeMatrix(output, pair.second());
+    }
+
+    private static NeuralNetwork.MatrixPair readMatrixPair(DataInputStream input) throws IOException {
+        return new NeuralNetwork.MatrixPair(readMatrix(input), readMatrix(input));
+    }
+
+    private static void writeMatrix(DataOutputStream output, DoubleMatrix matrix) throws IOException {
+        output.writeInt(matrix.getRowDimension());
+        output.writeInt(matrix.getColumnDimension());
+        for (double[] row : matrix.getData()) {
+            for (double value : row) {
+                output.writeDouble(value);
+            }
+        }
+    }
+
+    private static DoubleMatrix readMatrix(DataInputStream input) throws IOException {
+        double[][] data = new double[input.readInt()][input.readInt()];
+        for (double[] row : data) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = input.readDouble();
+            }
+        }
+        return DoubleMatrix.with2dArray(data);
+    }
+
+    private static void writeDoubles(DataOutputStream output, double[] values) throws IOException {
+        output.writeInt(values.length);
+        for (double value : values) {
+            output.writeDouble(value);
+        }
+    }
+
+    private static double[] readDoubles(DataInputStream input) throws IOException {
+        double[] values = new double[input.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = input.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Writes the checkpoints on its own thread, so the training only pays for taking the copies. If a checkpoint
+     * is still waiting for the writer when the next one comes, only the newer one gets written.
+     */
+    static final class Writer implements AutoCloseable {
+        private final Path path;
+        private final AtomicReference<TrainingCheckpoint> pending = new AtomicReference<>();
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Of the latest write only, a later successful one replaces the checkpoint the failed one has left stale
+        private volatile RuntimeException latestFailure;
+
+        Writer(Path path) {
+            this.path = path;
+        }
+
+        void save(TrainingCheckpoint checkpoint) {
+            if (pending.getAndSet(checkpoint) == null) {
+                executor.execute(this::writePending);
+            }
+        }
+
+        // A failed write doesn't stop the training, the previous checkpoint stays until the next write
+        private void writePending() {
+            var checkpoint = pending.getAndSet(null);
+            try {
+                checkpoint.write(path);
+                latestFailure = null;
+            } catch (RuntimeException e) {
+                System.err.println("Failed to write checkpoint of step " + checkpoint.nextStep() + ": " + e);
+                latestFailure = e;
+            }
+        }
+
+        // Waits for the last checkpoint to be written, fails if it hasn't been, so a later resume doesn't silently
+        // start from an older one
+        @Override
+        public void close() {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.MINUTES)) {
+                    throw new RuntimeException("Timed out waiting for the checkpoint to be written");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Got interrupted while waiting for the checkpoint to be written", e);
+            }
+            if (latestFailure != null) {
+                throw new RuntimeException("Failed to write the latest checkpoint to " + path, latestFailure);
+            }
+        }
+    }
+
+}
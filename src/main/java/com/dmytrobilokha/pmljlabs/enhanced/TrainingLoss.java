@@ -0,0 +1,120 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.SplittableRandom;
+
+/**
+ * Cheaper training loss for the reports. The exact loss needs the forward pass over the whole training set,
+ * which costs more than the rest of a report, so the mode decides what a report gets instead:
+ * <ul>
+ *     <li>WINDOW - the mean loss of the batches trained since the previous report, the trainer gets it from
+ *     the forward passes it does anyway;</li>
+ *     <li>SAMPLED - the mean loss over a random sample of the training rows, with its 95% confidence interval;</li>
+ *     <li>EXACT - the loss over the whole training set, for every report.</li>
+ * </ul>
+ * Whatever the mode, the first report of every epoch gets the exact loss.
+ */
+public final class TrainingLoss {
+
+    public static final String DEFAULT = "window";
+    public static final int DEFAULT_SAMPLE_ROWS = 2000;
+    // Two-sided 95% quantile of the standard normal distribution
+    private static final double Z_95 = 1.959963984540054d;
+
+    private TrainingLoss() {
+    }
+
+    /**
+     * Parsed from "window", "exact", "sampled" or "sampled:rows", e.g. "sampled:5000".
+     */
+    public record Settings(Mode mode, int sampleRows) {
+
+        public Settings {
+            if (mode == Mode.SAMPLED && sampleRows < 2) {
+                throw new IllegalArgumentException("Minimum training loss sample is 2 rows, but got " + sampleRows);
+            }
+        }
+
+        public static Settings parse(String value) {
+            String[] parts = value.split(":");
+            Mode mode;
+            try {
+                mode = Mode.valueOf(parts[0].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown training loss mode: " + parts[0], e);
+            }
+            if (parts.length > 2 || (parts.length == 2 && mode != Mode.SAMPLED)) {
+                throw new IllegalArgumentException("Expected training loss as window, exact or sampled[:rows], but got '"
+                        + value + "'");
+            }
+            return new Settings(mode, parts.length == 2 ? Integer.parseInt(parts[1]) : DEFAULT_SAMPLE_ROWS);
+        }
+
+        public boolean isExact(int batch) {
+            return mode == Mode.EXACT || batch == 0;
+        }
+
+        // The same rows for the same step, whichever reporter gets it, rows could repeat
+        public int[] sampleIndices(int epoch, int batch, int rows, long seed) {
+            var random = new SplittableRandom(seed ^ ((long) epoch << 32 | batch));
+            int[] indices = new int[sampleRows];
+            for (int i = 0; i < sampleRows; i++) {
+                indices[i] = random.nextInt(rows);
+            }
+            return indices;
+        }
+
+        @Override
+        public String toString() {
+            return mode == Mode.SAMPLED ? "sampled:" + sampleRows : mode.name().toLowerCase();
+        }
+    }
+
+    public enum Mode {
+        WINDOW, SAMPLED, EXACT
+    }
+
+    /**
+     * The loss with the half width of its 95% confidence interval: 0 for the exact loss,
+     * NaN for the window mean, as the batches of a window are trained with different weights.
+     */
+    public record Estimate(double loss, double halfWidth) {
+
+        public static Estimate exact(double loss) {
+            return new Estimate(loss, 0d);
+        }
+
+        public static Estimate ofWindow(double meanLoss) {
+            return new Estimate(meanLoss, Double.NaN);
+        }
+
+        // From the sum and the sum of squares of the per row losses of the sample
+        public static Estimate ofSample(double sum, double sumOfSquares, int rows) {
+            double mean = sum / rows;
+            double variance = Math.max(0d, (sumOfSquares - sum * mean) / (rows - 1));
+            return new Estimate(mean, Z_95 * Math.sqrt(variance / rows));
+        }
+    }
+
+    /**
+     * Sums the batch losses until the next report takes their mean. Called from every training thread,
+     * so a Hogwild window has the batches of all the workers.
+     */
+    public static final class Window {
+        private double lossSum;
+        private long rows;
+
+        public synchronized void add(double batchLossSum, int batchRows) {
+            lossSum += batchLossSum;
+            rows += batchRows;
+        }
+
+        // NaN if no batch has been added since the previous call
+        public synchronized double takeMean() {
+            double mean = rows == 0L ? Double.NaN : lossSum / rows;
+            lossSum = 0d;
+            rows = 0L;
+            return mean;
+        }
+    }
+
+}
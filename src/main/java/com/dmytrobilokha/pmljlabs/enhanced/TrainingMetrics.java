@@ -0,0 +1,240 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+
+/**
+ * Live metrics of a run, to watch it while it goes without attaching a profiler. The trainers record every step,
+ * the rest is read from the reporting queue, the validation tracker and the JVM when the metrics are asked for.
+ * Exposed as a JMX MBean, see register(), and in the Prometheus text format, see formatPrometheus().
+ * <p>
+ * The samples per second and the step latency percentiles are over the latest RECENT_STEPS steps only,
+ * so they follow the run rather than average over all of it. Recording a step allocates nothing.
+ * Thread safe.
+ */
+public final class TrainingMetrics implements TrainingMetricsMBean, AutoCloseable {
+
+    static final int RECENT_STEPS = 1024;
+    static final String OBJECT_NAME = "com.dmytrobilokha.pmljlabs:type=TrainingMetrics";
+    private static final String PREFIX = "pmljlabs_";
+    private static final double[] QUANTILES = {0.5d, 0.9d, 0.99d};
+
+    private final int batchesPerEpoch;
+    private final ReportingQueue<?> reportingQueue;
+    private final ValidationTracker<?> validationTracker;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    // Ring of the latest steps, the slot of a step is its number modulo RECENT_STEPS
+    private final long[] stepEndNanos = new long[RECENT_STEPS];
+    private final long[] stepLatencyNanos = new long[RECENT_STEPS];
+    private final int[] stepRows = new int[RECENT_STEPS];
+    private long steps;
+    private long samples;
+    private long latencySumNanos;
+    private long latestStep = -1L;
+    private ObjectName registeredName;
+
+    public TrainingMetrics(int batchesPerEpoch, ReportingQueue<?> reportingQueue, ValidationTracker<?> validationTracker) {
+        if (batchesPerEpoch < 1) {
+            throw new IllegalArgumentException("Minimum number of batches per epoch is 1, but got " + batchesPerEpoch);
+        }
+        this.batchesPerEpoch = batchesPerEpoch;
+        this.reportingQueue = reportingQueue;
+        this.validationTracker = validationTracker;
+    }
+
+    // Hogwild workers record their steps in any order, the latest step is the highest one
+    public synchronized void recordStep(int epoch, int batch, int rows, long latencyNanos) {
+        int slot = (int) (steps % RECENT_STEPS);
+        stepEndNanos[slot] = System.nanoTime();
+        stepLatencyNanos[slot] = latencyNanos;
+        stepRows[slot] = rows;
+        steps++;
+        samples += rows;
+        latencySumNanos += latencyNanos;
+        latestStep = Math.max(latestStep, (long) epoch * batchesPerEpoch + batch);
+    }
+
+    // Under the platform MBean server, so jconsole or any JMX client connected to the JVM sees it until close()
+    public TrainingMetrics register() {
+        try {
+            var name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            throw new RuntimeException("Unable to register the training metrics MBean " + OBJECT_NAME, e);
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            throw new RuntimeException("Unable to unregister the training metrics MBean " + registeredName, e);
+        }
+        registeredName = null;
+    }
+
+    // -1 until the first step
+    @Override
+    public synchronized int getEpoch() {
+        return latestStep < 0L ? -1 : (int) (latestStep / batchesPerEpoch);
+    }
+
+    // -1 until the first step
+    @Override
+    public synchronized int getBatch() {
+        return latestStep < 0L ? -1 : (int) (latestStep % batchesPerEpoch);
+    }
+
+    @Override
+    public synchronized long getTrainedSteps() {
+        return steps;
+    }
+
+    @Override
+    public synchronized long getTrainedSamples() {
+        return samples;
+    }
+
+    // The samples of the recent steps but the oldest one over the time since the oldest one has ended, NaN before
+    // the second step
+    @Override
+    public synchronized double getSamplesPerSecond() {
+        int recent = (int) Math.min(steps, RECENT_STEPS);
+        if (recent < 2) {
+            return Double.NaN;
+        }
+        long oldestStep = steps - recent;
+        long rows = 0L;
+        for (long step = oldestStep + 1; step < steps; step++) {
+            rows += stepRows[(int) (step % RECENT_STEPS)];
+        }
+        long nanos = stepEndNanos[(int) ((steps - 1) % RECENT_STEPS)] - stepEndNanos[(int) (oldestStep % RECENT_STEPS)];
+        return nanos > 0L ? rows * 1e9d / nanos : Double.NaN;
+    }
+
+    @Override
+    public double getStepLatencyP50Millis() {
+        return quantile(sortRecentLatencies(), 0.5d) / 1e6d;
+    }
+
+    @Override
+    public double getStepLatencyP90Millis() {
+        return quantile(sortRecentLatencies(), 0.9d) / 1e6d;
+    }
+
+    @Override
+    public double getStepLatencyP99Millis() {
+        return quantile(sortRecentLatencies(), 0.99d) / 1e6d;
+    }
+
+    private synchronized long[] sortRecentLatencies() {
+        var latencies = Arrays.copyOf(stepLatencyNanos, (int) Math.min(steps, RECENT_STEPS));
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    // Nearest rank, NaN with no steps
+    private static double quantile(long[] sortedLatencies, double quantile) {
+        if (sortedLatencies.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(quantile * sortedLatencies.length);
+        return sortedLatencies[Math.max(rank, 1) - 1];
+    }
+
+    @Override
+    public int getReportingQueueDepth() {
+        return reportingQueue.getDepth();
+    }
+
+    // How many steps the latest report is behind the latest trained step
+    @Override
+    public long getEvaluatorLagSteps() {
+        long trainedStep;
+        synchronized (this) {
+            trainedStep = latestStep;
+        }
+        return Math.max(0L, trainedStep - validationTracker.getLatestStep());
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // -1 if the heap has no limit
+    @Override
+    public long getHeapMaxBytes() {
+        return memory.getHeapMemoryUsage().getMax();
+    }
+
+    // NaN until the first report
+    @Override
+    public double getLatestValidationAccuracy() {
+        return validationTracker.getLatestAccuracy();
+    }
+
+    /**
+     * All the metrics in the Prometheus text exposition format, the step latency as a summary with its quantiles
+     * over the recent steps and its sum and count over the whole run.
+     */
+    public String formatPrometheus() {
+        var text = new StringBuilder(2048);
+        appendMetric(text, "epoch", "gauge", "Epoch of the latest trained batch", getEpoch());
+        appendMetric(text, "batch", "gauge", "Index of the latest trained batch within its epoch", getBatch());
+        appendMetric(text, "trained_steps_total", "counter", "Training steps done by this run", getTrainedSteps());
+        appendMetric(text, "trained_samples_total", "counter", "Training samples done by this run", getTrainedSamples());
+        appendMetric(text, "samples_per_second", "gauge", "Training throughput over the recent steps",
+                getSamplesPerSecond());
+        long[] latencies;
+        long count;
+        long sumNanos;
+        synchronized (this) {
+            latencies = sortRecentLatencies();
+            count = steps;
+            sumNanos = latencySumNanos;
+        }
+        String latencyName = PREFIX + "step_latency_seconds";
+        appendHeader(text, latencyName, "summary", "Training step latency, the quantiles are over the recent steps");
+        for (double quantile : QUANTILES) {
+            text.append(latencyName).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(quantile(latencies, quantile) / 1e9d).append('\n');
+        }
+        text.append(latencyName).append("_sum ").append(sumNanos / 1e9d).append('\n');
+        text.append(latencyName).append("_count ").append(count).append('\n');
+        appendMetric(text, "reporting_queue_depth", "gauge", "Snapshots waiting for the evaluation",
+                getReportingQueueDepth());
+        appendMetric(text, "evaluator_lag_steps", "gauge", "Steps between the latest trained and the latest reported one",
+                getEvaluatorLagSteps());
+        appendMetric(text, "heap_used_bytes", "gauge", "Used heap memory", getHeapUsedBytes());
+        appendMetric(text, "heap_max_bytes", "gauge", "Maximum heap memory, -1 if unlimited", getHeapMaxBytes());
+        appendMetric(text, "validation_accuracy_percent", "gauge", "Validation accuracy of the latest reported step",
+                getLatestValidationAccuracy());
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, String help, double value) {
+        appendHeader(text, PREFIX + name, type, help);
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, String help, long value) {
+        appendHeader(text, PREFIX + name, type, help);
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendHeader(StringBuilder text, String fullName, String type, String help) {
+        text.append("# HELP ").append(fullName).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(fullName).append(' ').append(type).append('\n');
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+/**
+ * The JMX view of the training metrics, see TrainingMetrics.
+ */
+public interface TrainingMetricsMBean {
+
+    int getEpoch();
+
+    int getBatch();
+
+    long getTrainedSteps();
+
+    long getTrainedSamples();
+
+    double getSamplesPerSecond();
+
+    double getStepLatencyP50Millis();
+
+    double getStepLatencyP90Millis();
+
+    double getStepLatencyP99Millis();
+
+    int getReportingQueueDepth();
+
+    long getEvaluatorLagSteps();
+
+    long getHeapUsedBytes();
+
+    long getHeapMaxBytes();
+
+    double getLatestValidationAccuracy();
+
+}
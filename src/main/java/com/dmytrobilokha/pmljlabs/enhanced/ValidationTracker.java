@@ -0,0 +1,89 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps the best validation accuracy reported so far together with the weights it has been reached with.
+ * Reports come from several reporter threads in any order, so the training progress is measured by the latest
+ * reported step, where the step is epoch * batchesPerEpoch + batch.
+ * <p>
+ * The reported weights could be recycled buffers, then the tracker is given a copy function and keeps
+ * a copy of the best ones only.
+ */
+public final class ValidationTracker<W> {
+
+    private final int batchesPerEpoch;
+    private final UnaryOperator<W> bestWeightsCopier;
+    private long bestStep = -1L;
+    private long latestStep = -1L;
+    private double bestAccuracy = Double.NEGATIVE_INFINITY;
+    // Only for watching the run, so it isn't a part of the state
+    private double latestAccuracy = Double.NaN;
+    private W bestWeights;
+
+    public ValidationTracker(int batchesPerEpoch) {
+        this(batchesPerEpoch, UnaryOperator.identity());
+    }
+
+    public ValidationTracker(int batchesPerEpoch, UnaryOperator<W> bestWeightsCopier) {
+        if (batchesPerEpoch < 1) {
+            throw new IllegalArgumentException("Minimum number of batches per epoch is 1, but got " + batchesPerEpoch);
+        }
+        this.batchesPerEpoch = batchesPerEpoch;
+        this.bestWeightsCopier = bestWeightsCopier;
+    }
+
+    // Without a copy function the weights must not change after they have been reported
+    public synchronized void record(int epoch, int batch, double accuracy, W weights) {
+        long step = (long) epoch * batchesPerEpoch + batch;
+        if (step >= latestStep) {
+            latestStep = step;
+            latestAccuracy = accuracy;
+        }
+        if (accuracy > bestAccuracy) {
+            bestAccuracy = accuracy;
+            bestStep = step;
+            bestWeights = bestWeightsCopier.apply(weights);
+        }
+    }
+
+    public synchronized boolean hasNotImprovedFor(int epochs) {
+        return bestStep >= 0 && latestStep - bestStep >= (long) epochs * batchesPerEpoch;
+    }
+
+    // Negative infinity until the first report
+    public synchronized double getBestAccuracy() {
+        return bestAccuracy;
+    }
+
+    // -1 until the first report
+    public synchronized long getLatestStep() {
+        return latestStep;
+    }
+
+    // The accuracy of the latest reported step, NaN until the first report after the start or a restore
+    public synchronized double getLatestAccuracy() {
+        return latestAccuracy;
+    }
+
+    // Null until the first report
+    public synchronized W getBestWeights() {
+        return bestWeights;
+    }
+
+    // All the fields at once, e.g. for a checkpoint
+    public synchronized State<W> getState() {
+        return new State<>(bestStep, latestStep, bestAccuracy, bestWeights);
+    }
+
+    public synchronized void restoreState(State<W> state) {
+        bestStep = state.bestStep();
+        latestStep = state.latestStep();
+        bestAccuracy = state.bestAccuracy();
+        bestWeights = state.bestWeights();
+        latestAccuracy = Double.NaN;
+    }
+
+    public record State<W>(long bestStep, long latestStep, double bestAccuracy, W bestWeights) {}
+
+}
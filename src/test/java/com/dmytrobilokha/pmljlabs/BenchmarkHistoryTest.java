@@ -0,0 +1,85 @@
+package com.dmytrobilokha.pmljlabs;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+@Test(groups = "unit")
+public class BenchmarkHistoryTest {
+
+    public void readsTrainingRunReports() throws IOException {
+        var dir = Files.createTempDirectory("benchmark-history");
+        var base = dir.resolve("01_run").toString();
+        Files.write(dir.resolve("01_run.system"), List.of(
+                "Starting all at 2024-12-29T16:33:30",
+                "Finished training at 2024-12-29T16:34:10",
+                "Training throughput: 1500.5 samples/sec",
+                "Final test accuracy: 96.5%",
+                "Finished reporting at 2024-12-29T16:35:00",
+                "Environment: java=21, cpus=8",
+                "Peak heap: 1000 bytes"));
+        Files.write(dir.resolve("01_run.lstat"), List.of(
+                "0 0 2.1 50.0",
+                "0 1 1.0 91.0",
+                "1 0 0.5 96.0",
+                "1 1 0.4 95.5"));
+
+        var record = BenchmarkHistory.readTrainingRun("base", base, "now");
+
+        Assert.assertEquals(record.name(), "01_run");
+        Assert.assertEquals(record.recordedAt(), "2024-12-29T16:33:30");
+        Assert.assertEquals(record.environment(), "java=21, cpus=8");
+        Assert.assertEquals(record.metrics(), Map.of(
+                "bestAccuracy", 96d,
+                "finalAccuracy", 95.5d,
+                "trainingSeconds", 40d,
+                "secondsTo90Accuracy", 20d,
+                "secondsTo95Accuracy", 30d,
+                "reportingSeconds", 50d,
+                "samplesPerSecond", 1500.5d,
+                "finalTestAccuracy", 96.5d,
+                "peakHeapBytes", 1000d));
+    }
+
+    public void readsOldReportWithoutSystemFile() throws IOException {
+        var dir = Files.createTempDirectory("benchmark-history");
+        Files.write(dir.resolve("00_old.report"), List.of("0 0 2.4 30.0", "0 1 2.3 31.0"));
+
+        var record = BenchmarkHistory.readTrainingRun("base", dir.resolve("00_old").toString(), "now");
+
+        Assert.assertEquals(record.environment(), BenchmarkHistory.UNKNOWN_ENVIRONMENT);
+        Assert.assertEquals(record.recordedAt(), "now");
+        Assert.assertEquals(record.metrics(), Map.of("bestAccuracy", 31d, "finalAccuracy", 31d));
+    }
+
+    public void formatsAndParsesRecordBack() {
+        var record = new BenchmarkHistory.Record("run 1", "NeuralNetwork/batch=32/hidden=50", "2024-12-29T16:33:30",
+                "java=21", Map.of("stepsPerSecond", 12.5d));
+
+        Assert.assertEquals(BenchmarkHistory.parseRecord(BenchmarkHistory.formatRecord(record)), record);
+    }
+
+    public void reportsRegressionsAndImprovementsBeyondTolerance() {
+        var baseline = BenchmarkHistory.selectRun(List.of(
+                new BenchmarkHistory.Record("base", "step", "", "env", Map.of(
+                        "stepsPerSecond", 100d, "allocatedBytesPerStep", 1000d, "bestAccuracy", 97d))), "base");
+        var candidate = BenchmarkHistory.selectRun(List.of(
+                new BenchmarkHistory.Record("new", "step", "", "env", Map.of(
+                        "stepsPerSecond", 120d, "allocatedBytesPerStep", 1200d, "bestAccuracy", 96.9d))), "new");
+
+        var comparison = BenchmarkHistory.compare(baseline, candidate, 5d);
+
+        Assert.assertTrue(comparison.regressed());
+        Assert.assertTrue(comparison.lines().stream().anyMatch(
+                line -> line.startsWith("IMPROVEMENT\tstep\tstepsPerSecond")));
+        Assert.assertTrue(comparison.lines().stream().anyMatch(
+                line -> line.startsWith("REGRESSION\tstep\tallocatedBytesPerStep")));
+        Assert.assertTrue(comparison.lines().stream().anyMatch(
+                line -> line.startsWith("UNCHANGED\tstep\tbestAccuracy")));
+    }
+
+}
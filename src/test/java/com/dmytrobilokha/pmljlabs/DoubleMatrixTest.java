@@ -157,4 +157,403 @@ public class DoubleMatrixTest {
         Assert.assertEquals(secondBatchArray[1], input2dArray[4]);
         Assert.assertEquals(secondBatchArray[2], input2dArray[5]);
     }
+
+    @DataProvider(name = "layoutShapesProvider")
+    public Object[][] getLayoutShapes() {
+        // shapes around the block size, so both row-major and block layouts get mixed
+        return new Object[][]{
+                {60, 10, 7},
+                {10, 60, 10},
+                {128, 53, 10},
+                {101, 10, 100},
+                {3, 52, 53},
+                {120, 100, 1},
+                {53, 1, 120},
+        };
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void multipliesAcrossLayouts(int rows, int inner, int columns) {
+        double[][] leftArray = createSequenceArray(rows, inner, 1);
+        double[][] rightArray = createSequenceArray(inner, columns, 2);
+        var result2dArray = DoubleMatrix.with2dArray(leftArray).multiply(DoubleMatrix.with2dArray(rightArray)).getData();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                double expected = 0d;
+                for (int k = 0; k < inner; k++) {
+                    expected += leftArray[row][k] * rightArray[k][column];
+                }
+                Assert.assertEquals(result2dArray[row][column], expected, TOLERANCE);
+            }
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void transposesAcrossLayouts(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 3);
+        var result2dArray = DoubleMatrix.with2dArray(input2dArray).transpose().getData();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                Assert.assertEquals(result2dArray[column][row], input2dArray[row][column]);
+            }
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void prependsColumnAcrossLayouts(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 4);
+        var result2dArray = DoubleMatrix.with2dArray(input2dArray).prependColumn(-1d).getData();
+        for (int row = 0; row < rows; row++) {
+            Assert.assertEquals(result2dArray[row][0], -1d);
+            for (int column = 0; column < columns; column++) {
+                Assert.assertEquals(result2dArray[row][column + 1], input2dArray[row][column]);
+            }
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void extractsSubMatrixAcrossLayouts(int rows, int columns, int ignored) {
+        if (rows < 4 || columns < 3) {
+            return;
+        }
+        double[][] input2dArray = createSequenceArray(rows, columns, 5);
+        var inputMatrix = DoubleMatrix.with2dArray(input2dArray);
+        int startRow = 1;
+        int endRow = rows - 2;
+        int startColumn = columns / 2;
+        int endColumn = columns - 1;
+        var result2dArray = inputMatrix.getSubMatrix(startRow, endRow, startColumn, endColumn).getData();
+        for (int row = startRow; row <= endRow; row++) {
+            for (int column = startColumn; column <= endColumn; column++) {
+                Assert.assertEquals(result2dArray[row - startRow][column - startColumn], input2dArray[row][column]);
+            }
+        }
+        var fullRows2dArray = inputMatrix.getSubMatrix(startRow, endRow, 0, columns - 1).getData();
+        for (int row = startRow; row <= endRow; row++) {
+            Assert.assertEquals(fullRows2dArray[row - startRow], input2dArray[row]);
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void findsIndexOfHighestPerRowAcrossLayouts(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 6);
+        for (int row = 0; row < rows; row++) {
+            input2dArray[row][(row * 7) % columns] = 1000d;
+        }
+        int[] result = DoubleMatrix.with2dArray(input2dArray).indexOfHighestPerRow();
+        int[] buffer = new int[rows + 1];
+        Assert.assertSame(DoubleMatrix.with2dArray(input2dArray).indexOfHighestPerRow(buffer), buffer);
+        for (int row = 0; row < rows; row++) {
+            Assert.assertEquals(result[row], (row * 7) % columns);
+            Assert.assertEquals(buffer[row], (row * 7) % columns);
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void broadcastsRowVector(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 7);
+        double[][] vectorArray = new double[1][columns];
+        for (int column = 0; column < columns; column++) {
+            vectorArray[0][column] = column + 1;
+        }
+        var inputMatrix = DoubleMatrix.with2dArray(input2dArray);
+        var vectorMatrix = DoubleMatrix.with2dArray(vectorArray);
+        var sum2dArray = inputMatrix.addRowVector(vectorMatrix).getData();
+        var difference2dArray = inputMatrix.subtractRowVector(vectorMatrix).getData();
+        var product2dArray = inputMatrix.multiplyRowVector(vectorMatrix).getData();
+        var quotient2dArray = inputMatrix.divideRowVector(vectorMatrix).getData();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                double input = input2dArray[row][column];
+                double vectorValue = vectorArray[0][column];
+                Assert.assertEquals(sum2dArray[row][column], input + vectorValue);
+                Assert.assertEquals(difference2dArray[row][column], input - vectorValue);
+                Assert.assertEquals(product2dArray[row][column], input * vectorValue);
+                Assert.assertEquals(quotient2dArray[row][column], input / vectorValue);
+            }
+        }
+        Assert.assertEquals(inputMatrix.getData(), input2dArray);
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void broadcastsColumnVector(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 8);
+        double[][] vectorArray = new double[rows][1];
+        for (int row = 0; row < rows; row++) {
+            vectorArray[row][0] = row + 1;
+        }
+        var inputMatrix = DoubleMatrix.with2dArray(input2dArray);
+        var vectorMatrix = DoubleMatrix.with2dArray(vectorArray);
+        var sum2dArray = inputMatrix.addColumnVector(vectorMatrix).getData();
+        var difference2dArray = inputMatrix.subtractColumnVector(vectorMatrix).getData();
+        var product2dArray = inputMatrix.multiplyColumnVector(vectorMatrix).getData();
+        var quotient2dArray = inputMatrix.divideColumnVector(vectorMatrix).getData();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                double input = input2dArray[row][column];
+                double vectorValue = vectorArray[row][0];
+                Assert.assertEquals(sum2dArray[row][column], input + vectorValue);
+                Assert.assertEquals(difference2dArray[row][column], input - vectorValue);
+                Assert.assertEquals(product2dArray[row][column], input * vectorValue);
+                Assert.assertEquals(quotient2dArray[row][column], input / vectorValue);
+            }
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void broadcastsInPlace(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 9);
+        var inputMatrix = DoubleMatrix.with2dArray(input2dArray);
+        var rowMaximums = inputMatrix.maxPerRow();
+        var columnSums = inputMatrix.sumPerColumn();
+        var result = inputMatrix.subtractColumnVectorInPlace(rowMaximums).addRowVectorInPlace(columnSums);
+        Assert.assertSame(result, inputMatrix);
+        var result2dArray = result.getData();
+        for (int row = 0; row < rows; row++) {
+            double rowMaximum = Arrays.stream(input2dArray[row]).max().orElseThrow();
+            for (int column = 0; column < columns; column++) {
+                double columnSum = 0d;
+                for (double[] inputRow : input2dArray) {
+                    columnSum += inputRow[column];
+                }
+                Assert.assertEquals(result2dArray[row][column], input2dArray[row][column] - rowMaximum + columnSum, TOLERANCE);
+            }
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void addsScaledMatrixInPlaceAndCopies(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 5);
+        double[][] increment2dArray = createSequenceArray(rows, columns, 11);
+        var inputMatrix = DoubleMatrix.with2dArray(input2dArray);
+        var copy = inputMatrix.copy();
+        var result = inputMatrix.addScaledInPlace(DoubleMatrix.with2dArray(increment2dArray), -0.5d);
+        Assert.assertSame(result, inputMatrix);
+        Assert.assertEquals(copy.getData(), input2dArray);
+        var result2dArray = result.getData();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                Assert.assertEquals(result2dArray[row][column],
+                        input2dArray[row][column] - 0.5d * increment2dArray[row][column], TOLERANCE);
+            }
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void copiesIntoBuffer(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 7);
+        var buffer = DoubleMatrix.ofZeros(rows, columns);
+        Assert.assertSame(buffer.copyInPlace(DoubleMatrix.with2dArray(input2dArray)), buffer);
+        Assert.assertEquals(buffer.getData(), input2dArray);
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void gathersRows(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, columns, 3);
+        var inputMatrix = DoubleMatrix.with2dArray(input2dArray);
+        int[] indices = new int[rows + 2];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = (i * 7 + 1) % rows;
+        }
+        double[][] gathered2dArray = inputMatrix.gatherRows(indices).getData();
+        var buffer = DoubleMatrix.ofZeros(rows, columns);
+        Assert.assertSame(buffer.gatherRowsInPlace(inputMatrix, indices, 2), buffer);
+        double[][] buffer2dArray = buffer.getData();
+        for (int i = 0; i < indices.length; i++) {
+            Assert.assertEquals(gathered2dArray[i], input2dArray[indices[i]]);
+        }
+        for (int i = 0; i < rows; i++) {
+            Assert.assertEquals(buffer2dArray[i], input2dArray[indices[i + 2]]);
+        }
+    }
+
+    // The buffer is one column wider, so its layout could differ from the source one, and its first column is kept
+    @Test(dataProvider = "layoutShapesProvider")
+    public void copiesAndGathersRowsNextToKeptColumn(int rows, int columns, int ignored) {
+        if (rows < 2) {
+            return;
+        }
+        double[][] input2dArray = createSequenceArray(rows, columns, 8);
+        var inputMatrix = DoubleMatrix.with2dArray(input2dArray);
+        var buffer = DoubleMatrix.ofOnes(rows - 1, columns + 1);
+        Assert.assertSame(buffer.copyRowsInPlace(inputMatrix, 1, 1), buffer);
+        double[][] copied2dArray = buffer.getData();
+        int[] indices = new int[rows - 1];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = (i * 5 + 3) % rows;
+        }
+        double[][] gathered2dArray = buffer.gatherRowsInPlace(inputMatrix, indices, 0, 1).getData();
+        for (int row = 0; row < rows - 1; row++) {
+            Assert.assertEquals(copied2dArray[row][0], 1d);
+            Assert.assertEquals(gathered2dArray[row][0], 1d);
+            for (int column = 0; column < columns; column++) {
+                Assert.assertEquals(copied2dArray[row][column + 1], input2dArray[row + 1][column]);
+                Assert.assertEquals(gathered2dArray[row][column + 1], input2dArray[indices[row]][column]);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsRowsNotFittingFromColumn() {
+        DoubleMatrix.ofZeros(3, 4).copyRowsInPlace(DoubleMatrix.ofZeros(3, 4), 0, 1);
+    }
+
+    // The source is twice as wide, its second half goes into the buffer next to the kept first column
+    @Test(dataProvider = "layoutShapesProvider")
+    public void copiesColumnsNextToKeptColumn(int rows, int columns, int ignored) {
+        double[][] input2dArray = createSequenceArray(rows, 2 * columns, 9);
+        var buffer = DoubleMatrix.ofOnes(rows, columns + 1);
+        Assert.assertSame(buffer.copyColumnsInPlace(DoubleMatrix.with2dArray(input2dArray), columns, 1), buffer);
+        double[][] copied2dArray = buffer.getData();
+        for (int row = 0; row < rows; row++) {
+            Assert.assertEquals(copied2dArray[row][0], 1d);
+            for (int column = 0; column < columns; column++) {
+                Assert.assertEquals(copied2dArray[row][column + 1], input2dArray[row][columns + column]);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsColumnsNotFittingSource() {
+        DoubleMatrix.ofZeros(3, 4).copyColumnsInPlace(DoubleMatrix.ofZeros(3, 6), 4, 1);
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void writesInPlaceResultsIntoBuffers(int rows, int inner, int columns) {
+        var left = DoubleMatrix.with2dArray(createSequenceArray(rows, inner, 1));
+        var right = DoubleMatrix.with2dArray(createSequenceArray(inner, columns, 2));
+        var productBuffer = DoubleMatrix.ofOnes(rows, columns);
+        var transposeBuffer = DoubleMatrix.ofZeros(inner, rows);
+        var columnSumsBuffer = DoubleMatrix.ofOnes(1, inner);
+
+        Assert.assertSame(productBuffer.multiplyInPlace(left, right), productBuffer);
+        Assert.assertSame(transposeBuffer.transposeInPlace(left), transposeBuffer);
+        Assert.assertSame(columnSumsBuffer.sumPerColumnInPlace(left), columnSumsBuffer);
+
+        assertArraysClose(productBuffer.getData(), left.multiply(right).getData());
+        Assert.assertEquals(transposeBuffer.getData(), left.transpose().getData());
+        assertArraysClose(columnSumsBuffer.getData(), left.sumPerColumn().getData());
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void appliesAndCombinesInPlace(int rows, int columns, int ignored) {
+        double[][] first2dArray = createSequenceArray(rows, columns, 4);
+        double[][] second2dArray = createSequenceArray(rows, columns, 9);
+        var first = DoubleMatrix.with2dArray(first2dArray);
+        var buffer = DoubleMatrix.ofZeros(rows, columns);
+
+        buffer.applyInPlace(first, z -> z * 2d).combineInPlace(buffer, DoubleMatrix.with2dArray(second2dArray), Double::sum);
+
+        var result2dArray = buffer.getData();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                Assert.assertEquals(result2dArray[row][column],
+                        first2dArray[row][column] * 2d + second2dArray[row][column], TOLERANCE);
+            }
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void calculatesSoftmaxPerRowInPlace(int rows, int columns, int ignored) {
+        var logits = DoubleMatrix.with2dArray(createSequenceArray(rows, columns, 6)).scalarMultiply(50d);
+        var exponentials = logits.subtractColumnVector(logits.maxPerRow()).apply(Math::exp);
+        var expected = exponentials.divideRows(exponentials.sumPerRow());
+
+        var result = DoubleMatrix.ofZeros(rows, columns).softmaxPerRowInPlace(logits);
+
+        assertArraysClose(result.getData(), expected.getData());
+    }
+
+    // The one-pass moments must match the textbook two-pass mean and variance
+    @Test(dataProvider = "layoutShapesProvider")
+    public void calculatesColumnMomentsInOnePass(int rows, int columns, int ignored) {
+        double[][] data = createSequenceArray(rows, columns, 7);
+
+        double[][] moments = DoubleMatrix.with2dArray(data).calculateColumnMoments();
+
+        for (int column = 0; column < columns; column++) {
+            double mean = 0d;
+            for (double[] row : data) {
+                mean += row[column] / rows;
+            }
+            double m2 = 0d;
+            for (double[] row : data) {
+                m2 += (row[column] - mean) * (row[column] - mean);
+            }
+            Assert.assertEquals(moments[0][column], mean, TOLERANCE);
+            Assert.assertEquals(moments[1][column], m2, TOLERANCE * rows);
+        }
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void standardizesColumnsInPlace(int rows, int columns, int ignored) {
+        double[][] data = createSequenceArray(rows, columns, 8);
+        double[] means = new double[columns];
+        double[] standardDeviations = new double[columns];
+        for (int column = 0; column < columns; column++) {
+            means[column] = column;
+            standardDeviations[column] = column + 2d;
+        }
+        var matrix = DoubleMatrix.with2dArray(data);
+
+        var result = matrix.standardizeColumnsInPlace(means, standardDeviations);
+
+        Assert.assertSame(result, matrix);
+        var result2dArray = result.getData();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                Assert.assertEquals(result2dArray[row][column], (data[row][column] - column) / (column + 2d), TOLERANCE);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsProductIntoItsFactor() {
+        var square = DoubleMatrix.ofOnes(3, 3);
+        square.multiplyInPlace(square, DoubleMatrix.ofOnes(3, 3));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsWrongSizedRowVector() {
+        DoubleMatrix.ofOnes(3, 4).addRowVector(DoubleMatrix.ofOnes(1, 3));
+    }
+
+    @Test(dataProvider = "layoutShapesProvider")
+    public void generatesReproducibleRandoms(int rows, int columns, int ignored) {
+        var uniform2dArray = DoubleMatrix.ofUniRandoms(rows, columns, 7L).getData();
+        Assert.assertEquals(DoubleMatrix.ofUniRandoms(rows, columns, 7L).getData(), uniform2dArray);
+        Assert.assertNotEquals(DoubleMatrix.ofUniRandoms(rows, columns, 8L).getData(), uniform2dArray);
+        for (double[] row : uniform2dArray) {
+            for (double value : row) {
+                Assert.assertTrue(value >= 0d && value < 1d);
+            }
+        }
+        var normal2dArray = DoubleMatrix.ofSndRandoms(rows, columns, 7L).getData();
+        Assert.assertEquals(DoubleMatrix.ofSndRandoms(rows, columns, 7L).getData(), normal2dArray);
+    }
+
+    public void generatesDifferentRandomsWithDefaultGenerator() {
+        var first2dArray = DoubleMatrix.ofUniRandoms(60, 60).getData();
+        var second2dArray = DoubleMatrix.ofUniRandoms(60, 60).getData();
+        Assert.assertNotEquals(second2dArray, first2dArray);
+    }
+
+    private static void assertArraysClose(double[][] actual, double[][] expected) {
+        Assert.assertEquals(actual.length, expected.length);
+        for (int row = 0; row < expected.length; row++) {
+            for (int column = 0; column < expected[row].length; column++) {
+                Assert.assertEquals(actual[row][column], expected[row][column], TOLERANCE);
+            }
+        }
+    }
+
+    private static double[][] createSequenceArray(int rows, int columns, int seed) {
+        double[][] result = new double[rows][columns];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                result[row][column] = ((row * 31 + column * 17 + seed) % 23) - 11d;
+            }
+        }
+        return result;
+    }
 }
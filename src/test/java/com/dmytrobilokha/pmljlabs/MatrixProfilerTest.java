@@ -0,0 +1,111 @@
+package com.dmytrobilokha.pmljlabs;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@Test(groups = "unit")
+public class MatrixProfilerTest {
+
+    @BeforeMethod
+    @AfterMethod
+    public void resetProfiler() {
+        MatrixProfiler.reset();
+    }
+
+    // The first thread has ended, so its rows are under the ended threads, the second one still runs
+    public void sumsUpThreadsInTotalRows() throws InterruptedException {
+        runInThread("profiler-first", () -> {
+            MatrixProfiler.recordElapsed("multiply", 2, 3, 3, 4, 1_000L, 48L, 64L);
+            MatrixProfiler.recordElapsed("multiply", 2, 3, 3, 4, 3_000L, 48L, 64L);
+            MatrixProfiler.recordElapsed("transpose", 2, 3, 0, 0, 500L, 0L, 48L);
+        });
+        var recorded = new CountDownLatch(1);
+        var formatted = new CountDownLatch(1);
+        var secondThread = new Thread(() -> {
+            MatrixProfiler.recordElapsed("multiply", 2, 3, 3, 4, 2_000L, 48L, 64L);
+            recorded.countDown();
+            try {
+                formatted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "profiler-second");
+        secondThread.start();
+        recorded.await();
+
+        var table = MatrixProfiler.formatTable();
+        formatted.countDown();
+        secondThread.join();
+
+        Assert.assertEquals(table.get(0), "# All threads");
+        Assert.assertEquals(columnsOf(table.get(2)), List.of("multiply", "(2,3)x(3,4)", "3", millis(0.006d)));
+        Assert.assertEquals(columnsOf(table.get(3)), List.of("transpose", "(2,3)", "1", millis(0.001d)));
+        Assert.assertFalse(table.contains("# Thread profiler-first"), table.toString());
+        int secondThreadLine = table.indexOf("# Thread profiler-second");
+        Assert.assertTrue(secondThreadLine > 3, table.toString());
+        Assert.assertEquals(columnsOf(table.get(secondThreadLine + 2)),
+                List.of("multiply", "(2,3)x(3,4)", "1", millis(0.002d)));
+        int endedThreadsLine = table.indexOf("# Ended threads");
+        Assert.assertTrue(endedThreadsLine > secondThreadLine, table.toString());
+        Assert.assertEquals(columnsOf(table.get(endedThreadsLine + 2)),
+                List.of("multiply", "(2,3)x(3,4)", "2", millis(0.004d)));
+        Assert.assertEquals(columnsOf(table.get(endedThreadsLine + 3)),
+                List.of("transpose", "(2,3)", "1", millis(0.001d)));
+    }
+
+    // Once the second thread has ended, the rows of both are merged
+    public void mergesEndedThreads() throws InterruptedException {
+        runInThread("profiler-first", () -> MatrixProfiler.recordElapsed("multiply", 2, 3, 3, 4, 1_000L, 48L, 64L));
+        runInThread("profiler-second", () -> MatrixProfiler.recordElapsed("multiply", 2, 3, 3, 4, 2_000L, 48L, 64L));
+
+        var table = MatrixProfiler.formatTable();
+
+        int endedThreadsLine = table.indexOf("# Ended threads");
+        Assert.assertEquals(table.size(), endedThreadsLine + 3, table.toString());
+        Assert.assertEquals(columnsOf(table.get(endedThreadsLine + 2)),
+                List.of("multiply", "(2,3)x(3,4)", "2", millis(0.003d)));
+    }
+
+    public void resetClearsEveryThread() throws InterruptedException {
+        runInThread("profiler-reset", () -> MatrixProfiler.recordElapsed("multiply", 2, 3, 3, 4, 1_000L, 48L, 64L));
+
+        MatrixProfiler.reset();
+
+        Assert.assertEquals(MatrixProfiler.formatTable().size(), 2);
+    }
+
+    public void recordsNothingWhenDisabled() {
+        if (MatrixProfiler.ENABLED) {
+            throw new SkipException("Profiling is enabled with -Dpmljlabs.profile=true");
+        }
+        long startNanos = MatrixProfiler.start();
+        MatrixProfiler.record("multiply", 2, 3, 3, 4, startNanos, 48L, 64L);
+        MatrixProfiler.record("transpose", 2, 3, startNanos, 0L, 48L);
+
+        Assert.assertEquals(startNanos, 0L);
+        Assert.assertEquals(MatrixProfiler.formatTable().size(), 2);
+    }
+
+    private static void runInThread(String name, Runnable action) throws InterruptedException {
+        var thread = new Thread(action, name);
+        thread.start();
+        thread.join();
+    }
+
+    // As formatted in the table, in the default locale
+    private static String millis(double value) {
+        return String.format("%.3f", value);
+    }
+
+    // The operation, the shapes, the calls and the total milliseconds
+    private static List<String> columnsOf(String line) {
+        return List.of(line.trim().split("\\s+")).subList(0, 4);
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Fails when a change makes the training loop, the evaluation or the MNIST loaders allocate more than their budgets
+ * from allocation-budgets.properties. A budget can be overridden with -Dpmljlabs.allocation.budget.[key]=[bytes].
+ */
+@Test(groups = "unit")
+public class AllocationBudgetTest {
+
+    private static final String BUDGETS_RESOURCE = "/allocation-budgets.properties";
+    private static final String BUDGET_PROPERTY_PREFIX = "pmljlabs.allocation.budget.";
+    private static final int MNIST_INPUTS = 28 * 28;
+    private static final int NUMBER_OF_LABELS = 10;
+    private static final int BATCH_SIZE = 128;
+    private static final int HIDDEN_NODES = 100;
+    private static final int WARM_UP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 20;
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final Properties budgets = new Properties();
+    // The evaluations have fewer rows than a chunk, so they run on the measured thread
+    private final EvaluationPool evaluationPool = new EvaluationPool(1, EvaluationPool.DEFAULT_CHUNK_ROWS);
+    private Path tempDirectory;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        try (InputStream budgetsStream = AllocationBudgetTest.class.getResourceAsStream(BUDGETS_RESOURCE)) {
+            budgets.load(budgetsStream);
+        }
+        tempDirectory = Files.createTempDirectory("pmljlabs-allocation");
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown() throws IOException {
+        evaluationPool.close();
+        try (Stream<Path> paths = Files.walk(tempDirectory)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    public void doubleTrainingStepStaysWithinBudget() {
+        var random = new SplittableRandom(1L);
+        var trainingStep = NeuralNetwork.createTrainingStep(
+                createImages(random, BATCH_SIZE), createLabels(random, BATCH_SIZE), HIDDEN_NODES, 0.01d);
+        assertWithinBudget("NeuralNetwork.trainingStep", measureBytesPerIteration(trainingStep::run));
+    }
+
+    public void floatTrainingStepStaysWithinBudget() {
+        var random = new SplittableRandom(2L);
+        var trainingStep = NeuralNetworkFloat.createTrainingStep(
+                createImages(random, BATCH_SIZE), createLabels(random, BATCH_SIZE), HIDDEN_NODES, 0.01d);
+        assertWithinBudget("NeuralNetworkFloat.trainingStep", measureBytesPerIteration(trainingStep::run));
+    }
+
+    // The shard workers do the most of the step, so all the threads count
+    public void shardedTrainingStepStaysWithinBudget() {
+        var random = new SplittableRandom(11L);
+        var trainingStep = NeuralNetwork.createShardedTrainingStep(
+                createImages(random, BATCH_SIZE), createLabels(random, BATCH_SIZE), HIDDEN_NODES, 0.01d, 4);
+        assertWithinBudget("NeuralNetwork.shardedTrainingStep",
+                measureBytesPerIterationOfAllThreads(trainingStep::run));
+    }
+
+    public void doubleReporterEvaluationStaysWithinBudget() {
+        var random = new SplittableRandom(3L);
+        int[] trainLabels = createLabels(random, 1000);
+        var xTrain = DoubleMatrix.with2dArray(createImages(random, 1000));
+        var xTest = DoubleMatrix.with2dArray(createImages(random, 500));
+        var reporter = new NeuralNetwork.Reporter(xTrain, NeuralNetwork.encodeMnistLabels(trainLabels), xTest,
+                createLabels(random, 500), evaluationPool, null, new ArrayList<>(),
+                new ValidationTracker<>(1), TrainingLoss.Settings.parse("exact"));
+        var w1 = DoubleMatrix.ofUniRandoms(MNIST_INPUTS + 1, HIDDEN_NODES, 4L).scalarAdd(-0.5d).scalarMultiply(0.1d);
+        var w2 = DoubleMatrix.ofUniRandoms(HIDDEN_NODES + 1, NUMBER_OF_LABELS, 5L).scalarAdd(-0.5d).scalarMultiply(0.1d);
+        assertWithinBudget("NeuralNetwork.report", measureBytesPerIteration(() -> reporter.report(0, 0, w1, w2, Double.NaN)));
+    }
+
+    public void floatReporterEvaluationStaysWithinBudget() {
+        var random = new SplittableRandom(6L);
+        int[] trainLabels = createLabels(random, 1000);
+        var xTrain = FloatMatrix.with2dArray(toFloatArray(createImages(random, 1000)));
+        var xTest = FloatMatrix.with2dArray(toFloatArray(createImages(random, 500)));
+        var reporter = new NeuralNetworkFloat.Reporter(xTrain, NeuralNetworkFloat.encodeMnistLabels(trainLabels),
+                xTest, createLabels(random, 500), evaluationPool, null, new ValidationTracker<>(1),
+                TrainingLoss.Settings.parse("exact"));
+        var w1 = FloatMatrix.ofUniRandoms(MNIST_INPUTS + 1, HIDDEN_NODES, 7L).scalarAdd(-0.5f).scalarMultiply(0.1f);
+        var w2 = FloatMatrix.ofUniRandoms(HIDDEN_NODES + 1, NUMBER_OF_LABELS, 8L).scalarAdd(-0.5f).scalarMultiply(0.1f);
+        assertWithinBudget("NeuralNetworkFloat.report", measureBytesPerIteration(() -> reporter.report(0, 0, w1, w2, Double.NaN)));
+    }
+
+    public void layeredTrainingStepStaysWithinBudget() {
+        var random = new SplittableRandom(10L);
+        var trainingStep = LayeredNetwork.createTrainingStep(
+                createImages(random, BATCH_SIZE), createLabels(random, BATCH_SIZE), HIDDEN_NODES, 0.01d);
+        assertWithinBudget("LayeredNetwork.trainingStep", measureBytesPerIteration(trainingStep::run));
+    }
+
+    public void mnistLoadersStayWithinBudget() throws IOException {
+        var random = new SplittableRandom(9L);
+        int numberOfImages = 1000;
+        var imageFile = writeMnistImageFile(random, numberOfImages);
+        var labelFile = writeMnistLabelFile(random, numberOfImages);
+        Assert.assertEquals(NeuralNetwork.readMnistImageFile(imageFile).getRowDimension(), numberOfImages);
+        Assert.assertEquals(NeuralNetwork.readMnistLabelFile(labelFile).length, numberOfImages);
+        assertWithinBudget("NeuralNetwork.readMnistImageFile",
+                measureBytesPerIteration(() -> NeuralNetwork.readMnistImageFile(imageFile)));
+        assertWithinBudget("NeuralNetworkFloat.readMnistImageFile",
+                measureBytesPerIteration(() -> NeuralNetworkFloat.readMnistImageFile(imageFile)));
+        assertWithinBudget("NeuralNetwork.readMnistLabelFile",
+                measureBytesPerIteration(() -> NeuralNetwork.readMnistLabelFile(labelFile)));
+    }
+
+    private long measureBytesPerIteration(Runnable action) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            action.run();
+        }
+        long allocatedBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            action.run();
+        }
+        return (threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore) / MEASURED_ITERATIONS;
+    }
+
+    private long measureBytesPerIterationOfAllThreads(Runnable action) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            action.run();
+        }
+        long allocatedBefore = getAllocatedBytesOfAllThreads();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            action.run();
+        }
+        return (getAllocatedBytesOfAllThreads() - allocatedBefore) / MEASURED_ITERATIONS;
+    }
+
+    private long getAllocatedBytesOfAllThreads() {
+        long allocatedBytes = 0L;
+        for (long threadBytes : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+            // -1 for a thread which has ended in between
+            if (threadBytes > 0L) {
+                allocatedBytes += threadBytes;
+            }
+        }
+        return allocatedBytes;
+    }
+
+    private void assertWithinBudget(String key, long allocatedBytes) {
+        var configuredBudget = budgets.getProperty(key);
+        Assert.assertNotNull(configuredBudget, "No allocation budget configured for " + key);
+        long budget = Long.getLong(BUDGET_PROPERTY_PREFIX + key, Long.parseLong(configuredBudget));
+        Assert.assertTrue(allocatedBytes <= budget,
+                key + " allocated " + allocatedBytes + " bytes per iteration, but the budget is " + budget);
+    }
+
+    private String writeMnistImageFile(SplittableRandom random, int numberOfImages) throws IOException {
+        var buffer = ByteBuffer.allocate(16 + numberOfImages * MNIST_INPUTS);
+        buffer.putInt(0x0803).putInt(numberOfImages).putInt(28).putInt(28);
+        for (int i = 0; i < numberOfImages * MNIST_INPUTS; i++) {
+            buffer.put((byte) random.nextInt(256));
+        }
+        return writeGzippedFile("images.gz", buffer.array());
+    }
+
+    private String writeMnistLabelFile(SplittableRandom random, int numberOfLabels) throws IOException {
+        var buffer = ByteBuffer.allocate(8 + numberOfLabels);
+        buffer.putInt(0x0801).putInt(numberOfLabels);
+        for (int i = 0; i < numberOfLabels; i++) {
+            buffer.put((byte) random.nextInt(NUMBER_OF_LABELS));
+        }
+        return writeGzippedFile("labels.gz", buffer.array());
+    }
+
+    private String writeGzippedFile(String fileName, byte[] data) {
+        var path = tempDirectory.resolve(fileName);
+        try (var outputStream = new GZIPOutputStream(Files.newOutputStream(path))) {
+            outputStream.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return path.toString();
+    }
+
+    private static double[][] createImages(SplittableRandom random, int rows) {
+        double[][] images = new double[rows][MNIST_INPUTS];
+        for (double[] image : images) {
+            for (int i = 0; i < image.length; i++) {
+                image[i] = random.nextDouble(-0.5d, 2.5d);
+            }
+        }
+        return images;
+    }
+
+    private static int[] createLabels(SplittableRandom random, int rows) {
+        int[] labels = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            labels[i] = random.nextInt(NUMBER_OF_LABELS);
+        }
+        return labels;
+    }
+
+    private static float[][] toFloatArray(double[][] array) {
+        float[][] result = new float[array.length][];
+        for (int row = 0; row < array.length; row++) {
+            result[row] = new float[array[row].length];
+            for (int column = 0; column < array[row].length; column++) {
+                result[row][column] = (float) array[row][column];
+            }
+        }
+        return result;
+    }
+
+}
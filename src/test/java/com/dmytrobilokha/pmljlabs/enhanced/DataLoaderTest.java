@@ -0,0 +1,125 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+@Test(groups = "unit")
+public class DataLoaderTest {
+
+    private static final int ROWS = 250;
+    private static final int COLUMNS = 60;
+
+    public void coversEveryRowOncePerEpochInNewOrder() {
+        var x = createIndexedMatrix(COLUMNS);
+        var y = createIndexedMatrix(1);
+        var epochOrders = new ArrayList<List<Integer>>();
+        try (var dataLoader = DataLoader.ofDoubleMatrices(x, y, 64, 3, 2, 7L)) {
+            Assert.assertEquals(dataLoader.getBatchesPerEpoch(), 4);
+            int expectedEpoch = 0;
+            int expectedIndex = 0;
+            var order = new ArrayList<Integer>();
+            for (var batch = dataLoader.next(); batch != null; batch = dataLoader.next()) {
+                Assert.assertEquals(batch.epoch(), expectedEpoch);
+                Assert.assertEquals(batch.index(), expectedIndex);
+                Assert.assertEquals(batch.x().getRowDimension(), expectedIndex == 3 ? ROWS - 3 * 64 : 64);
+                double[][] xData = batch.x().getData();
+                double[][] yData = batch.y().getData();
+                for (int row = 0; row < xData.length; row++) {
+                    int datasetRow = (int) yData[row][0];
+                    Assert.assertEquals(xData[row][COLUMNS - 1], datasetRow);
+                    order.add(datasetRow);
+                }
+                dataLoader.release(batch);
+                if (++expectedIndex == 4) {
+                    epochOrders.add(order);
+                    order = new ArrayList<>();
+                    expectedIndex = 0;
+                    expectedEpoch++;
+                }
+            }
+        }
+        Assert.assertEquals(epochOrders.size(), 3);
+        for (var epochOrder : epochOrders) {
+            Assert.assertEquals(epochOrder.stream().sorted().toList(), createIndexList());
+        }
+        Assert.assertNotEquals(epochOrders.get(0), createIndexList());
+        Assert.assertNotEquals(epochOrders.get(1), epochOrders.get(0));
+    }
+
+    public void givesSameOrderForSameSeed() {
+        Assert.assertEquals(readFirstEpochOrder(11L), readFirstEpochOrder(11L));
+        Assert.assertNotEquals(readFirstEpochOrder(12L), readFirstEpochOrder(11L));
+    }
+
+    public void reusesBatchBuffers() {
+        var x = createIndexedMatrix(COLUMNS);
+        try (var dataLoader = DataLoader.ofDoubleMatrices(x, x, 50, 4, 1, 7L)) {
+            var buffers = Collections.newSetFromMap(new IdentityHashMap<DoubleMatrix, Boolean>());
+            for (var batch = dataLoader.next(); batch != null; batch = dataLoader.next()) {
+                buffers.add(batch.x());
+                dataLoader.release(batch);
+            }
+            // 20 batches go through the ring of 2 slots
+            Assert.assertEquals(buffers.size(), 2);
+        }
+    }
+
+    // Batches 6 and on (the 3rd of epoch 1) must come as in the run from the start
+    public void continuesFromStartStep() {
+        var y = createIndexedMatrix(1);
+        var expected = readBatchOrders(DataLoader.ofDoubleMatrices(y, y, 64, 3, 2, 7L)).subList(6, 12);
+        Assert.assertEquals(readBatchOrders(DataLoader.ofDoubleMatrices(y, y, 64, 3, 2, 7L, 6L)), expected);
+    }
+
+    private static List<List<Integer>> readBatchOrders(DataLoader<DoubleMatrix> dataLoader) {
+        var orders = new ArrayList<List<Integer>>();
+        try (dataLoader) {
+            for (var batch = dataLoader.next(); batch != null; batch = dataLoader.next()) {
+                var order = new ArrayList<Integer>();
+                order.add(batch.epoch());
+                order.add(batch.index());
+                Arrays.stream(batch.y().getData()).forEach(row -> order.add((int) row[0]));
+                orders.add(order);
+                dataLoader.release(batch);
+            }
+        }
+        return orders;
+    }
+
+    private static List<Integer> readFirstEpochOrder(long seed) {
+        var order = new ArrayList<Integer>();
+        var y = createIndexedMatrix(1);
+        try (var dataLoader = DataLoader.ofDoubleMatrices(y, y, 100, 1, 2, seed)) {
+            for (var batch = dataLoader.next(); batch != null; batch = dataLoader.next()) {
+                Arrays.stream(batch.y().getData()).forEach(row -> order.add((int) row[0]));
+                dataLoader.release(batch);
+            }
+        }
+        return order;
+    }
+
+    // The last column of every row is the row number
+    private static DoubleMatrix createIndexedMatrix(int columns) {
+        double[][] data = new double[ROWS][columns];
+        for (int row = 0; row < ROWS; row++) {
+            Arrays.fill(data[row], row);
+        }
+        return DoubleMatrix.with2dArray(data);
+    }
+
+    private static List<Integer> createIndexList() {
+        var result = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++) {
+            result.add(i);
+        }
+        return result;
+    }
+
+}
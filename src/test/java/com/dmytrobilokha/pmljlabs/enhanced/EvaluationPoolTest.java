@@ -0,0 +1,201 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
+
+@Test(groups = "unit")
+public class EvaluationPoolTest {
+
+    public void sumsOverChunksCoveringAllRowsOnce() {
+        var chunks = new ConcurrentLinkedQueue<int[]>();
+        try (var pool = new EvaluationPool(3, 10)) {
+            double sum = pool.sumOverRowChunks(95, (fromRow, toRow) -> {
+                chunks.add(new int[]{fromRow, toRow});
+                return IntStream.range(fromRow, toRow).sum();
+            });
+
+            Assert.assertEquals(sum, IntStream.range(0, 95).sum());
+        }
+        var sortedChunks = new ArrayList<>(chunks);
+        sortedChunks.sort((first, second) -> Integer.compare(first[0], second[0]));
+        Assert.assertEquals(sortedChunks.size(), 10);
+        int nextRow = 0;
+        for (int[] chunk : sortedChunks) {
+            Assert.assertEquals(chunk[0], nextRow);
+            Assert.assertTrue(chunk[1] - chunk[0] == 9 || chunk[1] - chunk[0] == 10);
+            nextRow = chunk[1];
+        }
+        Assert.assertEquals(nextRow, 95);
+    }
+
+    public void sumsSeveralValuesOverChunks() {
+        try (var pool = new EvaluationPool(2, 10)) {
+            double[] sums = pool.sumOverRowChunks(95, 2, (fromRow, toRow, chunkSums) -> {
+                for (int row = fromRow; row < toRow; row++) {
+                    chunkSums[0] += row;
+                    chunkSums[1] += (double) row * row;
+                }
+            });
+
+            Assert.assertEquals(sums[0], IntStream.range(0, 95).sum());
+            Assert.assertEquals(sums[1], IntStream.range(0, 95).map(row -> row * row).sum());
+        }
+    }
+
+    // Chunks of 2 sizes, 142 and 143 rows, go through their own buffers and add up to the whole data set results
+    public void reportsOverChunksSameAsOverWholeDataSet() {
+        var x = DoubleMatrix.ofSndRandoms(1000, 20, 1L);
+        var labels = new int[1000];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i % 10;
+        }
+        var y = NeuralNetwork.encodeMnistLabels(labels);
+        var w1 = DoubleMatrix.ofSndRandoms(21, 30, 2L).scalarMultiply(0.3d);
+        var w2 = DoubleMatrix.ofSndRandoms(31, 10, 3L).scalarMultiply(0.3d);
+        NeuralNetwork.ReportingLine chunked;
+        NeuralNetwork.ReportingLine whole;
+        try (var chunkedPool = new EvaluationPool(2, 143); var wholePool = new EvaluationPool(1, 1000)) {
+            chunked = createReporter(x, y, labels, chunkedPool).report(0, 0, w1, w2, Double.NaN);
+            whole = createReporter(x, y, labels, wholePool).report(0, 0, w1, w2, Double.NaN);
+        }
+
+        Assert.assertEquals(chunked.matchesPercentage(), NeuralNetwork.calculateAccuracyPercentage(x, labels, w1, w2));
+        Assert.assertEquals(whole.matchesPercentage(), chunked.matchesPercentage());
+        Assert.assertEquals(chunked.trainingLoss(), whole.trainingLoss(), 1e-12d);
+    }
+
+    // 3 snapshots go as a batch of 2 sharing the first layer product and a batch of 1
+    public void reportsBatchOfSnapshotsSameAsOneByOne() throws IOException {
+        var x = DoubleMatrix.ofSndRandoms(500, 20, 4L);
+        var labels = new int[500];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i % 10;
+        }
+        var y = NeuralNetwork.encodeMnistLabels(labels);
+        var tasks = new ArrayList<NeuralNetwork.ReportingTask>();
+        var expectedLines = new ArrayList<String>();
+        var linesPath = Files.createTempDirectory("batch").resolve("run.lstat");
+        try (var pool = new EvaluationPool(2, 143);
+             var writer = new ReportLineWriter<NeuralNetwork.ReportingLine>(
+                     linesPath, NeuralNetwork.ReportingLine::toString, null, null, 10, 1, null)) {
+            for (int batch = 0; batch < 3; batch++) {
+                var w1 = DoubleMatrix.ofSndRandoms(21, 30, 10L + batch).scalarMultiply(0.3d);
+                var w2 = DoubleMatrix.ofSndRandoms(31, 10, 20L + batch).scalarMultiply(0.3d);
+                tasks.add(new NeuralNetwork.ReportingTask(0, batch, w1, w2, Double.NaN));
+                expectedLines.add(createReporter(x, y, labels, pool, null).report(0, batch, w1, w2, Double.NaN).toString());
+            }
+
+            createReporter(x, y, labels, pool, writer).report(tasks);
+        }
+
+        Assert.assertEquals(Files.readAllLines(linesPath), expectedLines);
+    }
+
+    private static NeuralNetwork.Reporter createReporter(
+            DoubleMatrix x, DoubleMatrix y, int[] labels, EvaluationPool pool) {
+        return createReporter(x, y, labels, pool, null);
+    }
+
+    private static NeuralNetwork.Reporter createReporter(DoubleMatrix x, DoubleMatrix y, int[] labels,
+            EvaluationPool pool, ReportLineWriter<NeuralNetwork.ReportingLine> writer) {
+        return new NeuralNetwork.Reporter(x, y, x, labels, pool, writer, new ArrayList<>(), new ValidationTracker<>(1),
+                TrainingLoss.Settings.parse("exact"));
+    }
+
+    // A report running on the pool forks its chunks on the same pool
+    public void sumsOverChunksFromPoolWorker() throws ExecutionException, InterruptedException {
+        var threadNames = Collections.synchronizedList(new ArrayList<String>());
+        try (var pool = new EvaluationPool(2, 4)) {
+            var result = new CompletableFuture<Double>();
+            pool.execute(() -> result.complete(pool.sumOverRowChunks(40, (fromRow, toRow) -> {
+                threadNames.add(Thread.currentThread().getName());
+                return toRow - fromRow;
+            })));
+
+            Assert.assertEquals(result.get(), 40d);
+        }
+        Assert.assertEquals(threadNames.size(), 10);
+        Assert.assertTrue(threadNames.stream().allMatch(name -> name.startsWith("evaluation-worker-")));
+    }
+
+    public void runsOnDaemonThreadsOfMinimalPriority() throws ExecutionException, InterruptedException {
+        try (var pool = new EvaluationPool(1, EvaluationPool.DEFAULT_CHUNK_ROWS)) {
+            var thread = new CompletableFuture<Thread>();
+            pool.execute(() -> thread.complete(Thread.currentThread()));
+
+            Assert.assertTrue(thread.get().isDaemon());
+            Assert.assertEquals(thread.get().getPriority(), Thread.MIN_PRIORITY);
+        }
+    }
+
+    public void leavesCoresToTraining() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        Assert.assertEquals(EvaluationPool.defaultParallelism(processors + 1), 1);
+        Assert.assertEquals(EvaluationPool.defaultParallelism(0), processors);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsTooSmallChunks() {
+        new EvaluationPool(1, 1);
+    }
+
+    public void dispatchesAllQueuedSnapshotsBeforeClosing() {
+        var reported = Collections.synchronizedList(new ArrayList<Integer>());
+        var queue = new ReportingQueue<Integer>(new ReportingQueue.Settings(ReportingQueue.Policy.BLOCK, 2));
+        try (var pool = new EvaluationPool(2, EvaluationPool.DEFAULT_CHUNK_ROWS)) {
+            var dispatcher = new ReportDispatcher<>(queue, pool, reported::add);
+            for (int i = 0; i < 20; i++) {
+                queue.submit(i);
+            }
+            dispatcher.close();
+        }
+        var sortedReported = new ArrayList<>(reported);
+        Collections.sort(sortedReported);
+        Assert.assertEquals(sortedReported, IntStream.range(0, 20).boxed().toList());
+    }
+
+    // The snapshots queued before the dispatcher starts are all waiting, so they go in batches of the maximum size
+    public void dispatchesWaitingSnapshotsInBatches() {
+        var batches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+        var queue = new ReportingQueue<Integer>(new ReportingQueue.Settings(ReportingQueue.Policy.BLOCK, 10));
+        for (int i = 0; i < 6; i++) {
+            queue.submit(i);
+        }
+        try (var pool = new EvaluationPool(1, EvaluationPool.DEFAULT_CHUNK_ROWS)) {
+            new ReportDispatcher<>(queue, pool, 4, batch -> batches.add(List.copyOf(batch))).close();
+        }
+        Assert.assertEquals(batches, List.of(List.of(0, 1, 2, 3), List.of(4, 5)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsEmptyDispatchBatch() {
+        var queue = new ReportingQueue<Integer>(new ReportingQueue.Settings(ReportingQueue.Policy.BLOCK, 2));
+        try (var pool = new EvaluationPool(1, EvaluationPool.DEFAULT_CHUNK_ROWS)) {
+            new ReportDispatcher<Integer>(queue, pool, 0, batch -> { });
+        }
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = "Report has failed")
+    public void rethrowsReportFailureOnClose() {
+        var queue = new ReportingQueue<Integer>(new ReportingQueue.Settings(ReportingQueue.Policy.BLOCK, 2));
+        try (var pool = new EvaluationPool(1, EvaluationPool.DEFAULT_CHUNK_ROWS)) {
+            var dispatcher = new ReportDispatcher<Integer>(queue, pool, snapshot -> {
+                throw new IllegalStateException("Broken report");
+            });
+            queue.submit(1);
+            dispatcher.close();
+        }
+    }
+
+}
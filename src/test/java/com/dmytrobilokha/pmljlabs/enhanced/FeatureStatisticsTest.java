@@ -0,0 +1,97 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+@Test(groups = "unit")
+public class FeatureStatisticsTest {
+
+    private static final double TOLERANCE = 1e-9d;
+
+    // The same as the mean and standard deviation of all the elements, calculated in two passes
+    public void calculatesGlobalStatistics() {
+        var x = DoubleMatrix.ofUniRandoms(300, 70, 1L).scalarMultiply(255d);
+        double elements = 300d * 70d;
+        double mean = x.sum() / elements;
+        var deviations = x.scalarAdd(-mean);
+        double standardDeviation = Math.sqrt(deviations.multiplyElements(deviations).sum() / elements);
+
+        var statistics = FeatureStatistics.calculate(x, FeatureStatistics.Mode.GLOBAL);
+
+        Assert.assertEquals(statistics.means().length, 1);
+        Assert.assertEquals(statistics.means()[0], mean, TOLERANCE);
+        Assert.assertEquals(statistics.standardDeviations()[0], standardDeviation, TOLERANCE);
+        assertClose(statistics.standardizeInPlace(x.copy()), deviations.scalarDivide(standardDeviation));
+    }
+
+    // Every column gets zero mean and unit variance, the constant one becomes zeros
+    public void standardizesEveryFeature() {
+        double[][] data = DoubleMatrix.ofSndRandoms(200, 60, 2L).scalarMultiply(3d).scalarAdd(5d).getData();
+        for (double[] row : data) {
+            row[0] = 7d;
+        }
+        var x = DoubleMatrix.with2dArray(data);
+
+        var statistics = FeatureStatistics.calculate(x, FeatureStatistics.Mode.FEATURE);
+        statistics.standardizeInPlace(x);
+
+        Assert.assertEquals(statistics.standardDeviations()[0], 1d);
+        var after = FeatureStatistics.calculate(x, FeatureStatistics.Mode.FEATURE);
+        Assert.assertEquals(after.means()[0], 0d, TOLERANCE);
+        for (int column = 1; column < 60; column++) {
+            Assert.assertEquals(after.means()[column], 0d, TOLERANCE);
+            Assert.assertEquals(after.standardDeviations()[column], 1d, TOLERANCE);
+        }
+    }
+
+    public void calculatesFloatStatisticsCloseToDouble() {
+        var x = DoubleMatrix.ofUniRandoms(500, 130, 3L).scalarMultiply(255d);
+        var floatX = FloatMatrix.with2dArray(toFloats(x.getData()));
+
+        var expected = FeatureStatistics.calculate(x, FeatureStatistics.Mode.FEATURE);
+        var actual = FeatureStatistics.calculate(floatX, FeatureStatistics.Mode.FEATURE);
+
+        for (int column = 0; column < 130; column++) {
+            Assert.assertEquals(actual.means()[column], expected.means()[column], 1e-3d);
+            Assert.assertEquals(actual.standardDeviations()[column], expected.standardDeviations()[column], 1e-3d);
+        }
+    }
+
+    public void writesAndReadsStatistics() throws IOException {
+        var file = Files.createTempFile("statistics", ".stats").toString();
+        var statistics = FeatureStatistics.calculate(DoubleMatrix.ofSndRandoms(50, 10, 4L), FeatureStatistics.Mode.FEATURE);
+
+        statistics.writeToFile(file);
+        var restored = FeatureStatistics.readFromFile(file);
+
+        Assert.assertEquals(restored.mode(), FeatureStatistics.Mode.FEATURE);
+        Assert.assertEquals(restored.means(), statistics.means());
+        Assert.assertEquals(restored.standardDeviations(), statistics.standardDeviations());
+    }
+
+    private static float[][] toFloats(double[][] data) {
+        float[][] result = new float[data.length][];
+        for (int row = 0; row < data.length; row++) {
+            result[row] = new float[data[row].length];
+            for (int column = 0; column < data[row].length; column++) {
+                result[row][column] = (float) data[row][column];
+            }
+        }
+        return result;
+    }
+
+    private static void assertClose(DoubleMatrix actual, DoubleMatrix expected) {
+        double[][] actualData = actual.getData();
+        double[][] expectedData = expected.getData();
+        for (int row = 0; row < expectedData.length; row++) {
+            for (int column = 0; column < expectedData[row].length; column++) {
+                Assert.assertEquals(actualData[row][column], expectedData[row][column], TOLERANCE);
+            }
+        }
+    }
+
+}
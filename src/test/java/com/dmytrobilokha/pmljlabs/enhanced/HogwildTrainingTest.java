@@ -0,0 +1,52 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = "unit")
+public class HogwildTrainingTest {
+
+    private static final int INPUTS = 20;
+    private static final int ROWS = 2000;
+
+    @DataProvider
+    public Object[][] workersProvider() {
+        return new Object[][]{{1}, {4}};
+    }
+
+    // Labels come from a random linear teacher, so a two-layer network has to reach high accuracy
+    @Test(dataProvider = "workersProvider")
+    public void learnsWithAsynchronousWorkers(int workers) throws InterruptedException {
+        var data = TeacherData.create(ROWS, INPUTS, 42L);
+        var xMatrix = data.x();
+        int[] labels = data.labels();
+        var reportingQueue = new ReportingQueue<NeuralNetwork.ReportingTask>(
+                new ReportingQueue.Settings(ReportingQueue.Policy.BLOCK, 20 * 7));
+
+        // Nobody releases the snapshots, so every one of them is a new buffer
+        var snapshotPool = NeuralNetwork.createSnapshotPool(1, INPUTS, 50);
+
+        var weights = NeuralNetwork.trainHogwild(xMatrix, data.y(), reportingQueue,
+                snapshotPool, 50, 20, 32, 0.25d, 10, workers, null).weights();
+
+        Assert.assertTrue(NeuralNetwork.calculateAccuracyPercentage(xMatrix, labels, weights.first(), weights.second()) > 80d);
+        // 63 batches per epoch, every 10th is reported
+        var reported = new ArrayList<NeuralNetwork.ReportingTask>();
+        for (var task = reportingQueue.poll(0, TimeUnit.MILLISECONDS); task != null;
+             task = reportingQueue.poll(0, TimeUnit.MILLISECONDS)) {
+            reported.add(task);
+        }
+        Assert.assertEquals(reported.size(), 20 * 7);
+        var lastReported = reported.stream()
+                .filter(task -> task.epoch() == 19 && task.batch() == 60)
+                .findFirst()
+                .orElseThrow();
+        Assert.assertNotSame(lastReported.w1(), weights.first());
+        Assert.assertEquals(snapshotPool.getCreatedCount(), 20L * 7);
+    }
+
+}
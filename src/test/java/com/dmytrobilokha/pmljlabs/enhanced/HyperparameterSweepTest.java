@@ -0,0 +1,79 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+@Test(groups = "unit")
+public class HyperparameterSweepTest {
+
+    private static final int INPUTS = 20;
+
+    public void expandsGridLinesAndKeepsListedTrials() {
+        var trials = HyperparameterSweep.parseSweep(List.of(
+                "# comment",
+                "hiddenLayers=100|300,100 optimizer=sgd:0.25|adam",
+                "",
+                "batchSize=32 epochs=3"));
+
+        Assert.assertEquals(trials.stream().map(HyperparameterSweep.Trial::name).toList(), List.of(
+                "01_hiddenLayers-100_optimizer-sgd-0.25",
+                "02_hiddenLayers-100_optimizer-adam",
+                "03_hiddenLayers-300-100_optimizer-sgd-0.25",
+                "04_hiddenLayers-300-100_optimizer-adam",
+                "05_batchSize-32_epochs-3"));
+        var lastSettings = trials.get(4).settings();
+        Assert.assertEquals(lastSettings.hiddenLayers(), LayeredNetwork.DEFAULT_HIDDEN_LAYERS);
+        Assert.assertEquals(lastSettings.batchSize(), 32);
+        Assert.assertEquals(lastSettings.epochs(), 3);
+        Assert.assertEquals(trials.get(3).settings().optimizer().type(), OptimizerSettings.Type.ADAM);
+    }
+
+    public void namesEmptyValueAsNone() {
+        var trials = HyperparameterSweep.parseSweep(List.of("hiddenLayers=|16 optimizer=adam:0.01"));
+
+        Assert.assertEquals(trials.stream().map(HyperparameterSweep.Trial::name).toList(), List.of(
+                "01_hiddenLayers-none_optimizer-adam-0.01",
+                "02_hiddenLayers-16_optimizer-adam-0.01"));
+        Assert.assertEquals(trials.get(0).settings().hiddenLayers(), "");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnknownSetting() {
+        HyperparameterSweep.parseSweep(List.of("hiddenLayers=100 momentum=0.9"));
+    }
+
+    public void runsTrialsConcurrentlyOnSharedDataset() throws IOException {
+        var dataset = createDataset(600);
+        var trials = HyperparameterSweep.parseSweep(List.of("hiddenLayers=|16 optimizer=adam:0.01 batchSize=32 epochs=2"));
+        var reportDirectory = Files.createTempDirectory("sweep");
+
+        var summaryLines = HyperparameterSweep.run(dataset, trials, reportDirectory, 2);
+
+        Assert.assertEquals(summaryLines.size(), 3);
+        for (var trial : trials) {
+            Assert.assertEquals(Files.readAllLines(reportDirectory.resolve(trial.name() + ".lstat")).size(), 2);
+            Assert.assertTrue(Files.exists(reportDirectory.resolve(trial.name() + ".system")));
+            Assert.assertTrue(Files.exists(reportDirectory.resolve(trial.name() + ".w1")));
+            Assert.assertTrue(Files.exists(reportDirectory.resolve(trial.name() + ".stats")));
+        }
+        double firstAccuracy = Double.parseDouble(summaryLines.get(1).split("\t")[1]);
+        double secondAccuracy = Double.parseDouble(summaryLines.get(2).split("\t")[1]);
+        Assert.assertTrue(firstAccuracy >= secondAccuracy);
+    }
+
+    // The same rows serve as the validation and test sets
+    private static LayeredNetwork.Dataset createDataset(int rows) {
+        var data = TeacherData.create(rows, INPUTS, 3L);
+        var xMatrix = data.x();
+        int[] labels = data.labels();
+        var yMatrix = data.y();
+        return new LayeredNetwork.Dataset(FeatureStatistics.calculate(xMatrix, FeatureStatistics.Mode.GLOBAL),
+                xMatrix, yMatrix, List.of(xMatrix), List.of(yMatrix),
+                List.of(xMatrix), labels, List.of(xMatrix), labels);
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+@Test(groups = "unit")
+public class LayeredNetworkTest {
+
+    private static final double LEARNING_RATE = 0.1d;
+    private static final double TOLERANCE = 1e-10d;
+
+    // The bias row of the NeuralNetwork weights becomes the bias vector of the dense layer, so the results must match
+    public void trainsLikeTwoLayerNeuralNetwork() {
+        var data = TeacherData.create(70, 60, 1L);
+        int inputs = data.x().getColumnDimension();
+        var w1 = DoubleMatrix.ofUniRandoms(inputs + 1, 55, 2L).scalarAdd(-0.5d).scalarMultiply(0.2d);
+        var w2 = DoubleMatrix.ofUniRandoms(56, TeacherData.NUMBER_OF_LABELS, 3L).scalarAdd(-0.5d).scalarMultiply(0.2d);
+        var network = new LayeredNetwork(List.of(
+                new DenseLayer(withoutFirstRow(w1), firstRow(w1)),
+                new ActivationLayer(55, ActivationLayer.Activation.RELU),
+                new DenseLayer(withoutFirstRow(w2), firstRow(w2))));
+
+        var expected = new NeuralNetwork.MatrixPair(w1.copy(), w2.copy());
+        var gradients = NeuralNetwork.calculateGradients(data.x(), data.y(), w1, w2);
+        Optimizer.forDoubleMatrices(new OptimizerSettings(OptimizerSettings.Type.SGD, LEARNING_RATE)).update(
+                List.of(expected.first(), expected.second()), List.of(gradients.first(), gradients.second()));
+        network.trainStep(data.x(), data.y(),
+                Optimizer.forDoubleMatrices(new OptimizerSettings(OptimizerSettings.Type.SGD, LEARNING_RATE)));
+
+        var parameters = network.getParameters();
+        assertClose(parameters.get(0), withoutFirstRow(expected.first()));
+        assertClose(parameters.get(1), firstRow(expected.first()));
+        assertClose(parameters.get(2), withoutFirstRow(expected.second()));
+        assertClose(parameters.get(3), firstRow(expected.second()));
+    }
+
+    public void calculatesGradientsOfDeepNetwork() {
+        var data = TeacherData.create(7, 6, 4L);
+        var network = LayeredNetwork.create(6, "5:tanh,4:sigmoid,3:relu", TeacherData.NUMBER_OF_LABELS, 5L);
+        network.calculateGradients(data.x(), data.y());
+        double epsilon = 1e-6d;
+        var parameters = network.getParameters();
+        var gradients = network.getGradients();
+        for (int i = 0; i < parameters.size(); i++) {
+            var parameter = parameters.get(i);
+            double[][] analytic = gradients.get(i).getData();
+            for (int row = 0; row < parameter.getRowDimension(); row++) {
+                for (int column = 0; column < parameter.getColumnDimension(); column++) {
+                    var shift = oneAt(parameter, row, column).scalarMultiply(epsilon);
+                    parameter.addScaledInPlace(shift, 1d);
+                    double lossPlus = network.calculateLoss(data.x(), data.y());
+                    parameter.addScaledInPlace(shift, -2d);
+                    double lossMinus = network.calculateLoss(data.x(), data.y());
+                    parameter.addScaledInPlace(shift, 1d);
+                    Assert.assertEquals(analytic[row][column], (lossPlus - lossMinus) / (2d * epsilon), 1e-6d,
+                            "Parameter " + i + " at (" + row + ", " + column + ")");
+                }
+            }
+        }
+    }
+
+    public void learnsWithSeveralHiddenLayers() {
+        var data = TeacherData.create(2000, 20, 6L);
+        int[] labels = data.y().indexOfHighestPerRow();
+        var network = LayeredNetwork.create(20, "64,32:tanh", TeacherData.NUMBER_OF_LABELS, 7L);
+        var optimizer = Optimizer.forDoubleMatrices(OptimizerSettings.parse("adam:0.01"));
+        var xBatches = data.x().splitRowsInBatches(64);
+        var yBatches = data.y().splitRowsInBatches(64);
+        for (int epoch = 0; epoch < 15; epoch++) {
+            for (int i = 0; i < xBatches.size(); i++) {
+                network.trainStep(xBatches.get(i), yBatches.get(i), optimizer);
+            }
+        }
+        Assert.assertTrue(network.countMatches(data.x(), labels, 0) > 0.9d * labels.length);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnknownActivation() {
+        LayeredNetwork.create(6, "5:swish", TeacherData.NUMBER_OF_LABELS, 1L);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsMismatchedLayers() {
+        new LayeredNetwork(List.of(
+                DenseLayer.ofRandomWeights(6, 5, DoubleMatrix.createRandomGenerator(1L)),
+                new ActivationLayer(4, ActivationLayer.Activation.RELU)));
+    }
+
+    private static DoubleMatrix firstRow(DoubleMatrix matrix) {
+        return DoubleMatrix.with2dArray(new double[][]{matrix.getRow(0)});
+    }
+
+    private static DoubleMatrix withoutFirstRow(DoubleMatrix matrix) {
+        return matrix.cutOffFirstRows(1);
+    }
+
+    private static DoubleMatrix oneAt(DoubleMatrix sizedAs, int row, int column) {
+        double[][] data = new double[sizedAs.getRowDimension()][sizedAs.getColumnDimension()];
+        data[row][column] = 1d;
+        return DoubleMatrix.with2dArray(data);
+    }
+
+    private static void assertClose(DoubleMatrix actual, DoubleMatrix expected) {
+        double[][] actualData = actual.getData();
+        double[][] expectedData = expected.getData();
+        for (int row = 0; row < expectedData.length; row++) {
+            for (int column = 0; column < expectedData[row].length; column++) {
+                Assert.assertEquals(actualData[row][column], expectedData[row][column], TOLERANCE);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class LearningRateScheduleTest {
+
+    private static final double TOLERANCE = 1e-12d;
+
+    public void keepsConstantRate() {
+        var schedule = LearningRateSchedule.parse("constant", 0.1d, 10);
+
+        Assert.assertEquals(schedule.learningRate(0, 10d), 0.1d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(9, 90d), 0.1d, TOLERANCE);
+    }
+
+    public void decaysEveryStep() {
+        var schedule = LearningRateSchedule.parse("step:3:0.5", 0.1d, 10);
+
+        Assert.assertEquals(schedule.learningRate(2, 0d), 0.1d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(3, 0d), 0.05d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(7, 0d), 0.025d, TOLERANCE);
+    }
+
+    public void annealsWithCosine() {
+        var schedule = LearningRateSchedule.parse("cosine", 0.1d, 4);
+
+        Assert.assertEquals(schedule.learningRate(0, 0d), 0.1d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(2, 0d), 0.05d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(4, 0d), 0d, TOLERANCE);
+    }
+
+    public void decaysOnPlateau() {
+        var schedule = LearningRateSchedule.parse("plateau:2:0.1", 1d, 10);
+
+        Assert.assertEquals(schedule.learningRate(0, Double.NEGATIVE_INFINITY), 1d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(1, 90d), 1d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(2, 90d), 1d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(3, 90d), 0.1d, TOLERANCE);
+        Assert.assertEquals(schedule.learningRate(4, 91d), 0.1d, TOLERANCE);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnknownSchedule() {
+        LearningRateSchedule.parse("linear", 0.1d, 10);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsMissingParameters() {
+        LearningRateSchedule.parse("step:3", 0.1d, 10);
+    }
+
+}
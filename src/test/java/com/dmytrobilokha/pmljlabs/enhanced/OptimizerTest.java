@@ -0,0 +1,126 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+@Test(groups = "unit")
+public class OptimizerTest {
+
+    private static final double TOLERANCE = 1e-9d;
+
+    @DataProvider
+    public Object[][] optimizersProvider() {
+        return new Object[][]{{"sgd:0.1"}, {"momentum:0.05"}, {"nesterov:0.05"}, {"adam:0.05"}};
+    }
+
+    // Minimizes the sum of (w - target)^2, which gradient is 2 * (w - target)
+    @Test(dataProvider = "optimizersProvider")
+    public void convergesOnQuadratic(String optimizer) {
+        var target = DoubleMatrix.ofSndRandoms(60, 55, 3L);
+        var weights = DoubleMatrix.ofZerosSizedAs(target);
+        var doubleOptimizer = Optimizer.forDoubleMatrices(OptimizerSettings.parse(optimizer));
+        for (int step = 0; step < 500; step++) {
+            var gradient = weights.subtract(target).scalarMultiply(2d);
+            doubleOptimizer.update(List.of(weights), List.of(gradient));
+        }
+        double[][] weightsData = weights.getData();
+        double[][] targetData = target.getData();
+        for (int i = 0; i < targetData.length; i++) {
+            for (int j = 0; j < targetData[i].length; j++) {
+                Assert.assertEquals(weightsData[i][j], targetData[i][j], 1e-2d);
+            }
+        }
+    }
+
+    // The copy gets the state of the original after its first step, then both have to take the same second step
+    @Test(dataProvider = "optimizersProvider")
+    public void continuesFromRestoredState(String optimizer) {
+        var settings = OptimizerSettings.parse(optimizer);
+        var weights = DoubleMatrix.ofSndRandoms(3, 4, 5L);
+        var gradient = DoubleMatrix.ofSndRandoms(3, 4, 6L);
+        var original = Optimizer.forDoubleMatrices(settings);
+        original.update(List.of(weights), List.of(gradient));
+        var copiedWeights = weights.copy();
+        var copy = Optimizer.forDoubleMatrices(settings);
+        copy.restoreState(original.getState().stream().map(DoubleMatrix::copy).toList(), original.getStateScalars());
+
+        original.update(List.of(weights), List.of(gradient));
+        copy.update(List.of(copiedWeights), List.of(gradient));
+
+        double[][] expected = weights.getData();
+        double[][] actual = copiedWeights.getData();
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(actual[i], expected[i]);
+        }
+    }
+
+    public void momentumAccumulatesVelocity() {
+        var weights = DoubleMatrix.ofZeros(2, 3);
+        var gradient = DoubleMatrix.ofOnes(2, 3);
+        var optimizer = Optimizer.forDoubleMatrices(OptimizerSettings.parse("momentum:0.1"));
+        optimizer.update(List.of(weights), List.of(gradient));
+        optimizer.update(List.of(weights), List.of(gradient));
+        // -0.1, then -0.1 * 0.9 - 0.1
+        assertAllEqual(weights, -0.1d - 0.19d);
+        var nesterovWeights = DoubleMatrix.ofZeros(2, 3);
+        var nesterov = Optimizer.forDoubleMatrices(OptimizerSettings.parse("nesterov:0.1"));
+        nesterov.update(List.of(nesterovWeights), List.of(gradient));
+        // velocity -0.1, step 0.9 * -0.1 - 0.1
+        assertAllEqual(nesterovWeights, -0.19d);
+    }
+
+    public void adamFirstStepMovesByLearningRate() {
+        var weights = DoubleMatrix.ofOnes(3, 70);
+        var gradient = DoubleMatrix.ofValuesSizedAs(-250d, weights);
+        Optimizer.forDoubleMatrices(OptimizerSettings.parse("adam:0.01")).update(List.of(weights), List.of(gradient));
+        assertAllEqual(weights, 1.01d);
+    }
+
+    public void floatOptimizerFollowsDoubleOne() {
+        var doubleWeights = DoubleMatrix.ofSndRandoms(40, 120, 5L);
+        var floatWeights = toFloatMatrix(doubleWeights);
+        var doubleOptimizer = Optimizer.forDoubleMatrices(OptimizerSettings.parse("adam"));
+        var floatOptimizer = Optimizer.forFloatMatrices(OptimizerSettings.parse("adam"));
+        for (int step = 0; step < 10; step++) {
+            var doubleGradient = doubleWeights.scalarMultiply(2d);
+            doubleOptimizer.update(List.of(doubleWeights), List.of(doubleGradient));
+            floatOptimizer.update(List.of(floatWeights), List.of(floatWeights.scalarMultiply(2f)));
+        }
+        double[][] doubleData = doubleWeights.getData();
+        float[][] floatData = floatWeights.getData();
+        for (int i = 0; i < doubleData.length; i++) {
+            for (int j = 0; j < doubleData[i].length; j++) {
+                Assert.assertEquals(floatData[i][j], doubleData[i][j], 1e-4d);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnknownOptimizer() {
+        OptimizerSettings.parse("rmsprop");
+    }
+
+    private static FloatMatrix toFloatMatrix(DoubleMatrix matrix) {
+        double[][] data = matrix.getData();
+        float[][] floatData = new float[data.length][data[0].length];
+        for (int i = 0; i < data.length; i++) {
+            for (int j = 0; j < data[i].length; j++) {
+                floatData[i][j] = (float) data[i][j];
+            }
+        }
+        return FloatMatrix.with2dArray(floatData);
+    }
+
+    private static void assertAllEqual(DoubleMatrix matrix, double expected) {
+        for (double[] row : matrix.getData()) {
+            for (double value : row) {
+                Assert.assertEquals(value, expected, TOLERANCE);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+@Test(groups = "unit")
+public class ReportLineWriterTest {
+
+    // 10 batches per epoch and report every 3rd batch, so the report points are batches 0, 3, 6 and 9
+    private static final int BATCHES_PER_EPOCH = 10;
+    private static final int REPORT_PERIOD = 3;
+
+    public void numbersReportPointsAcrossEpochs() throws IOException {
+        try (var writer = createWriter(Files.createTempDirectory("lines"), false, null)) {
+            Assert.assertEquals(writer.sequenceOf(0, 0), 0L);
+            Assert.assertEquals(writer.sequenceOf(0, 9), 3L);
+            Assert.assertEquals(writer.sequenceOf(1, 0), 4L);
+            Assert.assertEquals(writer.sequenceOf(2, 6), 10L);
+        }
+    }
+
+    public void writesLinesInSequenceOrder() throws IOException {
+        var directory = Files.createTempDirectory("lines");
+        var writer = createWriter(directory, false, null);
+        writer.write(2L, "c");
+        writer.write(0L, "a");
+
+        // "c" waits for the line of the report point 1
+        Assert.assertEquals(List.copyOf(writer.getState().pending().keySet()), List.of(2L));
+        Assert.assertEquals(Files.readAllLines(directory.resolve("run.lstat")), List.of("a"));
+
+        writer.write(1L, "b");
+        writer.close();
+        Assert.assertEquals(Files.readAllLines(directory.resolve("run.lstat")), List.of("a", "b", "c"));
+    }
+
+    public void skippedReportPointReleasesNextLines() throws IOException {
+        var directory = Files.createTempDirectory("lines");
+        var writer = createWriter(directory, false, null);
+        writer.write(1L, "b");
+        writer.write(2L, "c");
+        writer.skip(0L);
+
+        Assert.assertEquals(writer.getState().nextSequence(), 3L);
+        writer.close();
+        Assert.assertEquals(Files.readAllLines(directory.resolve("run.lstat")), List.of("b", "c"));
+    }
+
+    public void ignoresLineOfReportPointAlreadyWrittenOrWaiting() throws IOException {
+        var directory = Files.createTempDirectory("lines");
+        try (var writer = createWriter(directory, false, null)) {
+            writer.write(0L, "a");
+            writer.write(0L, "again");
+            writer.write(2L, "c");
+            writer.write(2L, "again");
+            writer.write(1L, "b");
+        }
+        Assert.assertEquals(Files.readAllLines(directory.resolve("run.lstat")), List.of("a", "b", "c"));
+    }
+
+    // The lines written after the state was taken are cut off and come again from the resumed run
+    public void resumeContinuesFromState() throws IOException {
+        var directory = Files.createTempDirectory("lines");
+        var writer = createWriter(directory, true, null);
+        writer.write(0L, "a");
+        writer.write(2L, "c");
+        var state = writer.getState();
+        writer.write(1L, "b");
+        writer.write(3L, "d");
+        writer.close();
+
+        try (var resumed = createWriter(directory, true, state)) {
+            resumed.write(1L, "b");
+            resumed.write(2L, "ignored");
+            resumed.write(3L, "d");
+        }
+
+        Assert.assertEquals(Files.readAllLines(directory.resolve("run.lstat")), List.of("a", "b", "c", "d"));
+        // A record is the line length, one int per line
+        Assert.assertEquals(Files.size(directory.resolve("run.metrics")), 4L * Integer.BYTES);
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = ".*has only 0 bytes.*")
+    public void rejectsFileShorterThanState() throws IOException {
+        var directory = Files.createTempDirectory("lines");
+        var state = new ReportLineWriter.State<String>(1L, 2L, -1L, new TreeMap<>());
+        createWriter(directory, false, state);
+    }
+
+    private static ReportLineWriter<String> createWriter(
+            Path directory, boolean binaryLog, ReportLineWriter.State<String> resumeFrom) {
+        return new ReportLineWriter<>(directory.resolve("run.lstat"), Function.identity(),
+                binaryLog ? directory.resolve("run.metrics") : null,
+                binaryLog ? ReportLineWriterTest::writeRecord : null, BATCHES_PER_EPOCH, REPORT_PERIOD, resumeFrom);
+    }
+
+    private static void writeRecord(DataOutputStream output, String line) throws IOException {
+        output.writeInt(line.length());
+    }
+
+}
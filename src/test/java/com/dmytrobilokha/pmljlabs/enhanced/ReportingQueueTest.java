@@ -0,0 +1,92 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = "unit")
+public class ReportingQueueTest {
+
+    public void dropsNewSnapshotsWhenFull() throws InterruptedException {
+        var dropped = new ArrayList<Integer>();
+        var queue = new ReportingQueue<Integer>(ReportingQueue.Settings.parse("drop:2", 10), dropped::add);
+
+        submitAll(queue, 1, 2, 3, 4);
+
+        Assert.assertEquals(drain(queue), List.of(1, 2));
+        Assert.assertEquals(dropped, List.of(3, 4));
+        Assert.assertEquals(queue.getDroppedCount(), 2L);
+        Assert.assertEquals(queue.getSubmittedCount(), 4L);
+        Assert.assertEquals(queue.getMaxDepth(), 2);
+    }
+
+    public void coalescesToLatestSnapshots() throws InterruptedException {
+        var dropped = new ArrayList<Integer>();
+        var queue = new ReportingQueue<Integer>(ReportingQueue.Settings.parse("coalesce:2", 10), dropped::add);
+
+        submitAll(queue, 1, 2, 3, 4);
+
+        Assert.assertEquals(drain(queue), List.of(3, 4));
+        Assert.assertEquals(dropped, List.of(1, 2));
+        Assert.assertEquals(queue.getDroppedCount(), 2L);
+    }
+
+    // The trainer waits until the reporter takes a snapshot, nothing is lost
+    public void blocksTrainerWhenFull() throws InterruptedException {
+        var queue = new ReportingQueue<Integer>(ReportingQueue.Settings.parse("block", 1));
+        queue.submit(1);
+        var submitted = new CountDownLatch(1);
+        var trainer = new Thread(() -> {
+            queue.submit(2);
+            submitted.countDown();
+        });
+        trainer.start();
+
+        Assert.assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(queue.poll(1, TimeUnit.SECONDS), Integer.valueOf(1));
+        Assert.assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        trainer.join();
+
+        Assert.assertEquals(drain(queue), List.of(2));
+        Assert.assertEquals(queue.getDroppedCount(), 0L);
+        Assert.assertTrue(queue.getBlockedNanos() > 0L);
+    }
+
+    public void parsesDefaultCapacity() {
+        var settings = ReportingQueue.Settings.parse("Coalesce", 20);
+
+        Assert.assertEquals(settings.policy(), ReportingQueue.Policy.COALESCE);
+        Assert.assertEquals(settings.capacity(), 20);
+        Assert.assertEquals(settings.toString(), "coalesce:20");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() {
+        ReportingQueue.Settings.parse("unbounded", 20);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        ReportingQueue.Settings.parse("block:0", 20);
+    }
+
+    private static void submitAll(ReportingQueue<Integer> queue, Integer... snapshots) {
+        for (var snapshot : snapshots) {
+            queue.submit(snapshot);
+        }
+    }
+
+    private static List<Integer> drain(ReportingQueue<Integer> queue) throws InterruptedException {
+        var result = new ArrayList<Integer>();
+        for (var snapshot = queue.poll(0, TimeUnit.MILLISECONDS); snapshot != null;
+             snapshot = queue.poll(0, TimeUnit.MILLISECONDS)) {
+            result.add(snapshot);
+        }
+        return result;
+    }
+
+}
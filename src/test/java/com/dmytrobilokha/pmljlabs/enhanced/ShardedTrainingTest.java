@@ -0,0 +1,112 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+@Test(groups = "unit")
+public class ShardedTrainingTest {
+
+    private static final int INPUTS = 30;
+    private static final int HIDDEN_NODES = 20;
+    private static final double LEARNING_RATE = 0.1d;
+    private static final int STEPS = 5;
+
+    @DataProvider
+    public Object[][] shardsProvider() {
+        return new Object[][]{{1}, {2}, {3}, {7}};
+    }
+
+    @Test(dataProvider = "shardsProvider")
+    public void parallelShardsGiveSameWeightsAsSerialShards(int shards) {
+        var data = TeacherData.create(101, INPUTS, 42L);
+        var parallelWeights = createWeights();
+        var serialWeights = createWeights();
+        try (var parallelTrainer = new NeuralNetwork.ShardedTrainer(shards, true);
+             var serialTrainer = new NeuralNetwork.ShardedTrainer(shards, false)) {
+            for (int step = 0; step < STEPS; step++) {
+                updateWeights(parallelWeights, parallelTrainer.calculateGradients(
+                        data.x(), data.y(), parallelWeights.first(), parallelWeights.second()));
+                updateWeights(serialWeights, serialTrainer.calculateGradients(
+                        data.x(), data.y(), serialWeights.first(), serialWeights.second()));
+            }
+        }
+        Assert.assertTrue(Arrays.deepEquals(parallelWeights.first().getData(), serialWeights.first().getData()));
+        Assert.assertTrue(Arrays.deepEquals(parallelWeights.second().getData(), serialWeights.second().getData()));
+    }
+
+    @Test(dataProvider = "shardsProvider")
+    public void shardedStepMatchesWholeBatchStep(int shards) {
+        var data = TeacherData.create(64, INPUTS, 42L);
+        var expected = createWeights();
+        for (int step = 0; step < 2; step++) {
+            updateWeights(expected, NeuralNetwork.calculateGradients(
+                    data.x(), data.y(), expected.first(), expected.second()));
+        }
+        var actual = createWeights();
+        try (var trainer = new NeuralNetwork.ShardedTrainer(shards, true)) {
+            // Twice, the second step runs on the scratch buffers of the first one
+            for (int step = 0; step < 2; step++) {
+                updateWeights(actual, trainer.calculateGradients(
+                        data.x(), data.y(), actual.first(), actual.second()));
+            }
+        }
+        assertClose(actual.first(), expected.first());
+        assertClose(actual.second(), expected.second());
+    }
+
+    public void shardsCoverBatchWithAtLeastTwoRowsEach() {
+        Assert.assertEquals(NeuralNetwork.calculateShardRows(9, 8), new int[]{3, 2, 2, 2});
+        Assert.assertEquals(NeuralNetwork.calculateShardRows(3, 2), new int[]{3});
+    }
+
+    // The last batch of an epoch can be smaller, its shards get their own buffers next to the full size ones
+    public void handlesBatchesOfDifferentSizes() {
+        var fullBatch = TeacherData.create(64, INPUTS, 42L);
+        var lastBatch = TeacherData.create(21, INPUTS, 42L);
+        var expected = createWeights();
+        var actual = createWeights();
+        try (var trainer = new NeuralNetwork.ShardedTrainer(3, true)) {
+            for (var batch : List.of(fullBatch, lastBatch, fullBatch)) {
+                updateWeights(expected, NeuralNetwork.calculateGradients(
+                        batch.x(), batch.y(), expected.first(), expected.second()));
+                updateWeights(actual, trainer.calculateGradients(
+                        batch.x(), batch.y(), actual.first(), actual.second()));
+            }
+        }
+        assertClose(actual.first(), expected.first());
+        assertClose(actual.second(), expected.second());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsNoShards() {
+        new NeuralNetwork.ShardedTrainer(0, true);
+    }
+
+    private static NeuralNetwork.MatrixPair createWeights() {
+        return new NeuralNetwork.MatrixPair(
+                DoubleMatrix.ofSndRandoms(INPUTS + 1, HIDDEN_NODES, 1L).scalarMultiply(0.1d),
+                DoubleMatrix.ofSndRandoms(HIDDEN_NODES + 1, TeacherData.NUMBER_OF_LABELS, 2L).scalarMultiply(0.1d));
+    }
+
+    // The sgd update of train(), in place
+    private static void updateWeights(NeuralNetwork.MatrixPair weights, NeuralNetwork.MatrixPair gradients) {
+        Optimizer.forDoubleMatrices(new OptimizerSettings(OptimizerSettings.Type.SGD, LEARNING_RATE)).update(
+                List.of(weights.first(), weights.second()), List.of(gradients.first(), gradients.second()));
+    }
+
+    private static void assertClose(DoubleMatrix actual, DoubleMatrix expected) {
+        double[][] actualData = actual.getData();
+        double[][] expectedData = expected.getData();
+        for (int i = 0; i < expectedData.length; i++) {
+            for (int j = 0; j < expectedData[i].length; j++) {
+                Assert.assertEquals(actualData[i][j], expectedData[i][j], 1e-12d);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test(groups = "unit")
+public class SnapshotPoolTest {
+
+    public void recyclesReleasedBuffers() {
+        var pool = new SnapshotPool<>(2, () -> new int[1]);
+        var first = pool.acquire();
+        pool.release(first);
+
+        Assert.assertSame(pool.acquire(), first);
+        Assert.assertEquals(pool.getAcquiredCount(), 2L);
+        Assert.assertEquals(pool.getCreatedCount(), 1L);
+    }
+
+    // The training never waits for a buffer
+    public void createsBufferWhenNoneIsFree() {
+        var created = new AtomicInteger();
+        var pool = new SnapshotPool<>(1, created::incrementAndGet);
+
+        Assert.assertNotEquals(pool.acquire(), pool.acquire());
+        Assert.assertEquals(pool.getCreatedCount(), 2L);
+    }
+
+    public void keepsNoMoreThanCapacity() {
+        var pool = new SnapshotPool<>(1, Object::new);
+        var first = pool.acquire();
+        var second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+
+        Assert.assertSame(pool.acquire(), first);
+        Assert.assertNotSame(pool.acquire(), second);
+        Assert.assertEquals(pool.getCreatedCount(), 3L);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new SnapshotPool<>(0, Object::new);
+    }
+
+}
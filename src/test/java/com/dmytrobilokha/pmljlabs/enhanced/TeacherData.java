@@ -0,0 +1,34 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+
+import java.util.SplittableRandom;
+
+/**
+ * Inputs uniform in [-1, 1) labelled by a random linear teacher, so a network with a hidden layer has to reach
+ * a high accuracy on them. The same seed gives the same data.
+ */
+record TeacherData(DoubleMatrix x, int[] labels, DoubleMatrix y) {
+
+    static final int NUMBER_OF_LABELS = 10;
+
+    static TeacherData create(int rows, int inputs, long seed) {
+        var random = new SplittableRandom(seed);
+        double[][] x = new double[rows][inputs];
+        for (double[] row : x) {
+            for (int j = 0; j < inputs; j++) {
+                row[j] = random.nextDouble(-1d, 1d);
+            }
+        }
+        double[][] teacher = new double[inputs][NUMBER_OF_LABELS];
+        for (double[] row : teacher) {
+            for (int j = 0; j < NUMBER_OF_LABELS; j++) {
+                row[j] = random.nextDouble(-1d, 1d);
+            }
+        }
+        var xMatrix = DoubleMatrix.with2dArray(x);
+        int[] labels = xMatrix.multiply(DoubleMatrix.with2dArray(teacher)).indexOfHighestPerRow();
+        return new TeacherData(xMatrix, labels, NeuralNetwork.encodeMnistLabels(labels));
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+@Test(groups = "unit")
+public class TrainingCheckpointTest {
+
+    private static final int INPUTS = 20;
+    private static final int ROWS = 250;
+    private static final int HIDDEN_NODES = 30;
+    private static final int BATCH_SIZE = 64;
+    private static final int NUMBER_OF_LABELS = 10;
+
+    public void writesAndReadsAllTheState() throws IOException {
+        var path = Files.createTempDirectory("checkpoint").resolve("run.checkpoint");
+        var weights = new NeuralNetwork.MatrixPair(
+                DoubleMatrix.ofSndRandoms(21, 30, 1L), DoubleMatrix.ofSndRandoms(31, 10, 2L));
+        // Report point 4 is skipped, 5 is reported before 3
+        var pendingLines = new TreeMap<Long, NeuralNetwork.ReportingLine>();
+        pendingLines.put(4L, null);
+        pendingLines.put(5L, new NeuralNetwork.ReportingLine(1, 1, 0.4d, 92.5d, Double.NaN));
+        var checkpoint = new TrainingCheckpoint(7L, 4, OptimizerSettings.Type.ADAM, 0.002d, weights,
+                List.of(DoubleMatrix.ofSndRandoms(21, 30, 3L), DoubleMatrix.ofSndRandoms(31, 10, 4L)),
+                new double[]{0.9d, 0.999d}, new double[]{0.1d, 92.5d, 1d},
+                new ValidationTracker.State<>(5L, 6L, 92.5d, weights),
+                new ReportLineWriter.State<>(3L, 120L, -1L, pendingLines),
+                List.of(new NeuralNetwork.ReportingTask(1, 2, weights.first(), weights.second(), 0.35d)));
+
+        checkpoint.write(path);
+        var restored = TrainingCheckpoint.read(path);
+
+        Assert.assertFalse(Files.exists(path.resolveSibling("run.checkpoint.tmp")));
+        Assert.assertEquals(restored.nextStep(), 7L);
+        Assert.assertEquals(restored.batchesPerEpoch(), 4);
+        Assert.assertEquals(restored.optimizerType(), OptimizerSettings.Type.ADAM);
+        Assert.assertEquals(restored.learningRate(), 0.002d);
+        assertSameValues(restored.weights().first(), weights.first());
+        assertSameValues(restored.weights().second(), weights.second());
+        Assert.assertEquals(restored.optimizerState().size(), 2);
+        assertSameValues(restored.optimizerState().get(1), checkpoint.optimizerState().get(1));
+        Assert.assertEquals(restored.optimizerScalars(), checkpoint.optimizerScalars());
+        Assert.assertEquals(restored.scheduleState(), checkpoint.scheduleState());
+        Assert.assertEquals(restored.validationState().bestStep(), 5L);
+        Assert.assertEquals(restored.validationState().latestStep(), 6L);
+        Assert.assertEquals(restored.validationState().bestAccuracy(), 92.5d);
+        assertSameValues(restored.validationState().bestWeights().first(), weights.first());
+        Assert.assertEquals(restored.reportWriterState(), checkpoint.reportWriterState());
+        var task = restored.unreportedTasks().get(0);
+        Assert.assertEquals(task.epoch(), 1);
+        Assert.assertEquals(task.batch(), 2);
+        Assert.assertEquals(task.windowLoss(), 0.35d);
+        assertSameValues(task.w2(), weights.second());
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = "Magic number.*")
+    public void rejectsNotCheckpointFile() throws IOException {
+        var path = Files.createTempFile("checkpoint", ".txt");
+        Files.writeString(path, "not a checkpoint");
+        TrainingCheckpoint.read(path);
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = "Failed to write the latest.*")
+    public void failsOnCloseIfLatestCheckpointIsNotWritten() throws IOException {
+        var path = Files.createTempDirectory("checkpoint").resolve("missing").resolve("run.checkpoint");
+        var writer = new TrainingCheckpoint.Writer(path);
+
+        writer.save(startingFrom(new NeuralNetwork.MatrixPair(
+                DoubleMatrix.ofSndRandoms(INPUTS + 1, HIDDEN_NODES, 1L),
+                DoubleMatrix.ofSndRandoms(HIDDEN_NODES + 1, NUMBER_OF_LABELS, 2L))));
+        writer.close();
+    }
+
+    // Stopping after an epoch and resuming from the checkpoint must give the same weights as one uninterrupted run
+    public void resumesExactlyWhereStopped() throws IOException {
+        var data = TeacherData.create(ROWS, INPUTS, 5L);
+        var xTrain = data.x();
+        var yTrain = data.y();
+        var initialWeights = new NeuralNetwork.MatrixPair(
+                DoubleMatrix.ofUniRandoms(INPUTS + 1, HIDDEN_NODES, 7L).scalarAdd(-0.5d).scalarMultiply(0.2d),
+                DoubleMatrix.ofUniRandoms(HIDDEN_NODES + 1, NUMBER_OF_LABELS, 8L).scalarAdd(-0.5d).scalarMultiply(0.2d));
+
+        var uninterrupted = train(xTrain, yTrain, 3, null, startingFrom(initialWeights)).weights();
+
+        var directory = Files.createTempDirectory("checkpoint");
+        var path = directory.resolve("run.checkpoint");
+        var unreportedTasks = new ConcurrentSkipListSet<>(NeuralNetwork.ReportingTask.ORDER);
+        try (var reportWriter = new ReportLineWriter<NeuralNetwork.ReportingLine>(directory.resolve("run.lstat"),
+                NeuralNetwork.ReportingLine::toString, null, null, 4, 2, null);
+             var checkpointer = new NeuralNetwork.Checkpointer(new TrainingCheckpoint.Writer(path), 3,
+                OptimizerSettings.Type.MOMENTUM, (epoch, accuracy) -> 0.05d, new ValidationTracker<>(4),
+                reportWriter, unreportedTasks)) {
+            train(xTrain, yTrain, 1, checkpointer, startingFrom(initialWeights));
+        }
+        var checkpoint = TrainingCheckpoint.read(path);
+        Assert.assertEquals(checkpoint.nextStep(), 4L);
+        Assert.assertEquals(checkpoint.optimizerState().size(), 2);
+        // Nothing has been reported, so every queued task is still there
+        Assert.assertEquals(checkpoint.unreportedTasks().size(), 2);
+        var resumed = train(xTrain, yTrain, 3, null, checkpoint);
+
+        Assert.assertEquals(resumed.trainedEpochs(), 3);
+        assertSameValues(resumed.weights().first(), uninterrupted.first());
+        assertSameValues(resumed.weights().second(), uninterrupted.second());
+    }
+
+    private static NeuralNetwork.TrainingResult train(DoubleMatrix xTrain, DoubleMatrix yTrain, int epochs,
+                                                      NeuralNetwork.Checkpointer checkpointer,
+                                                      TrainingCheckpoint resumeFrom) {
+        // Big enough for all the tasks, as nobody reports them
+        var reportingQueue = new ReportingQueue<NeuralNetwork.ReportingTask>(
+                new ReportingQueue.Settings(ReportingQueue.Policy.BLOCK, 100));
+        return NeuralNetwork.train(xTrain, yTrain, reportingQueue,
+                NeuralNetwork.createSnapshotPool(1, xTrain.getColumnDimension(), HIDDEN_NODES), HIDDEN_NODES, epochs, BATCH_SIZE,
+                Optimizer.forDoubleMatrices(OptimizerSettings.parse("momentum:0.05")), (epoch, accuracy) -> 0.05d,
+                new ValidationTracker<>(4), 0, 2, 1, checkpointer, resumeFrom, null);
+    }
+
+    // A checkpoint at the very start, so both runs begin with the same weights
+    private static TrainingCheckpoint startingFrom(NeuralNetwork.MatrixPair weights) {
+        return new TrainingCheckpoint(0L, 4, OptimizerSettings.Type.MOMENTUM, 0.05d,
+                new NeuralNetwork.MatrixPair(weights.first().copy(), weights.second().copy()), List.of(),
+                new double[0], new double[0], new ValidationTracker.State<>(-1L, -1L, Double.NEGATIVE_INFINITY, null),
+                new ReportLineWriter.State<>(0L, 0L, -1L, new TreeMap<>()), new ArrayList<>());
+    }
+
+    private static void assertSameValues(DoubleMatrix actual, DoubleMatrix expected) {
+        double[][] actualData = actual.getData();
+        double[][] expectedData = expected.getData();
+        Assert.assertEquals(actualData.length, expectedData.length);
+        for (int row = 0; row < expectedData.length; row++) {
+            Assert.assertEquals(actualData[row], expectedData[row]);
+        }
+    }
+
+}
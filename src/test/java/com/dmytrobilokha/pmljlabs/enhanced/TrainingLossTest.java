@@ -0,0 +1,108 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import com.dmytrobilokha.pmljlabs.DoubleMatrix;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+
+@Test(groups = "unit")
+public class TrainingLossTest {
+
+    private static final int INPUTS = 20;
+    private static final int HIDDEN_NODES = 30;
+    private static final int NUMBER_OF_LABELS = 10;
+
+    public void parsesSettings() {
+        Assert.assertEquals(TrainingLoss.Settings.parse("window").mode(), TrainingLoss.Mode.WINDOW);
+        Assert.assertEquals(TrainingLoss.Settings.parse("sampled").sampleRows(), TrainingLoss.DEFAULT_SAMPLE_ROWS);
+        Assert.assertEquals(TrainingLoss.Settings.parse("sampled:500").toString(), "sampled:500");
+        Assert.assertEquals(TrainingLoss.Settings.parse("EXACT").toString(), "exact");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsSampleRowsForOtherModes() {
+        TrainingLoss.Settings.parse("window:500");
+    }
+
+    public void onlyFirstReportOfEpochIsExact() {
+        var settings = TrainingLoss.Settings.parse("window");
+        Assert.assertTrue(settings.isExact(0));
+        Assert.assertFalse(settings.isExact(5));
+        Assert.assertTrue(TrainingLoss.Settings.parse("exact").isExact(5));
+    }
+
+    public void estimatesMeanAndConfidenceInterval() {
+        double[] losses = {0.5d, 1.5d, 1d, 2d, 0d};
+        double sum = 0d;
+        double sumOfSquares = 0d;
+        for (double loss : losses) {
+            sum += loss;
+            sumOfSquares += loss * loss;
+        }
+
+        var estimate = TrainingLoss.Estimate.ofSample(sum, sumOfSquares, losses.length);
+
+        // Sample variance 0.625, standard error sqrt(0.625 / 5)
+        Assert.assertEquals(estimate.loss(), 1d, 1e-12d);
+        Assert.assertEquals(estimate.halfWidth(), 1.959963984540054d * Math.sqrt(0.125d), 1e-12d);
+    }
+
+    public void windowTakesMeanOfBatchesSincePreviousTake() {
+        var window = new TrainingLoss.Window();
+        window.add(10d, 4);
+        window.add(2d, 2);
+
+        Assert.assertEquals(window.takeMean(), 2d);
+        Assert.assertTrue(Double.isNaN(window.takeMean()));
+    }
+
+    public void windowGetsLossOfTrainingForwardPass() {
+        var random = new SplittableRandom(1L);
+        var x = DoubleMatrix.ofSndRandoms(64, INPUTS, 2L);
+        var y = NeuralNetwork.encodeMnistLabels(createLabels(random, 64));
+        var w1 = DoubleMatrix.ofSndRandoms(INPUTS + 1, HIDDEN_NODES, 3L).scalarMultiply(0.1d);
+        var w2 = DoubleMatrix.ofSndRandoms(HIDDEN_NODES + 1, NUMBER_OF_LABELS, 4L).scalarMultiply(0.1d);
+        var window = new TrainingLoss.Window();
+
+        NeuralNetwork.calculateGradients(x, y, w1, w2, window);
+
+        Assert.assertEquals(window.takeMean(), reportTrainingLoss(x, y, w1, w2, "exact", 0).trainingLoss(), 1e-12d);
+    }
+
+    // The exact loss is within the interval of the sampled estimate
+    public void sampledEstimateCoversExactLoss() {
+        var random = new SplittableRandom(5L);
+        var x = DoubleMatrix.ofSndRandoms(2000, INPUTS, 6L);
+        var y = NeuralNetwork.encodeMnistLabels(createLabels(random, 2000));
+        var w1 = DoubleMatrix.ofSndRandoms(INPUTS + 1, HIDDEN_NODES, 7L).scalarMultiply(0.3d);
+        var w2 = DoubleMatrix.ofSndRandoms(HIDDEN_NODES + 1, NUMBER_OF_LABELS, 8L).scalarMultiply(0.3d);
+
+        var exact = reportTrainingLoss(x, y, w1, w2, "sampled:500", 0);
+        var sampled = reportTrainingLoss(x, y, w1, w2, "sampled:500", 5);
+
+        Assert.assertEquals(exact.trainingLossHalfWidth(), 0d);
+        Assert.assertTrue(sampled.trainingLossHalfWidth() > 0d);
+        Assert.assertEquals(sampled.trainingLoss(), exact.trainingLoss(), sampled.trainingLossHalfWidth());
+    }
+
+    private static NeuralNetwork.ReportingLine reportTrainingLoss(
+            DoubleMatrix x, DoubleMatrix y, DoubleMatrix w1, DoubleMatrix w2, String trainingLoss, int batch) {
+        // The line is taken directly, so no line writer
+        try (var evaluationPool = new EvaluationPool(2, 300)) {
+            var reporter = new NeuralNetwork.Reporter(x, y, x, y.indexOfHighestPerRow(), evaluationPool, null,
+                    new ArrayList<>(), new ValidationTracker<>(1), TrainingLoss.Settings.parse(trainingLoss));
+            return reporter.report(0, batch, w1, w2, Double.NaN);
+        }
+    }
+
+    private static int[] createLabels(SplittableRandom random, int rows) {
+        int[] labels = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            labels[i] = random.nextInt(NUMBER_OF_LABELS);
+        }
+        return labels;
+    }
+
+}
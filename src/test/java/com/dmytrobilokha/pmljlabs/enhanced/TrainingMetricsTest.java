@@ -0,0 +1,112 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+@Test(groups = "unit")
+public class TrainingMetricsTest {
+
+    public void followsLatestStepWhateverTheRecordOrder() {
+        var metrics = createMetrics(new ValidationTracker<>(10));
+        Assert.assertEquals(metrics.getEpoch(), -1);
+
+        metrics.recordStep(1, 3, 32, 1_000_000L);
+        metrics.recordStep(1, 2, 32, 1_000_000L);
+
+        Assert.assertEquals(metrics.getEpoch(), 1);
+        Assert.assertEquals(metrics.getBatch(), 3);
+        Assert.assertEquals(metrics.getTrainedSteps(), 2L);
+        Assert.assertEquals(metrics.getTrainedSamples(), 64L);
+    }
+
+    // Only the latest RECENT_STEPS latencies count, the older ones are overwritten in the ring
+    public void takesLatencyPercentilesOfRecentSteps() {
+        var metrics = createMetrics(new ValidationTracker<>(10));
+        for (int i = 0; i < TrainingMetrics.RECENT_STEPS; i++) {
+            metrics.recordStep(0, 0, 32, 500_000_000L);
+        }
+        for (int i = 100; i > 0; i--) {
+            metrics.recordStep(0, 0, 32, i * 1_000_000L);
+        }
+
+        Assert.assertEquals(metrics.getStepLatencyP50Millis(), 500d);
+        for (int i = 100; i < TrainingMetrics.RECENT_STEPS; i++) {
+            metrics.recordStep(0, 0, 32, 1_000_000L);
+        }
+        for (int i = 100; i > 0; i--) {
+            metrics.recordStep(0, 0, 32, i * 1_000_000L);
+        }
+        // The ring now holds 924 steps of 1 ms and the 100 steps of 1 to 100 ms
+        Assert.assertEquals(metrics.getStepLatencyP50Millis(), 1d);
+        Assert.assertEquals(metrics.getStepLatencyP99Millis(), 90d);
+    }
+
+    public void measuresEvaluatorLagAgainstLatestReport() {
+        var tracker = new ValidationTracker<String>(10);
+        var metrics = createMetrics(tracker);
+        metrics.recordStep(2, 5, 32, 1L);
+        Assert.assertEquals(metrics.getEvaluatorLagSteps(), 26L);
+        Assert.assertTrue(Double.isNaN(metrics.getLatestValidationAccuracy()));
+
+        tracker.record(2, 0, 91.5d, "weights");
+
+        Assert.assertEquals(metrics.getEvaluatorLagSteps(), 5L);
+        Assert.assertEquals(metrics.getLatestValidationAccuracy(), 91.5d);
+    }
+
+    public void formatsPrometheusText() {
+        var metrics = createMetrics(new ValidationTracker<>(10));
+        metrics.recordStep(0, 1, 32, 2_000_000L);
+
+        var text = metrics.formatPrometheus();
+
+        Assert.assertTrue(text.contains("# TYPE pmljlabs_epoch gauge\npmljlabs_epoch 0\n"), text);
+        Assert.assertTrue(text.contains("pmljlabs_batch 1\n"), text);
+        Assert.assertTrue(text.contains("# TYPE pmljlabs_step_latency_seconds summary\n"), text);
+        Assert.assertTrue(text.contains("pmljlabs_step_latency_seconds{quantile=\"0.99\"} 0.002\n"), text);
+        Assert.assertTrue(text.contains("pmljlabs_step_latency_seconds_count 1\n"), text);
+        Assert.assertTrue(text.contains("pmljlabs_reporting_queue_depth 0\n"), text);
+        Assert.assertTrue(text.contains("pmljlabs_validation_accuracy_percent NaN\n"), text);
+    }
+
+    public void exposesMetricsAsMBeanUntilClosed() throws JMException {
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var name = new ObjectName(TrainingMetrics.OBJECT_NAME);
+        try (var metrics = createMetrics(new ValidationTracker<>(10)).register()) {
+            metrics.recordStep(3, 4, 32, 1L);
+
+            Assert.assertEquals(server.getAttribute(name, "Epoch"), 3);
+            Assert.assertEquals(server.getAttribute(name, "TrainedSamples"), 32L);
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    public void servesMetricsOverHttp() throws IOException, InterruptedException {
+        var metrics = createMetrics(new ValidationTracker<>(10));
+        metrics.recordStep(0, 7, 32, 1L);
+        try (var endpoint = new MetricsEndpoint(metrics, 0)) {
+            var request = HttpRequest.newBuilder(URI.create(endpoint.getUrl())).build();
+
+            var response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+
+            Assert.assertEquals(response.statusCode(), 200);
+            Assert.assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain"));
+            Assert.assertTrue(response.body().contains("pmljlabs_batch 7\n"), response.body());
+        }
+    }
+
+    private static TrainingMetrics createMetrics(ValidationTracker<?> tracker) {
+        return new TrainingMetrics(10,
+                new ReportingQueue<>(new ReportingQueue.Settings(ReportingQueue.Policy.BLOCK, 2)), tracker);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.dmytrobilokha.pmljlabs.enhanced;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class ValidationTrackerTest {
+
+    public void keepsBestWeightsWhateverTheReportOrder() {
+        var tracker = new ValidationTracker<String>(10);
+
+        tracker.record(1, 5, 92d, "epoch 1");
+        tracker.record(0, 5, 90d, "epoch 0");
+        tracker.record(2, 5, 91d, "epoch 2");
+
+        Assert.assertEquals(tracker.getBestAccuracy(), 92d);
+        Assert.assertEquals(tracker.getBestWeights(), "epoch 1");
+    }
+
+    public void keepsAccuracyOfLatestReportedStep() {
+        var tracker = new ValidationTracker<String>(10);
+        Assert.assertTrue(Double.isNaN(tracker.getLatestAccuracy()));
+
+        tracker.record(1, 5, 92d, "epoch 1");
+        tracker.record(0, 5, 90d, "epoch 0");
+
+        Assert.assertEquals(tracker.getLatestStep(), 15L);
+        Assert.assertEquals(tracker.getLatestAccuracy(), 92d);
+    }
+
+    // The reported buffer is reused afterwards, the tracker must not see that
+    public void keepsCopyOfBestRecycledWeights() {
+        var tracker = new ValidationTracker<StringBuilder>(10, weights -> new StringBuilder(weights));
+        var buffer = new StringBuilder("epoch 0");
+
+        tracker.record(0, 5, 90d, buffer);
+        buffer.replace(0, buffer.length(), "epoch 1");
+        tracker.record(1, 5, 89d, buffer);
+
+        Assert.assertEquals(tracker.getBestWeights().toString(), "epoch 0");
+    }
+
+    public void detectsNoImprovement() {
+        var tracker = new ValidationTracker<String>(10);
+        Assert.assertFalse(tracker.hasNotImprovedFor(1));
+
+        tracker.record(0, 0, 90d, "best");
+        tracker.record(1, 9, 90d, "same");
+        Assert.assertFalse(tracker.hasNotImprovedFor(2));
+
+        tracker.record(2, 0, 89d, "worse");
+        Assert.assertTrue(tracker.hasNotImprovedFor(2));
+        Assert.assertEquals(tracker.getBestWeights(), "best");
+    }
+
+}